@@ -0,0 +1,306 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A log of every response a server writes, one JSON object a line: when it finished, the peer,
+ * method, path, protocol, status, bytes sent (headers included), and how long it took from the
+ * request's first byte to the response's last, and of that how long writing took. For example:
+ *
+ *   {"time":"2024-01-02T03:04:05.678Z","peer":"127.0.0.1","method":"GET","path":"/","protocol":"HTTP/1.1","status":200,"bytes":97,"duration_us":412,"write_us":31}
+ *
+ * Responses to requests that couldn't be parsed have null method, path and protocol.
+ *
+ * Recording an entry doesn't format or write anything: it's copied into a preallocated RingBuffer
+ * and a thread of the log's own writes them out in batches. If that thread falls so far behind
+ * that the buffer is full, entries are dropped and counted rather than holding up requests.
+ *
+ * Request listeners added here are run on that thread too, once their request's response has been
+ * written, rather than before the handler on the thread serving it as Server's are. They mustn't
+ * read the request's body.
+ */
+public final class AccessLog implements Closeable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    // Entries drained, and written, at a time.
+    private static final int BATCH_SIZE = 1024;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final long flushIntervalNanos;
+    private final List<RequestListener> requestListeners;
+    private final RingBuffer<Entry> entries;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // Only touched by the writer thread.
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 192);
+    private FileChannel channel;
+    private long fileSize;
+
+    private AccessLog(Builder builder) throws IOException {
+        this.file = builder.file;
+        this.maxFileSize = builder.maxFileSize;
+        this.maxFiles = builder.maxFiles;
+        this.flushIntervalNanos = builder.flushInterval.toNanos();
+        this.requestListeners = new ArrayList<>(builder.requestListeners);
+        this.entries = new RingBuffer<>(builder.bufferSize, Entry::new);
+        if (file != null) {
+            open();
+        }
+        this.writer = new Thread(this::run, "access-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Records a response that's been written. req is null if the request couldn't be parsed; the
+     * times are System.nanoTime()s.
+     */
+    void record(Request req, InetAddress peer, Status status, long bytes, long startNanos, long writeStartNanos, long endNanos) {
+        long position = entries.claim();
+        if (position == -1) {
+            dropped.increment();
+            return;
+        }
+        Entry entry = entries.get(position);
+        entry.timeMillis = System.currentTimeMillis();
+        entry.request = req;
+        entry.peer = peer;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.durationNanos = endNanos - startNanos;
+        entry.writeNanos = endNanos - writeStartNanos;
+        entries.publish(position);
+    }
+
+    // Entries that were dropped because the buffer was full.
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Writes out what's been recorded so far and stops. Anything recorded afterwards is ignored.
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            // Read before draining, so whatever was recorded before close() gets written.
+            boolean closing = closed;
+            int drained = entries.drain(this::append, BATCH_SIZE);
+            if (drained > 0) {
+                flush();
+            }
+            if (drained == BATCH_SIZE) {
+                // There may well be more.
+                continue;
+            }
+            if (closing) {
+                break;
+            }
+            LockSupport.parkNanos(this, flushIntervalNanos);
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.atWarning().withCause(e).log("failed to close access log %s", file);
+            }
+        }
+    }
+
+    private void append(Entry entry) {
+        Request req = entry.request;
+        // Not kept alive by the slot any longer than it takes to get here.
+        entry.request = null;
+        if (channel != null) {
+            format(entry, req, batch);
+        }
+        if (req == null) {
+            return;
+        }
+        for (RequestListener listener : requestListeners) {
+            try {
+                listener.onRequest(req);
+            } catch (RuntimeException e) {
+                logger.atWarning().withCause(e).log("request listener failed");
+            }
+        }
+    }
+
+    private static void format(Entry entry, Request req, StringBuilder out) {
+        out.append("{\"time\":\"");
+        TIME.formatTo(Instant.ofEpochMilli(entry.timeMillis), out);
+        out.append("\",\"peer\":");
+        appendString(entry.peer == null ? null : entry.peer.getHostAddress(), out);
+        out.append(",\"method\":");
+        appendString(req == null ? null : req.getMethod(), out);
+        out.append(",\"path\":");
+        appendString(req == null ? null : req.getRequestUri(), out);
+        out.append(",\"protocol\":");
+        appendString(req == null ? null : req.getHttpVersion(), out);
+        out.append(",\"status\":").append(entry.status.getStatus())
+                .append(",\"bytes\":").append(entry.bytes)
+                .append(",\"duration_us\":").append(TimeUnit.NANOSECONDS.toMicros(entry.durationNanos))
+                .append(",\"write_us\":").append(TimeUnit.NANOSECONDS.toMicros(entry.writeNanos))
+                .append("}\n");
+    }
+
+    private static void appendString(String s, StringBuilder out) {
+        if (s == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private void flush() {
+        if (batch.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(Charsets.UTF_8));
+        batch.setLength(0);
+        try {
+            if (fileSize > 0 && fileSize + bytes.remaining() > maxFileSize) {
+                rotate();
+            }
+            while (bytes.hasRemaining()) {
+                fileSize += channel.write(bytes);
+            }
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("failed to write access log %s", file);
+        }
+    }
+
+    // Moves file to file.1, file.1 to file.2 and so on, dropping the oldest, and starts afresh.
+    private void rotate() throws IOException {
+        channel.close();
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rotated(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    static final class Entry {
+        long timeMillis;
+        Request request;
+        InetAddress peer;
+        Status status;
+        long bytes;
+        long durationNanos;
+        long writeNanos;
+    }
+
+    public static final class Builder {
+        private Path file;
+        private long maxFileSize = 64 * 1024 * 1024;
+        private int maxFiles = 5;
+        private int bufferSize = 8192;
+        private Duration flushInterval = Duration.ofMillis(100);
+        private final List<RequestListener> requestListeners = new ArrayList<>();
+
+        // Where to write the log. Without one, only request listeners are run.
+        public Builder withFile(Path file) {
+            this.file = file;
+            return this;
+        }
+
+        // The size past which the file is rotated, keeping maxFiles old ones as file.1, file.2...
+        public Builder withRotation(long maxFileSize, int maxFiles) {
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = maxFiles;
+            return this;
+        }
+
+        // How many entries can be waiting to be written before more are dropped. A power of two.
+        public Builder withBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        // How long the writer sleeps when it's caught up.
+        public Builder withFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        public Builder addRequestListener(RequestListener requestListener) {
+            this.requestListeners.add(requestListener);
+            return this;
+        }
+
+        public AccessLog build() throws IOException {
+            Preconditions.checkArgument(file != null || !requestListeners.isEmpty(),
+                    "an access log needs a file or request listeners");
+            Preconditions.checkArgument(maxFileSize > 0, "maxFileSize must be positive");
+            Preconditions.checkArgument(maxFiles >= 0, "maxFiles must not be negative");
+            Preconditions.checkArgument(bufferSize > 0 && Integer.bitCount(bufferSize) == 1,
+                    "bufferSize must be a power of two");
+            Preconditions.checkArgument(!flushInterval.isNegative() && !flushInterval.isZero(), "flushInterval must be positive");
+            return new AccessLog(this);
+        }
+    }
+}
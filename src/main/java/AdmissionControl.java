@@ -0,0 +1,190 @@
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides whether a request gets to run its handler. Requests beyond the server-wide or per-route
+ * concurrency limits wait for a slot, but only until they have been waiting maxQueueWait since they
+ * arrived; after that they get the overload response, by default 503 with a Retry-After, rather
+ * than being served long after the client stopped caring.
+ */
+public final class AdmissionControl {
+    private final ConcurrencyLimiter serverLimiter;
+    private final List<RouteLimit> routeLimits;
+    private final long maxQueueWaitNanos;
+    private final RequestHandler overloadHandler;
+
+    private AdmissionControl(Builder builder) {
+        this.serverLimiter = builder.adaptive
+                ? ConcurrencyLimiter.adaptive(builder.minAdaptiveLimit, builder.maxConcurrentRequests)
+                : builder.maxConcurrentRequests == Integer.MAX_VALUE ? null : ConcurrencyLimiter.fixed(builder.maxConcurrentRequests);
+        // Longest prefix first, so the most specific route is the one that applies.
+        builder.routeLimits.sort(Comparator.comparingInt((RouteLimit r) -> r.prefix.length()).reversed());
+        this.routeLimits = builder.routeLimits;
+        this.maxQueueWaitNanos = builder.maxQueueWait.toNanos();
+        if (builder.overloadHandler != null) {
+            this.overloadHandler = builder.overloadHandler;
+        } else {
+            String retryAfter = String.valueOf(Math.max(1, builder.retryAfter.getSeconds()));
+            this.overloadHandler = req -> Response.builder()
+                    .withStatus(Status.SERVICE_UNAVAILABLE)
+                    .addHeader(HeaderNames.RETRY_AFTER, retryAfter)
+                    .build();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Admits req, waiting for capacity if mayWait is set, and returns the permit to release once
+     * its handler is done, or null if it should get the overload response instead.
+     */
+    Permit admit(Request req, boolean mayWait) {
+        long deadline = req.getReceivedNanos() + maxQueueWaitNanos;
+        if (System.nanoTime() - deadline > 0) {
+            // It waited too long before we even got to it, in the handler executor's queue say.
+            return null;
+        }
+
+        // The route's slot first, so requests queueing behind a saturated route don't hold server
+        // slots that other routes could be using.
+        ConcurrencyLimiter routeLimiter = routeLimiter(req.getRequestUri());
+        if (!acquire(routeLimiter, deadline, mayWait)) {
+            return null;
+        }
+        if (!acquire(serverLimiter, deadline, mayWait)) {
+            release(routeLimiter, 0);
+            return null;
+        }
+        return new Permit(serverLimiter, routeLimiter);
+    }
+
+    Response overloaded(Request req) throws RequestHandlerException {
+        return overloadHandler.handle(req);
+    }
+
+    private ConcurrencyLimiter routeLimiter(String path) {
+        for (RouteLimit route : routeLimits) {
+            // On a segment boundary, so a limit on /api leaves /apiary alone.
+            if (path.startsWith(route.prefix) && (path.length() == route.prefix.length()
+                    || route.prefix.endsWith("/") || path.charAt(route.prefix.length()) == '/')) {
+                return route.limiter;
+            }
+        }
+        return null;
+    }
+
+    private static boolean acquire(ConcurrencyLimiter limiter, long deadline, boolean mayWait) {
+        if (limiter == null) {
+            return true;
+        }
+        if (!mayWait) {
+            return limiter.tryAcquire();
+        }
+        try {
+            return limiter.acquire(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void release(ConcurrencyLimiter limiter, long latencyNanos) {
+        if (limiter != null) {
+            limiter.release(latencyNanos);
+        }
+    }
+
+    static final class Permit {
+        private final ConcurrencyLimiter serverLimiter;
+        private final ConcurrencyLimiter routeLimiter;
+        private final long startNanos = System.nanoTime();
+
+        private Permit(ConcurrencyLimiter serverLimiter, ConcurrencyLimiter routeLimiter) {
+            this.serverLimiter = serverLimiter;
+            this.routeLimiter = routeLimiter;
+        }
+
+        void release() {
+            long latencyNanos = System.nanoTime() - startNanos;
+            AdmissionControl.release(routeLimiter, latencyNanos);
+            AdmissionControl.release(serverLimiter, latencyNanos);
+        }
+    }
+
+    private static final class RouteLimit {
+        private final String prefix;
+        private final ConcurrencyLimiter limiter;
+
+        private RouteLimit(String prefix, ConcurrencyLimiter limiter) {
+            this.prefix = prefix;
+            this.limiter = limiter;
+        }
+    }
+
+    public static final class Builder {
+        private int maxConcurrentRequests = Integer.MAX_VALUE;
+        private boolean adaptive = false;
+        private int minAdaptiveLimit = 1;
+        private final List<RouteLimit> routeLimits = new ArrayList<>();
+        private Duration maxQueueWait = Duration.ofSeconds(1);
+        private Duration retryAfter = Duration.ofSeconds(1);
+        private RequestHandler overloadHandler = null;
+
+        // The most requests the whole server runs handlers for at once.
+        public Builder withMaxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Lets the server-wide limit float between minLimit and the limit set by
+         * withMaxConcurrentRequests, backing off when handler latency rises above what the server
+         * manages with light load.
+         */
+        public Builder withAdaptiveLimit(int minLimit) {
+            this.adaptive = true;
+            this.minAdaptiveLimit = minLimit;
+            return this;
+        }
+
+        // Limits requests whose path is pathPrefix or below it. The longest matching prefix applies.
+        public Builder withRouteLimit(String pathPrefix, int maxConcurrentRequests) {
+            Preconditions.checkArgument(maxConcurrentRequests > 0, "route limit must be positive");
+            this.routeLimits.add(new RouteLimit(pathPrefix, ConcurrencyLimiter.fixed(maxConcurrentRequests)));
+            return this;
+        }
+
+        // How long after arriving a request may still be started.
+        public Builder withMaxQueueWait(Duration maxQueueWait) {
+            this.maxQueueWait = maxQueueWait;
+            return this;
+        }
+
+        public Builder withRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        // Builds the response for requests that are turned away, in place of the default 503.
+        public Builder withOverloadHandler(RequestHandler overloadHandler) {
+            this.overloadHandler = overloadHandler;
+            return this;
+        }
+
+        public AdmissionControl build() {
+            Preconditions.checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+            Preconditions.checkArgument(!adaptive || maxConcurrentRequests != Integer.MAX_VALUE,
+                    "an adaptive limit needs withMaxConcurrentRequests as its ceiling");
+            Preconditions.checkArgument(minAdaptiveLimit > 0 && minAdaptiveLimit <= maxConcurrentRequests,
+                    "minLimit must be positive and at most maxConcurrentRequests");
+            Preconditions.checkArgument(!maxQueueWait.isNegative(), "maxQueueWait must not be negative");
+            return new AdmissionControl(this);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A RequestHandler for handlers that wait on something else, such as a downstream service, without
+ * holding a thread while they do. handle should return as soon as the work is started; the response
+ * is written whenever the stage completes, on whichever thread completes it.
+ *
+ * A stage that completes exceptionally is answered the way a RequestHandler throwing would be: a
+ * RequestHandlerException gives its own response, anything else a 500. One that's cancelled gets a
+ * 503, and one that doesn't complete within the server's request timeout is cancelled and answered
+ * with a 504.
+ */
+@FunctionalInterface
+public interface AsyncRequestHandler {
+    CompletionStage<Response> handle(Request req);
+}
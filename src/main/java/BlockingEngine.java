@@ -0,0 +1,162 @@
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+final class BlockingEngine implements RunningEngine {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final Server server;
+    private final ServerMetrics metrics;
+    private final ExecutorService workers;
+    private final List<Thread> acceptors = new ArrayList<>();
+    private List<ServerSocket> sockets;
+    private final List<BlockingQueue<Accepted>> queues = new ArrayList<>();
+    private volatile boolean draining = false;
+
+    BlockingEngine(Server server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.workers = Executors.newFixedThreadPool(server.getNumThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("http-worker-%d")
+                .build());
+    }
+
+    BlockingEngine start() throws IOException {
+        sockets = Listeners.bindSockets(server);
+        server.notifyServerConnect(sockets.get(0));
+
+        // Each shard has its own queue and its own share of the workers, so shards never contend
+        // with each other for work.
+        for (int i = 0; i < sockets.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(server.getQueueSize()));
+        }
+        for (int i = 0; i < server.getNumThreads(); i++) {
+            BlockingQueue<Accepted> queue = queues.get(i % queues.size());
+            workers.submit(() -> {
+                while (true) {
+                    Accepted accepted = queue.take();
+                    metrics.dequeued(System.nanoTime() - accepted.nanos);
+                    metrics.connectionOpened();
+                    try (Socket client = accepted.socket) {
+                        server.serve(client);
+                    } catch (IOException e) {
+                        logger.atFine().withCause(e).log("connection failed");
+                    } finally {
+                        metrics.connectionClosed();
+                    }
+                }
+            });
+        }
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("http-acceptor-%d")
+                .build();
+        for (int i = 0; i < sockets.size(); i++) {
+            ServerSocket socket = sockets.get(i);
+            BlockingQueue<Accepted> queue = queues.get(i);
+            Thread acceptor = threadFactory.newThread(() -> {
+                try {
+                    acceptLoop(socket, queue);
+                } catch (IOException e) {
+                    if (!draining) {
+                        logger.atSevere().withCause(e).log("acceptor failed");
+                    }
+                }
+            });
+            acceptors.add(acceptor);
+            acceptor.start();
+        }
+        return this;
+    }
+
+    // Accepts connections on one shard's socket into its queue, until the socket's closed.
+    private void acceptLoop(ServerSocket serverSocket, BlockingQueue<Accepted> queue) throws IOException {
+        while (true) {
+            Socket client = serverSocket.accept();
+            metrics.accepted();
+            Accepted accepted = new Accepted(client, System.nanoTime());
+            if (server.getOverloadPolicy() == OverloadPolicy.REJECT) {
+                if (queue.offer(accepted)) {
+                    metrics.enqueued();
+                } else {
+                    server.reject(client);
+                }
+                continue;
+            }
+            try {
+                metrics.enqueued();
+                queue.put(accepted);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                metrics.abandoned();
+                client.close();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return sockets.get(0).getLocalPort();
+    }
+
+    @Override
+    public void drain() {
+        draining = true;
+        Listeners.closeAll(sockets);
+        Listeners.awaitAcceptors(acceptors);
+        // Connections already queued are still served, one request each.
+        server.getOpenConnections().drain();
+    }
+
+    @Override
+    public int abandon() {
+        for (BlockingQueue<Accepted> queue : queues) {
+            Accepted accepted;
+            while ((accepted = queue.poll()) != null) {
+                metrics.abandoned();
+                try {
+                    accepted.socket.close();
+                } catch (IOException e) {
+                    logger.atFine().withCause(e).log("failed to close queued connection");
+                }
+            }
+        }
+        return server.getOpenConnections().abandon();
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        for (Thread acceptor : acceptors) {
+            // An acceptor blocked putting into a full queue is woken by this.
+            acceptor.interrupt();
+            acceptor.join();
+        }
+        // Workers are waiting on their queues, or in a handler that outlived its connection and
+        // isn't waited for.
+        workers.shutdownNow();
+        workers.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    // A connection waiting for a worker, with when it was accepted.
+    private static final class Accepted {
+        private final Socket socket;
+        private final long nanos;
+
+        private Accepted(Socket socket, long nanos) {
+            this.socket = socket;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.nio.ByteBuffer;
+
+// Incrementally strips the framing off a request body, either a fixed Content-Length or chunked
+// transfer-coding. Encoded bytes go in, payload bytes come out, and either side can run dry at any
+// point and be resumed on the next call.
+final class BodyDecoder {
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private static final int SIZE = 0;
+    private static final int SIZE_EXTENSION = 1;
+    private static final int SIZE_LF = 2;
+    private static final int DATA = 3;
+    private static final int DATA_CR = 4;
+    private static final int DATA_LF = 5;
+    private static final int TRAILER = 6;
+    private static final int COMPLETE = 7;
+
+    private final boolean chunked;
+    private int state;
+    // Bytes left in the body (fixed length) or in the current chunk (chunked).
+    private long remaining;
+    private boolean sawDigit;
+    private int lineLength;
+
+    private BodyDecoder(boolean chunked, long length) {
+        this.chunked = chunked;
+        this.remaining = length;
+        this.state = chunked ? SIZE : length == 0 ? COMPLETE : DATA;
+    }
+
+    static BodyDecoder fixed(long length) {
+        return new BodyDecoder(false, length);
+    }
+
+    static BodyDecoder chunked() {
+        return new BodyDecoder(true, 0);
+    }
+
+    boolean isComplete() {
+        return state == COMPLETE;
+    }
+
+    /**
+     * Consumes encoded bytes from src and copies payload into dst, until src is exhausted, dst is
+     * full or the body is complete. Bytes after the end of the body are left in src.
+     */
+    void decode(ByteBuffer src, ByteBuffer dst) throws RequestParseException {
+        while (state != COMPLETE && src.hasRemaining()) {
+            if (state == DATA) {
+                int n = (int) Math.min(remaining, Math.min(src.remaining(), dst.remaining()));
+                if (n == 0) {
+                    return;
+                }
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                src.position(src.position() + n);
+                remaining -= n;
+                if (remaining == 0) {
+                    state = chunked ? DATA_CR : COMPLETE;
+                }
+                continue;
+            }
+
+            byte b = src.get();
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit != -1) {
+                        if (remaining > (Long.MAX_VALUE >> 4)) {
+                            throw new RequestParseException("chunk too large");
+                        }
+                        remaining = remaining << 4 | digit;
+                        sawDigit = true;
+                    } else if (b == ';' && sawDigit) {
+                        state = SIZE_EXTENSION;
+                    } else if (b == '\r' && sawDigit) {
+                        state = SIZE_LF;
+                    } else if (b == '\n' && sawDigit) {
+                        endOfSizeLine();
+                    } else {
+                        throw new RequestParseException("invalid chunk size");
+                    }
+                    break;
+                case SIZE_LF:
+                    if (b != '\n') {
+                        throw new RequestParseException("invalid chunk size");
+                    }
+                    endOfSizeLine();
+                    break;
+                case SIZE_EXTENSION:
+                    if (b == '\n') {
+                        endOfSizeLine();
+                    } else if (++lineLength > MAX_LINE_LENGTH) {
+                        throw new RequestParseException("chunk extension too long");
+                    }
+                    break;
+                case DATA_CR:
+                    if (b == '\n') {
+                        state = SIZE;
+                    } else if (b == '\r') {
+                        state = DATA_LF;
+                    } else {
+                        throw new RequestParseException("missing CRLF after chunk");
+                    }
+                    break;
+                case DATA_LF:
+                    if (b != '\n') {
+                        throw new RequestParseException("missing CRLF after chunk");
+                    }
+                    state = SIZE;
+                    break;
+                case TRAILER:
+                    // Trailer fields are skipped, the body ends at the first empty line.
+                    if (b == '\n') {
+                        if (lineLength == 0) {
+                            state = COMPLETE;
+                        }
+                        lineLength = 0;
+                    } else if (b != '\r' && ++lineLength > MAX_LINE_LENGTH) {
+                        throw new RequestParseException("trailer too long");
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected state " + state);
+            }
+        }
+    }
+
+    private void endOfSizeLine() {
+        sawDigit = false;
+        lineLength = 0;
+        state = remaining == 0 ? TRAILER : DATA;
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+// Hands a request body from an event loop to the handler thread reading it. The pipe holds at most
+// CAPACITY bytes; once it's full the connection stops reading from the socket until the handler
+// has made room, so a slow handler pushes back on the client instead of the body piling up.
+final class BodyPipe extends InputStream {
+    private static final int CAPACITY = 64 * 1024;
+
+    private final NioConnection conn;
+    // Decoded body bytes waiting for the handler, between index 0 and position.
+    private final ByteBuffer buffer = ByteBuffer.allocate(CAPACITY);
+    private boolean complete = false;
+    private boolean paused = false;
+    private IOException failure = null;
+
+    BodyPipe(NioConnection conn) {
+        this.conn = conn;
+    }
+
+    // Called on the event loop. Returns false if the pipe is full, in which case the connection
+    // should stop reading until resumeBody is called.
+    synchronized boolean receive(BodyDecoder decoder, ByteBuffer src) throws RequestParseException {
+        decoder.decode(src, buffer);
+        complete = decoder.isComplete();
+        notifyAll();
+        paused = !complete && !buffer.hasRemaining();
+        return !paused;
+    }
+
+    synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int n;
+        boolean resume = false;
+        synchronized (this) {
+            while (buffer.position() == 0 && !complete && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (buffer.position() == 0) {
+                return -1;
+            }
+
+            buffer.flip();
+            n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            buffer.compact();
+            if (paused && buffer.remaining() >= CAPACITY / 2) {
+                paused = false;
+                resume = true;
+            }
+        }
+        if (resume) {
+            conn.resumeBody();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffer.position();
+    }
+}
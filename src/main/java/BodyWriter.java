@@ -0,0 +1,9 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Produces a response body incrementally. Without a Content-Length the body is sent with chunked
+// transfer-coding, and flush() pushes out what's been written so far.
+@FunctionalInterface
+public interface BodyWriter {
+    void writeTo(OutputStream os) throws IOException;
+}
@@ -0,0 +1,157 @@
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Recycles the buffers connections read requests into and write responses from, so serving a
+ * request doesn't leave kilobytes of garbage behind. Buffers come in power-of-two size classes from
+ * 1KB to 1MB; bigger requests are allocated afresh and dropped on release.
+ *
+ * Each platform thread keeps a few buffers of each class to itself, so an event loop leasing and
+ * releasing its own buffers never contends with anyone. Past that, buffers go to a shared pool
+ * capped at SHARED_BYTES_PER_CLASS per class. Virtual threads skip the per-thread cache: there are
+ * too many of them, each living only as long as a connection.
+ *
+ * A buffer must be released exactly once, as the same object that was leased, not a slice or
+ * duplicate of it, and not used afterwards. With leak detection on, which it is whenever assertions
+ * are (as in tests) or with -Dhttp.bufferPool.leakDetection=true, the pool remembers where each
+ * outstanding buffer was leased and rejects releasing one it didn't hand out.
+ */
+final class BufferPool {
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int LOCAL_CACHE_SIZE = 4;
+    private static final int SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    static final BufferPool HEAP = new BufferPool(false, leakDetectionDefault());
+
+    private final boolean direct;
+    private final ThreadLocal<ByteBuffer[][]> local = ThreadLocal.withInitial(() -> new ByteBuffer[CLASSES][LOCAL_CACHE_SIZE]);
+    private final List<Queue<ByteBuffer>> shared = new ArrayList<>(CLASSES);
+    private final AtomicIntegerArray sharedCounts = new AtomicIntegerArray(CLASSES);
+    // Outstanding buffers and where they were leased, if leak detection is on.
+    private final Map<ByteBuffer, Throwable> leased;
+
+    BufferPool(boolean direct, boolean leakDetection) {
+        this.direct = direct;
+        this.leased = leakDetection ? new IdentityHashMap<>() : null;
+        for (int i = 0; i < CLASSES; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    private static boolean leakDetectionDefault() {
+        return BufferPool.class.desiredAssertionStatus() || Boolean.getBoolean("http.bufferPool.leakDetection");
+    }
+
+    // A cleared buffer of at least capacity bytes.
+    ByteBuffer lease(int capacity) {
+        Preconditions.checkArgument(capacity >= 0, "negative capacity %s", capacity);
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = null;
+        if (sizeClass != -1) {
+            buffer = pollLocal(sizeClass);
+            if (buffer == null) {
+                buffer = shared.get(sizeClass).poll();
+                if (buffer != null) {
+                    sharedCounts.decrementAndGet(sizeClass);
+                }
+            }
+        }
+        if (buffer == null) {
+            int size = sizeClass == -1 ? capacity : 1 << (sizeClass + MIN_SHIFT);
+            buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        if (leased != null) {
+            synchronized (leased) {
+                leased.put(buffer, new Throwable("buffer leased here"));
+            }
+        }
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (leased != null) {
+            synchronized (leased) {
+                Preconditions.checkState(leased.remove(buffer) != null,
+                        "released a buffer that isn't leased from this pool: %s", buffer);
+            }
+        }
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass == -1 || capacity != 1 << (sizeClass + MIN_SHIFT) || buffer.isDirect() != direct) {
+            return;
+        }
+        if (offerLocal(sizeClass, buffer)) {
+            return;
+        }
+        if (sharedCounts.incrementAndGet(sizeClass) <= SHARED_BYTES_PER_CLASS >> (sizeClass + MIN_SHIFT)) {
+            shared.get(sizeClass).add(buffer);
+        } else {
+            sharedCounts.decrementAndGet(sizeClass);
+        }
+    }
+
+    // Buffers leased and not yet released, if leak detection is on.
+    int outstanding() {
+        Preconditions.checkState(leased != null, "leak detection is off");
+        synchronized (leased) {
+            return leased.size();
+        }
+    }
+
+    // Where each outstanding buffer was leased, for a test that found some to say which.
+    List<Throwable> leaks() {
+        Preconditions.checkState(leased != null, "leak detection is off");
+        synchronized (leased) {
+            return new ArrayList<>(leased.values());
+        }
+    }
+
+    private ByteBuffer pollLocal(int sizeClass) {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return null;
+        }
+        ByteBuffer[] cache = local.get()[sizeClass];
+        for (int i = cache.length - 1; i >= 0; i--) {
+            if (cache[i] != null) {
+                ByteBuffer buffer = cache[i];
+                cache[i] = null;
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    private boolean offerLocal(int sizeClass, ByteBuffer buffer) {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return false;
+        }
+        ByteBuffer[] cache = local.get()[sizeClass];
+        for (int i = 0; i < cache.length; i++) {
+            if (cache[i] == null) {
+                cache[i] = buffer;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The smallest class that holds capacity bytes, or -1 if it's too big to pool.
+    private static int sizeClass(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
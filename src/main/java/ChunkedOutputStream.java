@@ -0,0 +1,118 @@
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Writes everything as chunked transfer-coding. Small writes are gathered into chunks of up to
+// CHUNK_SIZE bytes, each of which goes to the underlying stream in a single write. The chunk buffer
+// is leased from BufferPool.HEAP, and given back by release().
+final class ChunkedOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Room for the chunk size in hex and its CRLF in front of the data.
+    private static final int HEADER_SIZE = 10;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int CHUNK_SIZE = BUFFER_SIZE - HEADER_SIZE - CRLF.length;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+    private final OutputStream out;
+    private ByteBuffer leased;
+    private byte[] buffer;
+    private int count = 0;
+    private boolean finished = false;
+
+    ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+        this.leased = BufferPool.HEAP.lease(BUFFER_SIZE);
+        this.buffer = leased.array();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkWritable();
+        if (count == CHUNK_SIZE) {
+            writeBufferedChunk();
+        }
+        buffer[HEADER_SIZE + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkWritable();
+        if (len >= CHUNK_SIZE) {
+            writeBufferedChunk();
+            // The buffer's empty now, so its header room can hold this chunk's header.
+            int start = putHeader(buffer, HEADER_SIZE, len);
+            out.write(buffer, start, HEADER_SIZE - start);
+            out.write(b, off, len);
+            out.write(CRLF);
+            return;
+        }
+        if (count + len > CHUNK_SIZE) {
+            writeBufferedChunk();
+        }
+        System.arraycopy(b, off, buffer, HEADER_SIZE + count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBufferedChunk();
+        out.flush();
+    }
+
+    // Writes the last chunk. The underlying stream is left open for the next response.
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        checkWritable();
+        writeBufferedChunk();
+        out.write(LAST_CHUNK);
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.flush();
+    }
+
+    // Gives the chunk buffer back to the pool. Called once the body is done with, finished or not.
+    void release() {
+        if (leased != null) {
+            BufferPool.HEAP.release(leased);
+            leased = null;
+            buffer = null;
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (finished || buffer == null) {
+            throw new IOException("chunked body already finished");
+        }
+    }
+
+    private void writeBufferedChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int start = putHeader(buffer, HEADER_SIZE, count);
+        buffer[HEADER_SIZE + count] = '\r';
+        buffer[HEADER_SIZE + count + 1] = '\n';
+        out.write(buffer, start, HEADER_SIZE - start + count + CRLF.length);
+        count = 0;
+    }
+
+    // Writes "<hex size>\r\n" so that it ends at end, returning where it starts.
+    private static int putHeader(byte[] b, int end, int size) {
+        int pos = end;
+        b[--pos] = '\n';
+        b[--pos] = '\r';
+        do {
+            b[--pos] = (byte) Character.forDigit(size & 0xf, 16);
+            size >>>= 4;
+        } while (size != 0);
+        return pos;
+    }
+}
@@ -0,0 +1,117 @@
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+
+/**
+ * How slow, and how big, a client's requests may be before the server gives up on it, so that
+ * clients trickling requests in or responses out (slowloris and its relatives) can't hold on to
+ * threads, connections and buffers for as long as they like. A client that runs out of time
+ * sending a request gets a 408 Request Timeout; one that won't read its response has its
+ * connection closed.
+ *
+ * On the NIO engine every connection's timeouts are kept in its event loop's timer wheel. The
+ * other engines time reads with socket timeouts and writes with a timer wheel of their own.
+ * HTTP/2 connections are only held to the server's idle timeout.
+ */
+public final class ClientLimits {
+    private final Duration headerTimeout;
+    private final int minBodyRate;
+    private final Duration minBodyRateGrace;
+    private final Duration writeTimeout;
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+
+    private ClientLimits(Builder builder) {
+        this.headerTimeout = builder.headerTimeout;
+        this.minBodyRate = builder.minBodyRate;
+        this.minBodyRateGrace = builder.minBodyRateGrace;
+        this.writeTimeout = builder.writeTimeout;
+        this.maxHeaderSize = builder.maxHeaderSize;
+        this.maxHeaderCount = builder.maxHeaderCount;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    long getHeaderTimeoutNanos() {
+        return headerTimeout.toNanos();
+    }
+
+    int getMinBodyRate() {
+        return minBodyRate;
+    }
+
+    // How long a body may have taken, in total, to deliver received bytes of it at the minimum rate.
+    long bodyAllowanceNanos(long received) {
+        return minBodyRateGrace.toNanos() + (long) (received * 1e9 / minBodyRate);
+    }
+
+    long getWriteTimeoutNanos() {
+        return writeTimeout.toNanos();
+    }
+
+    int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    public static final class Builder {
+        private Duration headerTimeout = Duration.ofSeconds(30);
+        private int minBodyRate = 1024;
+        private Duration minBodyRateGrace = Duration.ofSeconds(10);
+        private Duration writeTimeout = Duration.ofSeconds(60);
+        private int maxHeaderSize = 64 * 1024;
+        private int maxHeaderCount = 100;
+
+        /**
+         * How long a client has to send a request line and headers, from their first byte. Bodies
+         * small enough to be read before the handler runs have to arrive in the same time.
+         */
+        public Builder withHeaderTimeout(Duration headerTimeout) {
+            this.headerTimeout = headerTimeout;
+            return this;
+        }
+
+        /**
+         * The slowest, in bytes a second, that a body the handler reads as it arrives may average,
+         * after an allowance of grace for the connection to get going. Time the server spends not
+         * reading the body doesn't count against the client. Zero turns the check off.
+         */
+        public Builder withMinBodyRate(int bytesPerSecond, Duration grace) {
+            this.minBodyRate = bytesPerSecond;
+            this.minBodyRateGrace = grace;
+            return this;
+        }
+
+        // How long a client may go without taking any of a response we're writing.
+        public Builder withWriteTimeout(Duration writeTimeout) {
+            this.writeTimeout = writeTimeout;
+            return this;
+        }
+
+        // The most bytes a request line and headers may take up.
+        public Builder withMaxHeaderSize(int maxHeaderSize) {
+            this.maxHeaderSize = maxHeaderSize;
+            return this;
+        }
+
+        public Builder withMaxHeaderCount(int maxHeaderCount) {
+            this.maxHeaderCount = maxHeaderCount;
+            return this;
+        }
+
+        public ClientLimits build() {
+            Preconditions.checkArgument(!headerTimeout.isNegative() && !headerTimeout.isZero(), "headerTimeout must be positive");
+            Preconditions.checkArgument(minBodyRate >= 0, "minBodyRate must not be negative");
+            Preconditions.checkArgument(!minBodyRateGrace.isNegative(), "minBodyRate grace must not be negative");
+            Preconditions.checkArgument(!writeTimeout.isNegative() && !writeTimeout.isZero(), "writeTimeout must be positive");
+            Preconditions.checkArgument(maxHeaderSize > 0, "maxHeaderSize must be positive");
+            Preconditions.checkArgument(maxHeaderCount >= 0, "maxHeaderCount must not be negative");
+            return new ClientLimits(this);
+        }
+    }
+}
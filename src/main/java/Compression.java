@@ -0,0 +1,404 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses response bodies with gzip or deflate, whichever the client's Accept-Encoding
+ * prefers. Only text-like content types are compressed, and only bodies of at least minSize
+ * bytes: below that the framing costs more than it saves. Streamed bodies are compressed as they
+ * are written and sent chunked; file bodies are left alone. A compressed copy's ETag has the
+ * coding appended inside the quotes, so it doesn't share a validator with the original.
+ *
+ * Responses built with markStatic() that carry an ETag are compressed once per coding and the
+ * result cached, up to staticCacheSize bytes of compressed output. They're looked up by path and
+ * ETag, so a hit doesn't touch the body at all.
+ */
+public final class Compression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter SEMICOLON_SPLITTER = Splitter.on(';').trimResults();
+    // gzip member header: magic, CM=deflate, no flags, no mtime, no extra flags, OS unknown.
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int minSize;
+    private final DeflaterPool gzipDeflaters;
+    private final DeflaterPool zlibDeflaters;
+    private final Cache<CacheKey, byte[]> staticCache;
+
+    private Compression(Builder builder) {
+        this.minSize = builder.minSize;
+        this.gzipDeflaters = new DeflaterPool(builder.level, true);
+        this.zlibDeflaters = new DeflaterPool(builder.level, false);
+        this.staticCache = CacheBuilder.newBuilder()
+                .maximumWeight(builder.staticCacheSize)
+                .<CacheKey, byte[]>weigher((key, compressed) -> key.weight() + compressed.length)
+                .build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // The response to send in place of res: compressed if req accepts it and it's worth doing.
+    Response apply(Request req, Response res) {
+        // A range is of the uncompressed bytes, so it has to be sent as it is.
+        if (res.getHeaders().contains(HeaderNames.CONTENT_ENCODING) || res.getHeaders().contains(HeaderNames.CONTENT_RANGE)
+                || !compressible(res)) {
+            return res;
+        }
+        ResponseBody body = res.getBody();
+        if (!body.isStreamed() && (!body.inMemory() || body.length() < minSize)) {
+            return res;
+        }
+
+        String coding = negotiate(req.getHeader(HeaderNames.ACCEPT_ENCODING));
+        if (coding == null) {
+            return res.withVary(HeaderNames.ACCEPT_ENCODING);
+        }
+        if (body.isStreamed()) {
+            return res.withEncodedBody(compressStreamed(body.writer(), coding), coding);
+        }
+
+        byte[] compressed;
+        String etag = res.getHeaders().get(HeaderNames.ETAG);
+        if (res.isStatic() && etag != null) {
+            CacheKey key = new CacheKey(coding, req.getRequestUri(), etag, body.length());
+            compressed = staticCache.getIfPresent(key);
+            if (compressed == null) {
+                compressed = compress(bytes(body), coding);
+                staticCache.put(key, compressed);
+            }
+        } else {
+            compressed = compress(bytes(body), coding);
+        }
+        if (compressed.length >= body.length()) {
+            // Already dense, random or encrypted: the original is smaller.
+            return res.withVary(HeaderNames.ACCEPT_ENCODING);
+        }
+        return res.withEncodedBody(ResponseBody.of(compressed), coding);
+    }
+
+    byte[] compress(byte[] bytes, String coding) {
+        boolean gzip = coding.equals(GZIP);
+        DeflaterPool pool = gzip ? gzipDeflaters : zlibDeflaters;
+        Deflater deflater = pool.borrow();
+        try {
+            int pos = 0;
+            byte[] out = new byte[bytes.length / 2 + 64];
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                pos = GZIP_HEADER.length;
+            }
+            deflater.setInput(bytes);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+                out = Arrays.copyOf(out, pos + 8);
+                putIntLE(out, pos, (int) crc.getValue());
+                putIntLE(out, pos + 4, bytes.length);
+                return out;
+            }
+            return Arrays.copyOf(out, pos);
+        } finally {
+            pool.release(deflater);
+        }
+    }
+
+    private ResponseBody compressStreamed(BodyWriter writer, String coding) {
+        boolean gzip = coding.equals(GZIP);
+        DeflaterPool pool = gzip ? gzipDeflaters : zlibDeflaters;
+        return ResponseBody.streamed(os -> {
+            Deflater deflater = pool.borrow();
+            try {
+                CompressingOutputStream out = new CompressingOutputStream(os, deflater, gzip);
+                writer.writeTo(out);
+                out.finish();
+            } finally {
+                pool.release(deflater);
+            }
+        }, true);
+    }
+
+    // The entity tag for etag's representation encoded with coding: "abc" becomes "abc-gzip".
+    static String encodedTag(String etag, String coding) {
+        if (etag.endsWith("\"")) {
+            return etag.substring(0, etag.length() - 1) + '-' + coding + '"';
+        }
+        return etag + '-' + coding;
+    }
+
+    /**
+     * The strong form of the identity representation's tag, given any of its tags: the W/ prefix
+     * and any coding encodedTag added are dropped. For handlers comparing If-None-Match, so that a
+     * cache holding a compressed copy can revalidate it.
+     */
+    static String identityTag(String etag) {
+        String tag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String coding : new String[] {GZIP, DEFLATE}) {
+            String suffix = '-' + coding + '"';
+            if (tag.endsWith(suffix)) {
+                return tag.substring(0, tag.length() - suffix.length()) + '"';
+            }
+        }
+        return tag;
+    }
+
+    // The coding to use for a request with this Accept-Encoding header, or null to send the body
+    // as it is. gzip wins ties, being what browsers and proxies handle best.
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String element : COMMA_SPLITTER.split(acceptEncoding)) {
+            double q = 1;
+            String name = null;
+            for (String part : SEMICOLON_SPLITTER.split(element)) {
+                if (name == null) {
+                    name = Ascii.toLowerCase(part);
+                } else if (part.length() > 2 && Ascii.toLowerCase(part).startsWith("q=")) {
+                    q = parseQuality(part.substring(2));
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (name.equals(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if (name.equals("*")) {
+                any = Math.max(any, q);
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    // Malformed weights count as 0, so a coding the client garbled isn't used.
+    private static double parseQuality(String value) {
+        try {
+            double q = Double.parseDouble(value);
+            return q >= 0 && q <= 1 ? q : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean compressible(Response res) {
+        String contentType = res.getHeaders().get(HeaderNames.CONTENT_TYPE);
+        if (contentType == null) {
+            return true;
+        }
+        String type = Ascii.toLowerCase(contentType);
+        int semicolon = type.indexOf(';');
+        if (semicolon != -1) {
+            type = type.substring(0, semicolon);
+        }
+        type = type.trim();
+        return type.startsWith("text/")
+                || type.endsWith("/json") || type.endsWith("+json")
+                || type.endsWith("/xml") || type.endsWith("+xml")
+                || type.endsWith("/javascript")
+                || type.equals("image/svg+xml");
+    }
+
+    private static byte[] bytes(ResponseBody body) {
+        byte[] array = body.array();
+        if (array != null) {
+            return array;
+        }
+        ByteBuffer buffer = body.buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void putIntLE(byte[] out, int pos, int value) {
+        out[pos] = (byte) value;
+        out[pos + 1] = (byte) (value >>> 8);
+        out[pos + 2] = (byte) (value >>> 16);
+        out[pos + 3] = (byte) (value >>> 24);
+    }
+
+    // Deflaters hold native zlib state that's costly to set up and is only freed by end() or
+    // finalization, so they're reused. A pool rather than one per thread: virtual threads come and
+    // go with their connections, and would each allocate their own.
+    private static final class DeflaterPool {
+        private static final int MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+        private final int level;
+        private final boolean nowrap;
+        private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        private DeflaterPool(int level, boolean nowrap) {
+            this.level = level;
+            this.nowrap = nowrap;
+        }
+
+        private Deflater borrow() {
+            Deflater deflater = idle.poll();
+            if (deflater == null) {
+                return new Deflater(level, nowrap);
+            }
+            idleCount.decrementAndGet();
+            return deflater;
+        }
+
+        private void release(Deflater deflater) {
+            deflater.reset();
+            if (idleCount.incrementAndGet() <= MAX_IDLE) {
+                idle.add(deflater);
+            } else {
+                idleCount.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    // Deflates what the handler writes, framed as gzip or zlib. Flushes push out what has been
+    // compressed so far, so handlers that stream events aren't held back by the deflater.
+    private static final class CompressingOutputStream extends DeflaterOutputStream {
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private int size = 0;
+        private boolean finished = false;
+
+        private CompressingOutputStream(OutputStream out, Deflater deflater, boolean gzip) throws IOException {
+            super(out, deflater, 8192, true);
+            this.gzip = gzip;
+            if (gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+                size += len;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            super.finish();
+            finished = true;
+            if (gzip) {
+                byte[] trailer = new byte[8];
+                putIntLE(trailer, 0, (int) crc.getValue());
+                putIntLE(trailer, 4, size);
+                out.write(trailer);
+            }
+        }
+
+        // Closing mustn't close the connection, nor end the pooled deflater.
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.flush();
+        }
+    }
+
+    // Static bodies are looked up by the resource they came from rather than by content, so a hit
+    // costs no copying or hashing of the body. The length guards against a handler that reuses an
+    // ETag for a different body.
+    private static final class CacheKey {
+        private final String coding;
+        private final String path;
+        private final String etag;
+        private final long length;
+
+        private CacheKey(String coding, String path, String etag, long length) {
+            this.coding = coding;
+            this.path = path;
+            this.etag = etag;
+            this.length = length;
+        }
+
+        private int weight() {
+            return path.length() + etag.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return length == other.length && coding.equals(other.coding) && path.equals(other.path)
+                    && etag.equals(other.etag);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(coding, path, etag, length);
+        }
+    }
+
+    public static final class Builder {
+        private int minSize = 1024;
+        private int level = 6;
+        private long staticCacheSize = 16 * 1024 * 1024;
+
+        // Bodies smaller than this many bytes are sent uncompressed.
+        public Builder withMinSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        // The zlib compression level, from 1 (fastest) to 9 (smallest).
+        public Builder withLevel(int level) {
+            this.level = level;
+            return this;
+        }
+
+        // The most compressed bytes kept for responses marked static.
+        public Builder withStaticCacheSize(long staticCacheSize) {
+            this.staticCacheSize = staticCacheSize;
+            return this;
+        }
+
+        public Compression build() {
+            Preconditions.checkArgument(minSize >= 0, "minSize must not be negative");
+            Preconditions.checkArgument(level >= 1 && level <= 9, "level must be between 1 and 9");
+            Preconditions.checkArgument(staticCacheSize >= 0, "staticCacheSize must not be negative");
+            return new Compression(this);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps the number of requests in flight. A request that finds the limit reached waits for a slot
+// until its deadline and is then turned away.
+//
+// An adaptive limiter moves its limit between minLimit and maxLimit using additive-increase,
+// multiplicative-decrease on handler latency: while requests complete within TOLERANCE times the
+// baseline latency the limit grows by roughly one per limit requests, and a slower request cuts it
+// by BACKOFF. Only one cut is made per round trip, that is until limit more requests have
+// completed, since the requests in flight when latency rose all come back slow. The baseline is the fastest request of the previous window, so it follows the
+// service as its no-load latency drifts instead of sticking to one lucky sample.
+//
+// Slots are taken and given back with a CAS on the in-flight count, so requests that find room
+// never block one another. Only those that have to wait take a lock, and each release wakes just
+// one of them.
+final class ConcurrencyLimiter {
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    private static final int WINDOW = 1000;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private volatile double limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    // Guarded by this, and only touched by adaptive limiters.
+    private long baselineNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    // Completions left before slow requests may cut the limit again.
+    private int cutCooldown = 0;
+
+    private ConcurrencyLimiter(boolean adaptive, int minLimit, int maxLimit, int initialLimit) {
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(false, limit, limit, limit);
+    }
+
+    static ConcurrencyLimiter adaptive(int minLimit, int maxLimit) {
+        return new ConcurrencyLimiter(true, minLimit, maxLimit, minLimit);
+    }
+
+    /**
+     * Takes a slot, waiting until deadlineNanos (a System.nanoTime() value) for one if need be.
+     * Returns false if none came free in time.
+     */
+    boolean acquire(long deadlineNanos) throws InterruptedException {
+        if (tryAcquire()) {
+            return true;
+        }
+        boolean acquired = false;
+        lock.lock();
+        // Counted before trying again, so a release that happens after we look sees us waiting.
+        waiters.incrementAndGet();
+        try {
+            while (!(acquired = tryAcquire())) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                released.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            waiters.decrementAndGet();
+            if (!acquired) {
+                // We may have been woken for a slot we're not taking, so pass it on.
+                released.signal();
+            }
+            lock.unlock();
+        }
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Gives back a slot taken by a request whose handler ran for latencyNanos.
+    void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        if (adaptive) {
+            synchronized (this) {
+                update(latencyNanos);
+            }
+        }
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void update(long latencyNanos) {
+        cutCooldown--;
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        if (++windowSamples == WINDOW || baselineNanos == Long.MAX_VALUE) {
+            baselineNanos = windowMinNanos;
+            windowMinNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+
+        if (latencyNanos > baselineNanos * TOLERANCE) {
+            if (cutCooldown <= 0) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                cutCooldown = (int) limit;
+            }
+        } else if (inFlight.get() + 1 >= (int) limit) {
+            // Only grow when the limit is what's holding requests back.
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,10 @@
+public enum Engine {
+    // One thread blocks in accept() and hands sockets to a fixed pool of workers.
+    BLOCKING,
+    // Non-blocking event loops that accept, read, parse and write on a Selector.
+    NIO,
+    // One virtual thread per connection running the same blocking code as BLOCKING, bounded by
+    // Server.Builder#withMaxConnections rather than a thread pool.
+    VIRTUAL_THREADS,
+    ;
+}
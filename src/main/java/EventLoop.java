@@ -0,0 +1,249 @@
+import com.google.common.flogger.FluentLogger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+final class EventLoop implements Runnable, Executor {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    // Connections' timeouts are in whole seconds, so a tenth of a second late is near enough.
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final Server server;
+    private final Selector selector;
+    private final Executor handlerExecutor;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final long idleTimeoutNanos;
+    private final ClientLimits clientLimits;
+    private final TimerWheel timers = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), WHEEL_SIZE, System.nanoTime());
+    private final Tls tls;
+    private final Http2 http2;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Set on the loop once the server's shutting down.
+    private boolean draining = false;
+    private volatile boolean closed = false;
+
+    EventLoop(Server server, ServerSocketChannel serverChannel) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.handlerExecutor = server.getHandlerExecutor();
+        this.metrics = server.getMetrics();
+        this.accessLog = server.getAccessLog();
+        this.idleTimeoutNanos = server.getIdleTimeout().toNanos();
+        this.clientLimits = server.getClientLimits();
+        this.tls = server.getTls();
+        this.http2 = server.getHttp2();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                // With no connections there's nothing to time out, so no need to wake up.
+                selector.select(timers.isEmpty() ? 0 : TICK_MILLIS);
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else {
+                        ((NioConnection) key.attachment()).onReady(key);
+                    }
+                }
+
+                timers.advance(System.nanoTime());
+            }
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("event loop failed");
+        } finally {
+            closeAll();
+            // Tasks that arrived too late find their connections closed, which they all allow for.
+            runTasks();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        SocketChannel channel = null;
+        try {
+            // Every loop in a shard selects on the same listening channel, so another loop may have won the race.
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+
+            logger.atFine().log("accepted connection from client %s", channel);
+            metrics.accepted();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            TlsChannel tlsChannel = tls == null ? null : new TlsChannel(channel, tls.newEngine());
+            key.attach(new NioConnection(this, channel, tlsChannel, key, server.getMaxRequestsPerConnection()));
+            metrics.connectionOpened();
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("failed to accept connection");
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+        }
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    // The loop's connections' timeouts, which only the loop may touch.
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    long getIdleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    ClientLimits getClientLimits() {
+        return clientLimits;
+    }
+
+    Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    // Null unless the server speaks HTTP/2.
+    Http2 getHttp2() {
+        return http2;
+    }
+
+    void dispatch(NioConnection conn, Request req) {
+        dispatch(req, res -> conn.write(req, res), conn::close);
+    }
+
+    // Runs the handler for req and passes its response to respond on this loop. If the handler
+    // executor won't take it, rejected runs instead. An AsyncRequestHandler's response is passed
+    // on whenever it's ready, without a thread waiting for it.
+    void dispatch(Request req, Consumer<Response> respond, Runnable rejected) {
+        if (handlerExecutor == null) {
+            // Nothing may block the loop, so admission control can't wait for capacity here.
+            respondWhenDone(server.respondAsync(req, false), respond);
+            return;
+        }
+
+        long enqueuedNanos = System.nanoTime();
+        metrics.enqueued();
+        try {
+            handlerExecutor.execute(() -> {
+                metrics.dequeued(System.nanoTime() - enqueuedNanos);
+                server.respondAsync(req, true).thenAccept(res -> execute(() -> respond.accept(res)));
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.abandoned();
+            logger.atWarning().withCause(e).log("handler executor rejected request %s", req.getRequestUri());
+            rejected.run();
+        }
+    }
+
+    // On the loop: responds straight away if the response is ready, or from a task when it is.
+    private void respondWhenDone(CompletableFuture<Response> future, Consumer<Response> respond) {
+        if (future.isDone()) {
+            respond.accept(future.join());
+        } else {
+            future.thenAccept(res -> execute(() -> respond.accept(res)));
+        }
+    }
+
+    // Whether connections should close once they've answered the request they're serving.
+    boolean isDraining() {
+        return draining;
+    }
+
+    // Closes idle connections, and has the rest close once they've answered their current request.
+    void drain() {
+        execute(() -> {
+            draining = true;
+            if (!selector.isOpen()) {
+                return;
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).drain();
+                }
+            }
+        });
+    }
+
+    // Closes every connection, completing with how many requests that cut off.
+    CompletableFuture<Integer> abandon() {
+        CompletableFuture<Integer> abandoned = new CompletableFuture<>();
+        execute(() -> {
+            int requests = 0;
+            if (selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection) {
+                        requests += ((NioConnection) key.attachment()).abandon();
+                    }
+                }
+            }
+            abandoned.complete(requests);
+        });
+        return abandoned;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("failed to close selector");
+        }
+    }
+}
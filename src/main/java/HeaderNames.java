@@ -0,0 +1,114 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+// Names of the headers this server sets itself or commonly sees, along with their pre-encoded
+// "Name: " prefixes so responses don't have to encode them every time.
+final class HeaderNames {
+    static final String ACCEPT = "Accept";
+    static final String ACCEPT_ENCODING = "Accept-Encoding";
+    static final String ACCEPT_LANGUAGE = "Accept-Language";
+    static final String ACCEPT_RANGES = "Accept-Ranges";
+    static final String ALLOW = "Allow";
+    static final String AUTHORIZATION = "Authorization";
+    static final String CACHE_CONTROL = "Cache-Control";
+    static final String CONNECTION = "Connection";
+    static final String CONTENT_ENCODING = "Content-Encoding";
+    static final String CONTENT_LENGTH = "Content-Length";
+    static final String CONTENT_RANGE = "Content-Range";
+    static final String CONTENT_TYPE = "Content-Type";
+    static final String COOKIE = "Cookie";
+    static final String DATE = "Date";
+    static final String ETAG = "ETag";
+    static final String EXPECT = "Expect";
+    static final String EXPIRES = "Expires";
+    static final String HOST = "Host";
+    static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String IF_RANGE = "If-Range";
+    static final String LAST_MODIFIED = "Last-Modified";
+    static final String LOCATION = "Location";
+    static final String RANGE = "Range";
+    static final String RETRY_AFTER = "Retry-After";
+    static final String SERVER = "Server";
+    static final String SET_COOKIE = "Set-Cookie";
+    static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    static final String USER_AGENT = "User-Agent";
+    static final String VARY = "Vary";
+
+    private static final String[] NAMES = {
+            ACCEPT, ACCEPT_ENCODING, ACCEPT_LANGUAGE, ACCEPT_RANGES, ALLOW, AUTHORIZATION, CACHE_CONTROL,
+            CONNECTION, CONTENT_ENCODING, CONTENT_LENGTH, CONTENT_RANGE, CONTENT_TYPE, COOKIE, DATE, ETAG,
+            EXPECT, EXPIRES, HOST, IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, LAST_MODIFIED, LOCATION, RANGE,
+            RETRY_AFTER, SERVER, SET_COOKIE, TRANSFER_ENCODING, USER_AGENT, VARY};
+
+    private static final ImmutableMap<String, byte[]> PREFIXES;
+    // The names above in an open-addressed table by case-insensitive hash, so a header name in any
+    // case can be swapped for the constant without lowercasing it first.
+    private static final String[] CANONICAL = new String[128];
+
+    static {
+        ImmutableMap.Builder<String, byte[]> prefixes = ImmutableMap.builder();
+        for (String name : NAMES) {
+            prefixes.put(name, (name + ": ").getBytes(Charsets.US_ASCII));
+
+            int i = hash(name) & (CANONICAL.length - 1);
+            while (CANONICAL[i] != null) {
+                i = (i + 1) & (CANONICAL.length - 1);
+            }
+            CANONICAL[i] = name;
+        }
+        PREFIXES = prefixes.build();
+    }
+
+    private HeaderNames() {}
+
+    // The well-known constant for name, whatever its case, or name itself if it isn't one.
+    static String canonical(String name) {
+        for (int i = hash(name) & (CANONICAL.length - 1); CANONICAL[i] != null; i = (i + 1) & (CANONICAL.length - 1)) {
+            if (CANONICAL[i].equalsIgnoreCase(name)) {
+                return CANONICAL[i];
+            }
+        }
+        return name;
+    }
+
+    // The header name in raw[start..end), as its well-known constant if it is one, saving decoding it.
+    static String canonical(byte[] raw, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Ascii.toLowerCase((char) (raw[i] & 0xff));
+        }
+        for (int i = hash & (CANONICAL.length - 1); CANONICAL[i] != null; i = (i + 1) & (CANONICAL.length - 1)) {
+            if (equalsIgnoreCase(CANONICAL[i], raw, start, end)) {
+                return CANONICAL[i];
+            }
+        }
+        return new String(raw, start, end - start, Charsets.UTF_8);
+    }
+
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Ascii.toLowerCase(name.charAt(i));
+        }
+        return hash;
+    }
+
+    private static boolean equalsIgnoreCase(String name, byte[] raw, int start, int end) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Ascii.toLowerCase((char) (raw[start + i] & 0xff)) != Ascii.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The encoded "Name: " prefix for a well-known header in its canonical case, or null.
+    static byte[] prefix(String name) {
+        return PREFIXES.get(name);
+    }
+}
@@ -0,0 +1,183 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The header fields of a request or response, in the order they were added. Names are matched
+ * case-insensitively, and repeated names keep each of their values.
+ *
+ * Fields are held in a pair of flat arrays rather than a map of lists, so a message with a dozen
+ * headers is three objects, not thirty. Well-known names are swapped for shared constants as
+ * they're added, which makes comparing them mostly a matter of identity. With so few headers per
+ * message a scan beats hashing.
+ */
+public final class Headers {
+    private String[] names;
+    private String[] values;
+    private int size = 0;
+
+    public Headers() {
+        this(8);
+    }
+
+    Headers(int capacity) {
+        this.names = new String[Math.max(capacity, 1)];
+        this.values = new String[names.length];
+    }
+
+    public Headers(Headers other) {
+        this.names = Arrays.copyOf(other.names, Math.max(other.size, 1));
+        this.values = Arrays.copyOf(other.values, names.length);
+        this.size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The name of the index'th field, in the case it was added in unless it's a well-known one.
+    public String name(int index) {
+        Preconditions.checkElementIndex(index, size);
+        return names[index];
+    }
+
+    public String value(int index) {
+        Preconditions.checkElementIndex(index, size);
+        return values[index];
+    }
+
+    public Headers add(String name, String value) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(value);
+        addCanonical(HeaderNames.canonical(name), value);
+        return this;
+    }
+
+    // For names that are already canonical, such as those from HeaderNames.canonical.
+    void addCanonical(String name, String value) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
+    }
+
+    // The first value of the named field, or null if there isn't one.
+    public String get(String name) {
+        int i = indexOf(name, 0);
+        return i == -1 ? null : values[i];
+    }
+
+    // Every value of the named field, in order.
+    public List<String> getAll(String name) {
+        int i = indexOf(name, 0);
+        if (i == -1) {
+            return Collections.emptyList();
+        }
+        List<String> all = new ArrayList<>(2);
+        while (i != -1) {
+            all.add(values[i]);
+            i = indexOf(name, i + 1);
+        }
+        return all;
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name, 0) != -1;
+    }
+
+    // Replaces any values of the named field with this one.
+    public Headers set(String name, String value) {
+        remove(name);
+        return add(name, value);
+    }
+
+    // Removes every value of the named field, returning whether there were any.
+    public boolean remove(String name) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!matches(names[i], name)) {
+                names[kept] = names[i];
+                values[kept] = values[i];
+                kept++;
+            }
+        }
+        boolean removed = kept < size;
+        Arrays.fill(names, kept, size, null);
+        Arrays.fill(values, kept, size, null);
+        size = kept;
+        return removed;
+    }
+
+    // Empties these headers, keeping the arrays for whatever's added next.
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    private int indexOf(String name, int from) {
+        for (int i = from; i < size; i++) {
+            if (matches(names[i], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(String a, String b) {
+        return a == b || (a.length() == b.length() && a.equalsIgnoreCase(b));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof Headers)) {
+            return false;
+        }
+        Headers other = (Headers) obj;
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!matches(names[i], other.names[i]) || !values[i].equals(other.values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + Ascii.toLowerCase(names[i]).hashCode();
+            hash = 31 * hash + values[i].hashCode();
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(names[i]).append(": ").append(values[i]);
+        }
+        return s.append('}').toString();
+    }
+}
@@ -0,0 +1,529 @@
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541), the header compression HTTP/2 uses. Header fields are sent as indexes into a
+ * table of fields seen before where possible, and as literals, optionally Huffman coded, where not.
+ * The table starts with a static part shared by everyone, followed by a dynamic part each side of a
+ * connection keeps for the fields the other has asked it to remember.
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // What each dynamic table entry costs on top of its name and value.
+    private static final int ENTRY_OVERHEAD = 32;
+
+    // Index 0 is unused, so the table can be indexed the way the RFC numbers it.
+    private static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+    private static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+    // The first static index with each name. Fields with the same name are next to each other.
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE_LENGTH; i > 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+        }
+    }
+
+    private Hpack() {}
+
+    // Receives each field of a header block as it's decoded.
+    interface FieldSink {
+        void field(String name, String value);
+    }
+
+    // Decodes the header blocks a peer sends, keeping the dynamic table they build up in step with
+    // the peer's copy.
+    static final class Decoder {
+        private final Table table;
+        // The largest table the peer may ask for, which is what we advertised.
+        private final int maxTableSize;
+
+        Decoder(int maxTableSize) {
+            this.table = new Table(maxTableSize);
+            this.maxTableSize = maxTableSize;
+        }
+
+        // Decodes a whole header block. Any error is a COMPRESSION_ERROR for the whole connection,
+        // because the tables can no longer be trusted to agree.
+        void decode(ByteBuffer block, FieldSink sink) throws Http2Exception {
+            boolean fieldSeen = false;
+            try {
+                while (block.hasRemaining()) {
+                    int b = block.get(block.position()) & 0xff;
+                    if ((b & 0x80) != 0) {
+                        int index = readInt(block, 7);
+                        sink.field(name(index), value(index));
+                        fieldSeen = true;
+                    } else if ((b & 0xc0) == 0x40) {
+                        int index = readInt(block, 6);
+                        int nameSize;
+                        String name;
+                        if (index == 0) {
+                            byte[] bytes = readString(block);
+                            nameSize = bytes.length;
+                            name = new String(bytes, Charsets.ISO_8859_1);
+                        } else {
+                            name = name(index);
+                            nameSize = name.length();
+                        }
+                        byte[] value = readString(block);
+                        String decoded = new String(value, Charsets.UTF_8);
+                        table.add(name, decoded, nameSize + value.length + ENTRY_OVERHEAD);
+                        sink.field(name, decoded);
+                        fieldSeen = true;
+                    } else if ((b & 0xe0) == 0x20) {
+                        // Dynamic table size updates may only come before the block's first field.
+                        int size = readInt(block, 5);
+                        if (fieldSeen || size > maxTableSize) {
+                            throw compressionError("bad dynamic table size update");
+                        }
+                        table.setMaxSize(size);
+                    } else {
+                        // Literal without indexing, or never indexed: to us they're the same.
+                        int index = readInt(block, 4);
+                        String name = index == 0 ? new String(readString(block), Charsets.ISO_8859_1) : name(index);
+                        sink.field(name, new String(readString(block), Charsets.UTF_8));
+                        fieldSeen = true;
+                    }
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw compressionError("truncated header block");
+            }
+        }
+
+        private String name(int index) throws Http2Exception {
+            if (index > 0 && index <= STATIC_TABLE_LENGTH) {
+                return STATIC_TABLE[index][0];
+            }
+            return table.name(dynamicIndex(index));
+        }
+
+        private String value(int index) throws Http2Exception {
+            if (index > 0 && index <= STATIC_TABLE_LENGTH) {
+                return STATIC_TABLE[index][1];
+            }
+            return table.value(dynamicIndex(index));
+        }
+
+        private int dynamicIndex(int index) throws Http2Exception {
+            int dynamic = index - STATIC_TABLE_LENGTH - 1;
+            if (index <= 0 || dynamic >= table.length()) {
+                throw compressionError("header index " + index + " out of range");
+            }
+            return dynamic;
+        }
+
+        private static byte[] readString(ByteBuffer block) throws Http2Exception {
+            boolean huffman = (block.get(block.position()) & 0x80) != 0;
+            int length = readInt(block, 7);
+            if (length > block.remaining()) {
+                throw compressionError("truncated string");
+            }
+            if (huffman) {
+                return Huffman.decode(block, length);
+            }
+            byte[] bytes = new byte[length];
+            block.get(bytes);
+            return bytes;
+        }
+
+        // An integer with an N-bit prefix, the rest of whose first byte is flags the caller has read.
+        private static int readInt(ByteBuffer block, int prefixBits) throws Http2Exception {
+            int mask = (1 << prefixBits) - 1;
+            int value = block.get() & mask;
+            if (value < mask) {
+                return value;
+            }
+            for (int shift = 0; shift <= 28; shift += 7) {
+                int b = block.get() & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw compressionError("integer overflow");
+        }
+    }
+
+    // Encodes the header blocks we send. Fields are indexed in our dynamic table so that repeats,
+    // like the same Content-Type on every response, shrink to a byte or two. Values that change from
+    // one response to the next aren't worth the table space, and Set-Cookie is never indexed so
+    // intermediaries won't either.
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // A size update to announce at the start of the next block, or -1.
+        private int pendingSizeUpdate = -1;
+
+        // Follows the peer's SETTINGS_HEADER_TABLE_SIZE, up to our default.
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size != table.maxSize()) {
+                table.setMaxSize(size);
+                pendingSizeUpdate = size;
+            }
+        }
+
+        // Appends one field to the block being built. Names must already be lower case.
+        void encode(String name, String value, ByteArrayOutputStream out) {
+            if (pendingSizeUpdate != -1) {
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+
+            int nameIndex = 0;
+            Integer staticIndex = STATIC_NAMES.get(name);
+            if (staticIndex != null) {
+                nameIndex = staticIndex;
+                for (int i = staticIndex; i <= STATIC_TABLE_LENGTH && STATIC_TABLE[i][0].equals(name); i++) {
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        writeInt(out, 0x80, 7, i);
+                        return;
+                    }
+                }
+            }
+            for (int i = 0; i < table.length(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE_LENGTH + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE_LENGTH + 1 + i;
+                    }
+                }
+            }
+
+            byte[] valueBytes = value.getBytes(Charsets.UTF_8);
+            boolean index = indexable(name);
+            if (index) {
+                writeInt(out, 0x40, 6, nameIndex);
+            } else {
+                writeInt(out, name.equals("set-cookie") ? 0x10 : 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name.getBytes(Charsets.ISO_8859_1));
+            }
+            writeString(out, valueBytes);
+            if (index) {
+                table.add(name, value, name.length() + valueBytes.length + ENTRY_OVERHEAD);
+            }
+        }
+
+        private static boolean indexable(String name) {
+            switch (name) {
+                case "content-length":
+                case "date":
+                case "etag":
+                case "expires":
+                case "last-modified":
+                case "location":
+                case "set-cookie":
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        private static void writeString(ByteArrayOutputStream out, byte[] bytes) {
+            int huffmanLength = Huffman.encodedLength(bytes);
+            if (huffmanLength < bytes.length) {
+                writeInt(out, 0x80, 7, huffmanLength);
+                Huffman.encode(bytes, out);
+            } else {
+                writeInt(out, 0x00, 7, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    // The dynamic table: a ring of entries, newest first, evicted oldest first to stay within maxSize.
+    private static final class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int[] sizes = new int[16];
+        // Where the next entry goes; the newest is just before it.
+        private int next = 0;
+        private int length = 0;
+        private int size = 0;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return length;
+        }
+
+        int maxSize() {
+            return maxSize;
+        }
+
+        // Entries are numbered from 0, the newest.
+        String name(int i) {
+            return names[slot(i)];
+        }
+
+        String value(int i) {
+            return values[slot(i)];
+        }
+
+        private int slot(int i) {
+            return (next - 1 - i) & (names.length - 1);
+        }
+
+        void add(String name, String value, int entrySize) {
+            if (entrySize > maxSize) {
+                // Adding an entry bigger than the table empties it, per the RFC.
+                evictTo(0);
+                return;
+            }
+            evictTo(maxSize - entrySize);
+            if (length == names.length) {
+                grow();
+            }
+            names[next] = name;
+            values[next] = value;
+            sizes[next] = entrySize;
+            next = (next + 1) & (names.length - 1);
+            length++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evictTo(maxSize);
+        }
+
+        private void evictTo(int target) {
+            while (size > target) {
+                int oldest = slot(length - 1);
+                size -= sizes[oldest];
+                names[oldest] = null;
+                values[oldest] = null;
+                length--;
+            }
+        }
+
+        private void grow() {
+            int capacity = names.length * 2;
+            String[] newNames = new String[capacity];
+            String[] newValues = new String[capacity];
+            int[] newSizes = new int[capacity];
+            // Oldest first, so the newest ends up just before next.
+            for (int i = 0; i < length; i++) {
+                int from = slot(length - 1 - i);
+                newNames[i] = names[from];
+                newValues[i] = values[from];
+                newSizes[i] = sizes[from];
+            }
+            names = newNames;
+            values = newValues;
+            sizes = newSizes;
+            next = length;
+        }
+    }
+
+    // The static Huffman code from RFC 7541 Appendix B. It's canonical, so codes are assigned in
+    // order of length and then symbol, and the lengths alone define it.
+    static final class Huffman {
+        private static final int EOS = 256;
+        private static final int[] LENGTHS = {
+                13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+                28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+                6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+                5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+                13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+                7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+                15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+                6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+                20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+                24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+                22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+                21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+                26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+                19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+                20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+                26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+                30,
+        };
+        private static final int MAX_LENGTH = 30;
+        private static final int[] CODES = new int[LENGTHS.length];
+        // For each code length: the first code of that length, how many there are, and where their
+        // symbols start in SYMBOLS, which lists every symbol in code order.
+        private static final int[] FIRST_CODE = new int[MAX_LENGTH + 1];
+        private static final int[] COUNT = new int[MAX_LENGTH + 1];
+        private static final int[] FIRST_SYMBOL = new int[MAX_LENGTH + 1];
+        private static final int[] SYMBOLS = new int[LENGTHS.length];
+
+        static {
+            for (int length : LENGTHS) {
+                COUNT[length]++;
+            }
+            int code = 0;
+            int symbol = 0;
+            for (int length = 1; length <= MAX_LENGTH; length++) {
+                FIRST_CODE[length] = code;
+                FIRST_SYMBOL[length] = symbol;
+                code = (code + COUNT[length]) << 1;
+                symbol += COUNT[length];
+            }
+            int[] nextSymbol = FIRST_SYMBOL.clone();
+            for (int s = 0; s < LENGTHS.length; s++) {
+                int length = LENGTHS[s];
+                int position = nextSymbol[length]++;
+                SYMBOLS[position] = s;
+                CODES[s] = FIRST_CODE[length] + position - FIRST_SYMBOL[length];
+            }
+        }
+
+        private Huffman() {}
+
+        static int encodedLength(byte[] bytes) {
+            long bits = 0;
+            for (byte b : bytes) {
+                bits += LENGTHS[b & 0xff];
+            }
+            return (int) ((bits + 7) >>> 3);
+        }
+
+        static void encode(byte[] bytes, ByteArrayOutputStream out) {
+            long pending = 0;
+            int pendingBits = 0;
+            for (byte b : bytes) {
+                int symbol = b & 0xff;
+                pending = (pending << LENGTHS[symbol]) | CODES[symbol];
+                pendingBits += LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    out.write((int) (pending >>> pendingBits));
+                }
+            }
+            if (pendingBits > 0) {
+                // Padded with the most significant bits of EOS, which are all ones.
+                out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+            }
+        }
+
+        // Decodes length bytes from in.
+        static byte[] decode(ByteBuffer in, int length) throws Http2Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5 + 1);
+            int code = 0;
+            int codeLength = 0;
+            for (int i = 0; i < length; i++) {
+                int b = in.get() & 0xff;
+                for (int bit = 7; bit >= 0; bit--) {
+                    code = (code << 1) | ((b >>> bit) & 1);
+                    codeLength++;
+                    int offset = code - FIRST_CODE[codeLength];
+                    if (offset >= 0 && offset < COUNT[codeLength]) {
+                        int symbol = SYMBOLS[FIRST_SYMBOL[codeLength] + offset];
+                        if (symbol == EOS) {
+                            throw compressionError("EOS in Huffman string");
+                        }
+                        out.write(symbol);
+                        code = 0;
+                        codeLength = 0;
+                    } else if (codeLength == MAX_LENGTH) {
+                        throw compressionError("bad Huffman code");
+                    }
+                }
+            }
+            // Anything left over must be padding: fewer than 8 bits, all ones.
+            if (codeLength > 7 || code != (1 << codeLength) - 1) {
+                throw compressionError("bad Huffman padding");
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static Http2Exception compressionError(String message) {
+        return Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, message);
+    }
+}
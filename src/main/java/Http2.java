@@ -0,0 +1,91 @@
+import com.google.common.base.Preconditions;
+
+/**
+ * Serves HTTP/2 on the NIO engine alongside HTTP/1.1. Clients can start HTTP/2 with prior
+ * knowledge, by sending the connection preface straight away, or by upgrading an HTTP/1.1
+ * connection with Upgrade: h2c. Over TLS it's negotiated with ALPN, which needs "h2" added to
+ * the Tls's application protocols.
+ *
+ * Each stream's request goes to the server's RequestHandler like any other, so many requests can
+ * be in flight on one connection at once, their responses interleaved frame by frame as the
+ * peer's flow control windows allow.
+ */
+public final class Http2 {
+    static final int MIN_MAX_FRAME_SIZE = 16 * 1024;
+    static final int MAX_MAX_FRAME_SIZE = 16 * 1024 * 1024 - 1;
+    static final int DEFAULT_WINDOW_SIZE = 65_535;
+
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final int maxFrameSize;
+    private final int maxHeaderListSize;
+
+    private Http2(Builder builder) {
+        this.maxConcurrentStreams = builder.maxConcurrentStreams;
+        this.initialWindowSize = builder.initialWindowSize;
+        this.maxFrameSize = builder.maxFrameSize;
+        this.maxHeaderListSize = builder.maxHeaderListSize;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    int getMaxHeaderListSize() {
+        return maxHeaderListSize;
+    }
+
+    public static final class Builder {
+        private int maxConcurrentStreams = 100;
+        private int initialWindowSize = 1024 * 1024;
+        private int maxFrameSize = MIN_MAX_FRAME_SIZE;
+        private int maxHeaderListSize = 64 * 1024;
+
+        // The most streams a client may have open on one connection; more are refused.
+        public Builder withMaxConcurrentStreams(int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            return this;
+        }
+
+        // How many bytes of a request body a client may send before we ask for more.
+        public Builder withInitialWindowSize(int initialWindowSize) {
+            this.initialWindowSize = initialWindowSize;
+            return this;
+        }
+
+        // The largest frame a client may send us.
+        public Builder withMaxFrameSize(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        // The most bytes of compressed headers a request may have.
+        public Builder withMaxHeaderListSize(int maxHeaderListSize) {
+            this.maxHeaderListSize = maxHeaderListSize;
+            return this;
+        }
+
+        public Http2 build() {
+            Preconditions.checkArgument(maxConcurrentStreams > 0, "maxConcurrentStreams must be positive");
+            // Clients may send up to the default before they've seen our settings.
+            Preconditions.checkArgument(initialWindowSize >= DEFAULT_WINDOW_SIZE,
+                    "initialWindowSize must be at least %s", DEFAULT_WINDOW_SIZE);
+            Preconditions.checkArgument(maxFrameSize >= MIN_MAX_FRAME_SIZE && maxFrameSize <= MAX_MAX_FRAME_SIZE,
+                    "maxFrameSize must be between %s and %s", MIN_MAX_FRAME_SIZE, MAX_MAX_FRAME_SIZE);
+            Preconditions.checkArgument(maxHeaderListSize > 0, "maxHeaderListSize must be positive");
+            return new Http2(this);
+        }
+    }
+}
@@ -0,0 +1,1267 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An HTTP/2 connection (RFC 7540) on the NIO engine. NioConnection hands its channel over once it
+ * sees the connection preface or upgrades a request, and passes on everything after that.
+ *
+ * Each stream's request is dispatched through the EventLoop like an HTTP/1.1 one, once its body
+ * has arrived: request bodies are collected in memory, up to MAX_BUFFERED_BODY_SIZE, rather than
+ * streamed. Responses are cut into DATA frames and sent a frame per stream in turn, as far as the
+ * peer's connection and stream windows allow, so one large response doesn't hold up the rest.
+ *
+ * Frames are written from buffers leased from BufferPool.HEAP, and no more than MAX_QUEUED_BYTES
+ * of DATA is queued for the socket at once so a slow reader can't make us buffer whole bodies.
+ */
+final class Http2Connection {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+    private static final int FRAME_HEADER_SIZE = 9;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BUFFERED_BODY_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_QUEUED_BYTES = 64 * 1024;
+
+    private static final CharMatcher UPPER_CASE = CharMatcher.inRange('A', 'Z');
+    // Headers that only mean something to a single HTTP/1.1 connection, which HTTP/2 forbids.
+    private static final ImmutableSet<String> CONNECTION_HEADERS = ImmutableSet.of(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private final SelectionKey key;
+    private final Http2 settings;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // Streams with a DATA frame to send, taking turns.
+    private final Queue<Stream> sending = new ArrayDeque<>();
+    // Frames waiting for the socket, each a leased buffer.
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    // Leased while there's anything to read into it, like NioConnection's.
+    private ByteBuffer readBuffer;
+    private long lastActiveNanos = System.nanoTime();
+    private boolean prefaceReceived = false;
+    private boolean settingsReceived = false;
+    // Set once either side has sent GOAWAY: no new streams are taken, and the connection closes
+    // once the open ones are done.
+    private boolean goingAway = false;
+    private boolean closed = false;
+    private int lastStreamId = 0;
+
+    // A header block whose CONTINUATION frames are still arriving.
+    private int continuationStreamId = 0;
+    private boolean continuationEndStream;
+    private ByteArrayOutputStream headerBlock;
+
+    // What we may still send on the connection, and the peer's settings for what we send.
+    private long connectionSendWindow = Http2.DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = Http2.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2.MIN_MAX_FRAME_SIZE;
+    // What the peer may still send on the connection, and how much of it we've yet to give back.
+    private long connectionReceiveWindow = Http2.DEFAULT_WINDOW_SIZE;
+    private int connectionConsumed = 0;
+
+    Http2Connection(EventLoop loop, SocketChannel channel, TlsChannel tls, SelectionKey key, ByteBuffer readBuffer) {
+        this.loop = loop;
+        this.channel = channel;
+        this.tls = tls;
+        this.key = key;
+        this.settings = loop.getHttp2();
+        this.readBuffer = readBuffer;
+    }
+
+    // Whether the bytes buffered so far are the client connection preface: 1 if they are, 0 if
+    // there aren't enough of them to tell yet, and -1 if they're something else.
+    static int matchPreface(ByteBuffer buffer) {
+        int length = Math.min(buffer.position(), PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(i) != PREFACE[i]) {
+                return -1;
+            }
+        }
+        return length == PREFACE.length ? 1 : 0;
+    }
+
+    // Sends our settings and starts on whatever's already buffered. An HTTP/1.1 request that was
+    // upgraded becomes stream 1, with upgradeSettings the client's HTTP2-Settings.
+    void start(Request upgraded, byte[] upgradeSettings) {
+        ByteBuffer frame = frame(SETTINGS, 0, 0, 4 * 6);
+        putSetting(frame, SETTINGS_MAX_CONCURRENT_STREAMS, settings.getMaxConcurrentStreams());
+        putSetting(frame, SETTINGS_INITIAL_WINDOW_SIZE, settings.getInitialWindowSize());
+        putSetting(frame, SETTINGS_MAX_FRAME_SIZE, settings.getMaxFrameSize());
+        putSetting(frame, SETTINGS_MAX_HEADER_LIST_SIZE, settings.getMaxHeaderListSize());
+        queue(frame);
+        // The connection window only grows by WINDOW_UPDATE, not by settings.
+        sendWindowUpdate(0, settings.getInitialWindowSize() - Http2.DEFAULT_WINDOW_SIZE);
+        connectionReceiveWindow = settings.getInitialWindowSize();
+
+        try {
+            if (upgraded != null) {
+                applySettings(ByteBuffer.wrap(upgradeSettings));
+                Stream stream = new Stream(1);
+                stream.receiving = false;
+                streams.put(1, stream);
+                lastStreamId = 1;
+                dispatch(stream, upgraded);
+            }
+        } catch (Http2Exception e) {
+            connectionError(e);
+            return;
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+        if (readBuffer != null && readBuffer.position() > 0) {
+            processFrames();
+        }
+        driveQuietly();
+        readBufferedTls();
+    }
+
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                drive();
+            }
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("closing %s", this);
+            close();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = BufferPool.HEAP.lease(INITIAL_BUFFER_SIZE);
+        } else if (!readBuffer.hasRemaining()) {
+            // Bounded, as frames bigger than our max frame size are refused.
+            ByteBuffer larger = BufferPool.HEAP.lease(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            BufferPool.HEAP.release(readBuffer);
+            readBuffer = larger;
+        }
+
+        int bytesRead = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+        if (bytesRead == -1) {
+            close();
+            return;
+        }
+        loop.getMetrics().received(bytesRead);
+        lastActiveNanos = System.nanoTime();
+        processFrames();
+        if (closed) {
+            return;
+        }
+        if (readBuffer.position() == 0) {
+            BufferPool.HEAP.release(readBuffer);
+            readBuffer = null;
+        }
+        drive();
+        readBufferedTls();
+    }
+
+    // See NioConnection.readBufferedTls.
+    private void readBufferedTls() {
+        if (tls == null || closed || !tls.hasBufferedInput()) {
+            return;
+        }
+        loop.execute(() -> {
+            if (closed || !tls.hasBufferedInput()) {
+                return;
+            }
+            try {
+                onReadable();
+            } catch (IOException e) {
+                logger.atFine().withCause(e).log("closing %s", this);
+                close();
+            }
+        });
+    }
+
+    private void processFrames() {
+        readBuffer.flip();
+        try {
+            while (!closed) {
+                if (!prefaceReceived) {
+                    if (readBuffer.remaining() < PREFACE.length) {
+                        break;
+                    }
+                    for (byte b : PREFACE) {
+                        if (readBuffer.get() != b) {
+                            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad connection preface");
+                        }
+                    }
+                    prefaceReceived = true;
+                    continue;
+                }
+
+                if (readBuffer.remaining() < FRAME_HEADER_SIZE) {
+                    break;
+                }
+                int start = readBuffer.position();
+                int length = (readBuffer.get(start) & 0xff) << 16
+                        | (readBuffer.get(start + 1) & 0xff) << 8
+                        | (readBuffer.get(start + 2) & 0xff);
+                if (length > settings.getMaxFrameSize()) {
+                    throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "frame too large: " + length);
+                }
+                if (readBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                    break;
+                }
+                int type = readBuffer.get(start + 3) & 0xff;
+                int flags = readBuffer.get(start + 4) & 0xff;
+                int streamId = readBuffer.getInt(start + 5) & 0x7fffffff;
+                ByteBuffer payload = readBuffer.duplicate();
+                payload.limit(start + FRAME_HEADER_SIZE + length).position(start + FRAME_HEADER_SIZE);
+                readBuffer.position(start + FRAME_HEADER_SIZE + length);
+
+                try {
+                    onFrame(type, flags, streamId, payload.slice());
+                } catch (Http2Exception e) {
+                    if (e.getStreamId() == 0) {
+                        throw e;
+                    }
+                    logger.atFine().log("resetting stream %d on %s: %s", e.getStreamId(), this, e.getMessage());
+                    resetStream(e.getStreamId(), e.getErrorCode());
+                }
+            }
+        } catch (Http2Exception e) {
+            connectionError(e);
+        } finally {
+            if (readBuffer != null) {
+                readBuffer.compact();
+            }
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (!settingsReceived && type != SETTINGS) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "expected SETTINGS first");
+        }
+        if (continuationStreamId != 0 && (type != CONTINUATION || streamId != continuationStreamId)) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "expected CONTINUATION");
+        }
+
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                // We send in turn whatever the priorities, but the frame still has to be well formed.
+                if (streamId == 0) {
+                    throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (payload.remaining() != 5) {
+                    throw Http2Exception.stream(streamId, Http2Exception.FRAME_SIZE_ERROR, "bad PRIORITY length");
+                }
+                break;
+            case RST_STREAM:
+                onRstStream(streamId, payload);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "clients can't push");
+            case PING:
+                onPing(flags, streamId, payload);
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                // Streams already open are finished, then the connection closes.
+                goingAway = true;
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                onContinuation(flags, streamId, payload);
+                break;
+            default:
+                // Unknown frame types are ignored.
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // Flow control counts the whole frame, padding and all.
+        int length = payload.remaining();
+        connectionReceiveWindow -= length;
+        if (connectionReceiveWindow < 0) {
+            throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "connection window exceeded");
+        }
+        connectionConsumed += length;
+        if (connectionConsumed >= settings.getInitialWindowSize() / 2) {
+            sendWindowUpdate(0, connectionConsumed);
+            connectionReceiveWindow += connectionConsumed;
+            connectionConsumed = 0;
+        }
+        stripPadding(flags, payload);
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            // A stream we've finished with whose peer hadn't heard yet.
+            return;
+        }
+        if (!stream.receiving) {
+            throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED, "DATA after END_STREAM");
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "stream window exceeded");
+        }
+
+        if (stream.request != null) {
+            if (!appendBody(stream, payload)) {
+                stream.request = null;
+                stream.body = null;
+                respond(stream, Response.builder().withStatus(Status.PAYLOAD_TOO_LARGE).build());
+            }
+        }
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            endOfRequest(stream);
+            return;
+        }
+        stream.receiveConsumed += length;
+        if (stream.receiveConsumed >= settings.getInitialWindowSize() / 2) {
+            sendWindowUpdate(streamId, stream.receiveConsumed);
+            stream.receiveWindow += stream.receiveConsumed;
+            stream.receiveConsumed = 0;
+        }
+    }
+
+    // Returns false if the body has outgrown MAX_BUFFERED_BODY_SIZE.
+    private static boolean appendBody(Stream stream, ByteBuffer data) {
+        if (stream.body == null) {
+            stream.body = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, data.remaining()));
+        } else if (stream.body.remaining() < data.remaining()) {
+            long needed = (long) stream.body.position() + data.remaining();
+            if (needed > MAX_BUFFERED_BODY_SIZE) {
+                return false;
+            }
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.min(
+                    Math.max(needed, stream.body.capacity() * 2L), MAX_BUFFERED_BODY_SIZE));
+            stream.body.flip();
+            larger.put(stream.body);
+            stream.body = larger;
+        }
+        stream.body.put(data);
+        return true;
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        stripPadding(flags, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payload.remaining() < 5) {
+                throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "HEADERS too short");
+            }
+            payload.position(payload.position() + 5);
+        }
+
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            checkHeaderBlockSize(payload.remaining());
+            onHeaderBlock(streamId, endStream, payload);
+            return;
+        }
+        continuationStreamId = streamId;
+        continuationEndStream = endStream;
+        headerBlock = new ByteArrayOutputStream(payload.remaining() * 2);
+        appendHeaderBlock(payload);
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (continuationStreamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        appendHeaderBlock(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            ByteBuffer block = ByteBuffer.wrap(headerBlock.toByteArray());
+            continuationStreamId = 0;
+            headerBlock = null;
+            onHeaderBlock(streamId, continuationEndStream, block);
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer fragment) throws Http2Exception {
+        checkHeaderBlockSize(headerBlock.size() + fragment.remaining());
+        headerBlock.write(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+    }
+
+    // A block can't be dropped without losing track of the peer's HPACK table, so one too large to
+    // bother decoding ends the connection.
+    private void checkHeaderBlockSize(int size) throws Http2Exception {
+        if (size > settings.getMaxHeaderListSize()) {
+            throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+        }
+    }
+
+    private void onHeaderBlock(int streamId, boolean endStream, ByteBuffer block) throws Http2Exception {
+        long start = System.nanoTime();
+        RequestFields fields = new RequestFields();
+        decoder.decode(block, fields);
+
+        Stream stream = streams.get(streamId);
+        if (stream != null || streamId <= lastStreamId) {
+            // Trailers, which handlers don't see, or for a stream we've already finished with.
+            if (stream == null) {
+                return;
+            }
+            if (!stream.receiving) {
+                throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED, "HEADERS after END_STREAM");
+            }
+            if (!endStream) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "trailers without END_STREAM");
+            }
+            endOfRequest(stream);
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "even stream id from client");
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            throw Http2Exception.stream(streamId, Http2Exception.REFUSED_STREAM, "connection going away");
+        }
+        if (streams.size() >= settings.getMaxConcurrentStreams()) {
+            throw Http2Exception.stream(streamId, Http2Exception.REFUSED_STREAM, "too many streams");
+        }
+        String problem = fields.problem();
+        if (problem != null) {
+            throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, problem);
+        }
+
+        stream = new Stream(streamId);
+        stream.receiving = !endStream;
+        streams.put(streamId, stream);
+        Request req;
+        try {
+            req = Request.fromHttp2(fields.method, fields.path, fields.headers());
+        } catch (RequestParseException | IllegalArgumentException e) {
+            respond(stream, Response.builder().withStatus(Status.BAD_REQUEST).build());
+            return;
+        }
+        req.setRemoteAddress(channel.socket().getInetAddress());
+        loop.getMetrics().parsed(System.nanoTime() - start);
+        if (endStream) {
+            dispatch(stream, req);
+        } else {
+            stream.request = req;
+        }
+    }
+
+    private void endOfRequest(Stream stream) {
+        stream.receiving = false;
+        if (stream.request == null) {
+            return;
+        }
+        Request req = stream.request;
+        stream.request = null;
+        if (stream.body != null) {
+            stream.body.flip();
+            req.setRawBody(stream.body);
+            stream.body = null;
+        }
+        dispatch(stream, req);
+    }
+
+    private void dispatch(Stream stream, Request req) {
+        stream.dispatched = req;
+        loop.dispatch(req, res -> {
+            respond(stream, res);
+            driveQuietly();
+        }, () -> resetStream(stream.id, Http2Exception.REFUSED_STREAM));
+    }
+
+    private void onRstStream(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        }
+        if (payload.remaining() != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad RST_STREAM length");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream);
+        }
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        applySettings(payload);
+        settingsReceived = true;
+        queue(frame(SETTINGS, FLAG_ACK, 0, 0));
+    }
+
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() % 6 != 0) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad SETTINGS length");
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    // We never push, whatever the client says, but it has to say it properly.
+                    if (value > 1) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > Integer.MAX_VALUE) {
+                        throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "bad INITIAL_WINDOW_SIZE");
+                    }
+                    // Open streams' windows move by the difference.
+                    int delta = (int) value - peerInitialWindowSize;
+                    peerInitialWindowSize = (int) value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > Integer.MAX_VALUE) {
+                            throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "stream window overflow");
+                        }
+                        schedule(stream);
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2.MIN_MAX_FRAME_SIZE || value > Http2.MAX_MAX_FRAME_SIZE) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // The peer's stream and header list limits don't constrain a server that
+                    // doesn't push, and unknown settings are ignored.
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad PING length");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            ByteBuffer frame = frame(PING, FLAG_ACK, 0, 8);
+            frame.put(payload);
+            queue(frame);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE length");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+            }
+            connectionSendWindow += increment;
+            if (connectionSendWindow > Integer.MAX_VALUE) {
+                throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "connection window overflow");
+            }
+            return;
+        }
+
+        if (streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+        }
+        if (increment == 0) {
+            throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > Integer.MAX_VALUE) {
+            throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "stream window overflow");
+        }
+        schedule(stream);
+    }
+
+    private static void stripPadding(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return;
+        }
+        if (!payload.hasRemaining()) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "missing pad length");
+        }
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "padding longer than frame");
+        }
+        payload.limit(payload.limit() - padding);
+    }
+
+    // Queues the response's HEADERS and lines its body up to be sent as DATA.
+    private void respond(Stream stream, Response res) {
+        ResponseBody body = res.getBody();
+        if (stream.closed || closed) {
+            body.release();
+            return;
+        }
+
+        stream.status = res.getStatus();
+        stream.writeStartNanos = System.nanoTime();
+        stream.responding = true;
+        stream.responseBody = body;
+        boolean empty = !body.isStreamed() && body.length() == 0;
+        stream.sent = queueHeaders(stream.id, res, empty);
+        if (empty) {
+            finishResponse(stream);
+            return;
+        }
+        if (body.isStreamed()) {
+            if (!startStreaming(stream)) {
+                return;
+            }
+        } else if (body.inMemory()) {
+            stream.memory = body.buffer();
+        }
+        schedule(stream);
+    }
+
+    // Returns the size of the header block.
+    private int queueHeaders(int streamId, Response res, boolean endStream) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        encoder.encode(":status", String.valueOf(res.getStatus().getStatus()), block);
+        Headers headers = res.getHeaders();
+        for (int i = 0; i < headers.size(); i++) {
+            String name = Ascii.toLowerCase(headers.name(i));
+            if (!CONNECTION_HEADERS.contains(name)) {
+                encoder.encode(name, headers.value(i), block);
+            }
+        }
+
+        // Frames of one block go out back to back, which queueing them together guarantees.
+        byte[] bytes = block.toByteArray();
+        int offset = 0;
+        do {
+            int length = Math.min(peerMaxFrameSize, bytes.length - offset);
+            boolean first = offset == 0;
+            int flags = offset + length == bytes.length ? FLAG_END_HEADERS : 0;
+            if (first && endStream) {
+                flags |= FLAG_END_STREAM;
+            }
+            ByteBuffer frame = frame(first ? HEADERS : CONTINUATION, flags, streamId, length);
+            frame.put(bytes, offset, length);
+            queue(frame);
+            offset += length;
+        } while (offset < bytes.length);
+        return bytes.length;
+    }
+
+    // Like NioConnection's: runs the BodyWriter on the handler executor if there is one, or here
+    // collecting the body in memory. Returns false if the stream had to be reset.
+    private boolean startStreaming(Stream stream) {
+        BodyWriter writer = stream.responseBody.writer();
+        Executor executor = loop.getHandlerExecutor();
+        if (executor == null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try {
+                writer.writeTo(os);
+            } catch (IOException | RuntimeException e) {
+                logger.atWarning().withCause(e).log("body writer failed, resetting stream %d on %s", stream.id, this);
+                resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+                return false;
+            }
+            stream.responseBody = ResponseBody.of(os.toByteArray());
+            stream.memory = stream.responseBody.buffer();
+            return true;
+        }
+
+        NioOutputStream out = new NioOutputStream(stream);
+        stream.out = out;
+        stream.streamed = new ArrayDeque<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    writer.writeTo(out);
+                    out.close();
+                } catch (IOException | RuntimeException e) {
+                    logger.atWarning().withCause(e).log("body writer failed, resetting stream %d on %s", stream.id, this);
+                    loop.execute(() -> {
+                        if (!stream.closed) {
+                            resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+                            driveQuietly();
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.atWarning().withCause(e).log("handler executor rejected body writer, resetting stream %d on %s",
+                    stream.id, this);
+            resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+            return false;
+        }
+        return true;
+    }
+
+    // Puts the stream in line to send if it has a frame it's allowed to send.
+    private void schedule(Stream stream) {
+        if (stream.scheduled || !stream.responding || stream.closed) {
+            return;
+        }
+        if (stream.available() > 0 ? stream.sendWindow > 0 : stream.atEnd()) {
+            stream.scheduled = true;
+            sending.add(stream);
+        }
+    }
+
+    // Turns queued responses into DATA frames, a frame per stream in turn, until the connection
+    // window or MAX_QUEUED_BYTES runs out.
+    private void pump() throws IOException {
+        while (queuedBytes < MAX_QUEUED_BYTES && !sending.isEmpty()) {
+            Stream stream = sending.peek();
+            if (stream.available() > 0 && connectionSendWindow <= 0) {
+                break;
+            }
+            sending.remove();
+            stream.scheduled = false;
+            sendData(stream);
+            schedule(stream);
+        }
+    }
+
+    private void sendData(Stream stream) throws IOException {
+        int length = (int) Math.min(stream.available(),
+                Math.min(peerMaxFrameSize, Math.min(connectionSendWindow, stream.sendWindow)));
+        ByteBuffer frame = BufferPool.HEAP.lease(FRAME_HEADER_SIZE + length);
+        frame.position(FRAME_HEADER_SIZE).limit(FRAME_HEADER_SIZE + length);
+        if (stream.memory != null) {
+            ByteBuffer part = stream.memory.duplicate();
+            part.limit(part.position() + length);
+            frame.put(part);
+            stream.memory.position(part.position());
+        } else if (stream.streamed != null) {
+            while (frame.hasRemaining()) {
+                ByteBuffer head = stream.streamed.peek();
+                ByteBuffer part = head.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), frame.remaining()));
+                frame.put(part);
+                head.position(part.position());
+                if (!head.hasRemaining()) {
+                    stream.streamed.remove();
+                    stream.out.written(head.limit());
+                    BufferPool.HEAP.release(head);
+                }
+            }
+        } else {
+            FrameFiller filler = new FrameFiller(frame);
+            while (frame.hasRemaining()) {
+                long transferred = stream.responseBody.transferTo(stream.offset, filler);
+                if (transferred == 0) {
+                    break;
+                }
+                stream.offset += transferred;
+            }
+        }
+        length = frame.position() - FRAME_HEADER_SIZE;
+        frame.flip();
+
+        boolean last = stream.available() == 0 && stream.atEnd();
+        putFrameHeader(frame, length, DATA, last ? FLAG_END_STREAM : 0, stream.id);
+        connectionSendWindow -= length;
+        stream.sendWindow -= length;
+        stream.sent += length;
+        queue(frame);
+        if (last) {
+            finishResponse(stream);
+        }
+    }
+
+    private void finishResponse(Stream stream) {
+        long now = System.nanoTime();
+        loop.getMetrics().responded(stream.status, now - stream.writeStartNanos);
+        AccessLog accessLog = loop.getAccessLog();
+        if (accessLog != null) {
+            accessLog.record(stream.dispatched, channel.socket().getInetAddress(), stream.status, stream.sent,
+                    stream.startNanos, stream.writeStartNanos, now);
+        }
+        if (stream.receiving) {
+            // The rest of the request body isn't wanted.
+            queueRstStream(stream.id, Http2Exception.NO_ERROR);
+        }
+        closeStream(stream);
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        queueRstStream(streamId, errorCode);
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream);
+        }
+    }
+
+    private void queueRstStream(int streamId, int errorCode) {
+        ByteBuffer frame = frame(RST_STREAM, 0, streamId, 4);
+        frame.putInt(errorCode);
+        queue(frame);
+    }
+
+    private void closeStream(Stream stream) {
+        stream.closed = true;
+        streams.remove(stream.id);
+        if (stream.scheduled) {
+            sending.remove(stream);
+        }
+        if (stream.responseBody != null) {
+            stream.responseBody.release();
+            stream.responseBody = null;
+        }
+        stream.memory = null;
+        if (stream.streamed != null) {
+            for (ByteBuffer buffer : stream.streamed) {
+                BufferPool.HEAP.release(buffer);
+            }
+            stream.streamed.clear();
+        }
+        if (stream.out != null) {
+            stream.out.fail(new IOException("stream closed"));
+            stream.out = null;
+        }
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) {
+        if (increment > 0) {
+            ByteBuffer frame = frame(WINDOW_UPDATE, 0, streamId, 4);
+            frame.putInt(increment);
+            queue(frame);
+        }
+    }
+
+    // Reports the error to the peer and closes: after a connection error nothing more can be read.
+    private void connectionError(Http2Exception e) {
+        logger.atFine().log("closing %s: %s", this, e.getMessage());
+        goAway(e.getErrorCode(), e.getMessage());
+    }
+
+    private void goAway(int errorCode, String debug) {
+        if (closed) {
+            return;
+        }
+        queueGoAway(errorCode, debug);
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("failed to send GOAWAY on %s", this);
+        }
+        close();
+    }
+
+    private void queueGoAway(int errorCode, String debug) {
+        byte[] debugData = debug.getBytes(Charsets.UTF_8);
+        ByteBuffer frame = frame(GOAWAY, 0, 0, 8 + debugData.length);
+        frame.putInt(lastStreamId);
+        frame.putInt(errorCode);
+        frame.put(debugData);
+        queue(frame);
+    }
+
+    // Leases a buffer for a frame with its header written, positioned for the payload.
+    private static ByteBuffer frame(int type, int flags, int streamId, int length) {
+        ByteBuffer frame = BufferPool.HEAP.lease(FRAME_HEADER_SIZE + length);
+        frame.limit(FRAME_HEADER_SIZE + length);
+        putFrameHeader(frame, length, type, flags, streamId);
+        frame.position(FRAME_HEADER_SIZE);
+        return frame;
+    }
+
+    private static void putFrameHeader(ByteBuffer frame, int length, int type, int flags, int streamId) {
+        frame.put(0, (byte) (length >>> 16));
+        frame.put(1, (byte) (length >>> 8));
+        frame.put(2, (byte) length);
+        frame.put(3, (byte) type);
+        frame.put(4, (byte) flags);
+        frame.putInt(5, streamId);
+    }
+
+    private static void putSetting(ByteBuffer frame, int id, int value) {
+        frame.putShort((short) id);
+        frame.putInt(value);
+    }
+
+    // Takes a frame from frame(), or a flipped one.
+    private void queue(ByteBuffer frame) {
+        if (frame.position() != 0) {
+            frame.flip();
+        }
+        writeQueue.add(frame);
+        queuedBytes += frame.remaining();
+    }
+
+    // Sends what can be sent, refilling from streams with data as the socket takes it.
+    private void drive() throws IOException {
+        pump();
+        while (flush() && !sending.isEmpty()
+                && (connectionSendWindow > 0 || sending.peek().available() == 0)) {
+            pump();
+        }
+        if (goingAway && streams.isEmpty() && writeQueue.isEmpty()) {
+            close();
+        }
+    }
+
+    private void driveQuietly() {
+        if (closed) {
+            return;
+        }
+        try {
+            drive();
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("closing %s", this);
+            close();
+        }
+    }
+
+    // Writes queued frames, returning whether they've all gone.
+    private boolean flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer[] buffers = writeQueue.toArray(new ByteBuffer[0]);
+            long written = tls != null ? tls.write(buffers) : channel.write(buffers);
+            loop.getMetrics().sent(written);
+            queuedBytes -= written;
+            while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                BufferPool.HEAP.release(writeQueue.remove());
+            }
+            if (written == 0) {
+                break;
+            }
+        }
+        boolean done = writeQueue.isEmpty() && (tls == null || tls.flush());
+        if (done) {
+            lastActiveNanos = System.nanoTime();
+        }
+        if (!closed) {
+            key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        return done;
+    }
+
+    // Closes the connection if it's been idle for idleTimeoutNanos, returning when to look again if not.
+    long closeIfIdle(long now, long idleTimeoutNanos) {
+        long deadline = lastActiveNanos + idleTimeoutNanos;
+        if (streams.isEmpty() && writeQueue.isEmpty() && now - deadline > 0) {
+            logger.atFine().log("closing idle %s", this);
+            goAway(Http2Exception.NO_ERROR, "idle");
+        }
+        return deadline - now > 0 ? deadline : now + idleTimeoutNanos;
+    }
+
+    // The server's shutting down: tells the client no more streams will be taken, and closes once
+    // the open ones are done.
+    void drain() {
+        if (closed || goingAway) {
+            return;
+        }
+        if (streams.isEmpty() && writeQueue.isEmpty()) {
+            goAway(Http2Exception.NO_ERROR, "shutting down");
+            return;
+        }
+        goingAway = true;
+        queueGoAway(Http2Exception.NO_ERROR, "shutting down");
+        driveQuietly();
+    }
+
+    // Closes, returning how many streams that cut off.
+    int abandon() {
+        int open = closed ? 0 : streams.size();
+        close();
+        return open;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.getMetrics().connectionClosed();
+        for (Stream stream : new ArrayList<>(streams.values())) {
+            closeStream(stream);
+        }
+        for (ByteBuffer buffer : writeQueue) {
+            BufferPool.HEAP.release(buffer);
+        }
+        writeQueue.clear();
+        queuedBytes = 0;
+        if (readBuffer != null) {
+            BufferPool.HEAP.release(readBuffer);
+            readBuffer = null;
+        }
+        key.cancel();
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("failed to close %s", this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Http2Connection{" + channel + "}";
+    }
+
+    private final class Stream implements NioOutputStream.Sink {
+        final int id;
+        final long startNanos;
+        // The request, until it's been dispatched, and its body so far.
+        Request request;
+        // The request once it has been, for the access log.
+        Request dispatched;
+        ByteBuffer body;
+        // Whether the peer may still send on this stream.
+        boolean receiving = true;
+        int receiveWindow = settings.getInitialWindowSize();
+        int receiveConsumed = 0;
+
+        boolean responding = false;
+        boolean scheduled = false;
+        boolean closed = false;
+        long sendWindow = peerInitialWindowSize;
+        Status status;
+        long writeStartNanos;
+        // Bytes of header block and body sent so far.
+        long sent = 0;
+        ResponseBody responseBody;
+        // Where the body comes from: memory, the file behind responseBody from offset, or streamed.
+        ByteBuffer memory;
+        long offset = 0;
+        NioOutputStream out;
+        Queue<ByteBuffer> streamed;
+        boolean streamEnded = false;
+
+        Stream(int id) {
+            this.id = id;
+            this.startNanos = System.nanoTime();
+        }
+
+        // Bytes of body ready to send.
+        long available() {
+            if (memory != null) {
+                return memory.remaining();
+            }
+            if (streamed != null) {
+                long available = 0;
+                for (ByteBuffer buffer : streamed) {
+                    available += buffer.remaining();
+                }
+                return available;
+            }
+            return responseBody == null ? 0 : responseBody.length() - offset;
+        }
+
+        // Whether nothing more will be ready than is already.
+        boolean atEnd() {
+            return streamed == null || streamEnded;
+        }
+
+        // Called from the BodyWriter's thread.
+        @Override
+        public void enqueue(ByteBuffer buffer) {
+            loop.execute(() -> {
+                if (closed) {
+                    BufferPool.HEAP.release(buffer);
+                    return;
+                }
+                streamed.add(buffer);
+                schedule(this);
+                driveQuietly();
+            });
+        }
+
+        // Called from the BodyWriter's thread.
+        @Override
+        public void enqueueEnd() {
+            loop.execute(() -> {
+                streamEnded = true;
+                schedule(this);
+                driveQuietly();
+            });
+        }
+    }
+
+    // The fields of a request's header block, checked against what RFC 7540 section 8.1.2 allows.
+    private static final class RequestFields implements Hpack.FieldSink {
+        private final Headers headers = new Headers();
+        private String method;
+        private String scheme;
+        private String authority;
+        private String path;
+        private StringBuilder cookie;
+        private boolean regularSeen = false;
+        private String problem;
+
+        @Override
+        public void field(String name, String value) {
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    problem = "pseudo-header after regular header";
+                }
+                switch (name) {
+                    case ":method":
+                        method = pseudoHeader(method, value);
+                        break;
+                    case ":scheme":
+                        scheme = pseudoHeader(scheme, value);
+                        break;
+                    case ":authority":
+                        authority = pseudoHeader(authority, value);
+                        break;
+                    case ":path":
+                        path = pseudoHeader(path, value);
+                        break;
+                    default:
+                        problem = "unknown pseudo-header " + name;
+                }
+                return;
+            }
+
+            regularSeen = true;
+            if (UPPER_CASE.matchesAnyOf(name)) {
+                problem = "upper case header name";
+            } else if (CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+                problem = "connection-specific header " + name;
+            } else if (name.equals("cookie")) {
+                // Cookies may be split into fields of their own to compress better.
+                if (cookie == null) {
+                    cookie = new StringBuilder(value);
+                } else {
+                    cookie.append("; ").append(value);
+                }
+            } else {
+                headers.add(name, value);
+            }
+        }
+
+        private String pseudoHeader(String current, String value) {
+            if (current != null) {
+                problem = "duplicate pseudo-header";
+            }
+            return value;
+        }
+
+        String problem() {
+            if (problem == null && (method == null || scheme == null || path == null || path.isEmpty())) {
+                return "missing pseudo-header";
+            }
+            return problem;
+        }
+
+        Headers headers() {
+            if (authority != null && !headers.contains(HeaderNames.HOST)) {
+                headers.add(HeaderNames.HOST, authority);
+            }
+            if (cookie != null) {
+                headers.add(HeaderNames.COOKIE, cookie.toString());
+            }
+            return headers;
+        }
+    }
+
+    // Passes a file region's bytes into a DATA frame, as much as fits.
+    private static final class FrameFiller implements WritableByteChannel {
+        private final ByteBuffer frame;
+
+        FrameFiller(ByteBuffer frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = Math.min(src.remaining(), frame.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            frame.put(part);
+            src.position(part.position());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
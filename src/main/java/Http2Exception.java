@@ -0,0 +1,39 @@
+// A breach of the HTTP/2 protocol by the peer. Errors on a stream only end that stream; errors
+// on stream 0 end the whole connection.
+final class Http2Exception extends Exception {
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int streamId;
+    private final int errorCode;
+
+    private Http2Exception(int streamId, int errorCode, String message) {
+        super(message);
+        this.streamId = streamId;
+        this.errorCode = errorCode;
+    }
+
+    static Http2Exception connection(int errorCode, String message) {
+        return new Http2Exception(0, errorCode, message);
+    }
+
+    static Http2Exception stream(int streamId, int errorCode, String message) {
+        return new Http2Exception(streamId, errorCode, message);
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+}
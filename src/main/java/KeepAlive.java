@@ -0,0 +1,45 @@
+import com.google.common.base.Splitter;
+
+final class KeepAlive {
+    private static final Splitter TOKEN_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private KeepAlive() {}
+
+    // HTTP/1.1 connections are persistent unless either side says "close", HTTP/1.0 ones only if
+    // the client asked for "keep-alive".
+    static boolean requested(Request req) {
+        String connection = req.getHeader(HeaderNames.CONNECTION);
+        if ("HTTP/1.1".equals(req.getHttpVersion())) {
+            return !hasToken(connection, "close");
+        }
+        if ("HTTP/1.0".equals(req.getHttpVersion())) {
+            return hasToken(connection, "keep-alive");
+        }
+        return false;
+    }
+
+    static boolean allowed(Response res) {
+        return !hasToken(res.getHeaders().get(HeaderNames.CONNECTION), "close");
+    }
+
+    // The Connection header to add to a response, or null if the default for the request's HTTP
+    // version already says the right thing.
+    static String connectionHeader(Request req, boolean keepAlive) {
+        if (!keepAlive) {
+            return "close";
+        }
+        return "HTTP/1.0".equals(req.getHttpVersion()) ? "keep-alive" : null;
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String part : TOKEN_SPLITTER.split(value)) {
+            if (part.equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,151 @@
+import com.google.common.base.Ascii;
+import com.google.common.flogger.FluentLogger;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binds the server's listening sockets. With more than one shard, every socket is bound to the same
+// port with SO_REUSEPORT and the kernel spreads new connections across them, so each shard accepts
+// from its own queue instead of every acceptor contending for one.
+//
+// SO_REUSEPORT arrived in StandardSocketOptions, and ServerSocket#setOption, in Java 9, and this
+// project still builds for Java 8, so both are looked up reflectively.
+final class Listeners {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+    // How long draining waits for each acceptor to notice its socket closed.
+    private static final long ACCEPTOR_EXIT_MILLIS = 100;
+    private static final byte[] ANY = {0, 0, 0, 0};
+    // StandardSocketOptions.SO_REUSEPORT, or null before Java 9.
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private Listeners() {
+    }
+
+    // Whether more than one shard can listen on a port: Java 9 or later, on an OS that balances
+    // SO_REUSEPORT sockets the way Linux does.
+    static boolean shardingSupported() {
+        // macOS and the BSDs accept the option but hand every connection to one socket, starving
+        // the other shards' acceptors.
+        if (SO_REUSEPORT == null || !Ascii.toLowerCase(System.getProperty("os.name", "")).startsWith("linux")) {
+            return false;
+        }
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // For the NIO engine: one channel per shard, all on the same port.
+    static List<ServerSocketChannel> bindChannels(Server server) throws IOException {
+        int shards = server.getListenerShards();
+        List<ServerSocketChannel> channels = new ArrayList<>(shards);
+        int port = server.getPort();
+        try {
+            for (int i = 0; i < shards; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                if (shards > 1) {
+                    channel.setOption(SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(InetAddress.getByAddress(ANY), port), server.getSocketQueueLength());
+                // Port 0 picks an ephemeral port on the first bind, which the other shards then share.
+                port = channel.socket().getLocalPort();
+            }
+        } catch (IOException e) {
+            closeAll(channels);
+            throw e;
+        }
+        logBound(port, shards);
+        return channels;
+    }
+
+    // For the blocking engines: one socket per shard, all on the same port.
+    static List<ServerSocket> bindSockets(Server server) throws IOException {
+        int shards = server.getListenerShards();
+        List<ServerSocket> sockets = new ArrayList<>(shards);
+        int port = server.getPort();
+        try {
+            for (int i = 0; i < shards; i++) {
+                ServerSocket socket = new ServerSocket();
+                sockets.add(socket);
+                if (shards > 1) {
+                    setReusePort(socket);
+                }
+                socket.bind(new InetSocketAddress(InetAddress.getByAddress(ANY), port), server.getSocketQueueLength());
+                port = socket.getLocalPort();
+            }
+        } catch (IOException e) {
+            closeAll(sockets);
+            throw e;
+        }
+        logBound(port, shards);
+        return sockets;
+    }
+
+    static void closeAll(List<? extends AutoCloseable> listeners) {
+        for (AutoCloseable listener : listeners) {
+            try {
+                listener.close();
+            } catch (Exception e) {
+                logger.atWarning().withCause(e).log("failed to close listening socket");
+            }
+        }
+    }
+
+    /**
+     * Waits a little for acceptors to leave accept() once their sockets are closed. Since Java 13 a
+     * socket closed while a thread is blocked accepting on it goes on listening until that thread
+     * has been woken, so until then connections can still arrive. Acceptors blocked elsewhere, as on
+     * a full queue, aren't waited for long.
+     */
+    static void awaitAcceptors(List<Thread> acceptors) {
+        try {
+            for (Thread acceptor : acceptors) {
+                acceptor.join(ACCEPTOR_EXIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void logBound(int port, int shards) {
+        if (shards == 1) {
+            logger.atInfo().log("server connected on port %d", port);
+        } else {
+            logger.atInfo().log("server connected on port %d with %d listener shards", port, shards);
+        }
+    }
+
+    private static void setReusePort(ServerSocket socket) throws IOException {
+        try {
+            Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(socket, SO_REUSEPORT, true);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to set SO_REUSEPORT", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("SO_REUSEPORT needs Java 9 or later", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
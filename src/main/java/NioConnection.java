@@ -0,0 +1,795 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+final class NioConnection implements NioOutputStream.Sink {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    // Bodies that have to be read whole before the handler runs, because there's no handler
+    // executor to stream them to, are refused beyond this size.
+    private static final int MAX_BUFFERED_BODY_SIZE = 16 * 1024 * 1024;
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                    .getBytes(Charsets.US_ASCII);
+    private static final Splitter TOKEN_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    // Sits between us and the channel for HTTPS connections; null otherwise.
+    private final TlsChannel tls;
+    private final SelectionKey key;
+    private final int maxRequests;
+    private final RequestParser parser;
+    // The one timeout the connection has at a time, for whatever it's waiting on the client for.
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::onTimeout);
+    // Set once the connection has switched to HTTP/2, which then handles everything.
+    private Http2Connection http2;
+    // Leased from BufferPool.HEAP while there's anything to read into it, and given back whenever
+    // the connection is idle with nothing buffered, so idle keep-alive connections hold no memory.
+    private ByteBuffer readBuffer;
+    private long lastActiveNanos = System.nanoTime();
+    // When the first byte of the request being read arrived.
+    private long headStartNanos;
+    private int served = 0;
+    // Length of the request currently being handled, which stays at the front of readBuffer until
+    // its response has been written.
+    private int inFlightLength = -1;
+    private boolean keepAlive = false;
+    private boolean processing = false;
+    // Time spent parsing the request so far, which may take several reads.
+    private long parseNanos = 0;
+
+    // A request body still arriving after the request was dispatched (bodyPipe) or that's being
+    // collected before it is (bodyBuffer).
+    private BodyDecoder bodyDecoder;
+    private BodyPipe bodyPipe;
+    private ByteBuffer bodyBuffer;
+    private Request bufferingRequest;
+    // When the body started arriving, or started being taken again after the handler fell behind
+    // it, and how much of it has arrived since.
+    private long bodyStartNanos;
+    private long bodyReceived;
+
+    // The request being responded to, null if it couldn't be parsed, and the response's status.
+    private Request responseRequest;
+    private Status responseStatus;
+    private long responseSent;
+    private long writeStartNanos;
+    // When the client last made room for more of the response.
+    private long writeProgressNanos;
+    private ByteBuffer[] writeBuffers;
+    // The body being written, and how far into it we are once writeBuffers are done if it's a file.
+    private ResponseBody body;
+    private long bodyOffset;
+    // Output from a BodyWriter running on the handler executor.
+    private NioOutputStream streamOut;
+    private final Queue<ByteBuffer> streamed = new ArrayDeque<>();
+    private boolean streamEnded;
+
+    NioConnection(EventLoop loop, SocketChannel channel, TlsChannel tls, SelectionKey key, int maxRequests) {
+        this.loop = loop;
+        this.channel = channel;
+        this.tls = tls;
+        this.key = key;
+        this.maxRequests = maxRequests;
+        this.parser = new RequestParser(loop.getClientLimits());
+        loop.getTimers().schedule(timeout, lastActiveNanos + loop.getIdleTimeoutNanos());
+    }
+
+    void onReady(SelectionKey key) {
+        if (http2 != null) {
+            http2.onReady(key);
+            return;
+        }
+        try {
+            if (key.isReadable()) {
+                onReadable();
+            } else if (key.isWritable()) {
+                onWritable();
+            }
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("closing %s", this);
+            close();
+        }
+        rescheduleTimeout();
+    }
+
+    private void onWritable() throws IOException {
+        if (writeBuffers != null) {
+            flush();
+        } else if (tls != null && tls.flush()) {
+            // The handshake's caught up with what it had to send.
+            key.interestOps(SelectionKey.OP_READ);
+            readBufferedTls();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        boolean startingRequest = inFlightLength == -1 && bodyDecoder == null
+                && (readBuffer == null || readBuffer.position() == 0);
+        if (readBuffer == null) {
+            readBuffer = BufferPool.HEAP.lease(INITIAL_BUFFER_SIZE);
+        } else if (!readBuffer.hasRemaining()) {
+            ByteBuffer larger = BufferPool.HEAP.lease(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            BufferPool.HEAP.release(readBuffer);
+            readBuffer = larger;
+        }
+
+        int bytesRead = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+        if (bytesRead == -1) {
+            close();
+            return;
+        }
+        loop.getMetrics().received(bytesRead);
+        lastActiveNanos = System.nanoTime();
+        if (startingRequest) {
+            headStartNanos = lastActiveNanos;
+        }
+        if (bodyDecoder != null) {
+            bodyReceived += bytesRead;
+            receiveBody();
+        } else {
+            processBuffered();
+        }
+        if (http2 != null) {
+            return;
+        }
+        if (tls != null && tls.hasPendingOutput() && inFlightLength == -1 && writeBuffers == null) {
+            // The handshake had more to send than the socket would take.
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        readBufferedTls();
+    }
+
+    // Input TLS has already decrypted, or read but not yet decrypted, never makes the selector
+    // report the channel readable again, so it's read from here instead.
+    private void readBufferedTls() {
+        if (tls == null || !tls.hasBufferedInput()) {
+            return;
+        }
+        loop.execute(() -> {
+            if (!channel.isOpen() || (key.interestOps() & SelectionKey.OP_READ) == 0 || !tls.hasBufferedInput()) {
+                return;
+            }
+            try {
+                onReadable();
+            } catch (IOException e) {
+                logger.atFine().withCause(e).log("closing %s", this);
+                close();
+            }
+            rescheduleTimeout();
+        });
+    }
+
+    // Pipelined requests are handled strictly one at a time so responses go out in request order.
+    private void processBuffered() {
+        if (processing) {
+            return;
+        }
+        processing = true;
+        try {
+            // A response written inline may have given the read buffer back already.
+            while (inFlightLength == -1 && readBuffer != null && channel.isOpen() && startNextRequest()) {
+                // keep going while complete requests are already buffered
+            }
+        } finally {
+            processing = false;
+        }
+    }
+
+    private boolean startNextRequest() {
+        if (served == 0 && loop.getHttp2() != null) {
+            // HTTP/2 with prior knowledge, or negotiated by ALPN, starts with the preface.
+            int preface = Http2Connection.matchPreface(readBuffer);
+            if (preface == 0) {
+                return false;
+            }
+            if (preface == 1) {
+                switchToHttp2(null, null);
+                return false;
+            }
+        }
+
+        Request req;
+        BodyDecoder decoder;
+        try {
+            long start = System.nanoTime();
+            boolean complete = parser.parse(readBuffer);
+            parseNanos += System.nanoTime() - start;
+            if (!complete) {
+                return false;
+            }
+            inFlightLength = parser.requestLength();
+            // Stop reading until the response for this request has been written.
+            key.interestOps(0);
+            start = System.nanoTime();
+            req = parser.toRequest(readBuffer);
+            req.setRemoteAddress(channel.socket().getInetAddress());
+            loop.getMetrics().parsed(parseNanos + System.nanoTime() - start);
+            parseNanos = 0;
+            decoder = parser.bodyDecoder();
+            if (decoder != null && parser.expectsContinue()) {
+                sendContinue();
+            }
+        } catch (RequestParseException e) {
+            badRequest();
+            return false;
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("closing %s", this);
+            close();
+            return false;
+        }
+
+        byte[] http2Settings = decoder == null ? upgradeSettings(req) : null;
+        if (http2Settings != null) {
+            try {
+                upgradeToHttp2(req, http2Settings);
+            } catch (IOException e) {
+                logger.atFine().withCause(e).log("closing %s", this);
+                close();
+            }
+            return false;
+        }
+
+        served++;
+        keepAlive = KeepAlive.requested(req) && served < maxRequests;
+        if (decoder == null) {
+            loop.dispatch(this, req);
+            return true;
+        }
+
+        // The body follows the head in readBuffer and is decoded from there as it arrives.
+        discard(inFlightLength);
+        inFlightLength = 0;
+        bodyDecoder = decoder;
+        bodyStartNanos = System.nanoTime();
+        bodyReceived = 0;
+        key.interestOps(SelectionKey.OP_READ);
+        if (loop.getHandlerExecutor() != null) {
+            bodyPipe = new BodyPipe(this);
+            req.setBodyStream(bodyPipe);
+            loop.dispatch(this, req);
+        } else {
+            bufferingRequest = req;
+            bodyBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+        receiveBody();
+        return true;
+    }
+
+    // The client's HTTP2-Settings if req asks to upgrade to h2c and we can, or null. Only a first
+    // request without a body is upgraded, which is all the clients we know of send, and never over
+    // TLS, where it's ALPN's job.
+    private byte[] upgradeSettings(Request req) {
+        if (served != 0 || tls != null || loop.getHttp2() == null) {
+            return null;
+        }
+        String upgrade = req.getHeader("Upgrade");
+        String settings = req.getHeader("HTTP2-Settings");
+        if (upgrade == null || settings == null) {
+            return null;
+        }
+        boolean h2c = false;
+        for (String token : TOKEN_SPLITTER.split(upgrade)) {
+            h2c |= Ascii.equalsIgnoreCase(token, "h2c");
+        }
+        if (!h2c) {
+            return null;
+        }
+        try {
+            byte[] payload = BaseEncoding.base64Url().omitPadding().decode(settings.trim().replace("=", ""));
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void upgradeToHttp2(Request req, byte[] settings) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(SWITCHING_PROTOCOLS);
+        loop.getMetrics().sent(channel.write(buffer));
+        if (buffer.hasRemaining()) {
+            // Nothing else has been written on this connection, so its send buffer can't be full.
+            throw new IOException("couldn't send 101 Switching Protocols");
+        }
+        discard(inFlightLength);
+        inFlightLength = -1;
+        switchToHttp2(req, settings);
+    }
+
+    private void switchToHttp2(Request upgraded, byte[] settings) {
+        logger.atFine().log("switching %s to HTTP/2", this);
+        http2 = new Http2Connection(loop, channel, tls, key, readBuffer);
+        readBuffer = null;
+        http2.start(upgraded, settings);
+    }
+
+    private void sendContinue() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Response.CONTINUE);
+        loop.getMetrics().sent(tls != null ? tls.write(buffer) : channel.write(buffer));
+        if (buffer.hasRemaining()) {
+            // Nothing else has been written on this connection, so its send buffer can't be full.
+            throw new IOException("couldn't send 100 Continue");
+        }
+    }
+
+    private void receiveBody() {
+        if (bodyDecoder == null || !channel.isOpen()) {
+            return;
+        }
+
+        readBuffer.flip();
+        boolean readMore;
+        try {
+            if (bodyPipe != null) {
+                readMore = bodyPipe.receive(bodyDecoder, readBuffer);
+            } else {
+                bodyDecoder.decode(readBuffer, bodyBuffer);
+                if (!bodyBuffer.hasRemaining() && !bodyDecoder.isComplete()) {
+                    if (bodyBuffer.capacity() >= MAX_BUFFERED_BODY_SIZE) {
+                        readBuffer.compact();
+                        failRequest(Status.PAYLOAD_TOO_LARGE);
+                        return;
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(bodyBuffer.capacity() * 2, MAX_BUFFERED_BODY_SIZE));
+                    bodyBuffer.flip();
+                    larger.put(bodyBuffer);
+                    bodyBuffer = larger;
+                    bodyDecoder.decode(readBuffer, bodyBuffer);
+                }
+                readMore = true;
+            }
+        } catch (RequestParseException e) {
+            readBuffer.compact();
+            if (bodyPipe != null) {
+                // The handler is already running, so all that can be done is to cut it off.
+                bodyPipe.fail(new IOException(e));
+                close();
+            } else {
+                failRequest(Status.BAD_REQUEST);
+            }
+            return;
+        }
+        readBuffer.compact();
+
+        if (bodyDecoder.isComplete()) {
+            bodyDecoder = null;
+            bodyPipe = null;
+            if (writeBuffers == null) {
+                key.interestOps(0);
+            }
+            if (bufferingRequest != null) {
+                Request req = bufferingRequest;
+                bodyBuffer.flip();
+                req.setRawBody(bodyBuffer);
+                bufferingRequest = null;
+                bodyBuffer = null;
+                loop.dispatch(this, req);
+            }
+        } else if (!readMore && writeBuffers == null) {
+            key.interestOps(0);
+        } else if (readBuffer.position() > 0 && bodyPipe == null) {
+            // The body buffer grew, decode what was left behind.
+            receiveBody();
+        }
+    }
+
+    // Called from the handler thread once it's made room in a full body pipe.
+    void resumeBody() {
+        loop.execute(() -> {
+            if (bodyDecoder == null || !channel.isOpen()) {
+                return;
+            }
+            if (writeBuffers == null) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            // The client isn't held to its rate for the time the handler kept it waiting.
+            bodyStartNanos = System.nanoTime();
+            bodyReceived = 0;
+            receiveBody();
+            readBufferedTls();
+            rescheduleTimeout();
+        });
+    }
+
+    private void badRequest() {
+        failRequest(Status.BAD_REQUEST);
+    }
+
+    private void failRequest(Status status) {
+        key.interestOps(0);
+        inFlightLength = readBuffer.position();
+        keepAlive = false;
+        bodyDecoder = null;
+        // Still worth logging, if it got as far as being parsed.
+        responseRequest = bufferingRequest;
+        bufferingRequest = null;
+        bodyBuffer = null;
+        write(Response.builder().withStatus(status).build(), "close");
+    }
+
+    void write(Request req, Response res) {
+        // A body that hasn't finished arriving is still in the way of the next request.
+        keepAlive = keepAlive && KeepAlive.allowed(res) && bodyDecoder == null && !loop.isDraining();
+        responseRequest = req;
+        write(res, KeepAlive.connectionHeader(req, keepAlive));
+    }
+
+    private void write(Response res, String connection) {
+        if (!channel.isOpen()) {
+            res.getBody().release();
+            return;
+        }
+
+        responseStatus = res.getStatus();
+        responseSent = 0;
+        writeStartNanos = System.nanoTime();
+        writeProgressNanos = writeStartNanos;
+        body = res.getBody();
+        bodyOffset = 0;
+        writeBuffers = res.toByteBuffers(connection);
+        if (body.isStreamed() && !startStreaming()) {
+            return;
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("closing %s", this);
+            close();
+        }
+        rescheduleTimeout();
+    }
+
+    // Runs the BodyWriter on the handler executor if there is one. Otherwise it runs here on the
+    // loop, collecting the body in memory. Returns false if the connection had to be closed.
+    private boolean startStreaming() {
+        Executor executor = loop.getHandlerExecutor();
+        if (executor == null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try {
+                body.writeTo(os);
+            } catch (IOException | RuntimeException e) {
+                logger.atWarning().withCause(e).log("body writer failed, closing %s", this);
+                close();
+                return false;
+            }
+            writeBuffers = new ByteBuffer[] {writeBuffers[0], ByteBuffer.wrap(os.toByteArray())};
+            body = ResponseBody.EMPTY;
+            return true;
+        }
+
+        NioOutputStream out = new NioOutputStream(this);
+        streamOut = out;
+        streamEnded = false;
+        ResponseBody streamedBody = body;
+        try {
+            executor.execute(() -> {
+                try {
+                    streamedBody.writeTo(out);
+                    out.close();
+                } catch (IOException | RuntimeException e) {
+                    logger.atWarning().withCause(e).log("body writer failed, closing %s", this);
+                    loop.execute(this::close);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.atWarning().withCause(e).log("handler executor rejected body writer, closing %s", this);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    // Called from the BodyWriter's thread.
+    @Override
+    public void enqueue(ByteBuffer buffer) {
+        loop.execute(() -> {
+            if (!channel.isOpen()) {
+                BufferPool.HEAP.release(buffer);
+                return;
+            }
+            streamed.add(buffer);
+            flushIfWaiting();
+        });
+    }
+
+    // Called from the BodyWriter's thread.
+    @Override
+    public void enqueueEnd() {
+        loop.execute(() -> {
+            streamEnded = true;
+            flushIfWaiting();
+        });
+    }
+
+    private void flushIfWaiting() {
+        // With OP_WRITE set the selector will get to it; otherwise the loop was waiting on the writer.
+        if (!channel.isOpen() || writeBuffers == null || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("closing %s", this);
+            close();
+        }
+        rescheduleTimeout();
+    }
+
+    private void sent(long bytes) {
+        loop.getMetrics().sent(bytes);
+        responseSent += bytes;
+    }
+
+    private void flush() throws IOException {
+        ServerMetrics metrics = loop.getMetrics();
+        // Either this is the first try, or the socket's said it has room again.
+        writeProgressNanos = System.nanoTime();
+        sent(tls != null ? tls.write(writeBuffers) : channel.write(writeBuffers));
+        if (writeBuffers[writeBuffers.length - 1].hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (body.isStreamed()) {
+            while (!streamed.isEmpty()) {
+                ByteBuffer buffer = streamed.peek();
+                sent(tls != null ? tls.write(buffer) : channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                streamed.remove();
+                streamOut.written(buffer.limit());
+                BufferPool.HEAP.release(buffer);
+            }
+            if (!streamEnded) {
+                if (tls != null && !tls.flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                key.interestOps(bodyDecoder != null ? SelectionKey.OP_READ : 0);
+                return;
+            }
+            streamOut = null;
+        } else if (!body.inMemory()) {
+            while (bodyOffset < body.length()) {
+                long transferred = body.transferTo(bodyOffset, tls != null ? tls : channel);
+                sent(transferred);
+                if (transferred == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                bodyOffset += transferred;
+            }
+        }
+
+        if (tls != null && !tls.flush()) {
+            // The last records of the response are still waiting for the socket.
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        releaseWriteBuffers();
+        body.release();
+        body = null;
+        lastActiveNanos = System.nanoTime();
+        metrics.responded(responseStatus, lastActiveNanos - writeStartNanos);
+        AccessLog accessLog = loop.getAccessLog();
+        if (accessLog != null) {
+            accessLog.record(responseRequest, channel.socket().getInetAddress(), responseStatus, responseSent,
+                    headStartNanos, writeStartNanos, lastActiveNanos);
+        }
+        responseRequest = null;
+        // A shutdown may have started after this response went out with keep-alive.
+        if (!keepAlive || loop.isDraining()) {
+            close();
+            return;
+        }
+
+        discard(inFlightLength);
+        parser.reset();
+        inFlightLength = -1;
+        // Any of the next request that's already arrived has had until now.
+        headStartNanos = lastActiveNanos;
+        key.interestOps(SelectionKey.OP_READ);
+        processBuffered();
+        if (inFlightLength == -1 && bodyDecoder == null && readBuffer != null && readBuffer.position() == 0
+                && channel.isOpen()) {
+            BufferPool.HEAP.release(readBuffer);
+            readBuffer = null;
+        }
+        readBufferedTls();
+    }
+
+    // The head of a response is leased; the body buffers after it belong to the response.
+    private void releaseWriteBuffers() {
+        if (writeBuffers != null) {
+            BufferPool.HEAP.release(writeBuffers[0]);
+            writeBuffers = null;
+        }
+    }
+
+    private void discard(int length) {
+        readBuffer.flip();
+        readBuffer.position(length);
+        readBuffer.compact();
+    }
+
+    // What the connection's waiting on the client for, if anything, which decides which of its
+    // timeouts applies. While a handler's running, or we're not taking any more of a body until
+    // it catches up, it's the server that's being waited for.
+    private Waiting waitingFor() {
+        int interestOps = key.interestOps();
+        if (writeBuffers != null && (interestOps & SelectionKey.OP_WRITE) != 0) {
+            return Waiting.WRITE;
+        }
+        if (bodyDecoder != null) {
+            return (interestOps & SelectionKey.OP_READ) != 0 ? Waiting.BODY : Waiting.NOTHING;
+        }
+        if (inFlightLength != -1) {
+            return Waiting.NOTHING;
+        }
+        return readBuffer != null && readBuffer.position() > 0 ? Waiting.HEAD : Waiting.NEXT_REQUEST;
+    }
+
+    private long deadline(Waiting waiting) {
+        ClientLimits limits = loop.getClientLimits();
+        switch (waiting) {
+            case NEXT_REQUEST:
+                return lastActiveNanos + loop.getIdleTimeoutNanos();
+            case HEAD:
+                return headStartNanos + limits.getHeaderTimeoutNanos();
+            case BODY:
+                return bodyStartNanos + limits.bodyAllowanceNanos(bodyReceived);
+            case WRITE:
+                return writeProgressNanos + limits.getWriteTimeoutNanos();
+            default:
+                throw new IllegalArgumentException(waiting.name());
+        }
+    }
+
+    // Moves the connection's timeout to what it's waiting for now, which is mostly just to push the
+    // deadline back.
+    private void rescheduleTimeout() {
+        TimerWheel timers = loop.getTimers();
+        if (http2 != null) {
+            // It's already scheduled, and onTimeout takes care of the rest.
+            return;
+        }
+        Waiting waiting = channel.isOpen() ? waitingFor() : Waiting.NOTHING;
+        if (waiting == Waiting.NOTHING || (waiting == Waiting.BODY && loop.getClientLimits().getMinBodyRate() == 0)) {
+            timers.cancel(timeout);
+        } else {
+            timers.schedule(timeout, deadline(waiting));
+        }
+    }
+
+    private void onTimeout() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (http2 != null) {
+            loop.getTimers().schedule(timeout, http2.closeIfIdle(now, loop.getIdleTimeoutNanos()));
+            return;
+        }
+        rescheduleTimeout();
+        Waiting waiting = waitingFor();
+        if (!timeout.isScheduled() || deadline(waiting) - now > 0) {
+            // Whatever it was waiting for has happened since the deadline was set.
+            return;
+        }
+
+        if (waiting == Waiting.NEXT_REQUEST) {
+            logger.atFine().log("closing idle %s", this);
+            close();
+            return;
+        }
+        logger.atFine().log("%s timed out waiting for the client to %s", this,
+                waiting == Waiting.WRITE ? "take its response" : "send its request");
+        loop.getMetrics().clientTimedOut();
+        if (waiting == Waiting.WRITE) {
+            close();
+        } else if (bodyPipe != null) {
+            // The handler's already reading the body, so all that can be done is to cut it off.
+            bodyPipe.fail(new SocketTimeoutException("request body arriving too slowly"));
+            close();
+        } else {
+            failRequest(Status.REQUEST_TIMEOUT);
+        }
+    }
+
+    // The server's shutting down: closes now if idle, otherwise once the current request is answered.
+    void drain() {
+        if (http2 != null) {
+            http2.drain();
+            return;
+        }
+        if (inFlightLength == -1 && (readBuffer == null || readBuffer.position() == 0)) {
+            close();
+        }
+    }
+
+    // Closes, returning how many requests that cut off.
+    int abandon() {
+        if (http2 != null) {
+            return http2.abandon();
+        }
+        boolean busy = inFlightLength != -1 || (readBuffer != null && readBuffer.position() > 0);
+        close();
+        return busy ? 1 : 0;
+    }
+
+    void close() {
+        loop.getTimers().cancel(timeout);
+        if (http2 != null) {
+            http2.close();
+            return;
+        }
+        if (!channel.isOpen()) {
+            return;
+        }
+        loop.getMetrics().connectionClosed();
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+        releaseWriteBuffers();
+        for (ByteBuffer buffer : streamed) {
+            BufferPool.HEAP.release(buffer);
+        }
+        streamed.clear();
+        if (readBuffer != null) {
+            BufferPool.HEAP.release(readBuffer);
+            readBuffer = null;
+        }
+        IOException closed = new IOException("connection closed");
+        if (bodyPipe != null) {
+            bodyPipe.fail(closed);
+            bodyPipe = null;
+        }
+        if (streamOut != null) {
+            streamOut.fail(closed);
+            streamOut = null;
+        }
+        key.cancel();
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("failed to close %s", this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioConnection{" + channel + "}";
+    }
+
+    private enum Waiting {
+        NOTHING,
+        NEXT_REQUEST,
+        HEAD,
+        BODY,
+        WRITE,
+    }
+}
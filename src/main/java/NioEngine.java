@@ -0,0 +1,92 @@
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+final class NioEngine implements RunningEngine {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    // How long shutdown waits for a loop to do what it's asked before giving up on it.
+    private static final long STUCK_LOOP_MILLIS = 1000;
+
+    private final Server server;
+    private final List<EventLoop> loops = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private List<ServerSocketChannel> channels;
+
+    NioEngine(Server server) {
+        this.server = server;
+    }
+
+    NioEngine start() throws IOException {
+        channels = Listeners.bindChannels(server);
+        try {
+            for (ServerSocketChannel channel : channels) {
+                channel.configureBlocking(false);
+            }
+            server.notifyServerConnect(channels.get(0).socket());
+
+            ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                    .setNameFormat("http-event-loop-%d")
+                    .build();
+            for (int i = 0; i < server.getNumEventLoops(); i++) {
+                // Loops are dealt out to the shards, and only accept from their own shard's socket.
+                EventLoop loop = new EventLoop(server, channels.get(i % channels.size()));
+                loops.add(loop);
+                threads.add(threadFactory.newThread(loop));
+            }
+        } catch (IOException e) {
+            loops.forEach(EventLoop::close);
+            Listeners.closeAll(channels);
+            throw e;
+        }
+        threads.forEach(Thread::start);
+        return this;
+    }
+
+    @Override
+    public int getPort() {
+        return channels.get(0).socket().getLocalPort();
+    }
+
+    @Override
+    public void drain() {
+        // Closing a channel another thread is selecting on takes effect at its next select.
+        Listeners.closeAll(channels);
+        loops.forEach(EventLoop::drain);
+    }
+
+    @Override
+    public int abandon() throws InterruptedException {
+        List<CompletableFuture<Integer>> abandoned = new ArrayList<>();
+        for (EventLoop loop : loops) {
+            abandoned.add(loop.abandon());
+        }
+        int requests = 0;
+        for (CompletableFuture<Integer> future : abandoned) {
+            try {
+                requests += future.get(STUCK_LOOP_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                logger.atWarning().log("an event loop is stuck, its connections are left open");
+            }
+        }
+        return requests;
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        loops.forEach(EventLoop::close);
+        for (Thread thread : threads) {
+            // A handler running on the loop that never returns keeps it from stopping.
+            thread.join(STUCK_LOOP_MILLIS);
+        }
+    }
+}
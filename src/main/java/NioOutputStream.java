@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Lets a BodyWriter on a handler thread stream a response through an event loop. Writes are
+// copied into pooled buffers and queued on the sink, an HTTP/1.1 connection or HTTP/2 stream;
+// once more than HIGH_WATER_MARK bytes are waiting for the socket the writer blocks until the
+// loop has drained them below LOW_WATER_MARK.
+final class NioOutputStream extends OutputStream {
+    private static final long HIGH_WATER_MARK = 256 * 1024;
+    private static final long LOW_WATER_MARK = 64 * 1024;
+
+    // Where the output goes. Both are called on the writer's thread, and hand over to the loop.
+    interface Sink {
+        void enqueue(ByteBuffer buffer);
+
+        void enqueueEnd();
+    }
+
+    private final Sink sink;
+    private long pending = 0;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    NioOutputStream(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            while (pending > HIGH_WATER_MARK && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            pending += len;
+        }
+
+        ByteBuffer copy = BufferPool.HEAP.lease(len);
+        copy.put(b, off, len);
+        copy.flip();
+        sink.enqueue(copy);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        sink.enqueueEnd();
+    }
+
+    // Called on the event loop once n queued bytes have been written to the socket.
+    synchronized void written(long n) {
+        pending -= n;
+        if (pending <= LOW_WATER_MARK) {
+            notifyAll();
+        }
+    }
+
+    synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+}
@@ -0,0 +1,90 @@
+import com.google.common.flogger.FluentLogger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The connections Server#serve is serving on the BLOCKING and VIRTUAL_THREADS engines, so that a
+// shutdown can close the idle ones straight away and cut off the rest when it runs out of time.
+final class OpenConnections {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining = false;
+
+    Connection add(Socket socket) {
+        Connection conn = new Connection(socket);
+        connections.add(conn);
+        return conn;
+    }
+
+    void remove(Connection conn) {
+        connections.remove(conn);
+    }
+
+    // Once draining, connections close after the request they're serving instead of waiting for another.
+    boolean isDraining() {
+        return draining;
+    }
+
+    void drain() {
+        draining = true;
+        for (Connection conn : connections) {
+            conn.closeIfIdle();
+        }
+    }
+
+    // Closes every connection still open, returning how many were in the middle of a request.
+    int abandon() {
+        int busy = 0;
+        for (Connection conn : connections) {
+            if (conn.isBusy()) {
+                busy++;
+            }
+            conn.close();
+        }
+        return busy;
+    }
+
+    static final class Connection {
+        private final Socket socket;
+        // From the first byte of a request until its response is written. A connection waiting for
+        // its next request, or for its first, is idle. Guarded by this, so a drain can't close a
+        // connection as a request starts arriving on it.
+        private boolean busy = false;
+        private boolean closed = false;
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        // Returns false if a drain has already closed the connection.
+        synchronized boolean setBusy(boolean busy) {
+            if (closed) {
+                return false;
+            }
+            this.busy = busy;
+            return true;
+        }
+
+        private synchronized boolean isBusy() {
+            return busy;
+        }
+
+        private synchronized void closeIfIdle() {
+            if (!busy) {
+                close();
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.atFine().withCause(e).log("failed to close %s", socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+// What the server does with a new connection once it is already serving as many as it's allowed to.
+public enum OverloadPolicy {
+    // Stop accepting until a connection finishes. Further clients wait in the kernel's accept
+    // backlog, and beyond that are refused by the OS.
+    WAIT,
+    // Accept, answer 503 Service Unavailable and close, so clients fail fast and can retry elsewhere.
+    REJECT,
+    ;
+}
@@ -0,0 +1,203 @@
+import com.google.common.base.Preconditions;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast each client may send requests, turning away the rest with 429 Too Many Requests
+ * and a Retry-After. Clients are told apart by the address they connected from, or by the value
+ * of a header such as X-Forwarded-For when there's a proxy in front; requests with neither aren't
+ * limited.
+ *
+ * Each client has a token bucket that holds up to burst tokens and refills at rate a second, kept
+ * as the one number GCRA needs: when the bucket will next be full. These live in a table of a fixed
+ * number of 16-byte slots off the heap, so a flood of distinct clients costs neither allocation nor
+ * garbage collection, and checking one costs the same however many there are. The table is
+ * set-associative: a client's key picks a set of SET_SIZE slots, each guarded by one of a fixed
+ * number of locks. When every slot in a set is taken, the client whose bucket is fullest gives up
+ * its slot, which loses nothing if its bucket had refilled and otherwise lets it start over. Size
+ * the table for the clients that are active within the time it takes a bucket to refill.
+ */
+public final class RateLimiter {
+    private static final int SET_SIZE = 8;
+    // Key and then when the bucket will be full, both longs. A key of 0 marks an empty slot.
+    private static final int SLOT_SIZE = 16;
+    private static final int MAX_LOCKS = 1024;
+
+    private final ByteBuffer table;
+    private final int setMask;
+    private final Object[] locks;
+    private final int lockMask;
+    // The time one token takes to refill, and that a full bucket's worth of tokens takes.
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final String keyHeader;
+
+    private RateLimiter(Builder builder) {
+        int slots = Math.max(SET_SIZE, Integer.highestOneBit(builder.maxClients - 1) << 1);
+        int sets = slots / SET_SIZE;
+        this.table = ByteBuffer.allocateDirect(slots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        this.setMask = sets - 1;
+        this.locks = new Object[Math.min(sets, MAX_LOCKS)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.lockMask = locks.length - 1;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / builder.rate));
+        this.burstNanos = intervalNanos * builder.burst;
+        this.keyHeader = builder.keyHeader;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // The 429 for req if its client has run out of requests, otherwise null and it's taken one.
+    Response check(Request req) {
+        long key = key(req);
+        if (key == 0) {
+            return null;
+        }
+        long waitNanos = acquire(key, System.nanoTime());
+        if (waitNanos == 0) {
+            return null;
+        }
+        long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        return Response.builder()
+                .withStatus(Status.TOO_MANY_REQUESTS)
+                .addHeader(HeaderNames.RETRY_AFTER, String.valueOf(retryAfter))
+                .build();
+    }
+
+    // The key for req's client, or 0 if there's nothing to tell it apart by.
+    private long key(Request req) {
+        if (keyHeader != null) {
+            String value = req.getHeader(keyHeader);
+            if (value != null) {
+                return key(value);
+            }
+        }
+        InetAddress address = req.getRemoteAddress();
+        return address == null ? 0 : key(address);
+    }
+
+    // IPv4 addresses are their own keys, which Inet4Address's hash code is. Others are hashed.
+    static long key(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return 1L << 32 | (address.hashCode() & 0xffffffffL);
+        }
+        byte[] bytes = address.getAddress();
+        long hash = 0;
+        for (byte b : bytes) {
+            hash = hash * 31 + b;
+        }
+        return mix(hash) | Long.MIN_VALUE;
+    }
+
+    static long key(String value) {
+        long hash = 0;
+        for (int i = 0; i < value.length(); i++) {
+            hash = hash * 31 + value.charAt(i);
+        }
+        return mix(hash) | Long.MIN_VALUE;
+    }
+
+    /**
+     * Takes a token from key's bucket, returning 0, or if it's empty leaves it be and returns how
+     * long until it won't be. key mustn't be 0.
+     */
+    long acquire(long key, long nowNanos) {
+        int set = (int) mix(key) & setMask;
+        int base = set * SET_SIZE * SLOT_SIZE;
+        synchronized (locks[set & lockMask]) {
+            int slot = -1;
+            int free = -1;
+            int fullest = base;
+            long fullestAt = Long.MAX_VALUE;
+            for (int i = 0; i < SET_SIZE; i++) {
+                int offset = base + i * SLOT_SIZE;
+                long slotKey = table.getLong(offset);
+                if (slotKey == key) {
+                    slot = offset;
+                    break;
+                }
+                long fullAt = table.getLong(offset + 8);
+                // A bucket that's refilled is as good as no bucket.
+                if (free == -1 && (slotKey == 0 || fullAt - nowNanos <= 0)) {
+                    free = offset;
+                } else if (fullAt - fullestAt < 0) {
+                    fullest = offset;
+                    fullestAt = fullAt;
+                }
+            }
+
+            long fullAt;
+            if (slot == -1) {
+                slot = free != -1 ? free : fullest;
+                table.putLong(slot, key);
+                fullAt = nowNanos;
+            } else {
+                fullAt = table.getLong(slot + 8);
+                if (fullAt - nowNanos < 0) {
+                    fullAt = nowNanos;
+                }
+            }
+            long next = fullAt + intervalNanos;
+            long excess = next - nowNanos - burstNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            table.putLong(slot + 8, next);
+            return 0;
+        }
+    }
+
+    // Murmur3's finalizer, so that keys that differ only a little land in different sets.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static final class Builder {
+        private double rate = 10;
+        private int burst = 20;
+        private String keyHeader = null;
+        private int maxClients = 1 << 20;
+
+        // Lets each client send rate requests a second on average, and up to burst at once.
+        public Builder withRate(double rate, int burst) {
+            this.rate = rate;
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * Tells clients apart by this header rather than their address, when it's present. Only
+         * for headers clients can't choose for themselves, like one a trusted proxy sets.
+         */
+        public Builder withKeyHeader(String keyHeader) {
+            this.keyHeader = keyHeader;
+            return this;
+        }
+
+        // How many clients the table has room for, rounded up to a power of two. Each takes 16 bytes.
+        public Builder withMaxClients(int maxClients) {
+            this.maxClients = maxClients;
+            return this;
+        }
+
+        public RateLimiter build() {
+            Preconditions.checkArgument(rate > 0, "rate must be positive");
+            Preconditions.checkArgument(burst > 0, "burst must be positive");
+            Preconditions.checkArgument(maxClients > 0 && maxClients <= 1 << 26, "maxClients must be between 1 and 2^26");
+            return new RateLimiter(this);
+        }
+    }
+}
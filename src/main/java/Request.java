@@ -1,34 +1,60 @@
 import com.google.common.base.*;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.io.ByteStreams;
 import org.apache.commons.lang.builder.EqualsBuilder;
 
 import java.io.*;
-import java.net.URLDecoder;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.util.*;
 
 public final class Request {
-    private static final Splitter SPACE_SPLITTER = Splitter.on(" ");
-    private static final Splitter HEADER_SPLITTER = Splitter.on(": ");
-
-    private final String httpVersion;
-    private final String method;
-    private final String requestUri;
-    private final ArrayListMultimap<String, String> queryParams;
-    private final ArrayListMultimap<String, String> headers;
-    private final String body;
+    private static final Splitter PARAMETER_SPLITTER = Splitter.on(';').trimResults();
+
+    // Set when the request was parsed off the wire, in which case the fields below are decoded from
+    // it the first time they're asked for. See RequestParser for the layout of offsets.
+    private final byte[] raw;
+    private final int[] offsets;
+    // When the request was read, by System.nanoTime(), for judging how long it has been waiting.
+    private final long receivedNanos = System.nanoTime();
+
+    private String httpVersion;
+    private String method;
+    private String requestUri;
+    // The query string, still percent-encoded, which is decoded into queryParams the first time
+    // they're asked for: in raw for requests parsed off the wire, or bytes of an HTTP/2 :path.
+    private byte[] query;
+    private int queryStart;
+    private int queryEnd;
+    private ArrayListMultimap<String, String> queryParams;
+    private Headers headers;
+    private String body;
+    // The body bytes, once they're all in memory.
+    private ByteBuffer rawBody;
+    // A body still being received, which is only read into rawBody if it's asked for whole.
+    private InputStream bodyStream;
+    private InetAddress remoteAddress;
+    // Set by Router: the route's parameter names and {start, end} offsets of their values in
+    // requestUri, decoded only when asked for.
+    private String[] pathParamNames;
+    private int[] pathParamOffsets;
 
     public Request(
             String method,
             String requestUri,
             String httpVersion,
-            ArrayListMultimap<String, String> headers,
+            Headers headers,
             ArrayListMultimap<String, String> queryParams,
             String body
     ) {
+        this.raw = null;
+        this.offsets = null;
         this.method = method;
         this.requestUri = requestUri;
         this.httpVersion = httpVersion;
@@ -37,6 +63,11 @@ public final class Request {
         this.body = body;
     }
 
+    private Request(byte[] raw, int[] offsets) {
+        this.raw = raw;
+        this.offsets = offsets;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -50,150 +81,429 @@ public final class Request {
         }
         Request rhs = (Request) obj;
         return new EqualsBuilder()
-            .append(method, rhs.method)
-            .append(requestUri, rhs.requestUri)
-            .append(httpVersion, rhs.httpVersion)
-            .append(headers, rhs.headers)
-            .append(queryParams, rhs.queryParams)
-            .append(body, rhs.body)
+            .append(getMethod(), rhs.getMethod())
+            .append(getRequestUri(), rhs.getRequestUri())
+            .append(getHttpVersion(), rhs.getHttpVersion())
+            .append(getHeaders(), rhs.getHeaders())
+            .append(getQueryParams(), rhs.getQueryParams())
+            .append(getBody(), rhs.getBody())
             .isEquals();
     }
 
+    /**
+     * Reads a single request from the stream. The stream is read in blocks, so bytes that follow the
+     * request may be consumed too; connections that carry several requests use a RequestReader.
+     */
     public static Request parse(InputStream is) throws IOException, RequestParseException {
-        String requestLine = new String(readLine(is), Charsets.UTF_8);
-        List<String> parts = SPACE_SPLITTER.splitToList(requestLine);
+        // The request's body may be streamed from the reader's buffer long after this returns.
+        Request req = new RequestReader(false).read(is);
+        if (req == null) {
+            throw new RequestParseException("empty request");
+        }
+        return req;
+    }
 
-        if (parts.size() != 3) {
-            throw new RequestParseException(String.format("invalid request line: \"%s\"", requestLine));
+    static Request fromParsed(byte[] raw, int[] offsets, boolean hasBody) throws RequestParseException {
+        Request req = new Request(raw, offsets);
+        if (hasBody) {
+            req.rawBody = ByteBuffer.wrap(raw, offsets[RequestParser.BODY_START], offsets[RequestParser.BODY_LENGTH]).slice();
         }
 
-        String method = parts.get(0);
-        String requestUri = parts.get(1);
-        String httpVersion = parts.get(2);
+        int uriStart = offsets[RequestParser.URI_START];
+        int uriEnd = offsets[RequestParser.URI_END];
+        int queryStart = indexOf(raw, '?', uriStart, uriEnd);
+        req.requestUri = req.string(uriStart, queryStart == -1 ? uriEnd : queryStart);
+        if (queryStart != -1) {
+            req.setQuery(raw, queryStart + 1, uriEnd);
+        }
+        return req;
+    }
+
+    // A request that arrived on an HTTP/2 stream, whose head came as header fields rather than text.
+    static Request fromHttp2(String method, String path, Headers headers) throws RequestParseException {
+        Request req = new Request(null, null);
+        req.method = method;
+        req.httpVersion = "HTTP/2.0";
+        req.headers = headers;
+        int queryStart = path.indexOf('?');
+        req.requestUri = queryStart == -1 ? path : path.substring(0, queryStart);
+        if (queryStart != -1) {
+            byte[] query = path.substring(queryStart + 1).getBytes(Charsets.UTF_8);
+            req.setQuery(query, 0, query.length);
+        }
+        return req;
+    }
+
+    // Only checks the query's escapes, so that a bad one is a 400 rather than an exception in
+    // whichever handler first looks at the query.
+    private void setQuery(byte[] bytes, int start, int end) throws RequestParseException {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '%' && (i + 2 >= end || hexValue(bytes[i + 1]) == -1 || hexValue(bytes[i + 2]) == -1)) {
+                throw new RequestParseException("malformed escape in query string");
+            }
+        }
+        this.query = bytes;
+        this.queryStart = start;
+        this.queryEnd = end;
+    }
 
-        ArrayListMultimap<String, String> headers = ArrayListMultimap.create();
-        String headerLine;
-        while (true) {
-            headerLine = new String(readLine(is), Charsets.UTF_8);
-            if (Strings.isNullOrEmpty(headerLine)) {
-                break;
+    /**
+     * Returns the first value of the named header, matched case-insensitively, or null. Unlike
+     * {@link #getHeaders()} this only decodes the value that's returned.
+     */
+    public String getHeader(String name) {
+        if (headers == null && raw != null) {
+            int count = offsets[RequestParser.HEADER_COUNT];
+            for (int i = 0; i < count; i++) {
+                int base = RequestParser.HEADERS + 4 * i;
+                if (nameEquals(offsets[base], offsets[base + 1], name)) {
+                    return string(offsets[base + 2], offsets[base + 3]);
+                }
             }
+            return null;
+        }
 
-            List<String> headerParts = HEADER_SPLITTER.splitToList(headerLine);
-            Preconditions.checkArgument(headerParts.size() == 2, "invalid header line");
+        return getHeaders().get(name);
+    }
 
-            headers.put(headerParts.get(0), headerParts.get(1));
+    private boolean nameEquals(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Ascii.toLowerCase((char) (raw[start + i] & 0xff)) != Ascii.toLowerCase(name.charAt(i))) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        String encoding;
-        try {
-            encoding = headers.get("Content-Encoding").get(0);
-        } catch (NullPointerException | IndexOutOfBoundsException e) {
-            encoding = "UTF-8";
+    private String string(int start, int end) {
+        return new String(raw, start, end - start, Charsets.UTF_8);
+    }
+
+    public String getMethod() {
+        if (method == null && raw != null) {
+            method = string(0, offsets[RequestParser.METHOD_END]);
         }
+        return method;
+    }
 
-        ArrayListMultimap<String, String> queryParams = ArrayListMultimap.create();
-        int queryStart = requestUri.indexOf('?');
-        if (queryStart != -1) {
-            String queryParamsString = requestUri.substring(queryStart + 1, requestUri.length());
-            requestUri = requestUri.substring(0, queryStart);
-
-            for (String queryPart : Splitter.on('&').split(queryParamsString)) {
-                List<String> keyValue = Splitter.on('=').splitToList(queryPart);
-                Preconditions.checkArgument(keyValue.size() == 2);
-
-                String key;
-                String value;
-                try {
-                    key = URLDecoder.decode(keyValue.get(0), encoding);
-                    value = URLDecoder.decode(keyValue.get(1), encoding);
-                } catch (UnsupportedEncodingException e) {
-                    throw new RequestParseException(e);
-                }
+    public String getRequestUri() {
+        return requestUri;
+    }
 
-                queryParams.put(key, value);
+    /**
+     * The value captured for a path parameter of the route that matched this request, with percent
+     * escapes decoded, or null if the route has no such parameter.
+     */
+    public String getPathParam(String name) {
+        if (pathParamNames == null) {
+            return null;
+        }
+        for (int i = 0; i < pathParamNames.length; i++) {
+            if (pathParamNames[i].equals(name)) {
+                return percentDecode(requestUri, pathParamOffsets[2 * i], pathParamOffsets[2 * i + 1]);
             }
         }
+        return null;
+    }
 
-        String body = null;
-        List<String> contentLengthHeaders = headers.get("Content-Length");
-        if (!contentLengthHeaders.isEmpty()) {
-            int contentLength = Integer.valueOf(contentLengthHeaders.get(0));
+    // Unlike URLDecoder this leaves '+' alone, which only means space in query strings.
+    static String percentDecode(String s, int start, int end) {
+        int escape = s.indexOf('%', start);
+        if (escape == -1 || escape >= end) {
+            return s.substring(start, end);
+        }
 
-            byte[] buffer = new byte[contentLength];
-            int bytesRead = is.read(buffer);
-            if (bytesRead != contentLength) {
-                // do something drastic
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(end - start);
+        int i = start;
+        while (i < end) {
+            int hi;
+            int lo;
+            if (s.charAt(i) == '%' && i + 2 < end
+                    && (hi = Character.digit(s.charAt(i + 1), 16)) != -1
+                    && (lo = Character.digit(s.charAt(i + 2), 16)) != -1) {
+                decoded.write(hi << 4 | lo);
+                i += 3;
+            } else {
+                int codePoint = s.codePointAt(i);
+                byte[] bytes = new String(Character.toChars(codePoint)).getBytes(Charsets.UTF_8);
+                decoded.write(bytes, 0, bytes.length);
+                i += Character.charCount(codePoint);
             }
+        }
+        return new String(decoded.toByteArray(), Charsets.UTF_8);
+    }
 
-            CharsetDecoder decoder = Charset.forName(encoding).newDecoder();
-            decoder.onMalformedInput(CodingErrorAction.REPORT);
-            decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+    void setPathParamNames(String[] pathParamNames) {
+        this.pathParamNames = pathParamNames;
+    }
 
-            body = decoder.decode(ByteBuffer.wrap(buffer)).toString();
+    void setPathParamOffsets(int[] pathParamOffsets) {
+        this.pathParamOffsets = pathParamOffsets;
+    }
+
+    /**
+     * The query parameters, with percent escapes and '+' decoded. A parameter without a value,
+     * like "flag" in "?flag&x=1", has the value "".
+     */
+    public ArrayListMultimap<String, String> getQueryParams() {
+        if (queryParams == null) {
+            queryParams = ArrayListMultimap.create();
+            for (int pairStart = queryStart; query != null && pairStart < queryEnd; ) {
+                int pairEnd = pairEnd(pairStart);
+                if (pairEnd > pairStart) {
+                    int equals = indexOf(query, '=', pairStart, pairEnd);
+                    queryParams.put(decodeQuery(pairStart, equals == -1 ? pairEnd : equals),
+                            equals == -1 ? "" : decodeQuery(equals + 1, pairEnd));
+                }
+                pairStart = pairEnd + 1;
+            }
         }
+        return queryParams;
+    }
 
-        return new Request(method, requestUri, httpVersion, headers, queryParams, body);
+    /**
+     * Returns the first value of the named query parameter, or null. Unlike
+     * {@link #getQueryParams()} this only decodes the value that's returned.
+     */
+    public String getQueryParam(String name) {
+        if (queryParams != null || query == null) {
+            List<String> values = getQueryParams().get(name);
+            return values.isEmpty() ? null : values.get(0);
+        }
+        for (int pairStart = queryStart; pairStart < queryEnd; ) {
+            int pairEnd = pairEnd(pairStart);
+            int equals = indexOf(query, '=', pairStart, pairEnd);
+            int keyEnd = equals == -1 ? pairEnd : equals;
+            if (pairEnd > pairStart && queryKeyEquals(pairStart, keyEnd, name)) {
+                return equals == -1 ? "" : decodeQuery(equals + 1, pairEnd);
+            }
+            pairStart = pairEnd + 1;
+        }
+        return null;
     }
 
-    private static byte[] readLine(InputStream is) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private int pairEnd(int pairStart) {
+        int ampersand = indexOf(query, '&', pairStart, queryEnd);
+        return ampersand == -1 ? queryEnd : ampersand;
+    }
 
-        while (true) {
-            int nextByte = is.read();
-            if (nextByte == -1) {
-                break;
-            } else if (nextByte == '\r') {
-                int backslashN = is.read(); // read the \n
-                if (backslashN != '\n') {
-                    // this shouldn't happen, do something
-                }
-                break;
-            } else if (nextByte == '\n') {
-               // this also shouldn't happen, do something
+    private boolean queryKeyEquals(int start, int end, String name) {
+        if (needsDecoding(start, end) || !CharMatcher.ascii().matchesAllOf(name)) {
+            return decodeQuery(start, end).equals(name);
+        }
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (query[start + i] != name.charAt(i)) {
+                return false;
             }
-            buffer.write(nextByte);
         }
+        return true;
+    }
 
-        return buffer.toByteArray();
+    private boolean needsDecoding(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (query[i] == '%' || query[i] == '+') {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public String getMethod() {
-        return method;
+    // Decodes a key or value of the query string straight from its bytes, which setQuery has
+    // already checked the escapes of. Unlike in paths, '+' means space here.
+    private String decodeQuery(int start, int end) {
+        if (!needsDecoding(start, end)) {
+            return new String(query, start, end - start, Charsets.UTF_8);
+        }
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = query[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                b = (byte) (hexValue(query[i + 1]) << 4 | hexValue(query[i + 2]));
+                i += 2;
+            }
+            decoded[length++] = b;
+        }
+        return new String(decoded, 0, length, Charsets.UTF_8);
     }
 
-    public String getRequestUri() {
-        return requestUri;
+    private static int indexOf(byte[] bytes, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public ArrayListMultimap<String, String> getQueryParams() {
-        return queryParams;
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
     }
 
     public String getHttpVersion() {
+        if (httpVersion == null && raw != null) {
+            httpVersion = string(offsets[RequestParser.VERSION_START], offsets[RequestParser.VERSION_END]);
+        }
         return httpVersion;
     }
 
-    public ArrayListMultimap<String, String> getHeaders() {
+    // The address of the client that sent the request, or null for requests built by hand.
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void setRemoteAddress(InetAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    public Headers getHeaders() {
+        if (headers == null && raw != null) {
+            int count = offsets[RequestParser.HEADER_COUNT];
+            Headers decoded = new Headers(count);
+            for (int i = 0; i < count; i++) {
+                int base = RequestParser.HEADERS + 4 * i;
+                decoded.addCanonical(HeaderNames.canonical(raw, offsets[base], offsets[base + 1]),
+                        string(offsets[base + 2], offsets[base + 3]));
+            }
+            headers = decoded;
+        }
         return headers;
     }
 
+    /**
+     * The body decoded as text, or null if the request didn't have one. Decoding happens on the first
+     * call; a body that isn't valid in the request's charset throws an UncheckedIOException wrapping
+     * the CharacterCodingException. A body that's still being streamed is read in full first.
+     */
     public String getBody() {
+        if (body == null && bufferedBody() != null) {
+            CharsetDecoder decoder = charset().newDecoder();
+            decoder.onMalformedInput(CodingErrorAction.REPORT);
+            decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+            try {
+                body = decoder.decode(rawBody.duplicate()).toString();
+            } catch (CharacterCodingException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return body;
     }
 
+    // The charset parameter of the Content-Type, or UTF-8 if there isn't one we know.
+    private Charset charset() {
+        String contentType = getHeader(HeaderNames.CONTENT_TYPE);
+        if (contentType != null) {
+            for (String parameter : PARAMETER_SPLITTER.split(contentType)) {
+                if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String name = CharMatcher.is('"').trimFrom(parameter.substring(8));
+                    try {
+                        return Charset.forName(name);
+                    } catch (IllegalArgumentException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return Charsets.UTF_8;
+    }
+
+    // The body bytes exactly as received, as a read-only view. Empty if there was no body.
+    public ByteBuffer getRawBody() {
+        ByteBuffer bytes = bufferedBody();
+        return bytes == null ? ByteBuffer.allocate(0) : bytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * The body as a stream. Large and chunked bodies are read from the connection as this is read,
+     * so a slow reader slows the client down rather than the body piling up in memory. Handlers
+     * should use either this or the methods that return the whole body, not both.
+     */
+    public InputStream getBodyStream() {
+        if (bodyStream != null) {
+            return bodyStream;
+        }
+        ByteBuffer bytes = bufferedBody();
+        if (bytes == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return new ByteArrayInputStream(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    }
+
+    public ReadableByteChannel getBodyChannel() {
+        return Channels.newChannel(getBodyStream());
+    }
+
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    void setRawBody(ByteBuffer rawBody) {
+        this.rawBody = rawBody;
+        this.bodyStream = null;
+    }
+
+    void setBodyStream(InputStream bodyStream) {
+        this.bodyStream = bodyStream;
+        this.rawBody = null;
+    }
+
+    private ByteBuffer bufferedBody() {
+        if (rawBody == null && bodyStream != null) {
+            try {
+                rawBody = ByteBuffer.wrap(ByteStreams.toByteArray(bodyStream));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bodyStream = null;
+        }
+        if (rawBody == null && raw == null && body != null) {
+            rawBody = ByteBuffer.wrap(body.getBytes(Charsets.UTF_8));
+        }
+        return rawBody;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
-                .add("method", method)
-                .add("requestUri", requestUri)
-                .add("queryParams", queryParams)
-                .add("httpVersion", httpVersion)
-                .add("headers", headers)
-                .add("body", body)
+                .add("method", getMethod())
+                .add("requestUri", getRequestUri())
+                .add("queryParams", getQueryParams())
+                .add("httpVersion", getHttpVersion())
+                .add("headers", getHeaders())
+                .add("body", describeBody())
                 .toString();
     }
 
+    private String describeBody() {
+        if (bodyStream != null) {
+            // Reading it here would take it away from the handler.
+            return "<streaming>";
+        }
+        try {
+            return getBody();
+        } catch (UncheckedIOException e) {
+            return String.format("<%d undecodable bytes>", getRawBody().remaining());
+        }
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -202,9 +512,10 @@ public final class Request {
         private String method = "GET";
         private String requestUri = "/";
         private String httpVersion = "HTTP/1.1";
-        private ArrayListMultimap<String, String> headers = ArrayListMultimap.create();
+        private Headers headers = new Headers();
         private ArrayListMultimap<String, String> queryParams = ArrayListMultimap.create();
         private String body = null;
+        private InetAddress remoteAddress = null;
 
         public Builder withMethod(String method) {
             this.method = method;
@@ -222,7 +533,7 @@ public final class Request {
         }
 
         public Builder addHeader(String key, String value) {
-            this.headers.put(key, value);
+            this.headers.add(key, value);
             return this;
         }
 
@@ -236,8 +547,15 @@ public final class Request {
             return this;
         }
 
+        public Builder withRemoteAddress(InetAddress remoteAddress) {
+            this.remoteAddress = remoteAddress;
+            return this;
+        }
+
         public Request build() {
-            return new Request(method, requestUri, httpVersion, headers, queryParams, body);
+            Request req = new Request(method, requestUri, httpVersion, headers, queryParams, body);
+            req.remoteAddress = remoteAddress;
+            return req;
         }
     }
 }
\ No newline at end of file
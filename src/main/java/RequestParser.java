@@ -0,0 +1,283 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser. It scans the bytes of a connection's read buffer in place,
+ * remembering where it stopped, so a request split across several reads is only scanned once.
+ * Nothing is copied or decoded until {@link #toRequest} is called for a complete request, and even
+ * then the request line and headers are kept as offsets into a single byte array.
+ */
+final class RequestParser {
+    // Layout of the offsets array handed to Request.
+    static final int METHOD_END = 0;
+    static final int URI_START = 1;
+    static final int URI_END = 2;
+    static final int VERSION_START = 3;
+    static final int VERSION_END = 4;
+    static final int BODY_START = 5;
+    static final int BODY_LENGTH = 6;
+    static final int HEADER_COUNT = 7;
+    // Followed by nameStart, nameEnd, valueStart, valueEnd for every header.
+    static final int HEADERS = 8;
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADER_LINES = 1;
+    private static final int BODY = 2;
+    private static final int COMPLETE = 3;
+
+    private static final int DEFAULT_MAX_HEAD_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_HEADER_COUNT = 100;
+    private static final int DEFAULT_MAX_BUFFERED_BODY_SIZE = 64 * 1024;
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(Charsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(Charsets.US_ASCII);
+    private static final byte[] EXPECT = "expect".getBytes(Charsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(Charsets.US_ASCII);
+    private static final byte[] CONTINUE = "100-continue".getBytes(Charsets.US_ASCII);
+
+    private final int maxHeadSize;
+    private final int maxHeaderCount;
+    private final int maxBufferedBodySize;
+    private int state = REQUEST_LINE;
+    private int position = 0;
+    private int lineStart = 0;
+    private int[] offsets = new int[HEADERS + 4 * 16];
+    private int headerCount = 0;
+    private int contentLength = 0;
+    private boolean sawContentLength = false;
+    private boolean chunked = false;
+    private boolean expectContinue = false;
+    private boolean streamBody = false;
+
+    RequestParser() {
+        this(DEFAULT_MAX_HEAD_SIZE);
+    }
+
+    RequestParser(int maxHeadSize) {
+        this(maxHeadSize, DEFAULT_MAX_HEADER_COUNT);
+    }
+
+    RequestParser(int maxHeadSize, int maxHeaderCount) {
+        this(maxHeadSize, maxHeaderCount, DEFAULT_MAX_BUFFERED_BODY_SIZE);
+    }
+
+    RequestParser(ClientLimits limits) {
+        this(limits.getMaxHeaderSize(), limits.getMaxHeaderCount());
+    }
+
+    RequestParser(int maxHeadSize, int maxHeaderCount, int maxBufferedBodySize) {
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxBufferedBodySize = maxBufferedBodySize;
+    }
+
+    /**
+     * Examines the bytes between index 0 and {@code buffer.position()}, which must start with the
+     * request being parsed. Returns true once the whole request, body included, is in the buffer;
+     * otherwise the caller should read more into the same buffer and call this again.
+     *
+     * Chunked bodies, bodies larger than the buffering limit and bodies the client is waiting for a
+     * 100 Continue before sending are not waited for: parsing completes at the end of the headers and
+     * {@link #bodyDecoder()} returns the decoder the caller should stream the rest through.
+     */
+    boolean parse(ByteBuffer buffer) throws RequestParseException {
+        int limit = buffer.position();
+
+        while (state == REQUEST_LINE || state == HEADER_LINES) {
+            int newline = indexOf(buffer, '\n', position, limit);
+            if ((newline == -1 ? limit : newline) > maxHeadSize) {
+                throw new RequestParseException("request head too large");
+            }
+            if (newline == -1) {
+                position = limit;
+                return false;
+            }
+
+            int lineEnd = newline > lineStart && buffer.get(newline - 1) == '\r' ? newline - 1 : newline;
+            if (state == REQUEST_LINE) {
+                parseRequestLine(buffer, lineStart, lineEnd);
+                state = HEADER_LINES;
+            } else if (lineEnd == lineStart) {
+                offsets[BODY_START] = newline + 1;
+                endOfHeaders();
+                state = BODY;
+            } else {
+                parseHeaderLine(buffer, lineStart, lineEnd);
+            }
+            position = lineStart = newline + 1;
+        }
+
+        if (state == BODY && (streamBody || limit - offsets[BODY_START] >= contentLength)) {
+            offsets[BODY_LENGTH] = streamBody ? 0 : contentLength;
+            offsets[HEADER_COUNT] = headerCount;
+            state = COMPLETE;
+        }
+        return state == COMPLETE;
+    }
+
+    private void parseRequestLine(ByteBuffer buffer, int start, int end) throws RequestParseException {
+        int methodEnd = indexOf(buffer, ' ', start, end);
+        int uriEnd = methodEnd == -1 ? -1 : indexOf(buffer, ' ', methodEnd + 1, end);
+        if (methodEnd <= start || uriEnd <= methodEnd + 1 || uriEnd + 1 >= end || indexOf(buffer, ' ', uriEnd + 1, end) != -1) {
+            throw new RequestParseException(String.format("invalid request line: \"%s\"", string(buffer, start, end)));
+        }
+
+        offsets[METHOD_END] = methodEnd;
+        offsets[URI_START] = methodEnd + 1;
+        offsets[URI_END] = uriEnd;
+        offsets[VERSION_START] = uriEnd + 1;
+        offsets[VERSION_END] = end;
+    }
+
+    private void parseHeaderLine(ByteBuffer buffer, int start, int end) throws RequestParseException {
+        int colon = indexOf(buffer, ':', start, end);
+        if (colon <= start || isWhitespace(buffer.get(start)) || isWhitespace(buffer.get(colon - 1))) {
+            throw new RequestParseException(String.format("invalid header line: \"%s\"", string(buffer, start, end)));
+        }
+
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(buffer.get(valueStart))) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (headerCount == maxHeaderCount) {
+            throw new RequestParseException("too many headers");
+        }
+        int base = HEADERS + 4 * headerCount;
+        if (base + 4 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[base] = start;
+        offsets[base + 1] = colon;
+        offsets[base + 2] = valueStart;
+        offsets[base + 3] = valueEnd;
+        headerCount++;
+
+        if (equalsIgnoreCase(buffer, start, colon, CONTENT_LENGTH)) {
+            int length = parseContentLength(buffer, valueStart, valueEnd);
+            if (sawContentLength && length != contentLength) {
+                throw new RequestParseException("conflicting Content-Length headers");
+            }
+            contentLength = length;
+            sawContentLength = true;
+        } else if (equalsIgnoreCase(buffer, start, colon, TRANSFER_ENCODING)) {
+            // Only chunked is supported, and it has to be the sole coding.
+            if (chunked || !equalsIgnoreCase(buffer, valueStart, valueEnd, CHUNKED)) {
+                throw new RequestParseException(String.format("unsupported Transfer-Encoding: \"%s\"", string(buffer, valueStart, valueEnd)));
+            }
+            chunked = true;
+        } else if (equalsIgnoreCase(buffer, start, colon, EXPECT)) {
+            expectContinue = equalsIgnoreCase(buffer, valueStart, valueEnd, CONTINUE);
+        }
+    }
+
+    private void endOfHeaders() throws RequestParseException {
+        if (chunked && sawContentLength) {
+            // Ambiguous framing is how requests get smuggled past proxies.
+            throw new RequestParseException("both Content-Length and Transfer-Encoding present");
+        }
+        expectContinue = expectContinue && (chunked || contentLength > 0);
+        streamBody = chunked || contentLength > maxBufferedBodySize || expectContinue;
+    }
+
+    private static int parseContentLength(ByteBuffer buffer, int start, int end) throws RequestParseException {
+        if (start == end) {
+            throw new RequestParseException("empty Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new RequestParseException(String.format("invalid Content-Length: \"%s\"", string(buffer, start, end)));
+            }
+            value = value * 10 + (b - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new RequestParseException("Content-Length too large");
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Length in bytes of the complete request at the front of the buffer. When the body is being
+     * streamed this is just the request line and headers.
+     */
+    int requestLength() {
+        return offsets[BODY_START] + offsets[BODY_LENGTH];
+    }
+
+    // For a complete request whose body wasn't buffered, the decoder for the bytes that follow it.
+    BodyDecoder bodyDecoder() {
+        if (!streamBody) {
+            return null;
+        }
+        return chunked ? BodyDecoder.chunked() : BodyDecoder.fixed(contentLength);
+    }
+
+    boolean expectsContinue() {
+        return expectContinue;
+    }
+
+    /**
+     * Copies the complete request out of the buffer, which is then free to be compacted and reused
+     * for the next request on the connection.
+     */
+    Request toRequest(ByteBuffer buffer) throws RequestParseException {
+        byte[] raw = new byte[requestLength()];
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        source.get(raw);
+        return Request.fromParsed(raw, Arrays.copyOf(offsets, HEADERS + 4 * headerCount), sawContentLength && !streamBody);
+    }
+
+    void reset() {
+        state = REQUEST_LINE;
+        position = 0;
+        lineStart = 0;
+        headerCount = 0;
+        contentLength = 0;
+        sawContentLength = false;
+        chunked = false;
+        expectContinue = false;
+        streamBody = false;
+    }
+
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, byte[] lowerCase) {
+        if (end - start != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            if (Ascii.toLowerCase((char) buffer.get(start + i)) != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buffer, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static String string(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer source = buffer.duplicate();
+        source.position(start);
+        source.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,249 @@
+import com.google.common.primitives.Ints;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// Reads consecutive requests off a blocking stream, keeping any bytes read past the end of one
+// request for the next. Unless it's unpooled, the read buffer is leased from BufferPool.HEAP until
+// close(). Given the stream's socket, it holds the client to its ClientLimits by setting the
+// socket's timeout before each read to whatever's left of the deadline it's reading to.
+final class RequestReader {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final RequestParser parser;
+    private final boolean pooled;
+    private final Socket socket;
+    private final long idleTimeoutNanos;
+    private final ClientLimits limits;
+    // Counts bodies that time out, as it's the handler that sees it; null without a socket.
+    private final ServerMetrics metrics;
+    private ByteBuffer buffer;
+    // The streamed body of the last request read, if it had one.
+    private BodyInputStream body = null;
+    private boolean expectsContinue = false;
+    // Time spent parsing the last request read.
+    private long parseNanos = 0;
+    // When the first byte of the request arrived, pipelined ones already have.
+    private long startNanos = 0;
+    // Told when the first byte of each request arrives.
+    private Runnable onRequestStart = null;
+
+    RequestReader(Socket socket, Duration idleTimeout, ClientLimits limits, ServerMetrics metrics) {
+        this(true, socket, idleTimeout.toNanos(), limits, metrics);
+    }
+
+    // An unpooled reader's buffer is left to the garbage collector, for when nothing will close it.
+    RequestReader(boolean pooled) {
+        this(pooled, null, 0, ClientLimits.builder().build(), null);
+    }
+
+    private RequestReader(boolean pooled, Socket socket, long idleTimeoutNanos, ClientLimits limits, ServerMetrics metrics) {
+        this.parser = new RequestParser(limits);
+        this.pooled = pooled;
+        this.socket = socket;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.limits = limits;
+        this.metrics = metrics;
+        this.buffer = pooled ? BufferPool.HEAP.lease(INITIAL_BUFFER_SIZE) : ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns null if the stream ended cleanly before the first byte of a request. Throws
+     * SocketTimeoutException if the client was idle for too long, or has bytes of a request
+     * buffered when it's too slow sending the rest.
+     */
+    Request read(InputStream is) throws IOException, RequestParseException {
+        if (!bodyComplete()) {
+            throw new IllegalStateException("the previous request's body hasn't been read");
+        }
+
+        parseNanos = 0;
+        startNanos = 0;
+        if (buffer.position() > 0) {
+            started();
+        }
+        while (!parse()) {
+            if (!buffer.hasRemaining()) {
+                int capacity = buffer.capacity() * 2;
+                ByteBuffer larger = pooled ? BufferPool.HEAP.lease(capacity) : ByteBuffer.allocate(capacity);
+                buffer.flip();
+                larger.put(buffer);
+                if (pooled) {
+                    BufferPool.HEAP.release(buffer);
+                }
+                buffer = larger;
+            }
+
+            if (socket != null) {
+                if (buffer.position() == 0) {
+                    setTimeout(idleTimeoutNanos);
+                } else {
+                    setTimeout(startNanos + limits.getHeaderTimeoutNanos() - System.nanoTime());
+                }
+            }
+            int bytesRead = is.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (bytesRead == -1) {
+                if (buffer.position() == 0) {
+                    return null;
+                }
+                throw new RequestParseException("unexpected end of stream");
+            }
+            buffer.position(buffer.position() + bytesRead);
+            if (startNanos == 0) {
+                started();
+            }
+        }
+
+        long start = System.nanoTime();
+        Request req = parser.toRequest(buffer);
+        parseNanos += System.nanoTime() - start;
+        if (socket != null) {
+            req.setRemoteAddress(socket.getInetAddress());
+        }
+        buffer.flip();
+        buffer.position(parser.requestLength());
+        buffer.compact();
+
+        BodyDecoder decoder = parser.bodyDecoder();
+        expectsContinue = parser.expectsContinue();
+        parser.reset();
+
+        body = null;
+        if (decoder != null) {
+            body = new BodyInputStream(is, decoder);
+            req.setBodyStream(body);
+        }
+        return req;
+    }
+
+    private void started() {
+        startNanos = System.nanoTime();
+        if (onRequestStart != null) {
+            onRequestStart.run();
+        }
+    }
+
+    private boolean parse() throws RequestParseException {
+        long start = System.nanoTime();
+        try {
+            return parser.parse(buffer);
+        } finally {
+            parseNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void setTimeout(long nanos) throws IOException {
+        if (nanos <= 0) {
+            throw new SocketTimeoutException("client too slow");
+        }
+        // Zero would be no timeout at all.
+        socket.setSoTimeout(Math.max(1, Ints.saturatedCast(TimeUnit.NANOSECONDS.toMillis(nanos))));
+    }
+
+    // Gives the buffer back to the pool once the connection is done with.
+    void close() {
+        if (pooled && buffer != null) {
+            BufferPool.HEAP.release(buffer);
+            buffer = null;
+        }
+    }
+
+    void onRequestStart(Runnable onRequestStart) {
+        this.onRequestStart = onRequestStart;
+    }
+
+    // When the first byte of the last request read, or being read, arrived.
+    long startNanos() {
+        return startNanos;
+    }
+
+    long parseNanos() {
+        return parseNanos;
+    }
+
+    boolean hasBufferedBytes() {
+        return buffer.position() > 0;
+    }
+
+    // Whether the client of the last request read is waiting for a 100 Continue before sending its body.
+    boolean expectsContinue() {
+        return expectsContinue;
+    }
+
+    // Whether the last request's body has been read to the end, so the next request can be read.
+    boolean bodyComplete() {
+        return body == null || body.decoder.isComplete();
+    }
+
+    // Decodes a body through the reader's buffer, so whatever follows it stays there for the next request.
+    private final class BodyInputStream extends InputStream {
+        private final InputStream in;
+        private final BodyDecoder decoder;
+        // Only time spent waiting on the client counts against its minimum rate.
+        private long received = 0;
+        private long waitedNanos = 0;
+
+        BodyInputStream(InputStream in, BodyDecoder decoder) {
+            this.in = in;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (!decoder.isComplete()) {
+                if (buffer.position() > 0) {
+                    ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+                    buffer.flip();
+                    try {
+                        decoder.decode(buffer, dst);
+                    } catch (RequestParseException e) {
+                        throw new IOException(e);
+                    } finally {
+                        buffer.compact();
+                    }
+                    if (dst.position() > off) {
+                        return dst.position() - off;
+                    }
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                int bytesRead;
+                try {
+                    if (socket != null && limits.getMinBodyRate() > 0) {
+                        setTimeout(limits.bodyAllowanceNanos(received) - waitedNanos);
+                    }
+                    bytesRead = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                } catch (SocketTimeoutException e) {
+                    if (metrics != null) {
+                        metrics.clientTimedOut();
+                    }
+                    throw e;
+                }
+                waitedNanos += System.nanoTime() - start;
+                if (bytesRead == -1) {
+                    throw new EOFException("connection closed before the end of the request body");
+                }
+                received += bytesRead;
+                buffer.position(buffer.position() + bytesRead);
+            }
+            return -1;
+        }
+    }
+}
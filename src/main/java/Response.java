@@ -1,24 +1,29 @@
-import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.base.Charsets;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Collection;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public final class Response {
-    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] CONNECTION_PREFIX = HeaderNames.prefix(HeaderNames.CONNECTION);
+    // Sent ahead of the real response to clients that wait before sending a request body.
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(Charsets.US_ASCII);
+    // Bodies up to this size are copied in after the headers so the response goes out in one write.
+    private static final int MAX_COALESCED_BODY_SIZE = 16 * 1024;
 
     private final Status status;
-    // TODO implement own multimap, Stan said so.
-    private final Multimap<String, String> headers;
-    private final String body;
+    private final Headers headers;
+    private final ResponseBody body;
+    private final boolean staticBody;
 
-    private Response(Status status, Multimap<String, String> headers, String body) {
+    private Response(Status status, Headers headers, ResponseBody body, boolean staticBody) {
         this.status = status;
         this.headers = headers;
         this.body = body;
+        this.staticBody = staticBody;
     }
 
     public static Builder builder() {
@@ -27,8 +32,10 @@ public final class Response {
 
     public static final class Builder {
         private Status status = Status.OK;
-        private Multimap<String, String> headers = ArrayListMultimap.create();
-        private String body = null;
+        private Headers headers = new Headers();
+        private ResponseBody body = ResponseBody.EMPTY;
+        private BodyWriter bodyWriter = null;
+        private boolean staticBody = false;
 
         public Builder withStatus(Status status) {
             this.status = status;
@@ -36,39 +43,229 @@ public final class Response {
         }
 
         public Builder addHeader(String key, String value) {
-            headers.put(key, value);
+            headers.add(key, value);
             return this;
         }
 
         public Builder withBody(String body) {
-           this.body = body;
+            // Encoded once here, both for Content-Length and for writing.
+            this.body = body == null ? ResponseBody.EMPTY : ResponseBody.of(body.getBytes(Charsets.UTF_8));
+            this.bodyWriter = null;
+            return this;
+        }
+
+        public Builder withBody(byte[] body) {
+            this.body = ResponseBody.of(body);
+            this.bodyWriter = null;
+            return this;
+        }
+
+        // Streams the body as the writer produces it, chunked unless a Content-Length header is added.
+        public Builder withBody(BodyWriter body) {
+            this.bodyWriter = body;
+            return this;
+        }
+
+        // Sends the buffer's remaining bytes. Direct and memory-mapped buffers are written to sockets
+        // without being copied onto the heap.
+        public Builder withBody(ByteBuffer body) {
+            this.body = ResponseBody.of(body);
+            this.bodyWriter = null;
+            return this;
+        }
+
+        // Sends count bytes of the file from position. The channel stays open, it belongs to the caller.
+        public Builder withBody(FileChannel file, long position, long count) {
+            this.body = ResponseBody.of(file, position, count, false);
+            this.bodyWriter = null;
+            return this;
+        }
 
-           Collection<String> contentLength = headers.get("Content-Length");
-           if (contentLength.isEmpty()) {
-               headers.put("Content-Length", String.valueOf(body.getBytes().length));
-           }
+        // Sends the whole file, closing it once the response has been written.
+        public Builder withBody(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.body = ResponseBody.of(channel, 0, channel.size(), true);
+            this.bodyWriter = null;
+            return this;
+        }
 
-           return this;
+        Builder withBody(ResponseBody body) {
+            this.body = body;
+            this.bodyWriter = null;
+            return this;
+        }
+
+        // Promises the body is the same every time this resource is served with the same ETag, so
+        // compressed copies of it can be cached and reused.
+        public Builder markStatic() {
+            this.staticBody = true;
+            return this;
         }
 
         public Response build() {
-            return new Response(status, headers, body);
+            boolean hasContentLength = headers.contains(HeaderNames.CONTENT_LENGTH);
+            if (bodyWriter != null) {
+                body = ResponseBody.streamed(bodyWriter, !hasContentLength);
+                if (!hasContentLength) {
+                    headers.addCanonical(HeaderNames.TRANSFER_ENCODING, "chunked");
+                }
+            } else if (!hasContentLength && status != Status.NOT_MODIFIED) {
+                // A 304's Content-Length would be taken for that of the representation the client
+                // already has, so it's left to whoever knows it.
+                headers.addCanonical(HeaderNames.CONTENT_LENGTH, String.valueOf(body.length()));
+            }
+            return new Response(status, headers, body, staticBody);
+        }
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    ResponseBody getBody() {
+        return body;
+    }
+
+    boolean isStatic() {
+        return staticBody;
+    }
+
+    // A copy of this response sending body, encoded with contentEncoding, in place of its own.
+    // Handlers may hand out the same Response more than once, so this one is left as it is.
+    Response withEncodedBody(ResponseBody encoded, String contentEncoding) {
+        Headers copy = new Headers(headers);
+        copy.remove(HeaderNames.CONTENT_LENGTH);
+        copy.remove(HeaderNames.TRANSFER_ENCODING);
+        copy.addCanonical(HeaderNames.CONTENT_ENCODING, contentEncoding);
+        // Each encoding is a representation of its own, with different bytes, so needs its own tag.
+        String etag = copy.get(HeaderNames.ETAG);
+        if (etag != null) {
+            copy.remove(HeaderNames.ETAG);
+            copy.addCanonical(HeaderNames.ETAG, Compression.encodedTag(etag, contentEncoding));
+        }
+        if (encoded.isStreamed()) {
+            copy.addCanonical(HeaderNames.TRANSFER_ENCODING, "chunked");
+        } else {
+            copy.addCanonical(HeaderNames.CONTENT_LENGTH, String.valueOf(encoded.length()));
+        }
+        addVary(copy, HeaderNames.ACCEPT_ENCODING);
+        return new Response(status, copy, encoded, staticBody);
+    }
+
+    // A copy of this response that also varies on the given request header.
+    Response withVary(String header) {
+        Headers copy = new Headers(headers);
+        addVary(copy, header);
+        return new Response(status, copy, body, staticBody);
+    }
+
+    private static void addVary(Headers headers, String header) {
+        for (String vary : headers.getAll(HeaderNames.VARY)) {
+            for (String name : vary.split(",")) {
+                if (name.trim().equalsIgnoreCase(header) || name.trim().equals("*")) {
+                    return;
+                }
+            }
         }
+        headers.addCanonical(HeaderNames.VARY, header);
     }
 
     public void writeTo(OutputStream os) throws IOException {
-        os.write(status.toString().getBytes());
-        os.write(CRLF);
+        writeTo(os, null);
+    }
+
+    // Writes the response with an extra Connection header, unless connection is null or the handler
+    // already set one.
+    void writeTo(OutputStream os, String connection) throws IOException {
+        boolean coalesce = coalesceBody();
+        ByteBuffer head = encode(connection, coalesce);
+        try {
+            os.write(head.array(), 0, head.limit());
+        } finally {
+            BufferPool.HEAP.release(head);
+        }
+        if (!coalesce) {
+            body.writeTo(os);
+        }
+    }
 
-        for (Map.Entry<String, String> entry : headers.entries()) {
-            String s = entry.getKey() + ": " + entry.getValue();
-            os.write(s.getBytes());
-            os.write(CRLF);
+    // The response as buffers for a gathering write: the encoded head, then the body unless it was
+    // small enough to copy into the head. Bodies that aren't in memory, files and streamed bodies,
+    // are left for the caller to send after these buffers. The head is leased from BufferPool.HEAP,
+    // for the caller to release once it's been written.
+    ByteBuffer[] toByteBuffers(String connection) {
+        if (coalesceBody()) {
+            return new ByteBuffer[] {encode(connection, true)};
         }
+        if (!body.inMemory()) {
+            return new ByteBuffer[] {encode(connection, false)};
+        }
+        return new ByteBuffer[] {encode(connection, false), body.buffer()};
+    }
+
+    private boolean coalesceBody() {
+        return body.array() != null && body.length() <= MAX_COALESCED_BODY_SIZE;
+    }
+
+    private ByteBuffer encode(String connection, boolean includeBody) {
+        boolean addConnection = connection != null && !headers.contains(HeaderNames.CONNECTION);
+        byte[] statusLine = status.getStatusLine();
+
+        int size = statusLine.length + 2;
+        for (int i = 0; i < headers.size(); i++) {
+            size += headers.name(i).length() + 2 + headers.value(i).length() + 2;
+        }
+        if (addConnection) {
+            size += CONNECTION_PREFIX.length + connection.length() + 2;
+        }
+        if (includeBody) {
+            size += body.array().length;
+        }
+
+        ByteBuffer buffer = BufferPool.HEAP.lease(size);
+        buffer.limit(size);
+        byte[] out = buffer.array();
+        System.arraycopy(statusLine, 0, out, 0, statusLine.length);
+        int pos = statusLine.length;
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.name(i);
+            byte[] prefix = HeaderNames.prefix(name);
+            if (prefix != null) {
+                System.arraycopy(prefix, 0, out, pos, prefix.length);
+                pos += prefix.length;
+            } else {
+                pos = putLatin1(out, pos, name);
+                out[pos++] = ':';
+                out[pos++] = ' ';
+            }
+            pos = putLatin1(out, pos, headers.value(i));
+            out[pos++] = '\r';
+            out[pos++] = '\n';
+        }
+        if (addConnection) {
+            System.arraycopy(CONNECTION_PREFIX, 0, out, pos, CONNECTION_PREFIX.length);
+            pos = putLatin1(out, pos + CONNECTION_PREFIX.length, connection);
+            out[pos++] = '\r';
+            out[pos++] = '\n';
+        }
+        out[pos++] = '\r';
+        out[pos++] = '\n';
+        if (includeBody) {
+            System.arraycopy(body.array(), 0, out, pos, body.array().length);
+        }
+        return buffer;
+    }
 
-        if (!Strings.isNullOrEmpty(body)) {
-            os.write(CRLF);
-            os.write(body.getBytes());
+    // Header names and values are Latin-1; anything outside it is replaced the way String.getBytes would.
+    private static int putLatin1(byte[] out, int pos, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            out[pos++] = c <= 0xff ? (byte) c : (byte) '?';
         }
+        return pos;
     }
 }
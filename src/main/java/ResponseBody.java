@@ -0,0 +1,237 @@
+import com.google.common.flogger.FluentLogger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// What a Response sends after its headers. In-memory bodies are written from the buffer they were
+// given; file bodies go from the page cache to the socket with FileChannel.transferTo where the
+// engine has a channel to hand them.
+abstract class ResponseBody {
+    static final ResponseBody EMPTY = new Bytes(new byte[0]);
+
+    static ResponseBody of(byte[] bytes) {
+        return new Bytes(bytes);
+    }
+
+    static ResponseBody of(ByteBuffer buffer) {
+        return new Buffer(buffer.slice());
+    }
+
+    static ResponseBody of(FileChannel file, long position, long count, boolean closeAfterWrite) {
+        return new FileRegion(file, position, count, closeAfterWrite);
+    }
+
+    static ResponseBody streamed(BodyWriter writer, boolean chunked) {
+        return new Streamed(writer, chunked);
+    }
+
+    // The number of bytes in the body, or -1 if it's produced by a BodyWriter as it's written.
+    abstract long length();
+
+    boolean isStreamed() {
+        return false;
+    }
+
+    // The body if it's a heap array, so it can be copied in right after the headers. Not to be modified.
+    byte[] array() {
+        return null;
+    }
+
+    boolean inMemory() {
+        return true;
+    }
+
+    // A fresh view of the body for a channel write, or null if it isn't held in memory.
+    ByteBuffer buffer() {
+        return null;
+    }
+
+    abstract void writeTo(OutputStream os) throws IOException;
+
+    // Sends as much as the channel will take, starting offset bytes into the body.
+    long transferTo(long offset, WritableByteChannel channel) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    // The writer behind a streamed body, or null for any other kind.
+    BodyWriter writer() {
+        return null;
+    }
+
+    // Called once the response has been written, or abandoned.
+    void release() {}
+
+    private static final class Bytes extends ResponseBody {
+        private final byte[] bytes;
+
+        Bytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        long length() {
+            return bytes.length;
+        }
+
+        @Override
+        byte[] array() {
+            return bytes;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            os.write(bytes);
+        }
+    }
+
+    private static final class Buffer extends ResponseBody {
+        private final ByteBuffer buffer;
+
+        Buffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        long length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            // Responses can be shared between connections, so each write gets its own position.
+            return buffer.duplicate();
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            if (buffer.hasArray()) {
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                Channels.newChannel(os).write(buffer.duplicate());
+            }
+        }
+    }
+
+    private static final class FileRegion extends ResponseBody {
+        private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+        private final FileChannel file;
+        private final long position;
+        private final long count;
+        private final boolean closeAfterWrite;
+
+        FileRegion(FileChannel file, long position, long count, boolean closeAfterWrite) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+            this.closeAfterWrite = closeAfterWrite;
+        }
+
+        @Override
+        long length() {
+            return count;
+        }
+
+        @Override
+        boolean inMemory() {
+            return false;
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            WritableByteChannel channel = Channels.newChannel(os);
+            for (long offset = 0; offset < count; ) {
+                offset += transferTo(offset, channel);
+            }
+        }
+
+        @Override
+        long transferTo(long offset, WritableByteChannel channel) throws IOException {
+            long transferred = file.transferTo(position + offset, count - offset, channel);
+            if (transferred == 0 && position + offset >= file.size()) {
+                throw new IOException("file truncated while being sent");
+            }
+            return transferred;
+        }
+
+        @Override
+        void release() {
+            if (!closeAfterWrite) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.atWarning().withCause(e).log("failed to close %s", file);
+            }
+        }
+    }
+
+    private static final class Streamed extends ResponseBody {
+        private final BodyWriter writer;
+        private final boolean chunked;
+
+        Streamed(BodyWriter writer, boolean chunked) {
+            this.writer = writer;
+            this.chunked = chunked;
+        }
+
+        @Override
+        long length() {
+            return -1;
+        }
+
+        @Override
+        boolean inMemory() {
+            return false;
+        }
+
+        @Override
+        boolean isStreamed() {
+            return true;
+        }
+
+        @Override
+        BodyWriter writer() {
+            return writer;
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            if (chunked) {
+                ChunkedOutputStream out = new ChunkedOutputStream(os);
+                try {
+                    writer.writeTo(out);
+                    out.finish();
+                } finally {
+                    out.release();
+                }
+                return;
+            }
+
+            // The handler set its own Content-Length, so the bytes go out as they are. Closing the
+            // stream mustn't close the connection.
+            writer.writeTo(new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+    }
+}
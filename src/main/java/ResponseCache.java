@@ -0,0 +1,367 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the responses of another handler to GET requests, so repeated requests are served from
+ * memory. Entries are keyed by path, query parameters in any order, and the values of the headers
+ * given to withKeyHeaders, and live until their time to live runs out or they're evicted to keep
+ * the cache under its maximum size.
+ *
+ * Only 200 responses with in-memory bodies are cached, and not those with Set-Cookie or a
+ * Cache-Control of no-store, no-cache or private. Cached responses carry an ETag, generated from
+ * the body if the handler didn't set one, and requests whose If-None-Match matches it get a 304.
+ *
+ * Concurrent misses for the same key wait for a single call to the handler rather than each
+ * making their own.
+ */
+public final class ResponseCache implements RequestHandler {
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    // Headers a 304 repeats from the response it stands in for.
+    private static final ImmutableList<String> NOT_MODIFIED_HEADERS = ImmutableList.of(
+            HeaderNames.CACHE_CONTROL, HeaderNames.EXPIRES, HeaderNames.LAST_MODIFIED, HeaderNames.VARY);
+
+    private final RequestHandler requestHandler;
+    private final List<String> keyHeaders;
+    private final long maximumSize;
+    private final Cache<String, Entry> cache;
+    private final AtomicLong size = new AtomicLong();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final ConcurrentMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    private ResponseCache(Builder builder) {
+        this.requestHandler = builder.requestHandler;
+        this.keyHeaders = ImmutableList.copyOf(builder.keyHeaders);
+        this.maximumSize = builder.maximumSize;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(builder.maximumSize)
+                .<String, Entry>weigher((key, entry) -> entry.weight)
+                .expireAfterWrite(builder.timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+                .<String, Entry>removalListener(removal -> size.addAndGet(-removal.getValue().weight))
+                .build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public Response handle(Request req) throws RequestHandlerException {
+        if (!req.getMethod().equals("GET")) {
+            return requestHandler.handle(req);
+        }
+
+        String key = key(req);
+        sketch.increment(key);
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            return entry.respond(req);
+        }
+
+        CompletableFuture<Entry> call = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            entry = await(existing);
+            // Nothing to share if the other request's response couldn't be cached; this one gets
+            // its own.
+            return entry == null ? requestHandler.handle(req) : entry.respond(req);
+        }
+
+        Response res = null;
+        try {
+            res = requestHandler.handle(req);
+            entry = Entry.of(res, key);
+            if (entry != null && admit(key, entry)) {
+                cache.put(key, entry);
+                size.addAndGet(entry.weight);
+            }
+        } finally {
+            inFlight.remove(key, call);
+            call.complete(entry);
+        }
+        return entry == null ? res : entry.respond(req);
+    }
+
+    // TinyLFU-style admission: once the cache is half full, a response is only kept if its key has
+    // been asked for before, so a scan of one-off URLs can't push out the entries that get hits.
+    private boolean admit(String key, Entry entry) {
+        if (entry.weight > maximumSize) {
+            return false;
+        }
+        return size.get() + entry.weight <= maximumSize / 2 || sketch.frequency(key) > 1;
+    }
+
+    private static Entry await(CompletableFuture<Entry> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private String key(Request req) {
+        StringBuilder key = new StringBuilder(req.getRequestUri());
+        ArrayListMultimap<String, String> queryParams = req.getQueryParams();
+        if (!queryParams.isEmpty()) {
+            // Names are sorted, so the same parameters in a different order share an entry, but a
+            // name's values keep their order, since getQueryParam depends on it.
+            char separator = '?';
+            for (String name : new TreeSet<>(queryParams.keySet())) {
+                for (String value : queryParams.get(name)) {
+                    key.append(separator);
+                    appendEscaped(key, name);
+                    key.append('=');
+                    appendEscaped(key, value);
+                    separator = '&';
+                }
+            }
+        }
+        for (String name : keyHeaders) {
+            String value = req.getHeader(name);
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    // Re-encodes the characters that separate the key's parts, so a decoded name or value can't
+    // pass for more than one.
+    private static void appendEscaped(StringBuilder key, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '%':
+                    key.append("%25");
+                    break;
+                case '&':
+                    key.append("%26");
+                    break;
+                case '=':
+                    key.append("%3D");
+                    break;
+                case '\n':
+                    key.append("%0A");
+                    break;
+                default:
+                    key.append(c);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Status status;
+        private final Headers headers;
+        private final byte[] body;
+        private final String etag;
+        private final int weight;
+
+        private Entry(Status status, Headers headers, byte[] body, String etag, int weight) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.etag = etag;
+            this.weight = weight;
+        }
+
+        // The entry for a handler's response, or null if it can't be cached.
+        private static Entry of(Response res, String key) {
+            Headers headers = res.getHeaders();
+            ResponseBody body = res.getBody();
+            if (res.getStatus() != Status.OK || body.isStreamed() || !body.inMemory()
+                    || headers.contains(HeaderNames.SET_COOKIE)) {
+                return null;
+            }
+            for (String cacheControl : headers.getAll(HeaderNames.CACHE_CONTROL)) {
+                for (String directive : COMMA_SPLITTER.split(Ascii.toLowerCase(cacheControl))) {
+                    if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private")) {
+                        return null;
+                    }
+                }
+            }
+
+            byte[] bytes = body.array();
+            if (bytes == null) {
+                ByteBuffer buffer = body.buffer();
+                bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+            }
+
+            Headers copy = new Headers(headers);
+            copy.remove(HeaderNames.CONTENT_LENGTH);
+            String etag = copy.get(HeaderNames.ETAG);
+            if (etag == null) {
+                etag = '"' + Hashing.murmur3_128().hashBytes(bytes).toString() + '"';
+                copy.add(HeaderNames.ETAG, etag);
+            }
+
+            long weight = key.length() + bytes.length;
+            for (int i = 0; i < copy.size(); i++) {
+                weight += copy.name(i).length() + copy.value(i).length();
+            }
+            return new Entry(res.getStatus(), copy, bytes, etag, Ints.saturatedCast(weight));
+        }
+
+        private Response respond(Request req) {
+            String ifNoneMatch = req.getHeader(HeaderNames.IF_NONE_MATCH);
+            String validated = ifNoneMatch == null ? null : validated(ifNoneMatch);
+            if (validated != null) {
+                Response.Builder res = Response.builder()
+                        .withStatus(Status.NOT_MODIFIED)
+                        .addHeader(HeaderNames.ETAG, validated);
+                if (validated.equals(etag)) {
+                    // The size of the body the client already has, not of this response's. A
+                    // compressed copy's isn't known here, so goes unsaid.
+                    res.addHeader(HeaderNames.CONTENT_LENGTH, String.valueOf(body.length));
+                }
+                for (String name : NOT_MODIFIED_HEADERS) {
+                    for (String value : headers.getAll(name)) {
+                        res.addHeader(name, value);
+                    }
+                }
+                return res.build();
+            }
+
+            Response.Builder res = Response.builder().withStatus(status);
+            for (int i = 0; i < headers.size(); i++) {
+                res.addHeader(headers.name(i), headers.value(i));
+            }
+            // The body won't change while it's cached, so compressed copies of it can be reused.
+            return res.withBody(body).markStatic().build();
+        }
+
+        // The tag to send with a 304 if If-None-Match names a current copy, otherwise null. It uses
+        // weak comparison: W/ prefixes are ignored on both sides, and compressed copies' tags match.
+        private String validated(String ifNoneMatch) {
+            String ours = opaque(etag);
+            for (String candidate : COMMA_SPLITTER.split(ifNoneMatch)) {
+                if (candidate.equals("*") || opaque(candidate).equals(ours)) {
+                    return etag;
+                }
+                if (Compression.identityTag(candidate).equals(ours)) {
+                    return opaque(candidate);
+                }
+            }
+            return null;
+        }
+
+        private static String opaque(String etag) {
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+    }
+
+    // An approximate count of how often each key has been requested recently, in a fixed amount of
+    // memory: a count-min sketch of 4-bit counters, halved every so often so old popularity fades.
+    // Updates aren't synchronized; a lost increment only makes the estimate a little low.
+    private static final class FrequencySketch {
+        private static final int WIDTH = 1 << 16;
+        private static final int SAMPLE_SIZE = 10 * WIDTH;
+        private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+
+        // Eight 4-bit counters to a long.
+        private final long[] table = new long[WIDTH / 8];
+        private int additions = 0;
+
+        private void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int seed : SEEDS) {
+                int counter = index(hash, seed);
+                int slot = counter >>> 3;
+                int shift = (counter & 7) << 2;
+                if (((table[slot] >>> shift) & 0xfL) != 0xfL) {
+                    table[slot] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= SAMPLE_SIZE) {
+                reset();
+            }
+        }
+
+        private int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = 15;
+            for (int seed : SEEDS) {
+                int counter = index(hash, seed);
+                min = Math.min(min, (int) ((table[counter >>> 3] >>> ((counter & 7) << 2)) & 0xfL));
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+
+        private static int index(int hash, int seed) {
+            int h = (hash ^ seed) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & (WIDTH - 1);
+        }
+
+        private static int spread(int hash) {
+            hash = (hash ^ (hash >>> 16)) * 0x45d9f3b;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    public static final class Builder {
+        private RequestHandler requestHandler;
+        private final List<String> keyHeaders = new ArrayList<>();
+        private long maximumSize = 64 * 1024 * 1024;
+        private Duration timeToLive = Duration.ofMinutes(1);
+
+        public Builder withRequestHandler(RequestHandler requestHandler) {
+            this.requestHandler = requestHandler;
+            return this;
+        }
+
+        // Request headers whose values the handler's responses depend on, such as Accept-Language.
+        public Builder withKeyHeaders(String... names) {
+            for (String name : names) {
+                keyHeaders.add(name);
+            }
+            return this;
+        }
+
+        // Roughly the most bytes of responses, headers and all, the cache holds.
+        public Builder withMaximumSize(long maximumSize) {
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        // How long a response is served from the cache before the handler is asked again.
+        public Builder withTimeToLive(Duration timeToLive) {
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        public ResponseCache build() {
+            Preconditions.checkNotNull(requestHandler);
+            Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive");
+            Preconditions.checkArgument(!timeToLive.isNegative() && !timeToLive.isZero(), "timeToLive must be positive");
+            return new ResponseCache(this);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded queue of preallocated slots, for any number of threads to fill and one to drain. A
+ * producer claims a slot, fills in its fields and publishes it; nothing is allocated and no lock
+ * taken. When every slot is full claim fails straight away rather than waiting, so a slow
+ * consumer costs producers nothing but the entries they couldn't add.
+ *
+ * Each slot has a sequence number saying whose turn it is: claimable at position p when it's p,
+ * readable when it's p + 1, and claimable again a lap later, at p + capacity, once it's been read.
+ */
+final class RingBuffer<E> {
+    private final E[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only the consumer moves this.
+    private long head = 0;
+
+    @SuppressWarnings("unchecked")
+    RingBuffer(int capacity, Supplier<E> factory) {
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "capacity must be a power of two");
+        this.slots = (E[]) new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = factory.get();
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    // Claims the next slot, returning its position, or -1 if the buffer is full.
+    long claim() {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // Still holding the entry from a lap ago.
+                return -1;
+            } else {
+                // Another producer claimed it first.
+                position = tail.get();
+            }
+        }
+    }
+
+    // The slot at a claimed position, to be filled in before it's published.
+    E get(long position) {
+        return slots[(int) position & mask];
+    }
+
+    void publish(long position) {
+        sequences.lazySet((int) position & mask, position + 1);
+    }
+
+    /**
+     * Passes up to max published entries to consumer, in order, and returns how many there were.
+     * An entry's slot is reused once consumer returns, so it mustn't hold on to it. Only one thread
+     * may drain.
+     */
+    int drain(Consumer<E> consumer, int max) {
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                // Empty, or the next entry's producer hasn't published it yet.
+                break;
+            }
+            try {
+                consumer.accept(slots[index]);
+            } finally {
+                sequences.lazySet(index, head + slots.length);
+                head++;
+            }
+            drained++;
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,299 @@
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dispatches requests to handlers by method and path.
+ *
+ * Patterns are made of literal text and whole-segment parameters: "/users/{id}/orders" captures
+ * the second segment as "id", and a final "{path*}" captures the rest of the path, slashes and
+ * all. Literal segments win over parameters, which win over the catch-all. Captured values are
+ * available from Request#getPathParam.
+ *
+ * Routes are compiled at build time into a radix tree, so matching walks the path once whatever
+ * the number of routes, and only allocates if the route has parameters to capture.
+ */
+public final class Router implements RequestHandler {
+    private final Node root;
+    private final int maxParams;
+    private final RequestHandler notFoundHandler;
+
+    private Router(Builder builder) {
+        this.root = builder.root;
+        this.maxParams = builder.maxParams;
+        this.notFoundHandler = builder.notFoundHandler;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public Response handle(Request req) throws RequestHandlerException {
+        Node node = match(root, req.getRequestUri(), 0, null, 0, req);
+        if (node == null) {
+            return notFoundHandler.handle(req);
+        }
+
+        RequestHandler handler = node.handler(req.getMethod());
+        if (handler == null) {
+            return Response.builder()
+                    .withStatus(Status.METHOD_NOT_ALLOWED)
+                    .addHeader(HeaderNames.ALLOW, node.allow)
+                    .build();
+        }
+        req.setPathParamNames(node.paramNames);
+        return handler.handle(req);
+    }
+
+    // Finds the route node for path[pos..], trying literal children, then the parameter, then the
+    // catch-all. captures holds {start, end} offsets for each parameter matched so far; it's only
+    // allocated on the way into the first parameter, and handed to req once a route matches.
+    private Node match(Node node, String path, int pos, int[] captures, int param, Request req) {
+        String prefix = node.prefix;
+        if (!path.regionMatches(pos, prefix, 0, prefix.length())) {
+            return null;
+        }
+        pos += prefix.length();
+        if (pos == path.length() && node.paramNames != null) {
+            return node;
+        }
+
+        if (pos < path.length()) {
+            Node child = node.child(path.charAt(pos));
+            if (child != null) {
+                Node found = match(child, path, pos, captures, param, req);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+
+        if (node.param != null) {
+            int end = path.indexOf('/', pos);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (end > pos) {
+                int[] c = captures == null ? new int[2 * maxParams] : captures;
+                c[2 * param] = pos;
+                c[2 * param + 1] = end;
+                Node found = match(node.param, path, end, c, param + 1, req);
+                if (found != null) {
+                    if (captures == null) {
+                        req.setPathParamOffsets(c);
+                    }
+                    return found;
+                }
+            }
+        }
+
+        if (node.catchAll != null) {
+            int[] c = captures == null ? new int[2 * maxParams] : captures;
+            c[2 * param] = pos;
+            c[2 * param + 1] = path.length();
+            if (captures == null) {
+                req.setPathParamOffsets(c);
+            }
+            return node.catchAll;
+        }
+        return null;
+    }
+
+    private static final class Node {
+        // Literal text this node matches. Empty for parameter and catch-all nodes.
+        private String prefix;
+        // Literal children, sorted by their first character.
+        private char[] indices = new char[0];
+        private Node[] children = new Node[0];
+        private Node param;
+        private Node catchAll;
+
+        // Set on nodes that end a route: parameter names in capture order, and handlers by method.
+        private String[] paramNames;
+        private String[] methods = new String[0];
+        private RequestHandler[] handlers = new RequestHandler[0];
+        private String allow;
+
+        private Node(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private Node child(char c) {
+            int i = Arrays.binarySearch(indices, c);
+            return i < 0 ? null : children[i];
+        }
+
+        private RequestHandler handler(String method) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].equals(method)) {
+                    return handlers[i];
+                }
+            }
+            return null;
+        }
+
+        private void addChild(Node child) {
+            int i = -Arrays.binarySearch(indices, child.prefix.charAt(0)) - 1;
+            char[] newIndices = new char[indices.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(indices, 0, newIndices, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            newIndices[i] = child.prefix.charAt(0);
+            newChildren[i] = child;
+            System.arraycopy(indices, i, newIndices, i + 1, indices.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+            indices = newIndices;
+            children = newChildren;
+        }
+
+        // Makes this node match only the first length characters of its prefix, moving the rest and
+        // everything below into a new child.
+        private void split(int length) {
+            Node rest = new Node(prefix.substring(length));
+            rest.indices = indices;
+            rest.children = children;
+            rest.param = param;
+            rest.catchAll = catchAll;
+            rest.paramNames = paramNames;
+            rest.methods = methods;
+            rest.handlers = handlers;
+            rest.allow = allow;
+
+            prefix = prefix.substring(0, length);
+            indices = new char[0];
+            children = new Node[0];
+            param = null;
+            catchAll = null;
+            paramNames = null;
+            methods = new String[0];
+            handlers = new RequestHandler[0];
+            allow = null;
+            addChild(rest);
+        }
+
+        // Adds the literal text s below this node, returning the node that ends with it.
+        private Node insertLiteral(String s) {
+            Node node = this;
+            while (!s.isEmpty()) {
+                Node child = node.child(s.charAt(0));
+                if (child == null) {
+                    child = new Node(s);
+                    node.addChild(child);
+                    return child;
+                }
+                int common = commonPrefixLength(child.prefix, s);
+                if (common < child.prefix.length()) {
+                    child.split(common);
+                }
+                node = child;
+                s = s.substring(common);
+            }
+            return node;
+        }
+
+        private void addHandler(String method, RequestHandler handler, String pattern) {
+            Preconditions.checkArgument(handler(method) == null, "duplicate route %s %s", method, pattern);
+            methods = Arrays.copyOf(methods, methods.length + 1);
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            methods[methods.length - 1] = method;
+            handlers[handlers.length - 1] = handler;
+            allow = Joiner.on(", ").join(methods);
+        }
+
+        private static int commonPrefixLength(String a, String b) {
+            int n = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < n && a.charAt(i) == b.charAt(i)) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    public static final class Builder {
+        private final Node root = new Node("");
+        private int maxParams = 0;
+        private RequestHandler notFoundHandler = req -> Response.builder()
+                .withStatus(Status.NOT_FOUND)
+                .build();
+
+        public Builder get(String pattern, RequestHandler handler) {
+            return route("GET", pattern, handler);
+        }
+
+        public Builder post(String pattern, RequestHandler handler) {
+            return route("POST", pattern, handler);
+        }
+
+        public Builder put(String pattern, RequestHandler handler) {
+            return route("PUT", pattern, handler);
+        }
+
+        public Builder delete(String pattern, RequestHandler handler) {
+            return route("DELETE", pattern, handler);
+        }
+
+        public Builder route(String method, String pattern, RequestHandler handler) {
+            Preconditions.checkNotNull(method);
+            Preconditions.checkNotNull(handler);
+            Preconditions.checkArgument(pattern.startsWith("/"), "pattern must start with /: %s", pattern);
+
+            Node node = root;
+            List<String> paramNames = new ArrayList<>();
+            int pos = 0;
+            while (pos < pattern.length()) {
+                int open = pattern.indexOf('{', pos);
+                if (open == -1) {
+                    node = node.insertLiteral(pattern.substring(pos));
+                    break;
+                }
+                int close = pattern.indexOf('}', open);
+                Preconditions.checkArgument(close != -1, "unclosed parameter in %s", pattern);
+                Preconditions.checkArgument(pattern.charAt(open - 1) == '/'
+                        && (close + 1 == pattern.length() || pattern.charAt(close + 1) == '/'),
+                        "parameters must be whole segments: %s", pattern);
+                node = node.insertLiteral(pattern.substring(pos, open));
+
+                String name = pattern.substring(open + 1, close);
+                if (name.endsWith("*")) {
+                    Preconditions.checkArgument(close + 1 == pattern.length(), "catch-all must come last: %s", pattern);
+                    if (node.catchAll == null) {
+                        node.catchAll = new Node("");
+                    }
+                    node = node.catchAll;
+                    name = name.substring(0, name.length() - 1);
+                } else {
+                    if (node.param == null) {
+                        node.param = new Node("");
+                    }
+                    node = node.param;
+                }
+                Preconditions.checkArgument(!name.isEmpty(), "unnamed parameter in %s", pattern);
+                paramNames.add(name);
+                pos = close + 1;
+            }
+
+            String[] names = paramNames.toArray(new String[0]);
+            Preconditions.checkArgument(node.paramNames == null || Arrays.equals(node.paramNames, names),
+                    "%s names its parameters differently from another route on the same path", pattern);
+            node.paramNames = names;
+            node.addHandler(method, handler, pattern);
+            maxParams = Math.max(maxParams, names.length);
+            return this;
+        }
+
+        // Handles requests that match no route, in place of the default 404.
+        public Builder withNotFoundHandler(RequestHandler notFoundHandler) {
+            this.notFoundHandler = notFoundHandler;
+            return this;
+        }
+
+        public Router build() {
+            return new Router(this);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+// An engine that's been started, as ServerHandle shuts it down: drain, then abandon whatever
+// didn't finish in time, then stop.
+interface RunningEngine {
+    int getPort();
+
+    // Stops accepting connections and closes the idle ones. The rest close once they've answered
+    // the request they're serving.
+    void drain();
+
+    // Closes every connection still open, returning how many requests that cut off.
+    int abandon() throws InterruptedException;
+
+    // Stops the engine's threads, once every connection has been closed.
+    void stop() throws InterruptedException;
+}
@@ -1,74 +1,486 @@
 import com.google.common.base.Preconditions;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import java.io.IOException;
-import java.net.InetAddress;
+import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.CharacterCodingException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Server {
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
     private final int port;
     private final int socketQueueLength;
+    private final int listenerShards;
     private final RequestHandler requestHandler;
+    private final AsyncRequestHandler asyncRequestHandler;
+    // How long an AsyncRequestHandler has to respond, or null for as long as it likes.
+    private final Duration requestTimeout;
+    private final ScheduledExecutorService timeouts;
     private final Iterable<RequestListener> requestListeners;
     private final Iterable<ServerListener> serverListeners;
-    private final ExecutorService executorService;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final OpenConnections openConnections = new OpenConnections();
     private final int numThreads;
-    private final BlockingQueue<Socket> queue;
-
-    private Server(int port, int socketQueueLength, RequestHandler requestHandler, Iterable<RequestListener> requestListeners, Iterable<ServerListener> serverListeners, int numThreads, int queueSize) {
-        this.port = port;
-        this.socketQueueLength = socketQueueLength;
-        this.requestHandler = requestHandler;
-        this.requestListeners = requestListeners;
-        this.serverListeners = serverListeners;
-        this.executorService = Executors.newFixedThreadPool(numThreads);
-        this.numThreads = numThreads;
-        this.queue = new ArrayBlockingQueue<>(queueSize);
-    }
-
-    public void start() throws IOException {
-        byte[] addr = {0, 0, 0, 0};
-        ServerSocket server = new ServerSocket(port, socketQueueLength, InetAddress.getByAddress(addr));
-        logger.atInfo().log("server connected on port %d", server.getLocalPort());
+    private final int queueSize;
+    private final Engine engine;
+    private final int numEventLoops;
+    private final Executor handlerExecutor;
+    private final Duration idleTimeout;
+    private final ClientLimits clientLimits;
+    // Times out writes to clients on the engines that block, which have no timeouts of their own.
+    private final TimerThread writeTimer;
+    private final int maxRequestsPerConnection;
+    private final int maxConnections;
+    private final OverloadPolicy overloadPolicy;
+    private final AdmissionControl admissionControl;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final String metricsEndpoint;
+    private final Compression compression;
+    private final AccessLog accessLog;
+    private final RateLimiter rateLimiter;
+    private final Tls tls;
+    private final Http2 http2;
+
+    private Server(Builder builder) {
+        this.port = builder.port;
+        this.socketQueueLength = builder.socketQueueLength;
+        this.listenerShards = builder.listenerShards;
+        this.requestHandler = builder.requestHandler;
+        this.asyncRequestHandler = builder.asyncRequestHandler;
+        this.requestTimeout = builder.requestTimeout;
+        this.timeouts = requestTimeout == null ? null : newTimeoutScheduler();
+        this.requestListeners = builder.requestListeners;
+        this.serverListeners = builder.serverListeners;
+        this.numThreads = builder.numThreads;
+        this.queueSize = builder.queueSize;
+        this.engine = builder.engine;
+        this.numEventLoops = builder.numEventLoops;
+        this.handlerExecutor = builder.handlerExecutor;
+        this.idleTimeout = builder.idleTimeout;
+        this.clientLimits = builder.clientLimits;
+        this.writeTimer = engine == Engine.NIO ? null : new TimerThread("http-write-timeouts");
+        this.maxRequestsPerConnection = builder.maxRequestsPerConnection;
+        this.maxConnections = builder.maxConnections;
+        this.overloadPolicy = builder.overloadPolicy;
+        this.admissionControl = builder.admissionControl;
+        this.metricsEndpoint = builder.metricsEndpoint;
+        this.compression = builder.compression;
+        this.accessLog = builder.accessLog;
+        this.rateLimiter = builder.rateLimiter;
+        this.tls = builder.tls;
+        this.http2 = builder.http2;
+    }
+
+    /**
+     * Binds the server's port and starts serving on background threads, returning a handle to shut
+     * it down with. A server can only be started once.
+     */
+    public ServerHandle start() throws IOException {
+        Preconditions.checkState(started.compareAndSet(false, true), "server already started");
+        RunningEngine running;
+        if (engine == Engine.NIO) {
+            running = new NioEngine(this).start();
+        } else if (engine == Engine.VIRTUAL_THREADS) {
+            writeTimer.start();
+            running = new VirtualThreadEngine(this).start();
+        } else {
+            writeTimer.start();
+            running = new BlockingEngine(this).start();
+        }
+        return new ServerHandle(this, running);
+    }
+
+    void serve(Socket client) throws IOException {
+        CountingInputStream is = new CountingInputStream(client.getInputStream());
+        CountingOutputStream os = new CountingOutputStream(new BufferedOutputStream(
+                new TimedOutputStream(client, writeTimer, clientLimits.getWriteTimeoutNanos(), metrics)));
+        RequestReader reader = new RequestReader(client, idleTimeout, clientLimits, metrics);
+        long received = 0;
+        long sent = 0;
+        OpenConnections.Connection conn = openConnections.add(client);
+        // Busy from a request's first byte, so a drain lets a request that's still arriving finish.
+        reader.onRequestStart(() -> conn.setBusy(true));
+        try {
+            for (int served = 1; ; served++) {
+                // Pipelined bytes already read are a request that's arrived.
+                conn.setBusy(reader.hasBufferedBytes());
+                // A shutdown that started while this connection was busy didn't close it.
+                if (served > 1 && openConnections.isDraining() && !reader.hasBufferedBytes()) {
+                    break;
+                }
+                Request req = null;
+                Response res;
+                boolean keepAlive;
+                String connection;
+                try {
+                    req = reader.read(is);
+                    if (req == null) {
+                        // A clean close between requests is how keep-alive connections normally end.
+                        break;
+                    }
+                    metrics.parsed(reader.parseNanos());
+                    if (reader.expectsContinue()) {
+                        os.write(Response.CONTINUE);
+                        os.flush();
+                    }
+                    res = respond(req);
+                    // A body the handler didn't read to the end is still in the way of the next request.
+                    keepAlive = KeepAlive.requested(req) && KeepAlive.allowed(res) && served < maxRequestsPerConnection
+                            && reader.bodyComplete() && !openConnections.isDraining();
+                    connection = KeepAlive.connectionHeader(req, keepAlive);
+                } catch (SocketTimeoutException e) {
+                    if (!reader.hasBufferedBytes()) {
+                        // Idle between requests.
+                        break;
+                    }
+                    metrics.clientTimedOut();
+                    res = Response.builder()
+                            .withStatus(Status.REQUEST_TIMEOUT)
+                            .build();
+                    keepAlive = false;
+                    connection = "close";
+                } catch (RequestParseException e) {
+                    res = Response.builder()
+                            .withStatus(Status.BAD_REQUEST)
+                            .build();
+                    keepAlive = false;
+                    connection = "close";
+                }
+
+                long writeStart = System.nanoTime();
+                try {
+                    res.writeTo(os, connection);
+                } finally {
+                    res.getBody().release();
+                }
+                long writeEnd = System.nanoTime();
+                metrics.responded(res.getStatus(), writeEnd - writeStart);
+                metrics.received(is.getCount() - received);
+                metrics.sent(os.getCount() - sent);
+                if (accessLog != null) {
+                    accessLog.record(req, client.getInetAddress(), res.getStatus(), os.getCount() - sent,
+                            reader.startNanos(), writeStart, writeEnd);
+                }
+                received = is.getCount();
+                sent = os.getCount();
+                if (!keepAlive) {
+                    break;
+                }
+                // Pipelined requests that have already arrived get their responses batched into one write.
+                if (!reader.hasBufferedBytes() && is.available() == 0) {
+                    os.flush();
+                }
+            }
+            os.flush();
+        } finally {
+            openConnections.remove(conn);
+            reader.close();
+        }
+    }
+
+    // Turns away a connection the server has no capacity for.
+    void reject(Socket client) {
+        try (Socket socket = client) {
+            Response.builder()
+                    .withStatus(Status.SERVICE_UNAVAILABLE)
+                    .build()
+                    .writeTo(socket.getOutputStream(), "close");
+        } catch (IOException e) {
+            logger.atFine().withCause(e).log("failed to reject connection");
+        }
+    }
+
+    void notifyServerConnect(ServerSocket server) throws IOException {
         for (ServerListener listener : serverListeners) {
             listener.onServerConnect(server);
         }
+    }
 
-        for (int i = 0; i < numThreads; i++) {
-            executorService.submit(() -> {
-                while (true) {
-                    try (Socket client = queue.take()) {
-                        Response res;
-
-                        try {
-                            Request req = Request.parse(client.getInputStream());
-                            requestListeners.forEach(listener -> listener.onRequest(req));
-                            res = requestHandler.handle(req);
-                        } catch (RequestHandlerException e) {
-                            res = e.toResponse();
-                        } catch (RequestParseException e) {
-                            res = Response.builder()
-                                    .withStatus(Status.BAD_REQUEST)
-                                    .build();
-                        }
-
-                        res.writeTo(client.getOutputStream());
-                    }
+    void notifyServerDraining() {
+        for (ServerListener listener : serverListeners) {
+            listener.onServerDraining();
+        }
+    }
+
+    void notifyServerShutdown(ShutdownReport report) {
+        for (ServerListener listener : serverListeners) {
+            listener.onServerShutdown(report);
+        }
+    }
+
+    // Once the engine has stopped: nothing's left to time out.
+    void stopped() {
+        if (timeouts != null) {
+            timeouts.shutdownNow();
+        }
+        if (writeTimer != null) {
+            writeTimer.stop();
+        }
+        if (accessLog != null) {
+            try {
+                accessLog.close();
+            } catch (IOException e) {
+                logger.atWarning().withCause(e).log("failed to close access log");
+            }
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    int getSocketQueueLength() {
+        return socketQueueLength;
+    }
+
+    int getNumThreads() {
+        return numThreads;
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    OpenConnections getOpenConnections() {
+        return openConnections;
+    }
+
+    int getListenerShards() {
+        return listenerShards;
+    }
+
+    int getNumEventLoops() {
+        return numEventLoops;
+    }
+
+    Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    ClientLimits getClientLimits() {
+        return clientLimits;
+    }
+
+    int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    Tls getTls() {
+        return tls;
+    }
+
+    Http2 getHttp2() {
+        return http2;
+    }
+
+    // Null if there isn't one.
+    AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    Response respond(Request req) {
+        return respond(req, true);
+    }
+
+    // Runs the handler for req. mayWait says whether the calling thread can block waiting for
+    // admission control to let the request in. An AsyncRequestHandler's response is waited for,
+    // so the engines that don't block use respondAsync instead.
+    Response respond(Request req, boolean mayWait) {
+        if (asyncRequestHandler != null) {
+            return respondAsync(req, mayWait).join();
+        }
+
+        AdmissionControl.Permit permit = null;
+        try {
+            Response res = beforeHandler(req);
+            if (res != null) {
+                return res;
+            }
+            if (admissionControl != null) {
+                permit = admissionControl.admit(req, mayWait);
+                if (permit == null) {
+                    return admissionControl.overloaded(req);
                 }
-            });
+            }
+            long start = System.nanoTime();
+            try {
+                return handled(req, requestHandler.handle(req));
+            } finally {
+                metrics.handled(System.nanoTime() - start);
+            }
+        } catch (RequestHandlerException | RuntimeException e) {
+            return handlerFailed(req, e);
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
         }
+    }
 
-        while (true) {
-            Socket client = server.accept();
-            logger.atInfo().log("accepted connection from client %s", client);
-            queue.add(client);
+    // Like respond, but completing once the response is ready rather than waiting for it. The
+    // future never completes exceptionally: failures become error responses.
+    CompletableFuture<Response> respondAsync(Request req, boolean mayWait) {
+        if (asyncRequestHandler == null) {
+            return CompletableFuture.completedFuture(respond(req, mayWait));
         }
+
+        AdmissionControl.Permit permit = null;
+        long start = System.nanoTime();
+        CompletableFuture<Response> handled;
+        try {
+            Response res = beforeHandler(req);
+            if (res != null) {
+                return CompletableFuture.completedFuture(res);
+            }
+            if (admissionControl != null) {
+                permit = admissionControl.admit(req, mayWait);
+                if (permit == null) {
+                    return CompletableFuture.completedFuture(admissionControl.overloaded(req));
+                }
+            }
+            handled = asyncRequestHandler.handle(req).toCompletableFuture();
+        } catch (RequestHandlerException | RuntimeException e) {
+            if (permit != null) {
+                permit.release();
+            }
+            return CompletableFuture.completedFuture(handlerFailed(req, e));
+        }
+
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> timer = null;
+        if (timeouts != null && !handled.isDone()) {
+            timer = timeouts.schedule(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                // Cancelled before the 504 goes, so the handler's work stops as soon as it can.
+                timedOut.set(true);
+                handled.cancel(true);
+                if (result.complete(Response.builder().withStatus(Status.GATEWAY_TIMEOUT).build())) {
+                    metrics.timedOut();
+                }
+            }, requestTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        AdmissionControl.Permit heldPermit = permit;
+        ScheduledFuture<?> heldTimer = timer;
+        handled.whenComplete((res, error) -> {
+            if (heldTimer != null) {
+                heldTimer.cancel(false);
+            }
+            if (heldPermit != null) {
+                heldPermit.release();
+            }
+            metrics.handled(System.nanoTime() - start);
+            if (timedOut.get()) {
+                // The 504 goes instead.
+                if (res != null) {
+                    res.getBody().release();
+                }
+                return;
+            }
+            if (error == null) {
+                // Anything thrown here would be lost in the stage whenComplete returns, and the
+                // response never sent.
+                try {
+                    result.complete(handled(req, res));
+                } catch (RuntimeException e) {
+                    result.complete(handlerFailed(req, e));
+                }
+            } else {
+                result.complete(handlerFailed(req, error instanceof CompletionException ? error.getCause() : error));
+            }
+        });
+        return result;
+    }
+
+    // The response to send for res, the handler's own.
+    private Response handled(Request req, Response res) {
+        Preconditions.checkNotNull(res, "request handler returned no response");
+        return compression == null ? res : compression.apply(req, res);
+    }
+
+    // Listeners, and the response for requests that never reach the handler, if this is one.
+    private Response beforeHandler(Request req) {
+        requestListeners.forEach(listener -> listener.onRequest(req));
+        if (rateLimiter != null) {
+            Response limited = rateLimiter.check(req);
+            if (limited != null) {
+                return limited;
+            }
+        }
+        if (metricsEndpoint != null && metricsEndpoint.equals(req.getRequestUri())) {
+            return Response.builder()
+                    .addHeader(HeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4")
+                    .withBody(metrics.toPrometheusText())
+                    .build();
+        }
+        return null;
+    }
+
+    // The response for a handler that threw, or whose stage completed exceptionally, with e.
+    private Response handlerFailed(Request req, Throwable e) {
+        if (e instanceof RequestHandlerException) {
+            return ((RequestHandlerException) e).toResponse();
+        }
+        if (e instanceof UncheckedIOException && e.getCause() instanceof CharacterCodingException) {
+            // The handler asked for a body that isn't valid text in the request's charset.
+            return Response.builder()
+                    .withStatus(Status.BAD_REQUEST)
+                    .build();
+        }
+        if (e instanceof UncheckedIOException && e.getCause() instanceof SocketTimeoutException) {
+            // The client sent the body the handler was reading too slowly.
+            return Response.builder()
+                    .withStatus(Status.REQUEST_TIMEOUT)
+                    .build();
+        }
+        if (e instanceof CancellationException) {
+            // The handler gave up on its work, most likely because something it depends on did.
+            return Response.builder()
+                    .withStatus(Status.SERVICE_UNAVAILABLE)
+                    .build();
+        }
+        logger.atWarning().withCause(e).log("request handler failed for %s", req);
+        return Response.builder()
+                .withStatus(Status.INTERNAL_SERVER_ERROR)
+                .build();
+    }
+
+    private static ScheduledExecutorService newTimeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("http-request-timeouts-%d")
+                .setDaemon(true)
+                .build());
+        // Nearly every timeout is cancelled, and shouldn't sit in the queue until it would have fired.
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
     }
 
     public static Builder builder() {
@@ -77,28 +489,70 @@ public final class Server {
 
     public static final class Builder {
         private int port = 0;
-        private int socketQueueLength = 10;
+        private int socketQueueLength = 128;
+        private int listenerShards = 1;
         private RequestHandler requestHandler;
+        private AsyncRequestHandler asyncRequestHandler;
+        private Duration requestTimeout = null;
         private List<RequestListener> requestListeners = new ArrayList<>();
         private List<ServerListener> serverListeners = new ArrayList<>();
         private int numThreads = 1;
         private int queueSize = 1;
+        private Engine engine = Engine.BLOCKING;
+        private int numEventLoops = Runtime.getRuntime().availableProcessors();
+        private Executor handlerExecutor = null;
+        private Duration idleTimeout = Duration.ofSeconds(60);
+        private ClientLimits clientLimits = ClientLimits.builder().build();
+        private int maxRequestsPerConnection = 1000;
+        private int maxConnections = 10_000;
+        private OverloadPolicy overloadPolicy = OverloadPolicy.WAIT;
+        private AdmissionControl admissionControl = null;
+        private String metricsEndpoint = null;
+        private Compression compression = null;
+        private AccessLog accessLog = null;
+        private RateLimiter rateLimiter = null;
+        private Tls tls = null;
+        private Http2 http2 = null;
 
         public Builder withPort(int port) {
             this.port = port;
             return this;
         }
 
+        // The accept backlog of each listening socket, so of each shard when there are several.
         public Builder withSocketQueueLength(int socketQueueLength) {
             this.socketQueueLength = socketQueueLength;
             return this;
         }
 
+        /**
+         * Listens on this many sockets bound to the same port with SO_REUSEPORT, each accepting on
+         * its own thread, and lets the kernel spread new connections across them. Event loops, or
+         * the BLOCKING engine's workers, are divided between the shards, and on the BLOCKING engine
+         * each shard has its own queue of withQueueSize connections. Needs Java 9 or later on Linux.
+         */
+        public Builder withListenerShards(int listenerShards) {
+            this.listenerShards = listenerShards;
+            return this;
+        }
+
         public Builder withRequestHandler(RequestHandler requestHandler) {
             this.requestHandler = requestHandler;
             return this;
         }
 
+        // In place of a RequestHandler, for handlers that shouldn't hold a thread while they wait.
+        public Builder withAsyncRequestHandler(AsyncRequestHandler asyncRequestHandler) {
+            this.asyncRequestHandler = asyncRequestHandler;
+            return this;
+        }
+
+        // How long an AsyncRequestHandler has before it's cancelled and the client gets a 504.
+        public Builder withRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
         public Builder addRequestListener(RequestListener requestListener) {
             this.requestListeners.add(requestListener);
             return this;
@@ -119,18 +573,142 @@ public final class Server {
             return this;
         }
 
+        public Builder withEngine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        public Builder withEventLoops(int numEventLoops) {
+            this.numEventLoops = numEventLoops;
+            return this;
+        }
+
+        /**
+         * Runs request handlers on the given executor instead of the NIO event loop. Handlers that
+         * block should always be offloaded, otherwise they stall every connection on their loop.
+         */
+        public Builder withHandlerExecutor(Executor handlerExecutor) {
+            this.handlerExecutor = handlerExecutor;
+            return this;
+        }
+
+        // How long a keep-alive connection may sit between requests before it is closed.
+        public Builder withIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        // How slow and how large clients' requests may be, and how slowly they may take responses.
+        public Builder withClientLimits(ClientLimits clientLimits) {
+            this.clientLimits = clientLimits;
+            return this;
+        }
+
+        public Builder withMaxRequestsPerConnection(int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+            return this;
+        }
+
+        // The most connections the VIRTUAL_THREADS engine serves at once.
+        public Builder withMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * What to do with connections beyond what the server can take: more than maxConnections on
+         * the VIRTUAL_THREADS engine, or a full queue on the BLOCKING engine.
+         */
+        public Builder withOverloadPolicy(OverloadPolicy overloadPolicy) {
+            this.overloadPolicy = overloadPolicy;
+            return this;
+        }
+
+        // Limits how many requests run their handlers at once, turning away the rest. Off by default.
+        public Builder withAdmissionControl(AdmissionControl admissionControl) {
+            this.admissionControl = admissionControl;
+            return this;
+        }
+
+        // Serves the server's metrics, in the Prometheus text format, at the given path.
+        public Builder withMetricsEndpoint(String path) {
+            this.metricsEndpoint = path;
+            return this;
+        }
+
+        // Compresses handlers' responses for clients that accept it. Off by default.
+        public Builder withCompression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        // Turns away clients sending requests faster than the limiter allows. Off by default.
+        public Builder withRateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        // Logs every response the server writes. The log is closed when the server stops.
+        public Builder withAccessLog(AccessLog accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        // Serves HTTPS instead of HTTP. Only the NIO engine supports it.
+        public Builder withTls(Tls tls) {
+            this.tls = tls;
+            return this;
+        }
+
+        // Speaks HTTP/2 as well as HTTP/1.1. Only the NIO engine supports it.
+        public Builder withHttp2(Http2 http2) {
+            this.http2 = http2;
+            return this;
+        }
+
         public Server build() {
-            Preconditions.checkNotNull(requestHandler);
+            Preconditions.checkArgument((requestHandler == null) != (asyncRequestHandler == null),
+                    "exactly one of requestHandler and asyncRequestHandler must be set");
+            Preconditions.checkArgument(requestTimeout == null || asyncRequestHandler != null,
+                    "requestTimeout needs an asyncRequestHandler");
+            Preconditions.checkArgument(requestTimeout == null || (!requestTimeout.isNegative() && !requestTimeout.isZero()),
+                    "requestTimeout must be positive");
+            Preconditions.checkNotNull(engine);
+            Preconditions.checkNotNull(overloadPolicy);
+            Preconditions.checkNotNull(clientLimits);
+            Preconditions.checkArgument(numEventLoops > 0, "numEventLoops must be positive");
+            Preconditions.checkArgument(listenerShards > 0, "listenerShards must be positive");
+            Preconditions.checkArgument(listenerShards == 1 || Listeners.shardingSupported(),
+                    "listener shards need SO_REUSEPORT on Linux and Java 9 or later");
+            Preconditions.checkArgument(engine != Engine.NIO || numEventLoops >= listenerShards,
+                    "every listener shard needs an event loop");
+            Preconditions.checkArgument(engine != Engine.BLOCKING || numThreads >= listenerShards,
+                    "every listener shard needs a worker thread");
+            Preconditions.checkArgument(!idleTimeout.isNegative() && !idleTimeout.isZero(), "idleTimeout must be positive");
+            Preconditions.checkArgument(maxRequestsPerConnection > 0, "maxRequestsPerConnection must be positive");
+            Preconditions.checkArgument(maxConnections > 0, "maxConnections must be positive");
+            Preconditions.checkArgument(tls == null || engine == Engine.NIO, "TLS is only supported by the NIO engine");
+            Preconditions.checkArgument(http2 == null || engine == Engine.NIO, "HTTP/2 is only supported by the NIO engine");
+            Preconditions.checkArgument(tls == null || http2 != null || !tls.offers("h2"),
+                    "TLS offers h2 but HTTP/2 isn't enabled");
 
-            return new Server(port, socketQueueLength, requestHandler, requestListeners, serverListeners, numThreads, queueSize);
+            return new Server(this);
         }
     }
 
     public static void main(String... args) throws Exception {
-        Server.builder()
-            .addRequestListener(System.out::println)
+        ServerHandle server = Server.builder()
+            .withAccessLog(AccessLog.builder().addRequestListener(System.out::println).build())
             .withRequestHandler(req -> Response.builder().withBody("Hello, world!").build())
             .build()
             .start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.shutdown(Duration.ofSeconds(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        server.awaitShutdown();
     }
 }
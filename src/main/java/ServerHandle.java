@@ -0,0 +1,77 @@
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A running server, as returned by {@link Server#start()}. Shutting it down stops it accepting,
+ * lets requests in flight finish while closing idle keep-alive connections, and once the timeout
+ * runs out closes whatever's left and reports it.
+ */
+public final class ServerHandle {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    private final Server server;
+    private final RunningEngine engine;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private ShutdownReport report;
+
+    ServerHandle(Server server, RunningEngine engine) {
+        this.server = server;
+        this.engine = engine;
+    }
+
+    public int getPort() {
+        return engine.getPort();
+    }
+
+    /**
+     * Shuts the server down, giving connections up to timeout to finish the requests they're
+     * serving. Returns once its threads have stopped. Calling it again returns the first report.
+     */
+    public synchronized ShutdownReport shutdown(Duration timeout) throws InterruptedException {
+        Preconditions.checkArgument(!timeout.isNegative(), "timeout must not be negative");
+        if (report != null) {
+            return report;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        logger.atInfo().log("shutting down, waiting up to %s for requests in flight", timeout);
+        engine.drain();
+        server.notifyServerDraining();
+        while (remaining() > 0 && System.nanoTime() - deadline < 0) {
+            TimeUnit.MILLISECONDS.sleep(DRAIN_POLL_MILLIS);
+        }
+
+        long connectionsAbandoned = remaining();
+        int requestsAbandoned = engine.abandon();
+        engine.stop();
+        server.stopped();
+        report = new ShutdownReport(Duration.ofNanos(System.nanoTime() - start), connectionsAbandoned, requestsAbandoned);
+        if (report.isClean()) {
+            logger.atInfo().log("shut down in %s", report.getDuration());
+        } else {
+            logger.atWarning().log("shut down in %s, abandoning %d connections with %d requests in flight",
+                    report.getDuration(), connectionsAbandoned, requestsAbandoned);
+        }
+        server.notifyServerShutdown(report);
+        terminated.countDown();
+        return report;
+    }
+
+    // Waits for the server to be shut down, from another thread or a shutdown hook.
+    public void awaitShutdown() throws InterruptedException {
+        terminated.await();
+    }
+
+    // Connections open or waiting for a worker, as the metrics count them.
+    private long remaining() {
+        ServerMetrics metrics = server.getMetrics();
+        return metrics.getActiveConnections() + metrics.getQueueDepth();
+    }
+}
@@ -3,4 +3,12 @@ import java.net.ServerSocket;
 
 public interface ServerListener {
     void onServerConnect(ServerSocket socket) throws IOException;
+
+    // A shutdown has started: the server has stopped accepting and is finishing what's in flight.
+    default void onServerDraining() {
+    }
+
+    // The server has shut down, and its threads have stopped.
+    default void onServerShutdown(ShutdownReport report) {
+    }
 }
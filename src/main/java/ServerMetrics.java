@@ -0,0 +1,184 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for a server, updated from its hot paths. Everything is striped
+ * (LongAdder, LatencyHistogram) so recording doesn't contend between threads, and reading is done
+ * by pulling values from here, or as Prometheus text from the endpoint set with
+ * Server.Builder#withMetricsEndpoint.
+ */
+public final class ServerMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder queueDepth = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder requestsTimedOut = new LongAdder();
+    private final LongAdder clientsTimedOut = new LongAdder();
+    private final LongAdder[] responses = new LongAdder[Status.values().length];
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram handlerTime = new LatencyHistogram();
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+
+    ServerMetrics() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    void accepted() {
+        connectionsAccepted.increment();
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void enqueued() {
+        queueDepth.increment();
+    }
+
+    void dequeued(long waitNanos) {
+        queueDepth.decrement();
+        queueWait.record(waitNanos);
+    }
+
+    // Takes back an enqueued() for work that was never run.
+    void abandoned() {
+        queueDepth.decrement();
+    }
+
+    void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void parsed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    void handled(long nanos) {
+        handlerTime.record(nanos);
+    }
+
+    // An AsyncRequestHandler ran out of time.
+    void timedOut() {
+        requestsTimedOut.increment();
+    }
+
+    // A client was too slow sending a request, or taking a response, and was cut off.
+    void clientTimedOut() {
+        clientsTimedOut.increment();
+    }
+
+    void responded(Status status, long writeNanos) {
+        responses[status.ordinal()].increment();
+        writeTime.record(writeNanos);
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    // Connections (BLOCKING) or requests (NIO with a handler executor) waiting for a thread.
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getRequestsTimedOut() {
+        return requestsTimedOut.sum();
+    }
+
+    public long getClientsTimedOut() {
+        return clientsTimedOut.sum();
+    }
+
+    public long getResponses(Status status) {
+        return responses[status.ordinal()].sum();
+    }
+
+    public LatencyHistogram.Snapshot getQueueWait() {
+        return queueWait.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getParseTime() {
+        return parseTime.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getHandlerTime() {
+        return handlerTime.snapshot();
+    }
+
+    // From starting to write a response until the last of it is handed to the socket.
+    public LatencyHistogram.Snapshot getWriteTime() {
+        return writeTime.snapshot();
+    }
+
+    // The metrics in the Prometheus text exposition format.
+    String toPrometheusText() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "http_connections_accepted_total", getConnectionsAccepted());
+        gauge(sb, "http_connections_active", getActiveConnections());
+        gauge(sb, "http_queue_depth", getQueueDepth());
+        counter(sb, "http_received_bytes_total", getBytesReceived());
+        counter(sb, "http_sent_bytes_total", getBytesSent());
+        counter(sb, "http_requests_timed_out_total", getRequestsTimedOut());
+        counter(sb, "http_clients_timed_out_total", getClientsTimedOut());
+
+        sb.append("# TYPE http_responses_total counter\n");
+        for (Status status : Status.values()) {
+            sb.append("http_responses_total{status=\"").append(status.getStatus()).append("\"} ")
+                    .append(getResponses(status)).append('\n');
+        }
+
+        summary(sb, "http_queue_wait_seconds", getQueueWait());
+        summary(sb, "http_parse_seconds", getParseTime());
+        summary(sb, "http_handler_seconds", getHandlerTime());
+        summary(sb, "http_write_seconds", getWriteTime());
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, LatencyHistogram.Snapshot snapshot) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(snapshot.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        sb.append(name).append("_sum ").append(seconds(snapshot.getSumNanos())).append('\n');
+        sb.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+}
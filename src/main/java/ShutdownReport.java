@@ -0,0 +1,45 @@
+import java.time.Duration;
+
+/**
+ * What happened when a server shut down: how long it took, and what it had to give up on because
+ * it was still going when the shutdown's timeout ran out. A clean shutdown abandoned nothing.
+ */
+public final class ShutdownReport {
+    private final Duration duration;
+    private final long connectionsAbandoned;
+    private final int requestsAbandoned;
+
+    ShutdownReport(Duration duration, long connectionsAbandoned, int requestsAbandoned) {
+        this.duration = duration;
+        this.connectionsAbandoned = connectionsAbandoned;
+        this.requestsAbandoned = requestsAbandoned;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+
+    // Connections closed when time ran out, including ones accepted but still waiting for a worker.
+    public long getConnectionsAbandoned() {
+        return connectionsAbandoned;
+    }
+
+    // Requests that were being read or handled, or whose response was being written, when their
+    // connection was closed.
+    public int getRequestsAbandoned() {
+        return requestsAbandoned;
+    }
+
+    public boolean isClean() {
+        return connectionsAbandoned == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownReport{"
+                + "duration=" + duration
+                + ", connectionsAbandoned=" + connectionsAbandoned
+                + ", requestsAbandoned=" + requestsAbandoned
+                + '}';
+    }
+}
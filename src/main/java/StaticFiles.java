@@ -0,0 +1,473 @@
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the files under a directory, for GET and HEAD. Mounted on a Router as "/assets/{path*}"
+ * it serves the captured path; used on its own it serves the request's path.
+ *
+ * Files are looked up once and then served from what was found: small files from a copy of their
+ * contents held off the heap, larger ones straight from the page cache with transferTo, both with
+ * headers worked out in advance. A WatchService tells us when files change, so nothing is
+ * stat'ed per request. Where the platform's WatchService polls rather than being told by the
+ * kernel, as on macOS, changes can take a few seconds to show.
+ *
+ * Responses carry Content-Type, Last-Modified and an ETag, and honour If-None-Match,
+ * If-Modified-Since, and single byte Ranges with If-Range. Directories are served by their
+ * index.html. Paths that lead outside the directory, through ".." or symbolic links, are 404s.
+ */
+public final class StaticFiles implements RequestHandler, Closeable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final String INDEX = "index.html";
+    private static final String ALLOW = "GET, HEAD";
+    // What an entry costs in the cache on top of its contents.
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    // IMF-fixdate, which RFC_1123_DATE_TIME isn't quite: it drops the leading zero of the day.
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final ImmutableMap<String, String> CONTENT_TYPES = ImmutableMap.<String, String>builder()
+            .put("html", "text/html; charset=utf-8")
+            .put("htm", "text/html; charset=utf-8")
+            .put("css", "text/css; charset=utf-8")
+            .put("js", "text/javascript; charset=utf-8")
+            .put("mjs", "text/javascript; charset=utf-8")
+            .put("json", "application/json")
+            .put("map", "application/json")
+            .put("txt", "text/plain; charset=utf-8")
+            .put("csv", "text/csv; charset=utf-8")
+            .put("xml", "application/xml")
+            .put("svg", "image/svg+xml")
+            .put("png", "image/png")
+            .put("jpg", "image/jpeg")
+            .put("jpeg", "image/jpeg")
+            .put("gif", "image/gif")
+            .put("webp", "image/webp")
+            .put("avif", "image/avif")
+            .put("ico", "image/x-icon")
+            .put("woff", "font/woff")
+            .put("woff2", "font/woff2")
+            .put("ttf", "font/ttf")
+            .put("otf", "font/otf")
+            .put("wasm", "application/wasm")
+            .put("pdf", "application/pdf")
+            .put("zip", "application/zip")
+            .put("gz", "application/gzip")
+            .put("mp4", "video/mp4")
+            .put("webm", "video/webm")
+            .put("mp3", "audio/mpeg")
+            .build();
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final Path root;
+    private final String pathParam;
+    private final int maxCachedFileSize;
+    private final Cache<String, Entry> entries;
+    // Bumped by every change the watcher sees, so that a lookup racing one doesn't cache what it
+    // found from before it.
+    private final AtomicLong generation = new AtomicLong();
+    private final WatchService watcher;
+    private final ConcurrentMap<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Thread watchThread;
+
+    private StaticFiles(Builder builder) throws IOException {
+        this.root = builder.root.toRealPath();
+        this.pathParam = builder.pathParam;
+        this.maxCachedFileSize = builder.maxCachedFileSize;
+        this.entries = CacheBuilder.newBuilder()
+                .maximumWeight(builder.maxCacheSize)
+                .<String, Entry>weigher((path, entry) -> entry.weight())
+                .build();
+        this.watcher = root.getFileSystem().newWatchService();
+        watch(root);
+        this.watchThread = new Thread(this::processChanges, "static-files-watcher");
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public Response handle(Request req) {
+        String method = req.getMethod();
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            return Response.builder()
+                    .withStatus(Status.METHOD_NOT_ALLOWED)
+                    .addHeader(HeaderNames.ALLOW, ALLOW)
+                    .build();
+        }
+
+        Entry entry = lookup(relativePath(req));
+        if (entry == null) {
+            return Response.builder().withStatus(Status.NOT_FOUND).build();
+        }
+        String validated = notModified(req, entry);
+        if (validated != null) {
+            Response.Builder res = Response.builder()
+                    .withStatus(Status.NOT_MODIFIED)
+                    .addHeader(HeaderNames.ETAG, validated)
+                    .addHeader(HeaderNames.LAST_MODIFIED, entry.lastModified);
+            if (validated.equals(entry.etag)) {
+                // The size of the file the client already has, not of this response's body. A
+                // compressed copy's isn't known here, so goes unsaid.
+                res.addHeader(HeaderNames.CONTENT_LENGTH, String.valueOf(entry.size));
+            }
+            return res.build();
+        }
+
+        long[] range = range(req, entry);
+        if (range == UNSATISFIABLE) {
+            return Response.builder()
+                    .withStatus(Status.RANGE_NOT_SATISFIABLE)
+                    .addHeader(HeaderNames.CONTENT_RANGE, "bytes */" + entry.size)
+                    .build();
+        }
+        long start = range == null ? 0 : range[0];
+        long end = range == null ? entry.size : range[1];
+
+        Response.Builder res = Response.builder()
+                .withStatus(range == null ? Status.OK : Status.PARTIAL_CONTENT)
+                .addHeader(HeaderNames.CONTENT_TYPE, entry.contentType)
+                .addHeader(HeaderNames.LAST_MODIFIED, entry.lastModified)
+                .addHeader(HeaderNames.ETAG, entry.etag)
+                .addHeader(HeaderNames.ACCEPT_RANGES, "bytes");
+        if (range != null) {
+            res.addHeader(HeaderNames.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + entry.size);
+        }
+        if (head) {
+            return res.addHeader(HeaderNames.CONTENT_LENGTH, String.valueOf(end - start)).build();
+        }
+
+        if (entry.contents != null) {
+            ByteBuffer contents = entry.contents.duplicate();
+            contents.limit((int) end).position((int) start);
+            if (range == null) {
+                // Compression can keep compressed copies of it.
+                res.markStatic();
+            }
+            return res.withBody(contents).build();
+        }
+        try {
+            FileChannel file = FileChannel.open(entry.file, StandardOpenOption.READ);
+            return res.withBody(ResponseBody.of(file, start, end - start, true)).build();
+        } catch (IOException e) {
+            // Gone since we looked, and the watcher hasn't told us yet.
+            logger.atFine().withCause(e).log("failed to open %s", entry.file);
+            entries.invalidate(relativePath(req));
+            return Response.builder().withStatus(Status.NOT_FOUND).build();
+        }
+    }
+
+    // The path to serve, relative to the root, without its leading slashes.
+    private String relativePath(Request req) {
+        String path = req.getPathParam(pathParam);
+        if (path == null) {
+            // Decoded the way getPathParam would have.
+            String uri = req.getRequestUri();
+            path = Request.percentDecode(uri, 0, uri.length());
+        }
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    private Entry lookup(String path) {
+        Entry entry = entries.getIfPresent(path);
+        if (entry != null) {
+            return entry;
+        }
+        long seen = generation.get();
+        try {
+            entry = load(path);
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("failed to read %s", path);
+            return null;
+        }
+        // Misses aren't cached: the file may be being created, and it's up to the caller not to
+        // ask for files that don't exist.
+        if (entry != null && generation.get() == seen) {
+            entries.put(path, entry);
+        }
+        return entry;
+    }
+
+    private Entry load(String path) throws IOException {
+        Path file;
+        try {
+            file = root.resolve(path).normalize();
+            if (!file.startsWith(root)) {
+                return null;
+            }
+            if (Files.isDirectory(file)) {
+                file = file.resolve(INDEX);
+            }
+            // Symbolic links mustn't lead out of the root either.
+            file = file.toRealPath();
+        } catch (InvalidPathException | NoSuchFileException e) {
+            return null;
+        }
+        if (!file.startsWith(root)) {
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+
+        long size = attributes.size();
+        ByteBuffer contents = null;
+        if (size <= maxCachedFileSize) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                contents = ByteBuffer.allocateDirect((int) size);
+                while (contents.hasRemaining() && channel.read(contents) != -1) {
+                    // keep reading
+                }
+            }
+            // A file that changed size as we read it is cached as we found it; the watcher will
+            // have the rest.
+            contents.flip();
+            size = contents.remaining();
+        }
+        long modified = attributes.lastModifiedTime().toMillis();
+        return new Entry(file, size, contents, contentType(file),
+                HTTP_DATE.format(Instant.ofEpochMilli(modified)),
+                '"' + Long.toHexString(modified) + "-" + Long.toHexString(size) + '"');
+    }
+
+    private static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot == -1 ? null : CONTENT_TYPES.get(Ascii.toLowerCase(name.substring(dot + 1)));
+        return type == null ? DEFAULT_CONTENT_TYPE : type;
+    }
+
+    /**
+     * The tag to send with a 304 if req's copy is current, otherwise null. If-None-Match takes
+     * precedence, and uses weak comparison, also matching the tags of compressed copies;
+     * If-Modified-Since is to the second.
+     */
+    private static String notModified(Request req, Entry entry) {
+        String ifNoneMatch = req.getHeader(HeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : COMMA_SPLITTER.split(ifNoneMatch)) {
+                if (tag.equals("*") || opaque(tag).equals(entry.etag)) {
+                    return entry.etag;
+                }
+                if (Compression.identityTag(tag).equals(entry.etag)) {
+                    return opaque(tag);
+                }
+            }
+            return null;
+        }
+        String ifModifiedSince = req.getHeader(HeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null) {
+            return null;
+        }
+        try {
+            Instant since = Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(ifModifiedSince));
+            return Instant.from(HTTP_DATE.parse(entry.lastModified)).isAfter(since) ? null : entry.etag;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * The single byte range asked for, as {start, end} with end exclusive, or UNSATISFIABLE if it
+     * starts past the end of the file. Null for the whole file: there's no Range, or it's stale by
+     * If-Range, malformed, or asks for several ranges, which we're allowed to answer with it all.
+     */
+    private static long[] range(Request req, Entry entry) {
+        String header = req.getHeader(HeaderNames.RANGE);
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            return null;
+        }
+        String ifRange = req.getHeader(HeaderNames.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(entry.etag) && !ifRange.equals(entry.lastModified)) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            long size = entry.size;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return suffix == 0 ? UNSATISFIABLE : null;
+                }
+                return new long[] {Math.max(0, size - suffix), size};
+            }
+            long start = Long.parseLong(spec.substring(0, dash));
+            long last = dash == spec.length() - 1 ? Long.MAX_VALUE - 1 : Long.parseLong(spec.substring(dash + 1));
+            if (start < 0 || last < start) {
+                return null;
+            }
+            if (start >= size) {
+                return UNSATISFIABLE;
+            }
+            return new long[] {start, Math.min(last, size - 1) + 1};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Watches dir and every directory under it.
+    private void watch(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processChanges() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                generation.incrementAndGet();
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    entries.invalidateAll();
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                // Whatever was served from it, or from under it if it's a directory.
+                entries.asMap().values().removeIf(entry -> entry.file.startsWith(changed));
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        watch(changed);
+                    } catch (IOException e) {
+                        logger.atWarning().withCause(e).log("failed to watch %s, dropping the cache", changed);
+                        entries.invalidateAll();
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    // Stops watching for changes.
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        watchThread.interrupt();
+    }
+
+    private static final class Entry {
+        private final Path file;
+        private final long size;
+        // The file's contents if it's small enough to keep, otherwise null.
+        private final ByteBuffer contents;
+        private final String contentType;
+        private final String lastModified;
+        private final String etag;
+
+        private Entry(Path file, long size, ByteBuffer contents, String contentType, String lastModified, String etag) {
+            this.file = file;
+            this.size = size;
+            this.contents = contents;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        private int weight() {
+            return ENTRY_OVERHEAD + (contents == null ? 0 : contents.capacity());
+        }
+    }
+
+    public static final class Builder {
+        private Path root;
+        private String pathParam = "path";
+        private int maxCachedFileSize = 64 * 1024;
+        private long maxCacheSize = 64 * 1024 * 1024;
+
+        public Builder withRoot(Path root) {
+            this.root = root;
+            return this;
+        }
+
+        // The Router parameter holding the path to serve, "path" by default.
+        public Builder withPathParam(String pathParam) {
+            this.pathParam = pathParam;
+            return this;
+        }
+
+        // Files up to this size are kept in memory; larger ones are sent from the file each time.
+        public Builder withMaxCachedFileSize(int maxCachedFileSize) {
+            this.maxCachedFileSize = maxCachedFileSize;
+            return this;
+        }
+
+        // How many bytes of file contents to keep in memory, across all files.
+        public Builder withMaxCacheSize(long maxCacheSize) {
+            this.maxCacheSize = maxCacheSize;
+            return this;
+        }
+
+        // Starts watching the root for changes, until the StaticFiles is closed.
+        public StaticFiles build() throws IOException {
+            Preconditions.checkNotNull(root, "root must be set");
+            Preconditions.checkArgument(Files.isDirectory(root), "root must be a directory");
+            Preconditions.checkNotNull(pathParam);
+            Preconditions.checkArgument(maxCachedFileSize >= 0, "maxCachedFileSize must not be negative");
+            Preconditions.checkArgument(maxCacheSize >= 0, "maxCacheSize must not be negative");
+            return new StaticFiles(this);
+        }
+    }
+}
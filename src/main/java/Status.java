@@ -1,14 +1,29 @@
+import com.google.common.base.Charsets;
+
 public enum Status {
     OK(200, "OK"),
+    PARTIAL_CONTENT(206, "Partial Content"),
+    NOT_MODIFIED(304, "Not Modified"),
     BAD_REQUEST(400, "Bad Request"),
+    NOT_FOUND(404, "Not Found"),
+    METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
+    REQUEST_TIMEOUT(408, "Request Timeout"),
+    PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+    RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable"),
+    TOO_MANY_REQUESTS(429, "Too Many Requests"),
+    INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
+    SERVICE_UNAVAILABLE(503, "Service Unavailable"),
+    GATEWAY_TIMEOUT(504, "Gateway Timeout"),
     ;
 
     private final int status;
     private final String reasonPhrase;
+    private final byte[] statusLine;
 
     Status(int status, String reasonPhrase) {
         this.status = status;
         this.reasonPhrase = reasonPhrase;
+        this.statusLine = (this + "\r\n").getBytes(Charsets.US_ASCII);
     }
 
     public int getStatus() {
@@ -19,6 +34,11 @@ public enum Status {
         return reasonPhrase;
     }
 
+    // The encoded status line including its CRLF. Shared, so callers must not modify it.
+    byte[] getStatusLine() {
+        return statusLine;
+    }
+
     @Override
     public String toString() {
         return "HTTP/1.1 " + status + " " + reasonPhrase;
@@ -0,0 +1,47 @@
+import com.google.common.flogger.FluentLogger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+// A socket's output stream that closes the socket when a write has been stuck for longer than the
+// timeout, because the client isn't taking what it's sent. Blocking sockets can time out reads but
+// not writes, so this is how the blocking engines hold clients to ClientLimits' write timeout.
+final class TimedOutputStream extends FilterOutputStream {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final TimerThread timer;
+    private final long timeoutNanos;
+    private final TimerWheel.Timeout timeout;
+
+    TimedOutputStream(Socket socket, TimerThread timer, long timeoutNanos, ServerMetrics metrics) throws IOException {
+        super(socket.getOutputStream());
+        this.timer = timer;
+        this.timeoutNanos = timeoutNanos;
+        this.timeout = new TimerWheel.Timeout(() -> {
+            logger.atFine().log("write to %s timed out, closing", socket);
+            metrics.clientTimedOut();
+            try {
+                // Fails the stuck write.
+                socket.close();
+            } catch (IOException e) {
+                logger.atFine().withCause(e).log("failed to close %s", socket);
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        timer.schedule(timeout, System.nanoTime() + timeoutNanos);
+        try {
+            out.write(b, off, len);
+        } finally {
+            timer.cancel(timeout);
+        }
+    }
+}
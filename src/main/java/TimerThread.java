@@ -0,0 +1,48 @@
+import java.util.concurrent.TimeUnit;
+
+// A TimerWheel any thread can schedule on, advanced by a thread of its own. The blocking engines
+// share one, as their threads can't advance a wheel while they're blocked on a socket. Timeouts
+// run on the timer's thread, so they should be quick.
+final class TimerThread {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final TimerWheel wheel = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), WHEEL_SIZE, System.nanoTime());
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    TimerThread(String name) {
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    synchronized void schedule(TimerWheel.Timeout timeout, long deadlineNanos) {
+        wheel.schedule(timeout, deadlineNanos);
+    }
+
+    synchronized void cancel(TimerWheel.Timeout timeout) {
+        wheel.cancel(timeout);
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            synchronized (this) {
+                wheel.advance(System.nanoTime());
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * A hashed timer wheel, for the timeouts every connection has and hardly any reach. Each bucket
+ * holds the timeouts due in one tick, so scheduling and cancelling are constant time whatever the
+ * number of connections, and a Timeout is its own list node, so neither allocates. Moving a
+ * timeout later, which is what connections mostly do, only changes its deadline: it's moved to
+ * the right bucket when its old one comes round. Timeouts run up to a tick late, never early.
+ *
+ * Not thread safe. Each event loop has its own and advances it between selects.
+ */
+final class TimerWheel {
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long originNanos;
+    // The next tick to run the bucket of, counted from originNanos.
+    private long tick = 0;
+    private int size = 0;
+
+    // numBuckets is rounded up to a power of two.
+    TimerWheel(long tickNanos, int numBuckets, long nowNanos) {
+        int length = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.buckets = new Timeout[length];
+        this.mask = length - 1;
+        this.originNanos = nowNanos;
+    }
+
+    // Schedules t to run at deadlineNanos, moving it if it's already scheduled.
+    void schedule(Timeout t, long deadlineNanos) {
+        if (t.bucket != -1) {
+            if (deadlineNanos - t.deadlineNanos >= 0) {
+                t.deadlineNanos = deadlineNanos;
+                return;
+            }
+            unlink(t);
+        }
+        t.deadlineNanos = deadlineNanos;
+        link(t);
+    }
+
+    void cancel(Timeout t) {
+        if (t.bucket != -1) {
+            unlink(t);
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Runs the timeouts that are due by nowNanos, returning how many ran.
+    int advance(long nowNanos) {
+        long nowTick = (nowNanos - originNanos) / tickNanos;
+        int ran = 0;
+        if (nowTick - tick > buckets.length) {
+            // Every bucket's due for a look, and one lap looks at them all.
+            tick = nowTick - buckets.length;
+        }
+        // A tick's bucket is only run once it's over, so that nothing in it is early.
+        for (; tick < nowTick && size > 0; tick++) {
+            int index = (int) (tick & mask);
+            Timeout t = buckets[index];
+            buckets[index] = null;
+            while (t != null) {
+                Timeout next = t.next;
+                t.bucket = -1;
+                t.prev = null;
+                t.next = null;
+                size--;
+                if (t.deadlineNanos - nowNanos > 0) {
+                    // Moved later since it was put here, or due a lap or more from now.
+                    link(t);
+                } else {
+                    ran++;
+                    t.task.run();
+                }
+                t = next;
+            }
+        }
+        tick = Math.max(tick, nowTick);
+        return ran;
+    }
+
+    private void link(Timeout t) {
+        long deadlineTick = Math.max(tick, (t.deadlineNanos - originNanos) / tickNanos);
+        int index = (int) (deadlineTick & mask);
+        t.bucket = index;
+        t.prev = null;
+        t.next = buckets[index];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[index] = t;
+        size++;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[t.bucket] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.bucket = -1;
+        t.prev = null;
+        t.next = null;
+        size--;
+    }
+
+    // Something to run at a deadline, which can be scheduled on one wheel at a time, over and over.
+    static final class Timeout {
+        private final Runnable task;
+        private long deadlineNanos;
+        private int bucket = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        boolean isScheduled() {
+            return bucket != -1;
+        }
+    }
+}
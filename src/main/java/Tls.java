@@ -0,0 +1,140 @@
+import com.google.common.base.Preconditions;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Serves HTTPS on the NIO engine, terminating TLS in the server rather than in a proxy in front
+ * of it. The certificate comes from a KeyStore, or from an SSLContext set up elsewhere.
+ *
+ * Full handshakes are expensive, so sessions are kept in the context's session cache for
+ * sessionTimeout, up to sessionCacheSize of them, and returning clients resume them with an
+ * abbreviated handshake. On JDKs with stateless session tickets
+ * (jdk.tls.server.enableSessionTicketExtension) resumption uses those instead, and doesn't need
+ * the cache at all.
+ *
+ * ALPN offers the application protocols given, in order of preference; http/1.1 by default. "h2"
+ * can be offered once the server has HTTP/2 enabled.
+ */
+public final class Tls {
+    private final SSLContext sslContext;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final String[] applicationProtocols;
+
+    private Tls(Builder builder, SSLContext sslContext) {
+        this.sslContext = sslContext;
+        this.protocols = builder.protocols;
+        this.cipherSuites = builder.cipherSuites;
+        this.applicationProtocols = builder.applicationProtocols;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    boolean offers(String applicationProtocol) {
+        return Arrays.asList(applicationProtocols).contains(applicationProtocol);
+    }
+
+    // An engine for one new connection.
+    SSLEngine newEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters params = engine.getSSLParameters();
+        if (protocols != null) {
+            params.setProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            params.setCipherSuites(cipherSuites);
+            // Our order, not the client's, so the suites listed first are the ones used.
+            params.setUseCipherSuitesOrder(true);
+        }
+        params.setApplicationProtocols(applicationProtocols);
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    public static final class Builder {
+        private KeyStore keyStore;
+        private char[] keyPassword;
+        private SSLContext sslContext;
+        private String[] protocols;
+        private String[] cipherSuites;
+        private String[] applicationProtocols = {"http/1.1"};
+        private int sessionCacheSize = 10_000;
+        private Duration sessionTimeout = Duration.ofHours(1);
+
+        // The server's certificate chain and private key, protected by keyPassword.
+        public Builder withKeyStore(KeyStore keyStore, char[] keyPassword) {
+            this.keyStore = keyStore;
+            this.keyPassword = keyPassword;
+            return this;
+        }
+
+        // Uses a context that's already been initialized instead of one made from a KeyStore.
+        public Builder withSslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        // The TLS versions to allow, such as TLSv1.3 and TLSv1.2. The JDK's defaults otherwise.
+        public Builder withProtocols(String... protocols) {
+            this.protocols = protocols.clone();
+            return this;
+        }
+
+        // The cipher suites to allow, most preferred first. The JDK's defaults otherwise.
+        public Builder withCipherSuites(String... cipherSuites) {
+            this.cipherSuites = cipherSuites.clone();
+            return this;
+        }
+
+        public Builder withApplicationProtocols(String... applicationProtocols) {
+            this.applicationProtocols = applicationProtocols.clone();
+            return this;
+        }
+
+        // The most sessions kept for resumption; 0 for no limit.
+        public Builder withSessionCacheSize(int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        // How long a session can be resumed for after it was made.
+        public Builder withSessionTimeout(Duration sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+            return this;
+        }
+
+        public Tls build() throws GeneralSecurityException {
+            Preconditions.checkArgument(keyStore != null ^ sslContext != null,
+                    "exactly one of keyStore and sslContext must be given");
+            Preconditions.checkArgument(sessionCacheSize >= 0, "sessionCacheSize must not be negative");
+            Preconditions.checkArgument(!sessionTimeout.isNegative() && !sessionTimeout.isZero(),
+                    "sessionTimeout must be positive");
+            Preconditions.checkArgument(applicationProtocols.length > 0, "applicationProtocols must not be empty");
+            Preconditions.checkArgument(!Arrays.asList(applicationProtocols).contains(null),
+                    "applicationProtocols must not contain null");
+
+            SSLContext context = sslContext;
+            if (context == null) {
+                KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keyStore, keyPassword);
+                context = SSLContext.getInstance("TLS");
+                context.init(keyManagers.getKeyManagers(), null, null);
+            }
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout((int) Math.min(sessionTimeout.getSeconds(), Integer.MAX_VALUE));
+            return new Tls(this, context);
+        }
+    }
+}
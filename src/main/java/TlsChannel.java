@@ -0,0 +1,292 @@
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking SocketChannel with TLS in between, for NioConnection. There's no separate
+ * handshake step: reads drive it, and return 0 until it's done and application data arrives.
+ *
+ * Writes encrypt as much as fits in a record-sized buffer and send what the socket will take. The
+ * rest waits here, so a response isn't sent until flush returns true, and decrypted bytes the
+ * caller had no room for wait here too, where the selector can't see them: see hasBufferedInput.
+ *
+ * The network and application buffers are leased from BufferPool.HEAP at the session's packet
+ * and application buffer sizes, and given back whenever they're empty, so an idle connection
+ * holds none of them. Delegated tasks run on the calling thread; for a server that doesn't ask
+ * for client certificates they're short.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // Encrypted bytes read from the socket and not yet decrypted, from position 0.
+    private ByteBuffer netIn;
+    // Decrypted bytes not yet read, from position 0.
+    private ByteBuffer appIn;
+    // Encrypted bytes the socket hasn't taken yet, from position 0.
+    private ByteBuffer netOut;
+    private boolean inboundDone = false;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        try {
+            while (true) {
+                drainAppIn(dst);
+                if (!dst.hasRemaining()) {
+                    break;
+                }
+                if (inboundDone) {
+                    return dst.position() > start ? dst.position() - start : -1;
+                }
+
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(new ByteBuffer[] {ByteBuffer.allocate(0)}, 0, 1);
+                    if (!flush()) {
+                        break;
+                    }
+                } else if (!unwrap()) {
+                    if (netIn == null) {
+                        netIn = BufferPool.HEAP.lease(session().getPacketBufferSize());
+                    }
+                    int read = channel.read(netIn);
+                    if (read == -1) {
+                        // Closed without a close_notify: fine between requests, a truncation otherwise.
+                        inboundDone = true;
+                    } else if (read == 0) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            netIn = releaseIfEmpty(netIn);
+            appIn = releaseIfEmpty(appIn);
+        }
+        return dst.position() - start;
+    }
+
+    private void drainAppIn(ByteBuffer dst) {
+        if (appIn == null || appIn.position() == 0) {
+            return;
+        }
+        appIn.flip();
+        if (appIn.remaining() <= dst.remaining()) {
+            dst.put(appIn);
+        } else {
+            ByteBuffer part = appIn.duplicate();
+            part.limit(part.position() + dst.remaining());
+            dst.put(part);
+            appIn.position(part.position());
+        }
+        appIn.compact();
+    }
+
+    // Decrypts what's in netIn into appIn. Returns false if that needs more bytes from the socket.
+    private boolean unwrap() throws IOException {
+        if (netIn == null || netIn.position() == 0) {
+            return false;
+        }
+        if (appIn == null) {
+            appIn = BufferPool.HEAP.lease(session().getApplicationBufferSize());
+        }
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining()) {
+                    // A record bigger than the session first said to expect.
+                    netIn = grow(netIn, session().getPacketBufferSize());
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                appIn = grow(appIn, session().getApplicationBufferSize());
+                return true;
+            case CLOSED:
+                inboundDone = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        // Records already made go first, and nothing more is taken until they have.
+        if (!flush()) {
+            return 0;
+        }
+        long consumed = wrap(srcs, offset, length);
+        flush();
+        return consumed;
+    }
+
+    // Encrypts srcs into netOut until they're empty or it's full, returning the bytes consumed.
+    private long wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (netOut == null) {
+            netOut = BufferPool.HEAP.lease(session().getPacketBufferSize());
+        }
+        long consumed = 0;
+        while (true) {
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            consumed += result.bytesConsumed();
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    if (netOut.position() > 0) {
+                        return consumed;
+                    }
+                    netOut = grow(netOut, session().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    if (consumed == 0 && hasRemaining(srcs, offset, length)) {
+                        throw new ClosedChannelException();
+                    }
+                    return consumed;
+                default:
+                    if (!hasRemaining(srcs, offset, length)
+                            || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                        return consumed;
+                    }
+            }
+        }
+    }
+
+    // Sends encrypted bytes waiting for the socket, returning whether they've all gone.
+    boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        netOut = releaseIfEmpty(netOut);
+        return netOut == null;
+    }
+
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    // Whether reading now would return data without the socket becoming readable: decrypted bytes
+    // there wasn't room for, or a whole record still to decrypt.
+    boolean hasBufferedInput() {
+        if (appIn != null && appIn.position() > 0) {
+            return true;
+        }
+        if (netIn == null || netIn.position() < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        int length = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+        return netIn.position() >= RECORD_HEADER_SIZE + length;
+    }
+
+    String getApplicationProtocol() {
+        return engine.getApplicationProtocol();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Says goodbye with a close_notify if the socket will take it without waiting, then closes.
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                engine.closeOutbound();
+                if (flush()) {
+                    wrap(new ByteBuffer[] {ByteBuffer.allocate(0)}, 0, 1);
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            // The socket is going either way.
+        } finally {
+            netIn = release(netIn);
+            appIn = release(appIn);
+            netOut = release(netOut);
+            channel.close();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private SSLSession session() {
+        SSLSession session = engine.getHandshakeSession();
+        return session != null ? session : engine.getSession();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer larger = BufferPool.HEAP.lease(Math.max(atLeast, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.HEAP.release(buffer);
+        return larger;
+    }
+
+    private static ByteBuffer releaseIfEmpty(ByteBuffer buffer) {
+        return buffer != null && buffer.position() == 0 ? release(buffer) : buffer;
+    }
+
+    private static ByteBuffer release(ByteBuffer buffer) {
+        if (buffer != null) {
+            BufferPool.HEAP.release(buffer);
+        }
+        return null;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "TlsChannel{" + channel + "}";
+    }
+}
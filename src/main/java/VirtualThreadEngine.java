@@ -0,0 +1,127 @@
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+final class VirtualThreadEngine implements RunningEngine {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final Server server;
+    // One permit per connection the server may be serving at once.
+    private final Semaphore permits;
+    private final ThreadFactory threadFactory = VirtualThreads.factory("http-connection-");
+    private final List<Thread> acceptors = new ArrayList<>();
+    private List<ServerSocket> sockets;
+    private volatile boolean draining = false;
+
+    VirtualThreadEngine(Server server) {
+        this.server = server;
+        this.permits = new Semaphore(server.getMaxConnections());
+    }
+
+    VirtualThreadEngine start() throws IOException {
+        sockets = Listeners.bindSockets(server);
+        server.notifyServerConnect(sockets.get(0));
+
+        // Every shard gets an acceptor thread of its own, sharing the one limit on connections.
+        ThreadFactory acceptorFactory = new ThreadFactoryBuilder()
+                .setNameFormat("http-acceptor-%d")
+                .build();
+        for (ServerSocket socket : sockets) {
+            Thread acceptor = acceptorFactory.newThread(() -> {
+                try {
+                    acceptLoop(socket);
+                } catch (IOException e) {
+                    if (!draining) {
+                        logger.atSevere().withCause(e).log("acceptor failed");
+                    }
+                }
+            });
+            acceptors.add(acceptor);
+            acceptor.start();
+        }
+        return this;
+    }
+
+    @Override
+    public int getPort() {
+        return sockets.get(0).getLocalPort();
+    }
+
+    @Override
+    public void drain() {
+        draining = true;
+        Listeners.closeAll(sockets);
+        Listeners.awaitAcceptors(acceptors);
+        server.getOpenConnections().drain();
+    }
+
+    @Override
+    public int abandon() {
+        return server.getOpenConnections().abandon();
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        for (Thread acceptor : acceptors) {
+            // An acceptor waiting for a connection permit is woken by this.
+            acceptor.interrupt();
+            acceptor.join();
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) throws IOException {
+        try {
+            while (true) {
+                if (server.getOverloadPolicy() == OverloadPolicy.WAIT) {
+                    permits.acquire();
+                    accept(serverSocket);
+                    continue;
+                }
+
+                Socket client = serverSocket.accept();
+                server.getMetrics().accepted();
+                if (permits.tryAcquire()) {
+                    start(client);
+                } else {
+                    server.reject(client);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept(ServerSocket serverSocket) throws IOException {
+        Socket client;
+        try {
+            client = serverSocket.accept();
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        }
+        server.getMetrics().accepted();
+        start(client);
+    }
+
+    private void start(Socket client) {
+        ServerMetrics metrics = server.getMetrics();
+        metrics.connectionOpened();
+        threadFactory.newThread(() -> {
+            try (Socket socket = client) {
+                server.serve(socket);
+            } catch (IOException e) {
+                logger.atFine().withCause(e).log("connection failed");
+            } finally {
+                metrics.connectionClosed();
+                permits.release();
+            }
+        }).start();
+    }
+}
@@ -0,0 +1,55 @@
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+// Virtual threads arrived in Java 21, and this project still builds for Java 8, so they are looked
+// up reflectively. On older runtimes this falls back to one platform thread per task.
+final class VirtualThreads {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+    // Thread.isVirtual, or null before Java 21.
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private VirtualThreads() {
+    }
+
+    static ThreadFactory factory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            logger.atWarning().log("virtual threads are unavailable on Java %s, using platform threads",
+                    System.getProperty("java.version"));
+            return new ThreadFactoryBuilder()
+                    .setNameFormat(namePrefix + "%d")
+                    .setDaemon(true)
+                    .build();
+        }
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.mashape.unirest.http.Unirest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class AccessLogTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<String> listened = new CopyOnWriteArrayList<>();
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("access-log-test");
+        file = dir.resolve("access.log");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test
+    public void blockingEngineLogsResponses() throws Exception {
+        logsResponses(Engine.BLOCKING);
+    }
+
+    @Test
+    public void nioEngineLogsResponses() throws Exception {
+        logsResponses(Engine.NIO);
+    }
+
+    private void logsResponses(Engine engine) throws Exception {
+        Server.Builder builder = Server.builder();
+        if (engine == Engine.NIO) {
+            builder.withHandlerExecutor(executor);
+        }
+        ServerHandle handle = builder
+                .withEngine(engine)
+                .withEventLoops(1)
+                .withNumThreads(4)
+                .withAccessLog(AccessLog.builder()
+                        .withFile(file)
+                        .addRequestListener(req -> listened.add(Thread.currentThread().getName() + " " + req.getRequestUri()))
+                        .build())
+                .withRequestHandler(req -> Response.builder().withBody("hello").build())
+                .build()
+                .start();
+        String base = "http://localhost:" + handle.getPort();
+        assertThat(Unirest.get(base + "/a?x=1").asString().getBody()).isEqualTo("hello");
+        assertThat(Unirest.post(base + "/b").body("body").asString().getStatus()).isEqualTo(200);
+        try (Socket socket = new Socket("localhost", handle.getPort())) {
+            socket.getOutputStream().write("nonsense\r\n\r\n".getBytes(Charsets.US_ASCII));
+            assertThat(new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII)).startsWith("HTTP/1.1 400 ");
+        }
+        handle.shutdown(Duration.ofSeconds(1));
+
+        List<String> lines = Files.readAllLines(file, Charsets.UTF_8);
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).matches("\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z\","
+                + "\"peer\":\"127\\.0\\.0\\.1\",\"method\":\"GET\",\"path\":\"/a\",\"protocol\":\"HTTP/1\\.1\","
+                + "\"status\":200,\"bytes\":\\d+,\"duration_us\":\\d+,\"write_us\":\\d+}");
+        assertThat(lines.get(1)).contains("\"method\":\"POST\",\"path\":\"/b\"");
+        assertThat(lines.get(2)).contains("\"method\":null,\"path\":null,\"protocol\":null,\"status\":400");
+        assertThat(listened).containsExactly("access-log-writer /a", "access-log-writer /b").inOrder();
+    }
+
+    @Test
+    public void dropsEntriesWhenFull() throws Exception {
+        AccessLog log = AccessLog.builder()
+                .withFile(file)
+                .withBufferSize(4)
+                .withFlushInterval(Duration.ofMinutes(1))
+                .build();
+        // Let the writer go to sleep, so nothing's drained while we fill the buffer.
+        TimeUnit.MILLISECONDS.sleep(100);
+        for (int i = 0; i < 10; i++) {
+            record(log, "/" + i);
+        }
+        assertThat(log.getDropped()).isEqualTo(6);
+        log.close();
+        assertThat(Files.readAllLines(file, Charsets.UTF_8)).hasSize(4);
+    }
+
+    @Test
+    public void rotatesFiles() throws Exception {
+        AccessLog log = AccessLog.builder()
+                .withFile(file)
+                .withRotation(100, 2)
+                .withFlushInterval(Duration.ofMillis(10))
+                .build();
+        for (int i = 0; i < 5; i++) {
+            record(log, "/" + i);
+            // One to a batch, so each goes to a file of its own.
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        log.close();
+
+        assertThat(Files.readAllLines(file, Charsets.UTF_8).get(0)).contains("\"path\":\"/4\"");
+        assertThat(Files.readAllLines(dir.resolve("access.log.1"), Charsets.UTF_8).get(0)).contains("\"path\":\"/3\"");
+        assertThat(Files.readAllLines(dir.resolve("access.log.2"), Charsets.UTF_8).get(0)).contains("\"path\":\"/2\"");
+        assertThat(Files.exists(dir.resolve("access.log.3"))).isFalse();
+    }
+
+    @Test
+    public void escapesStrings() throws Exception {
+        AccessLog log = AccessLog.builder().withFile(file).build();
+        record(log, "/\"quoted\"\\\u0001");
+        log.close();
+        assertThat(Files.readAllLines(file, Charsets.UTF_8).get(0)).contains("\"path\":\"/\\\"quoted\\\"\\\\\\u0001\"");
+    }
+
+    private static void record(AccessLog log, String uri) {
+        Request req = Request.builder().withMethod("GET").withRequestUri(uri).withHttpVersion("HTTP/1.1").build();
+        long now = System.nanoTime();
+        log.record(req, null, Status.OK, 10, now, now, now);
+    }
+}
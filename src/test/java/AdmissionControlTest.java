@@ -0,0 +1,84 @@
+import com.google.common.collect.ArrayListMultimap;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class AdmissionControlTest {
+    @Test
+    public void routeLimitAppliesToLongestPrefix() {
+        AdmissionControl admission = AdmissionControl.builder()
+                .withRouteLimit("/api", 10)
+                .withRouteLimit("/api/slow", 1)
+                .withMaxQueueWait(Duration.ofMillis(10))
+                .build();
+
+        AdmissionControl.Permit slow = admission.admit(request("/api/slow/1"), true);
+        assertThat(slow).isNotNull();
+        assertThat(admission.admit(request("/api/slow/2"), true)).isNull();
+        assertThat(admission.admit(request("/api/fast"), true)).isNotNull();
+        assertThat(admission.admit(request("/other"), true)).isNotNull();
+        // Prefixes only match whole segments.
+        assertThat(admission.admit(request("/api/slowest"), true)).isNotNull();
+        assertThat(admission.admit(request("/api/slow"), true)).isNull();
+
+        slow.release();
+        assertThat(admission.admit(request("/api/slow/2"), true)).isNotNull();
+    }
+
+    @Test
+    public void queueingOnRouteDoesNotHoldServerSlots() throws Exception {
+        AdmissionControl admission = AdmissionControl.builder()
+                .withMaxConcurrentRequests(2)
+                .withRouteLimit("/slow", 1)
+                .withMaxQueueWait(Duration.ofSeconds(1))
+                .build();
+
+        AdmissionControl.Permit slow = admission.admit(request("/slow/1"), true);
+        assertThat(slow).isNotNull();
+        Thread waiter = new Thread(() -> admission.admit(request("/slow/2"), true));
+        waiter.start();
+        Thread.sleep(50);
+
+        // The second server slot is still free for other routes while /slow/2 waits.
+        AdmissionControl.Permit fast = admission.admit(request("/fast"), false);
+        assertThat(fast).isNotNull();
+        fast.release();
+        slow.release();
+        waiter.join();
+    }
+
+    @Test
+    public void serverLimitRejectsWithRetryAfter() throws Exception {
+        AdmissionControl admission = AdmissionControl.builder()
+                .withMaxConcurrentRequests(1)
+                .withMaxQueueWait(Duration.ofMillis(10))
+                .withRetryAfter(Duration.ofSeconds(5))
+                .build();
+
+        assertThat(admission.admit(request("/"), true)).isNotNull();
+        Request rejected = request("/");
+        assertThat(admission.admit(rejected, true)).isNull();
+
+        Response res = admission.overloaded(rejected);
+        assertThat(res.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(res.getHeaders().getAll(HeaderNames.RETRY_AFTER)).containsExactly("5");
+    }
+
+    @Test
+    public void staleRequestsAreRejected() throws Exception {
+        AdmissionControl admission = AdmissionControl.builder()
+                .withMaxQueueWait(Duration.ofMillis(10))
+                .build();
+        Request req = request("/");
+
+        Thread.sleep(20);
+
+        assertThat(admission.admit(req, true)).isNull();
+    }
+
+    private static Request request(String uri) {
+        return new Request("GET", uri, "HTTP/1.1", new Headers(), ArrayListMultimap.create(), "");
+    }
+}
@@ -0,0 +1,134 @@
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class AsyncServerTest {
+    // Stands in for a slow downstream service, completing responses some time after they're asked for.
+    private final ScheduledExecutorService downstream = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<CompletableFuture<Response>> hung = new AtomicReference<>();
+    private ServerHandle server;
+    private int port;
+
+    private void start(Engine engine) throws Exception {
+        server = Server.builder()
+                .withEngine(engine)
+                .withEventLoops(1)
+                .withRequestTimeout(Duration.ofMillis(500))
+                .withAsyncRequestHandler(req -> {
+                    CompletableFuture<Response> res = new CompletableFuture<>();
+                    switch (req.getRequestUri()) {
+                        case "/hang":
+                            hung.set(res);
+                            break;
+                        case "/fail":
+                            res.completeExceptionally(RequestHandlerException.builder()
+                                    .withStatus(Status.NOT_FOUND)
+                                    .withMessage("no such thing")
+                                    .build());
+                            break;
+                        case "/null":
+                            downstream.schedule(() -> res.complete(null), 10, TimeUnit.MILLISECONDS);
+                            break;
+                        case "/cancel":
+                            downstream.schedule(() -> res.cancel(false), 10, TimeUnit.MILLISECONDS);
+                            break;
+                        default:
+                            downstream.schedule(() -> res.complete(Response.builder()
+                                    .withBody("done " + req.getRequestUri())
+                                    .build()), 100, TimeUnit.MILLISECONDS);
+                    }
+                    return res;
+                })
+                .build()
+                .start();
+        port = server.getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.shutdown(Duration.ofSeconds(1));
+        downstream.shutdown();
+    }
+
+    @Test
+    public void manyRequestsWaitWithoutThreads() throws Exception {
+        start(Engine.NIO);
+
+        // One event loop and no handler executor, yet they all wait at once.
+        List<Socket> sockets = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 200; i++) {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("GET /" + i + " HTTP/1.1\r\nConnection: close\r\n\r\n")
+                        .getBytes(Charsets.US_ASCII));
+                sockets.add(socket);
+            }
+            for (int i = 0; i < sockets.size(); i++) {
+                String response = new String(ByteStreams.toByteArray(sockets.get(i).getInputStream()), Charsets.US_ASCII);
+                assertThat(response).startsWith("HTTP/1.1 200 OK\r\n");
+                assertThat(response).endsWith("done /" + i);
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(4000L);
+    }
+
+    @Test
+    public void slowHandlersTimeOut() throws Exception {
+        start(Engine.NIO);
+
+        assertThat(exchange("GET /hang HTTP/1.1\r\nConnection: close\r\n\r\n"))
+                .startsWith("HTTP/1.1 504 Gateway Timeout\r\n");
+        assertThat(hung.get().isCancelled()).isTrue();
+    }
+
+    @Test
+    public void failuresBecomeResponses() throws Exception {
+        start(Engine.NIO);
+
+        assertThat(exchange("GET /fail HTTP/1.1\r\nConnection: close\r\n\r\n"))
+                .isEqualTo("HTTP/1.1 404 Not Found\r\nContent-Length: 13\r\nConnection: close\r\n\r\nno such thing");
+        assertThat(exchange("GET /cancel HTTP/1.1\r\nConnection: close\r\n\r\n"))
+                .startsWith("HTTP/1.1 503 Service Unavailable\r\n");
+        // A stage completed with no response mustn't leave the connection waiting forever.
+        assertThat(exchange("GET /null HTTP/1.1\r\nConnection: close\r\n\r\n"))
+                .startsWith("HTTP/1.1 500 Internal Server Error\r\n");
+    }
+
+    @Test
+    public void blockingEngineWaitsForTheResponse() throws Exception {
+        start(Engine.BLOCKING);
+
+        assertThat(exchange("GET /a HTTP/1.1\r\nConnection: close\r\n\r\n")).endsWith("done /a");
+        assertThat(exchange("GET /hang HTTP/1.1\r\nConnection: close\r\n\r\n"))
+                .startsWith("HTTP/1.1 504 Gateway Timeout\r\n");
+    }
+
+    private String exchange(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(Charsets.US_ASCII));
+            return new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+        }
+    }
+}
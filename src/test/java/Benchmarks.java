@@ -0,0 +1,105 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs every benchmark suite, each in a fresh JVM so one suite's JIT profile doesn't skew the next,
+ * then compares the scores with a baseline from an earlier run if one is given. Run it with
+ * "mvn -Pbenchmarks verify", which passes through these properties:
+ *
+ *   bench.include       regex of suites to run
+ *   bench.results       CSV file to write scores to, for use as a later baseline
+ *   bench.baseline      CSV file of an earlier run to compare against
+ *   bench.threshold     percentage change, beyond the runs' error, that counts as a regression
+ *                       (default 10)
+ *   bench.failOnRegression  exit non-zero if anything regressed
+ *
+ * along with the bench.* and load.* settings of MicroBenchmark, LoadGenerator and ConnectBenchmark.
+ */
+public class Benchmarks {
+    private static final String[] SUITES = {
+            "RequestParserBenchmark", "ResponseBenchmark", "RouterBenchmark", "StaticFilesBenchmark", "RateLimiterBenchmark",
+            "LoadGenerator", "ConnectBenchmark"};
+
+    public static void main(String... args) throws Exception {
+        Pattern include = Pattern.compile(System.getProperty("bench.include", ".*"));
+        String resultsProperty = System.getProperty("bench.results", "");
+        Path results = resultsProperty.isEmpty() ? Files.createTempFile("benchmarks", ".csv") : Paths.get(resultsProperty);
+        Files.deleteIfExists(results);
+        Files.createFile(results);
+
+        for (String suite : SUITES) {
+            if (!include.matcher(suite).find()) {
+                continue;
+            }
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("bench.") || name.startsWith("load.")) {
+                    command.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            command.add("-Dbench.results=" + results);
+            command.add(suite);
+
+            int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (exit != 0) {
+                throw new IllegalStateException(suite + " exited with " + exit);
+            }
+        }
+
+        String baseline = System.getProperty("bench.baseline", "");
+        if (!baseline.isEmpty() && compare(read(Paths.get(baseline)), read(results))
+                && Boolean.getBoolean("bench.failOnRegression")) {
+            System.exit(1);
+        }
+        System.out.println("# results written to " + results.toAbsolutePath());
+    }
+
+    // Prints the change in every score and returns whether any got worse by more than the threshold.
+    private static boolean compare(Map<String, String[]> baseline, Map<String, String[]> current) {
+        double threshold = Double.parseDouble(System.getProperty("bench.threshold", "10"));
+        boolean regressed = false;
+        System.out.println();
+        System.out.println(Strings.padEnd("Benchmark", 60, ' ') + "    Baseline     Current   Change");
+        for (Map.Entry<String, String[]> entry : current.entrySet()) {
+            String[] before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            double was = Double.parseDouble(before[1]);
+            double now = Double.parseDouble(entry.getValue()[1]);
+            String unit = entry.getValue()[3];
+            double change = was == 0 ? 0 : (now - was) / was * 100;
+            // A change within the runs' combined error is noise, whatever its size.
+            boolean significant = Math.abs(now - was) > Double.parseDouble(before[2]) + Double.parseDouble(entry.getValue()[2]);
+            // Throughput is better higher; times and allocation are better lower.
+            boolean worse = significant && (unit.endsWith("/s") ? change < -threshold : change > threshold);
+            regressed |= worse;
+            System.out.println(String.format(Locale.ROOT, "%s %11.1f %11.1f %+7.1f%% %s%s",
+                    Strings.padEnd(entry.getKey(), 60, ' '), was, now, change, unit, worse ? "  REGRESSION" : ""));
+        }
+        return regressed;
+    }
+
+    private static Map<String, String[]> read(Path csv) throws Exception {
+        Map<String, String[]> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(csv, Charsets.UTF_8)) {
+            String[] fields = Splitter.on(',').splitToList(line).toArray(new String[0]);
+            scores.put(fields[0], fields);
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,50 @@
+import com.google.common.base.Charsets;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BodyDecoderTest {
+    @Test
+    public void decodesChunksSplitAcrossReads() throws Exception {
+        byte[] encoded = "5;ext=1\r\nhello\r\n7\r\n, world\r\n0\r\nTrailer: x\r\n\r\nGET".getBytes(Charsets.US_ASCII);
+        BodyDecoder decoder = BodyDecoder.chunked();
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        ByteBuffer src = ByteBuffer.wrap(encoded);
+
+        for (int i = 0; i < encoded.length && !decoder.isComplete(); i++) {
+            src.limit(i + 1);
+            decoder.decode(src, dst);
+        }
+
+        assertThat(decoder.isComplete()).isTrue();
+        assertThat(new String(dst.array(), 0, dst.position(), Charsets.US_ASCII)).isEqualTo("hello, world");
+        src.limit(encoded.length);
+        assertThat(src.remaining()).isEqualTo(3);
+    }
+
+    @Test
+    public void stopsWhenDestinationIsFull() throws Exception {
+        BodyDecoder decoder = BodyDecoder.fixed(10);
+        ByteBuffer src = ByteBuffer.wrap("0123456789".getBytes(Charsets.US_ASCII));
+        ByteBuffer dst = ByteBuffer.allocate(4);
+
+        decoder.decode(src, dst);
+        assertThat(decoder.isComplete()).isFalse();
+        assertThat(src.remaining()).isEqualTo(6);
+
+        dst.clear();
+        decoder.decode(src, ByteBuffer.allocate(6));
+        assertThat(decoder.isComplete()).isTrue();
+    }
+
+    @Test
+    public void rejectsInvalidChunkSize() {
+        BodyDecoder decoder = BodyDecoder.chunked();
+        ByteBuffer src = ByteBuffer.wrap("zz\r\nhello\r\n".getBytes(Charsets.US_ASCII));
+
+        assertThrows(RequestParseException.class, () -> decoder.decode(src, ByteBuffer.allocate(64)));
+    }
+}
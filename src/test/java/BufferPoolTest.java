@@ -0,0 +1,65 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(false, true);
+
+    @Test
+    public void leasesRoundUpToSizeClasses() {
+        assertThat(pool.lease(0).capacity()).isEqualTo(1024);
+        assertThat(pool.lease(1024).capacity()).isEqualTo(1024);
+        assertThat(pool.lease(1025).capacity()).isEqualTo(2048);
+        assertThat(pool.lease(8000).capacity()).isEqualTo(8192);
+        assertThat(pool.lease(2 * 1024 * 1024).capacity()).isEqualTo(2 * 1024 * 1024);
+        assertThat(new BufferPool(true, false).lease(100).isDirect()).isTrue();
+    }
+
+    @Test
+    public void releasedBuffersAreReusedCleared() {
+        ByteBuffer buffer = pool.lease(4096);
+        buffer.put((byte) 1).limit(10);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.lease(3000);
+        assertThat(again).isSameAs(buffer);
+        assertThat(again.position()).isEqualTo(0);
+        assertThat(again.limit()).isEqualTo(again.capacity());
+        pool.release(again);
+    }
+
+    @Test
+    public void buffersReleasedOnOneThreadCanBeLeasedOnAnother() throws Exception {
+        // More than a thread keeps for itself, so the rest go to the shared pool.
+        ByteBuffer[] buffers = new ByteBuffer[8];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.lease(64 * 1024);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+
+        ByteBuffer[] leased = new ByteBuffer[1];
+        Thread thread = new Thread(() -> leased[0] = pool.lease(64 * 1024));
+        thread.start();
+        thread.join();
+        assertThat(leased[0]).isIn(java.util.Arrays.asList(buffers));
+    }
+
+    @Test
+    public void detectsLeaksAndBadReleases() {
+        ByteBuffer buffer = pool.lease(100);
+        assertThat(pool.outstanding()).isEqualTo(1);
+        assertThat(pool.leaks().get(0).getStackTrace()[1].getMethodName()).isEqualTo("detectsLeaksAndBadReleases");
+
+        ByteBuffer slice = buffer.slice();
+        assertThrows(IllegalStateException.class, () -> pool.release(slice));
+        pool.release(buffer);
+        assertThat(pool.outstanding()).isEqualTo(0);
+        assertThrows(IllegalStateException.class, () -> pool.release(buffer));
+        assertThrows(IllegalStateException.class, () -> pool.release(ByteBuffer.allocate(1024)));
+    }
+}
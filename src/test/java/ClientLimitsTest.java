@@ -0,0 +1,171 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ClientLimitsTest {
+    private static final byte[] LARGE = new byte[32 * 1024 * 1024];
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private Server server;
+    private ServerHandle handle;
+
+    private void start(Engine engine) throws IOException {
+        Server.Builder builder = Server.builder();
+        if (engine == Engine.NIO) {
+            builder.withHandlerExecutor(executor);
+        }
+        server = builder
+                .withEngine(engine)
+                .withEventLoops(1)
+                .withNumThreads(2)
+                .withClientLimits(ClientLimits.builder()
+                        .withHeaderTimeout(Duration.ofSeconds(1))
+                        .withMinBodyRate(1000, Duration.ofMillis(500))
+                        .withWriteTimeout(Duration.ofMillis(500))
+                        .withMaxHeaderCount(2)
+                        .build())
+                .withRequestHandler(req -> {
+                    if (req.getRequestUri().equals("/large")) {
+                        return Response.builder().withBody(LARGE).build();
+                    }
+                    return Response.builder().withBody("read " + req.getBody().length()).build();
+                })
+                .build();
+        handle = server.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        handle.shutdown(Duration.ofSeconds(1));
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void blockingEngineTimesOutSlowHeaders() throws Exception {
+        start(Engine.BLOCKING);
+        timesOutSlowHeaders();
+    }
+
+    @Test
+    public void nioEngineTimesOutSlowHeaders() throws Exception {
+        start(Engine.NIO);
+        timesOutSlowHeaders();
+    }
+
+    @Test
+    public void blockingEngineTimesOutSlowBodies() throws Exception {
+        start(Engine.BLOCKING);
+        timesOutSlowBody();
+    }
+
+    @Test
+    public void nioEngineTimesOutSlowBodies() throws Exception {
+        start(Engine.NIO);
+        timesOutSlowBody();
+    }
+
+    @Test
+    public void blockingEngineTimesOutSlowReaders() throws Exception {
+        start(Engine.BLOCKING);
+        timesOutSlowReader();
+    }
+
+    @Test
+    public void nioEngineTimesOutSlowReaders() throws Exception {
+        start(Engine.NIO);
+        timesOutSlowReader();
+    }
+
+    @Test
+    public void rejectsTooManyHeaders() throws Exception {
+        start(Engine.NIO);
+        try (Socket socket = new Socket("localhost", handle.getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n".getBytes(Charsets.US_ASCII));
+            assertThat(new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII))
+                    .startsWith("HTTP/1.1 400 ");
+        }
+    }
+
+    // A client that keeps sending headers, but not fast enough to finish them in time, gets a 408.
+    private void timesOutSlowHeaders() throws Exception {
+        try (Socket socket = new Socket("localhost", handle.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream os = socket.getOutputStream();
+            os.write("GET / HTTP/1.1\r\n".getBytes(Charsets.US_ASCII));
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < 50 && socket.getInputStream().available() == 0; i++) {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                    os.write('X');
+                }
+            } catch (SocketException e) {
+                // Closed on us mid-drip, the 408 may still be there to read.
+            }
+            String response = new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+            assertThat(response).startsWith("HTTP/1.1 408 ");
+            assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(3));
+        }
+        assertThat(server.getMetrics().getClientsTimedOut()).isEqualTo(1);
+    }
+
+    // A body too large to be read before the handler runs, arriving at a fraction of the minimum rate.
+    private void timesOutSlowBody() throws Exception {
+        try (Socket socket = new Socket("localhost", handle.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream os = socket.getOutputStream();
+            os.write("POST / HTTP/1.1\r\nContent-Length: 100000\r\n\r\n".getBytes(Charsets.US_ASCII));
+            byte[] trickle = Strings.repeat("x", 10).getBytes(Charsets.US_ASCII);
+            try {
+                for (int i = 0; i < 50 && socket.getInputStream().available() == 0; i++) {
+                    os.write(trickle);
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+            } catch (SocketException e) {
+                // Closed on us mid-trickle.
+            }
+            assertClosed(socket.getInputStream());
+        }
+        assertThat(server.getMetrics().getClientsTimedOut()).isEqualTo(1);
+    }
+
+    // A client that asks for a large response and never reads it has its connection closed.
+    private void timesOutSlowReader() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", handle.getPort()));
+            socket.getOutputStream().write("GET /large HTTP/1.1\r\n\r\n".getBytes(Charsets.US_ASCII));
+            for (int i = 0; i < 50 && server.getMetrics().getClientsTimedOut() == 0; i++) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            assertThat(server.getMetrics().getClientsTimedOut()).isEqualTo(1);
+        }
+    }
+
+    // Reads whatever the server sent until it closed the connection, or reset it.
+    private static void assertClosed(InputStream is) throws IOException {
+        try {
+            String response = new String(ByteStreams.toByteArray(is), Charsets.US_ASCII);
+            if (!response.isEmpty()) {
+                assertThat(response).startsWith("HTTP/1.1 408 ");
+            }
+        } catch (SocketException e) {
+            // Reset, as the rest of the body was left unread.
+        }
+    }
+}
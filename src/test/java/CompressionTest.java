@@ -0,0 +1,188 @@
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CompressionTest {
+    private static final String TEXT = Strings.repeat("Hello, world! ", 200);
+
+    private final Compression compression = Compression.builder().build();
+
+    @Test
+    public void negotiatesByQuality() {
+        assertThat(Compression.negotiate(null)).isNull();
+        assertThat(Compression.negotiate("gzip, deflate, br")).isEqualTo("gzip");
+        assertThat(Compression.negotiate("deflate")).isEqualTo("deflate");
+        assertThat(Compression.negotiate("gzip;q=0.5, deflate")).isEqualTo("deflate");
+        assertThat(Compression.negotiate("GZIP;Q=0.8")).isEqualTo("gzip");
+        assertThat(Compression.negotiate("gzip;q=0, *")).isEqualTo("deflate");
+        assertThat(Compression.negotiate("*;q=0")).isNull();
+        assertThat(Compression.negotiate("identity, br")).isNull();
+        assertThat(Compression.negotiate("gzip;q=nonsense")).isNull();
+    }
+
+    @Test
+    public void gzipRoundTrips() throws Exception {
+        Response res = compression.apply(request("gzip, deflate"), text(TEXT).build());
+
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_ENCODING)).containsExactly("gzip");
+        assertThat(res.getHeaders().getAll(HeaderNames.VARY)).containsExactly(HeaderNames.ACCEPT_ENCODING);
+        byte[] body = res.getBody().array();
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_LENGTH)).containsExactly(String.valueOf(body.length));
+        assertThat(body.length).isLessThan(TEXT.length());
+        assertThat(decode(new GZIPInputStream(new ByteArrayInputStream(body)))).isEqualTo(TEXT);
+    }
+
+    @Test
+    public void deflateRoundTrips() throws Exception {
+        Response res = compression.apply(request("deflate"), text(TEXT).build());
+
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_ENCODING)).containsExactly("deflate");
+        assertThat(decode(new InflaterInputStream(new ByteArrayInputStream(res.getBody().array())))).isEqualTo(TEXT);
+    }
+
+    @Test
+    public void leavesSmallAndIncompressibleBodiesAlone() {
+        Response small = text("short").build();
+        assertThat(compression.apply(request("gzip"), small)).isSameAs(small);
+
+        Response image = Response.builder()
+                .addHeader(HeaderNames.CONTENT_TYPE, "image/png")
+                .withBody(new byte[4096])
+                .build();
+        assertThat(compression.apply(request("gzip"), image)).isSameAs(image);
+
+        Response encoded = text(TEXT).addHeader(HeaderNames.CONTENT_ENCODING, "br").build();
+        assertThat(compression.apply(request("gzip"), encoded)).isSameAs(encoded);
+
+        // Random bytes don't shrink, so they go out as they are, still marked as varying.
+        byte[] noise = new byte[4096];
+        new Random(0).nextBytes(noise);
+        Response random = Response.builder().withBody(noise).build();
+        Response res = compression.apply(request("gzip"), random);
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_ENCODING)).isEmpty();
+        assertThat(res.getHeaders().getAll(HeaderNames.VARY)).containsExactly(HeaderNames.ACCEPT_ENCODING);
+        assertThat(res.getBody().array()).isSameAs(noise);
+    }
+
+    @Test
+    public void variesEvenWhenClientDoesNotAccept() {
+        Response original = text(TEXT).build();
+        Response res = compression.apply(request(null), original);
+
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_ENCODING)).isEmpty();
+        assertThat(res.getHeaders().getAll(HeaderNames.VARY)).containsExactly(HeaderNames.ACCEPT_ENCODING);
+        assertThat(original.getHeaders().getAll(HeaderNames.VARY)).isEmpty();
+    }
+
+    @Test
+    public void encodedCopiesHaveTagsOfTheirOwn() {
+        Response original = text(TEXT).addHeader(HeaderNames.ETAG, "\"abc\"").build();
+        Response gzipped = compression.apply(request("gzip"), original);
+        Response deflated = compression.apply(request("deflate"), original);
+
+        assertThat(gzipped.getHeaders().getAll(HeaderNames.ETAG)).containsExactly("\"abc-gzip\"");
+        assertThat(deflated.getHeaders().getAll(HeaderNames.ETAG)).containsExactly("\"abc-deflate\"");
+        assertThat(original.getHeaders().getAll(HeaderNames.ETAG)).containsExactly("\"abc\"");
+
+        assertThat(Compression.identityTag("W/\"abc-gzip\"")).isEqualTo("\"abc\"");
+        assertThat(Compression.identityTag("\"abc-deflate\"")).isEqualTo("\"abc\"");
+        assertThat(Compression.identityTag("\"abc\"")).isEqualTo("\"abc\"");
+    }
+
+    @Test
+    public void staticBodiesAreCompressedOnce() {
+        Response first = compression.apply(request("gzip"), staticText(TEXT, "\"1\"").build());
+        Response second = compression.apply(request("gzip"), staticText(TEXT, "\"1\"").build());
+        Response deflated = compression.apply(request("deflate"), staticText(TEXT, "\"1\"").build());
+        Response changed = compression.apply(request("gzip"), staticText(TEXT, "\"2\"").build());
+        // Without an ETag there's nothing to know the body by, so it's compressed afresh.
+        Response untagged = compression.apply(request("gzip"), text(TEXT).markStatic().build());
+        Response untaggedAgain = compression.apply(request("gzip"), text(TEXT).markStatic().build());
+
+        assertThat(second.getBody().array()).isSameAs(first.getBody().array());
+        assertThat(deflated.getBody().array()).isNotSameAs(first.getBody().array());
+        assertThat(changed.getBody().array()).isNotSameAs(first.getBody().array());
+        assertThat(untaggedAgain.getBody().array()).isNotSameAs(untagged.getBody().array());
+    }
+
+    @Test
+    public void staticDirectBodiesAreCompressedOnce() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(TEXT.length());
+        direct.put(TEXT.getBytes(StandardCharsets.UTF_8)).flip();
+        Response first = compression.apply(request("gzip"), staticBody(direct.duplicate(), "\"1\"").build());
+        assertThat(decode(new GZIPInputStream(new ByteArrayInputStream(first.getBody().array())))).isEqualTo(TEXT);
+
+        Response second = compression.apply(request("gzip"), staticBody(direct.duplicate(), "\"1\"").build());
+        assertThat(second.getBody().array()).isSameAs(first.getBody().array());
+    }
+
+    @Test
+    public void streamedBodiesAreCompressedAndChunked() throws Exception {
+        Response original = Response.builder()
+                .addHeader(HeaderNames.CONTENT_TYPE, "text/plain")
+                .withBody(os -> {
+                    for (int i = 0; i < 100; i++) {
+                        os.write(TEXT.getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                    }
+                    os.close();
+                })
+                .build();
+        Response res = compression.apply(request("gzip"), original);
+
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_ENCODING)).containsExactly("gzip");
+        assertThat(res.getHeaders().getAll(HeaderNames.TRANSFER_ENCODING)).containsExactly("chunked");
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_LENGTH)).isEmpty();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        res.getBody().writeTo(out);
+        BodyDecoder decoder = BodyDecoder.chunked();
+        ByteBuffer decoded = ByteBuffer.allocate(out.size());
+        decoder.decode(ByteBuffer.wrap(out.toByteArray()), decoded);
+        assertThat(decoder.isComplete()).isTrue();
+        assertThat(decode(new GZIPInputStream(new ByteArrayInputStream(decoded.array(), 0, decoded.position()))))
+                .isEqualTo(Strings.repeat(TEXT, 100));
+    }
+
+    private static Response.Builder text(String body) {
+        return Response.builder()
+                .addHeader(HeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8")
+                .withBody(body);
+    }
+
+    private static Response.Builder staticText(String body, String etag) {
+        return text(body).addHeader(HeaderNames.ETAG, etag).markStatic();
+    }
+
+    private static Response.Builder staticBody(ByteBuffer body, String etag) {
+        return Response.builder()
+                .addHeader(HeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8")
+                .addHeader(HeaderNames.ETAG, etag)
+                .withBody(body)
+                .markStatic();
+    }
+
+    private static Request request(String acceptEncoding) {
+        Headers headers = new Headers();
+        if (acceptEncoding != null) {
+            headers.add(HeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        }
+        return new Request("GET", "/", "HTTP/1.1", headers, ArrayListMultimap.create(), "");
+    }
+
+    private static String decode(InputStream in) throws Exception {
+        return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class ConcurrencyLimiterTest {
+    @Test
+    public void waitsUntilDeadline() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(1);
+        assertThat(limiter.tryAcquire()).isTrue();
+
+        long start = System.nanoTime();
+        assertThat(limiter.acquire(start + TimeUnit.MILLISECONDS.toNanos(50))).isFalse();
+        assertThat(System.nanoTime() - start).isAtLeast(TimeUnit.MILLISECONDS.toNanos(50));
+
+        limiter.release(0);
+        assertThat(limiter.acquire(System.nanoTime())).isTrue();
+    }
+
+    @Test
+    public void releaseWakesWaiter() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(1);
+        limiter.tryAcquire();
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            limiter.release(0);
+        });
+        releaser.start();
+
+        assertThat(limiter.acquire(System.nanoTime() + TimeUnit.SECONDS.toNanos(5))).isTrue();
+        releaser.join();
+    }
+
+    @Test
+    public void waitersAllGetSlotsWithoutExceedingLimit() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(2);
+        AtomicInteger maxSeen = new AtomicInteger();
+        AtomicInteger admitted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    try {
+                        if (limiter.acquire(System.nanoTime() + TimeUnit.SECONDS.toNanos(10))) {
+                            maxSeen.accumulateAndGet(limiter.getInFlight(), Math::max);
+                            admitted.incrementAndGet();
+                            limiter.release(0);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(admitted.get()).isEqualTo(8000);
+        assertThat(maxSeen.get()).isAtMost(2);
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void adaptiveLimitGrowsWhileFastAndBacksOffWhenSlow() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.adaptive(2, 100);
+
+        for (int i = 0; i < 500; i++) {
+            // Keep the limiter saturated so it has reason to grow.
+            while (limiter.tryAcquire()) {
+            }
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        int grown = limiter.getLimit();
+        assertThat(grown).isGreaterThan(2);
+
+        limiter.tryAcquire();
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(limiter.getLimit()).isLessThan(grown);
+
+        // One cut per round trip, so sustained slowness takes a while to bring it to the floor.
+        for (int i = 0; i < 400; i++) {
+            limiter.tryAcquire();
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void burstOfSlowRequestsCutsLimitOnce() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.adaptive(2, 100);
+        for (int i = 0; i < 500; i++) {
+            while (limiter.tryAcquire()) {
+            }
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        int grown = limiter.getLimit();
+        while (limiter.tryAcquire()) {
+        }
+
+        // The requests in flight come back slow together, as when a dependency slows down.
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        int cut = limiter.getLimit();
+        assertThat(cut).isLessThan(grown);
+        for (int i = 1; i < cut; i++) {
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertThat(limiter.getLimit()).isEqualTo(cut);
+        // The next round trip is still slow, so it's cut again.
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(limiter.getLimit()).isLessThan(cut);
+    }
+}
@@ -0,0 +1,99 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many short-lived connections a server can take a second, each opened, sent one
+ * request and read to the close, against the number of listener shards. Where LoadGenerator keeps
+ * its connections open, this mostly exercises accepting.
+ *
+ * Configured with -Dload.engines (default BLOCKING,NIO,VIRTUAL_THREADS), -Dload.shards (1,2,4),
+ * -Dload.concurrency (64), -Dload.warmup and -Dload.duration (seconds, default 3 and 10). Shard
+ * counts above 1 are skipped where SO_REUSEPORT isn't available.
+ */
+public class ConnectBenchmark {
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+            .getBytes(Charsets.US_ASCII);
+
+    private final int concurrency = Integer.getInteger("load.concurrency", 64);
+    private final long warmupNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.warmup", 3));
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.duration", 10));
+
+    private ServerHandle startServer(Engine engine, int shards) throws IOException {
+        return Server.builder()
+                .withEngine(engine)
+                .withListenerShards(shards)
+                .withEventLoops(Math.max(shards, Runtime.getRuntime().availableProcessors()))
+                .withNumThreads(Math.max(shards, concurrency))
+                .withQueueSize(concurrency)
+                .withSocketQueueLength(concurrency)
+                .withRequestHandler(req -> Response.builder().withBody("Hello, world!").build())
+                .build()
+                .start();
+    }
+
+    private void run(Engine engine, int shards, MicroBenchmark results) throws Exception {
+        ServerHandle server = startServer(engine, shards);
+        int port = server.getPort();
+        AtomicLong completed = new AtomicLong();
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread client = new Thread(() -> {
+                try {
+                    while (true) {
+                        long opened = System.nanoTime();
+                        if (opened >= end) {
+                            return;
+                        }
+                        try (Socket socket = new Socket("localhost", port)) {
+                            socket.setTcpNoDelay(true);
+                            socket.getOutputStream().write(REQUEST);
+                            ByteStreams.exhaust(socket.getInputStream());
+                        }
+                        if (opened >= measureFrom) {
+                            completed.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "connect-benchmark-client-" + i);
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        server.shutdown(Duration.ofSeconds(1));
+
+        results.record(engine.name().toLowerCase() + ".shards-" + shards + ".connections",
+                completed.get() / (durationNanos / 1e9), "conn/s");
+    }
+
+    public static void main(String... args) throws Exception {
+        ConnectBenchmark benchmark = new ConnectBenchmark();
+        MicroBenchmark results = new MicroBenchmark("ConnectBenchmark");
+        for (String engine : Splitter.on(',').trimResults().split(System.getProperty("load.engines", "BLOCKING,NIO,VIRTUAL_THREADS"))) {
+            for (String shards : Splitter.on(',').trimResults().split(System.getProperty("load.shards", "1,2,4"))) {
+                if (Integer.parseInt(shards) > 1 && !Listeners.shardingSupported()) {
+                    System.out.println("# skipping " + shards + " shards, SO_REUSEPORT is unavailable");
+                    continue;
+                }
+                benchmark.run(Engine.valueOf(engine), Integer.parseInt(shards), results);
+            }
+        }
+        results.report();
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class HeadersTest {
+    @Test
+    public void lookupsIgnoreCaseAndKeepOrder() {
+        Headers headers = new Headers()
+                .add("set-cookie", "a=1")
+                .add("X-Custom", "x")
+                .add("Set-Cookie", "b=2");
+
+        assertThat(headers.get("SET-COOKIE")).isEqualTo("a=1");
+        assertThat(headers.getAll("Set-Cookie")).containsExactly("a=1", "b=2").inOrder();
+        assertThat(headers.get("x-custom")).isEqualTo("x");
+        assertThat(headers.get("Missing")).isNull();
+        assertThat(headers.getAll("Missing")).isEmpty();
+        assertThat(headers.name(0)).isSameAs(HeaderNames.SET_COOKIE);
+        assertThat(headers.name(1)).isEqualTo("X-Custom");
+    }
+
+    @Test
+    public void setReplacesAndRemoveTakesEveryValue() {
+        Headers headers = new Headers(1)
+                .add("Vary", "Accept")
+                .add("Content-Length", "10")
+                .add("vary", "Origin");
+
+        headers.set("Content-Length", "20");
+        assertThat(headers.getAll("Content-Length")).containsExactly("20");
+
+        assertThat(headers.remove("VARY")).isTrue();
+        assertThat(headers.remove("VARY")).isFalse();
+        assertThat(headers.size()).isEqualTo(1);
+        assertThat(headers.name(0)).isEqualTo("Content-Length");
+
+        Headers copy = new Headers(headers);
+        headers.clear();
+        assertThat(headers.isEmpty()).isTrue();
+        assertThat(copy.get("content-length")).isEqualTo("20");
+    }
+
+    @Test
+    public void equalityIgnoresNameCase() {
+        Headers a = new Headers().add("X-Thing", "1");
+        Headers b = new Headers().add("x-thing", "1");
+
+        assertThat(a).isEqualTo(b);
+        assertThat(a.hashCode()).isEqualTo(b.hashCode());
+        assertThat(a).isNotEqualTo(new Headers().add("X-Thing", "2"));
+    }
+
+    @Test
+    public void canonicalNamesFromRawBytes() {
+        byte[] raw = "xxcontent-lengthx-unknown".getBytes();
+
+        assertThat(HeaderNames.canonical(raw, 2, 16)).isSameAs(HeaderNames.CONTENT_LENGTH);
+        assertThat(HeaderNames.canonical(raw, 16, 25)).isEqualTo("x-unknown");
+        assertThat(HeaderNames.canonical("etag")).isSameAs(HeaderNames.ETAG);
+    }
+}
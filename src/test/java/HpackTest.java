@@ -0,0 +1,88 @@
+import com.google.common.io.BaseEncoding;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HpackTest {
+    // The requests of RFC 7541 appendix C.4, Huffman coded, decoded on one connection.
+    @Test
+    public void decodesRfcExamples() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+        assertThat(decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff")).containsExactly(
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com").inOrder();
+        assertThat(decode(decoder, "828684be5886a8eb10649cbf")).containsExactly(
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache").inOrder();
+        assertThat(decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")).containsExactly(
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value").inOrder();
+    }
+
+    @Test
+    public void roundTripsThroughTheDynamicTable() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(":status", "200", block);
+            encoder.encode("content-type", "text/html; charset=utf-8", block);
+            encoder.encode("x-request", "request " + i, block);
+            encoder.encode("set-cookie", "id=1", block);
+
+            assertThat(decode(decoder, block.toByteArray())).containsExactly(":status", "200",
+                    "content-type", "text/html; charset=utf-8", "x-request", "request " + i,
+                    "set-cookie", "id=1").inOrder();
+            if (i > 0) {
+                // Only the field that changed, and the never-indexed cookie, are sent in full.
+                assertThat(block.size()).isLessThan(30);
+            }
+        }
+    }
+
+    @Test
+    public void evictsOldEntriesWhenTheTableShrinks() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        encoder.setMaxTableSize(100);
+
+        for (int i = 0; i < 20; i++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode("x-field-" + i, "value " + i, block);
+            encoder.encode("x-field-" + (i / 2), "value " + (i / 2), block);
+            assertThat(decode(decoder, block.toByteArray())).containsExactly(
+                    "x-field-" + i, "value " + i, "x-field-" + (i / 2), "value " + (i / 2)).inOrder();
+        }
+    }
+
+    @Test
+    public void rejectsBadBlocks() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        // An index past the end of the table.
+        assertThrows(Http2Exception.class, () -> decode(decoder, "be"));
+        // A table size update bigger than we allowed.
+        assertThrows(Http2Exception.class, () -> decode(decoder, "3fe21f"));
+        // A string that runs off the end of the block.
+        assertThrows(Http2Exception.class, () -> decode(decoder, "400a6162"));
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) throws Http2Exception {
+        return decode(decoder, BaseEncoding.base16().lowerCase().decode(hex));
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, byte[] block) throws Http2Exception {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(ByteBuffer.wrap(block), (name, value) -> {
+            fields.add(name);
+            fields.add(value);
+        });
+        return fields;
+    }
+}
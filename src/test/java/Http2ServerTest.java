@@ -0,0 +1,385 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class Http2ServerTest {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+    private final CountDownLatch slow = new CountDownLatch(1);
+    private final ExecutorService handlerExecutor = Executors.newFixedThreadPool(4);
+    private ServerHandle server;
+    private int port;
+    private Path file;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        file = Files.createTempFile("http2-server-test", ".bin");
+        Files.write(file, Strings.repeat("0123456789abcdef", 16 * 1024).getBytes(Charsets.US_ASCII));
+
+        server = Server.builder()
+                .withEngine(Engine.NIO)
+                .withEventLoops(1)
+                .withHandlerExecutor(handlerExecutor)
+                .withHttp2(Http2.builder().withMaxConcurrentStreams(2).build())
+                .withRequestHandler(req -> {
+                    if (req.getRequestUri().equals("/echo")) {
+                        return Response.builder().withBody(req.getBody()).build();
+                    }
+                    if (req.getRequestUri().equals("/stream")) {
+                        return Response.builder().withBody(os -> {
+                            for (int i = 0; i < 100; i++) {
+                                os.write(("line " + i + "\n").getBytes(Charsets.US_ASCII));
+                            }
+                        }).build();
+                    }
+                    if (req.getRequestUri().equals("/file")) {
+                        try {
+                            return Response.builder().withBody(file).build();
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                    if (req.getRequestUri().equals("/slow")) {
+                        try {
+                            slow.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return Response.builder()
+                            .withBody(req.getMethod() + " " + req.getRequestUri() + " " + req.getHttpVersion()
+                                    + " " + req.getHeader("Host") + " " + req.getQueryParams())
+                            .build();
+                })
+                .build()
+                .start();
+        port = server.getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        slow.countDown();
+        server.shutdown(Duration.ofSeconds(1));
+        handlerExecutor.shutdown();
+        Files.delete(file);
+    }
+
+    @Test
+    public void multiplexesStreamsWithPriorKnowledge() throws Exception {
+        try (Client client = new Client(port)) {
+            client.start(ByteBuffer.allocate(0));
+            client.request(1, "GET", "/slow", true);
+            client.request(3, "POST", "/echo", false);
+            client.data(3, "hello, ".getBytes(Charsets.UTF_8), false);
+            client.data(3, "world".getBytes(Charsets.UTF_8), true);
+            client.readUntilEnd(3);
+            slow.countDown();
+            client.request(5, "GET", "/a?b=c", true);
+            client.readUntilEnd(1, 5);
+
+            assertThat(client.status(3)).isEqualTo("200");
+            assertThat(client.body(3)).isEqualTo("hello, world");
+            // The slow response was sent after the one that followed it.
+            assertThat(client.body(1)).isEqualTo("GET /slow HTTP/2.0 localhost {}");
+            assertThat(client.body(5)).isEqualTo("GET /a HTTP/2.0 localhost {b=[c]}");
+        }
+    }
+
+    @Test
+    public void streamsAndFilesAreSentAsData() throws Exception {
+        try (Client client = new Client(port)) {
+            client.start(ByteBuffer.allocate(0));
+            client.request(1, "GET", "/file", true);
+            client.request(3, "GET", "/stream", true);
+            client.readUntilEnd(1, 3);
+
+            assertThat(client.body(1)).isEqualTo(new String(Files.readAllBytes(file), Charsets.US_ASCII));
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                lines.append("line ").append(i).append('\n');
+            }
+            assertThat(client.body(3)).isEqualTo(lines.toString());
+        }
+    }
+
+    @Test
+    public void respectsFlowControlWindows() throws Exception {
+        try (Client client = new Client(port)) {
+            ByteBuffer settings = ByteBuffer.allocate(6);
+            settings.putShort((short) 0x4).putInt(1000).flip();
+            client.replenish = false;
+            client.start(settings);
+            client.request(1, "GET", "/file", true);
+
+            // Only the stream's window is sent until the client gives more.
+            client.readUntilQuiet();
+            assertThat(client.body(1)).hasLength(1000);
+
+            long size = Files.size(file);
+            client.windowUpdate(1, (int) size);
+            client.windowUpdate(0, (int) size);
+            client.readUntilEnd(1);
+            assertThat(client.body(1)).hasLength((int) size);
+        }
+    }
+
+    @Test
+    public void refusesStreamsOverTheLimit() throws Exception {
+        try (Client client = new Client(port)) {
+            client.start(ByteBuffer.allocate(0));
+            client.request(1, "GET", "/slow", true);
+            client.request(3, "GET", "/slow", true);
+            client.request(5, "GET", "/slow", true);
+            client.readUntilReset(5);
+            assertThat(client.resetCode(5)).isEqualTo(Http2Exception.REFUSED_STREAM);
+
+            slow.countDown();
+            client.readUntilEnd(1, 3);
+            assertThat(client.status(1)).isEqualTo("200");
+            assertThat(client.status(3)).isEqualTo("200");
+        }
+    }
+
+    @Test
+    public void upgradesFromHttp1() throws Exception {
+        try (Client client = new Client(port)) {
+            client.out.write(("GET /upgraded HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                    + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n").getBytes(Charsets.US_ASCII));
+            String expected = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n";
+            byte[] head = new byte[expected.length()];
+            client.in.readFully(head);
+            assertThat(new String(head, Charsets.US_ASCII)).isEqualTo(expected);
+
+            client.start(ByteBuffer.allocate(0));
+            client.readUntilEnd(1);
+            assertThat(client.body(1)).isEqualTo("GET /upgraded HTTP/1.1 localhost {}");
+
+            client.request(3, "GET", "/next", true);
+            client.readUntilEnd(3);
+            assertThat(client.body(3)).isEqualTo("GET /next HTTP/2.0 localhost {}");
+        }
+    }
+
+    @Test
+    public void protocolErrorsCloseTheConnection() throws Exception {
+        try (Client client = new Client(port)) {
+            client.start(ByteBuffer.allocate(0));
+            client.frame(0x0, 0x1, 0, new byte[0]);
+            assertThat(client.readUntilGoAway()).isEqualTo(Http2Exception.PROTOCOL_ERROR);
+            try {
+                assertThat(client.in.read()).isEqualTo(-1);
+            } catch (SocketException e) {
+                // Reset instead, if our SETTINGS ack arrived after the server closed.
+            }
+        }
+    }
+
+    @Test
+    public void shutdownFinishesOpenStreams() throws Exception {
+        try (Client client = new Client(port)) {
+            client.start(ByteBuffer.allocate(0));
+            client.request(1, "GET", "/slow", true);
+            client.readUntilQuiet();
+
+            Future<ShutdownReport> report = handlerExecutor.submit(() -> server.shutdown(Duration.ofSeconds(5)));
+            assertThat(client.readUntilGoAway()).isEqualTo(Http2Exception.NO_ERROR);
+            client.request(3, "GET", "/late", true);
+            client.readUntilReset(3);
+            assertThat(client.resetCode(3)).isEqualTo(Http2Exception.REFUSED_STREAM);
+
+            // The connection closes straight after the response, so there's nothing to give back.
+            client.replenish = false;
+            slow.countDown();
+            client.readUntilEnd(1);
+            assertThat(client.status(1)).isEqualTo("200");
+            assertThat(client.in.read()).isEqualTo(-1);
+            assertThat(report.get(5, TimeUnit.SECONDS).isClean()).isTrue();
+        }
+    }
+
+    @Test
+    public void http1StillWorks() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /plain HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(Charsets.US_ASCII));
+            String response = new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+            assertThat(response).endsWith("GET /plain HTTP/1.1 null {}");
+        }
+    }
+
+    // Just enough of an HTTP/2 client to drive the server frame by frame.
+    private static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Hpack.Encoder encoder = new Hpack.Encoder();
+        private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        private final Map<Integer, String> statuses = new HashMap<>();
+        private final Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+        private final Map<Integer, Boolean> ended = new HashMap<>();
+        private final Map<Integer, Integer> resets = new HashMap<>();
+        private int goAway = -1;
+        // Whether to give back each DATA frame's bytes as soon as it arrives.
+        private boolean replenish = true;
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void start(ByteBuffer settings) throws IOException {
+            out.write(PREFACE);
+            frame(0x4, 0, 0, settings.array());
+        }
+
+        void request(int streamId, String method, String path, boolean endStream) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(":method", method, block);
+            encoder.encode(":scheme", "http", block);
+            encoder.encode(":path", path, block);
+            encoder.encode(":authority", "localhost", block);
+            frame(0x1, 0x4 | (endStream ? 0x1 : 0), streamId, block.toByteArray());
+        }
+
+        void data(int streamId, byte[] data, boolean endStream) throws IOException {
+            frame(0x0, endStream ? 0x1 : 0, streamId, data);
+        }
+
+        void windowUpdate(int streamId, int increment) throws IOException {
+            frame(0x8, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+        }
+
+        void frame(int type, int flags, int streamId, byte[] payload) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(9);
+            header.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length);
+            header.put((byte) type).put((byte) flags).putInt(streamId);
+            out.write(header.array());
+            out.write(payload);
+            out.flush();
+        }
+
+        void readUntilEnd(int... streamIds) throws Exception {
+            for (int streamId : streamIds) {
+                while (!ended.containsKey(streamId)) {
+                    readFrame();
+                }
+            }
+        }
+
+        void readUntilReset(int streamId) throws Exception {
+            while (!resets.containsKey(streamId)) {
+                readFrame();
+            }
+        }
+
+        int readUntilGoAway() throws Exception {
+            while (goAway == -1) {
+                readFrame();
+            }
+            return goAway;
+        }
+
+        void readUntilQuiet() throws Exception {
+            socket.setSoTimeout(500);
+            try {
+                while (true) {
+                    readFrame();
+                }
+            } catch (SocketTimeoutException e) {
+                // Nothing more is coming for now.
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+        }
+
+        private void readFrame() throws Exception {
+            int length = in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & 0x7fffffff;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            switch (type) {
+                case 0x0:
+                    bodies.computeIfAbsent(streamId, id -> new ByteArrayOutputStream()).write(payload);
+                    if (replenish && length > 0) {
+                        windowUpdate(0, length);
+                        if ((flags & 0x1) == 0) {
+                            windowUpdate(streamId, length);
+                        }
+                    }
+                    break;
+                case 0x1:
+                    assertThat(flags & 0x4).isNotEqualTo(0);
+                    decoder.decode(ByteBuffer.wrap(payload), (name, value) -> {
+                        if (name.equals(":status")) {
+                            statuses.put(streamId, value);
+                        }
+                    });
+                    break;
+                case 0x3:
+                    resets.put(streamId, ByteBuffer.wrap(payload).getInt());
+                    return;
+                case 0x4:
+                    if ((flags & 0x1) == 0) {
+                        frame(0x4, 0x1, 0, new byte[0]);
+                    }
+                    return;
+                case 0x7:
+                    goAway = ByteBuffer.wrap(payload).getInt(4);
+                    return;
+                default:
+                    return;
+            }
+            if ((flags & 0x1) != 0) {
+                ended.put(streamId, true);
+            }
+        }
+
+        String status(int streamId) {
+            return statuses.get(streamId);
+        }
+
+        String body(int streamId) {
+            ByteArrayOutputStream body = bodies.get(streamId);
+            return body == null ? "" : new String(body.toByteArray(), Charsets.UTF_8);
+        }
+
+        int resetCode(int streamId) {
+            return resets.get(streamId);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
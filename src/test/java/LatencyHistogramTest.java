@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverEveryValueWithinAnEighth() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE};
+        for (long value : values) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.bucket(value));
+            assertThat(highest).isAtLeast(value);
+            assertThat((double) highest - value).isAtMost(value / 8.0);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(1000);
+        assertThat(snapshot.getMaxNanos()).isEqualTo(TimeUnit.MICROSECONDS.toNanos(1000));
+        assertThat((double) snapshot.getValueAtPercentile(50)).isWithin(0.125 * 500_000).of(500_000);
+        assertThat((double) snapshot.getValueAtPercentile(99)).isWithin(0.125 * 990_000).of(990_000);
+        assertThat(snapshot.getValueAtPercentile(100)).isEqualTo(snapshot.getMaxNanos());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i);
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(histogram.snapshot().getCount()).isEqualTo(400_000);
+    }
+}
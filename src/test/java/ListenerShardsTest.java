@@ -0,0 +1,103 @@
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ListenerShardsTest {
+    private ServerHandle server;
+    private int port;
+
+    private void start(Engine engine) throws Exception {
+        server = Server.builder()
+                .withEngine(engine)
+                .withListenerShards(4)
+                .withEventLoops(4)
+                .withNumThreads(4)
+                .withQueueSize(16)
+                .withRequestHandler(req -> Response.builder()
+                        .withBody(Thread.currentThread().getName())
+                        .build())
+                .build()
+                .start();
+        port = server.getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.shutdown(Duration.ofSeconds(1));
+        }
+    }
+
+    @Test
+    public void nioShardsShareTheConnections() throws Exception {
+        assumeTrue(Listeners.shardingSupported(), "SO_REUSEPORT is unavailable");
+        start(Engine.NIO);
+
+        assertThat(threadsServing(200).size()).isGreaterThan(1);
+    }
+
+    @Test
+    public void blockingShardsShareTheConnections() throws Exception {
+        assumeTrue(Listeners.shardingSupported(), "SO_REUSEPORT is unavailable");
+        start(Engine.BLOCKING);
+
+        assertThat(threadsServing(200).size()).isGreaterThan(1);
+    }
+
+    @Test
+    public void virtualThreadShardsServeConnections() throws Exception {
+        assumeTrue(Listeners.shardingSupported(), "SO_REUSEPORT is unavailable");
+        start(Engine.VIRTUAL_THREADS);
+
+        // Connection threads aren't tied to a shard, so all there is to see is that every one is served.
+        assertThat(threadsServing(200)).isNotEmpty();
+    }
+
+    @Test
+    public void everyShardNeedsALoop() {
+        assumeTrue(Listeners.shardingSupported(), "SO_REUSEPORT is unavailable");
+        assertThrows(IllegalArgumentException.class, () -> Server.builder()
+                .withEngine(Engine.NIO)
+                .withListenerShards(4)
+                .withEventLoops(2)
+                .withRequestHandler(req -> Response.builder().build())
+                .build());
+    }
+
+    @Test
+    public void shardsNeedReusePort() {
+        assumeTrue(!Listeners.shardingSupported(), "SO_REUSEPORT is available");
+        assertThrows(IllegalArgumentException.class, () -> Server.builder()
+                .withListenerShards(2)
+                .withNumThreads(2)
+                .withRequestHandler(req -> Response.builder().build())
+                .build());
+    }
+
+    // Opens one connection per request, from fresh source ports the kernel hashes across the shards,
+    // and returns the names of the threads that answered.
+    private Set<String> threadsServing(int connections) throws IOException {
+        Set<String> threads = new HashSet<>();
+        for (int i = 0; i < connections; i++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(Charsets.US_ASCII));
+                String response = new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+                assertThat(response).startsWith("HTTP/1.1 200 OK\r\n");
+                threads.add(response.substring(response.indexOf("\r\n\r\n") + 4));
+            }
+        }
+        return threads;
+    }
+}
@@ -0,0 +1,132 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a server on loopback from a fixed number of keep-alive connections, each sending its next
+ * request as soon as the last response arrives, and reports throughput and latency percentiles.
+ * Being closed-loop it understates latency under overload, since a stalled server also stalls the
+ * requests that would have queued behind it, but it's stable enough to compare runs.
+ *
+ * Configured with -Dload.engines (default BLOCKING,NIO,VIRTUAL_THREADS), -Dload.concurrency (64),
+ * -Dload.warmup and -Dload.duration (seconds, default 3 and 10).
+ */
+public class LoadGenerator {
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.US_ASCII);
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final int concurrency = Integer.getInteger("load.concurrency", 64);
+    private final long warmupNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.warmup", 3));
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.duration", 10));
+
+    private ServerHandle startServer(Engine engine) throws IOException {
+        return Server.builder()
+                .withEngine(engine)
+                .withNumThreads(concurrency)
+                .withQueueSize(concurrency)
+                .withSocketQueueLength(concurrency)
+                .withMaxRequestsPerConnection(Integer.MAX_VALUE)
+                .withRequestHandler(req -> Response.builder().withBody("Hello, world!").build())
+                .build()
+                .start();
+    }
+
+    private void run(Engine engine, MicroBenchmark results) throws Exception {
+        ServerHandle server = startServer(engine);
+        int port = server.getPort();
+        LatencyHistogram histogram = new LatencyHistogram();
+        AtomicLong completed = new AtomicLong();
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread client = new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream os = socket.getOutputStream();
+                    InputStream is = new BufferedInputStream(socket.getInputStream());
+                    while (true) {
+                        long sent = System.nanoTime();
+                        if (sent >= end) {
+                            return;
+                        }
+                        os.write(REQUEST);
+                        readResponse(is);
+                        if (sent >= measureFrom) {
+                            histogram.record(System.nanoTime() - sent);
+                            completed.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "load-generator-client-" + i);
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        server.shutdown(Duration.ofSeconds(1));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        String name = engine.name().toLowerCase();
+        results.record(name + ".throughput", completed.get() / (durationNanos / 1e9), "req/s")
+                .record(name + ".p50", snapshot.getValueAtPercentile(50) / 1e3, "us")
+                .record(name + ".p99", snapshot.getValueAtPercentile(99) / 1e3, "us")
+                .record(name + ".p999", snapshot.getValueAtPercentile(99.9) / 1e3, "us");
+    }
+
+    // Reads one response, using its Content-Length to find the end of the body.
+    private static void readResponse(InputStream is) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int matched = 0;
+        while (matched < HEADER_END.length) {
+            int b = is.read();
+            if (b == -1) {
+                throw new EOFException("connection closed mid-response");
+            }
+            matched = b == HEADER_END[matched] ? matched + 1 : b == '\r' ? 1 : 0;
+            head.append((char) b);
+        }
+
+        long contentLength = 0;
+        for (String line : Splitter.on("\r\n").split(head)) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        while (contentLength > 0) {
+            long skipped = is.skip(contentLength);
+            if (skipped <= 0) {
+                if (is.read() == -1) {
+                    throw new EOFException("connection closed mid-response");
+                }
+                skipped = 1;
+            }
+            contentLength -= skipped;
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        MicroBenchmark results = new MicroBenchmark("LoadGenerator");
+        for (String engine : Splitter.on(',').trimResults().split(System.getProperty("load.engines", "BLOCKING,NIO,VIRTUAL_THREADS"))) {
+            generator.run(Engine.valueOf(engine), results);
+        }
+        results.report();
+    }
+}
@@ -0,0 +1,117 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small JMH-style harness. JMH refuses to generate benchmarks for classes in the default package,
+ * which is where everything here lives, so benchmarks use this instead: a warmup phase followed by
+ * timed iterations on the calling thread, reporting mean time and bytes allocated per operation.
+ *
+ * Iteration counts and times can be overridden with -Dbench.warmup, -Dbench.iterations and
+ * -Dbench.time (seconds per iteration). With -Dbench.results=file each score is also appended to
+ * that file as CSV, which is what Benchmarks compares against a baseline.
+ */
+final class MicroBenchmark {
+    @FunctionalInterface
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 5);
+    private static final int MEASUREMENT_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("bench.time", 1));
+    private static final String RESULTS = System.getProperty("bench.results", "");
+
+    // Results end up here so the JIT can't discard the work that produced them.
+    private static volatile Object published;
+
+    private final String suite;
+    private final List<String> results = new ArrayList<>();
+    private final List<String> csv = new ArrayList<>();
+    private Object sink;
+
+    MicroBenchmark(String suite) {
+        this.suite = suite;
+    }
+
+    MicroBenchmark run(String name, Op op) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(op);
+        }
+
+        double[] nanosPerOp = new double[MEASUREMENT_ITERATIONS];
+        double bytesPerOp = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long[] timing = iteration(op);
+            long allocated = allocatedBytes() - allocatedBefore;
+            nanosPerOp[i] = (double) timing[0] / timing[1];
+            bytesPerOp += (double) allocated / timing[1] / MEASUREMENT_ITERATIONS;
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / nanosPerOp.length;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / nanosPerOp.length;
+        }
+
+        results.add(String.format(Locale.ROOT, "%s %12.1f ± %8.1f ns/op %12.1f B/op",
+                Strings.padEnd(name, 40, ' '), mean, Math.sqrt(variance), bytesPerOp));
+        csv.add(String.format(Locale.ROOT, "%s.%s,%.1f,%.1f,ns/op", suite, name, mean, Math.sqrt(variance)));
+        csv.add(String.format(Locale.ROOT, "%s.%s:alloc,%.1f,0.0,B/op", suite, name, bytesPerOp));
+        return this;
+    }
+
+    // Records a score measured some other way, such as by LoadGenerator.
+    MicroBenchmark record(String name, double score, String unit) {
+        results.add(String.format(Locale.ROOT, "%s %12.1f %s", Strings.padEnd(name, 40, ' '), score, unit));
+        csv.add(String.format(Locale.ROOT, "%s.%s,%.1f,0.0,%s", suite, name, score, unit));
+        return this;
+    }
+
+    // Returns {elapsed nanos, operations}.
+    private long[] iteration(Op op) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1024; i++) {
+                sink = op.run();
+            }
+            ops += 1024;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        published = sink;
+        return new long[] {elapsed, ops};
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    void report() throws IOException {
+        // Enough about the environment to tell whether two sets of results are comparable.
+        System.out.printf("# %s on %s %s, %d cpus, %d warmup and %d measurement iterations of %ds%n", suite,
+                System.getProperty("java.vm.name"), System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(), WARMUP_ITERATIONS, MEASUREMENT_ITERATIONS,
+                TimeUnit.NANOSECONDS.toSeconds(ITERATION_NANOS));
+        System.out.println(Strings.padEnd("Benchmark", 40, ' ') + "         Score      Error         Alloc");
+        results.forEach(System.out::println);
+        if (!RESULTS.isEmpty()) {
+            Files.write(Paths.get(RESULTS), csv, Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class NioServerTest {
+    private final ExecutorService handlerExecutor = Executors.newFixedThreadPool(2);
+    private ServerHandle server;
+    private int port;
+    private Path file;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        file = Files.createTempFile("nio-server-test", ".bin");
+        Files.write(file, Strings.repeat("0123456789abcdef", 256 * 1024).getBytes(Charsets.US_ASCII));
+
+        server = Server.builder()
+                .withEngine(Engine.NIO)
+                .withEventLoops(2)
+                .withHandlerExecutor(handlerExecutor)
+                .withMetricsEndpoint("/metrics")
+                .withRequestHandler(req -> {
+                    if (req.getRequestUri().equals("/echo")) {
+                        return Response.builder().withBody(req.getBody()).build();
+                    }
+                    if (req.getRequestUri().equals("/stream")) {
+                        InputStream body = req.getBodyStream();
+                        return Response.builder().withBody(os -> ByteStreams.copy(body, os)).build();
+                    }
+                    if (req.getRequestUri().equals("/file")) {
+                        try {
+                            return Response.builder().withBody(file).build();
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                    return Response.builder().withStatus(Status.OK).build();
+                })
+                .build()
+                .start();
+        port = server.getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.shutdown(Duration.ofSeconds(1));
+        handlerExecutor.shutdown();
+        Files.delete(file);
+    }
+
+    @Test
+    public void getRequest() throws Exception {
+        HttpResponse res = Unirest.get("http://localhost:" + port + "/").asString();
+        assertThat(res.getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    public void postRequestWithBody() throws Exception {
+        HttpResponse<String> res = Unirest.post("http://localhost:" + port + "/echo")
+                .body("Hello, world!")
+                .asString();
+        assertThat(res.getStatus()).isEqualTo(200);
+        assertThat(res.getBody()).isEqualTo("Hello, world!");
+    }
+
+    @Test
+    public void fileBody() throws Exception {
+        HttpResponse<InputStream> res = Unirest.get("http://localhost:" + port + "/file").asBinary();
+        assertThat(res.getStatus()).isEqualTo(200);
+        assertThat(ByteStreams.toByteArray(res.getBody())).isEqualTo(Files.readAllBytes(file));
+    }
+
+    @Test
+    public void manySequentialRequests() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            HttpResponse res = Unirest.get("http://localhost:" + port + "/").asString();
+            assertThat(res.getStatus()).isEqualTo(200);
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsOnOneConnection() throws Exception {
+        String responses = exchange("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void http10ClosesByDefault() throws Exception {
+        String responses = exchange("GET / HTTP/1.0\r\n\r\nGET / HTTP/1.0\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void chunkedRequestStreamedBack() throws Exception {
+        String responses = exchange("POST /stream HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n"
+                + "GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "c\r\nhello, world\r\n0\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void largeBodyStreamsThroughHandler() throws Exception {
+        byte[] body = Files.readAllBytes(file);
+        HttpResponse<InputStream> res = Unirest.post("http://localhost:" + port + "/stream")
+                .body(body)
+                .asBinary();
+        assertThat(res.getStatus()).isEqualTo(200);
+        assertThat(ByteStreams.toByteArray(res.getBody())).isEqualTo(body);
+    }
+
+    @Test
+    public void expectContinue() throws Exception {
+        String responses = exchange("POST /echo HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 5\r\n"
+                + "Connection: close\r\n\r\nhello");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 100 Continue\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello");
+    }
+
+    @Test
+    public void metricsEndpoint() throws Exception {
+        exchange("GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        HttpResponse<String> res = Unirest.get("http://localhost:" + port + "/metrics").asString();
+        assertThat(res.getStatus()).isEqualTo(200);
+        assertThat(res.getBody()).contains("http_connections_accepted_total ");
+        assertThat(res.getBody()).contains("http_responses_total{status=\"200\"} 1\n");
+        assertThat(res.getBody()).contains("http_handler_seconds_count 1\n");
+    }
+
+    private String exchange(String requests) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.getBytes(Charsets.US_ASCII));
+            return new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+// Checks clients against RateLimiter as the number of distinct clients grows to 10M, against the
+// ConcurrentHashMap of buckets a handler would otherwise keep. The limiter's time per check should
+// stay flat, with nothing allocated; the map's grows, along with the heap.
+public class RateLimiterBenchmark {
+    private static final int[] CLIENTS = {1_000, 1_000_000, 10_000_000};
+
+    // What a handler would keep per client.
+    private static final class Bucket {
+        double tokens;
+        long refilledNanos;
+    }
+
+    public static void main(String... args) throws Exception {
+        MicroBenchmark benchmark = new MicroBenchmark("RateLimiterBenchmark");
+        for (int clients : CLIENTS) {
+            RateLimiter limiter = RateLimiter.builder().withRate(10, 20).build();
+            int[] next = {0};
+            benchmark.run("limiterClients" + clients, () -> {
+                // IPv4 keys, like the server's, in a stride that visits every client in turn.
+                long key = 1L << 32 | (next[0] = (next[0] + 7919) % clients);
+                limiter.acquire(key, System.nanoTime());
+                return limiter;
+            });
+        }
+        for (int clients : new int[] {1_000, 1_000_000}) {
+            ConcurrentMap<Long, Bucket> buckets = new ConcurrentHashMap<>();
+            int[] next = {0};
+            benchmark.run("concurrentMapClients" + clients, () -> {
+                long key = 1L << 32 | (next[0] = (next[0] + 7919) % clients);
+                Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+                synchronized (bucket) {
+                    long now = System.nanoTime();
+                    bucket.tokens = Math.min(20, bucket.tokens + (now - bucket.refilledNanos) * 10.0 / TimeUnit.SECONDS.toNanos(1));
+                    bucket.refilledNanos = now;
+                    if (bucket.tokens >= 1) {
+                        bucket.tokens--;
+                    }
+                }
+                return buckets;
+            });
+        }
+        benchmark.report();
+    }
+}
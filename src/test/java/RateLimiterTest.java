@@ -0,0 +1,93 @@
+import com.mashape.unirest.http.Unirest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class RateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsBurstThenRate() {
+        RateLimiter limiter = RateLimiter.builder().withRate(10, 3).build();
+        long key = RateLimiter.key("client");
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.acquire(key, 0)).isEqualTo(0);
+        }
+        assertThat(limiter.acquire(key, 0)).isEqualTo(SECOND / 10);
+        assertThat(limiter.acquire(key, SECOND / 20)).isEqualTo(SECOND / 20);
+        assertThat(limiter.acquire(key, SECOND / 10)).isEqualTo(0);
+        assertThat(limiter.acquire(key, SECOND / 10)).isGreaterThan(0L);
+
+        // Other clients have buckets of their own.
+        assertThat(limiter.acquire(RateLimiter.key("other"), 0)).isEqualTo(0);
+        // And a bucket left alone fills back up, but no further.
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.acquire(key, 10 * SECOND)).isEqualTo(0);
+        }
+        assertThat(limiter.acquire(key, 10 * SECOND)).isGreaterThan(0L);
+    }
+
+    @Test
+    public void evictsFullestBucketWhenTableIsFull() {
+        RateLimiter limiter = RateLimiter.builder().withRate(1, 1).withMaxClients(8).build();
+        // Far more clients than slots, each taking its one token at a later time than the last.
+        for (int i = 1; i <= 1000; i++) {
+            assertThat(limiter.acquire(i, i)).isEqualTo(0);
+        }
+        // The most recent clients are still remembered as having spent their token.
+        for (int i = 993; i <= 1000; i++) {
+            assertThat(limiter.acquire(i, 1000)).isGreaterThan(0L);
+        }
+    }
+
+    @Test
+    public void keysByAddressOrHeader() throws Exception {
+        RateLimiter limiter = RateLimiter.builder().withRate(1, 1).withKeyHeader("X-Forwarded-For").build();
+        InetAddress local = InetAddress.getByName("127.0.0.1");
+        assertThat(limiter.check(request(local, null))).isNull();
+        Response res = limiter.check(request(local, null));
+        assertThat(res.getStatus()).isEqualTo(Status.TOO_MANY_REQUESTS);
+        assertThat(res.getHeaders().getAll(HeaderNames.RETRY_AFTER)).containsExactly("1");
+
+        assertThat(limiter.check(request(local, "10.0.0.1"))).isNull();
+        assertThat(limiter.check(request(local, "10.0.0.2"))).isNull();
+        assertThat(limiter.check(request(local, "10.0.0.1"))).isNotNull();
+        assertThat(limiter.check(request(InetAddress.getByName("::1"), null))).isNull();
+        // Nothing to tell the client by, so nothing to limit.
+        assertThat(limiter.check(request(null, null))).isNull();
+        assertThat(limiter.check(request(null, null))).isNull();
+
+        assertThat(RateLimiter.key(InetAddress.getByName("10.0.0.1")))
+                .isNotEqualTo(RateLimiter.key(InetAddress.getByName("10.0.0.2")));
+    }
+
+    @Test
+    public void serverRejectsWithTooManyRequests() throws Exception {
+        ServerHandle handle = Server.builder()
+                .withRateLimiter(RateLimiter.builder().withRate(0.1, 2).build())
+                .withRequestHandler(req -> Response.builder().withBody(req.getRemoteAddress().getHostAddress()).build())
+                .build()
+                .start();
+        try {
+            String url = "http://localhost:" + handle.getPort() + "/";
+            assertThat(Unirest.get(url).asString().getBody()).isEqualTo("127.0.0.1");
+            assertThat(Unirest.get(url).asString().getStatus()).isEqualTo(200);
+            assertThat(Unirest.get(url).asString().getStatus()).isEqualTo(429);
+        } finally {
+            handle.shutdown(Duration.ofSeconds(1));
+        }
+    }
+
+    private static Request request(InetAddress address, String forwardedFor) {
+        Request.Builder builder = Request.builder().withRemoteAddress(address);
+        if (forwardedFor != null) {
+            builder.addHeader("X-Forwarded-For", forwardedFor);
+        }
+        return builder.build();
+    }
+}
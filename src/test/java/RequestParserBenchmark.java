@@ -0,0 +1,156 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Compares the incremental parser against the line-at-a-time parser it replaced, and measures it
+// with different numbers of headers and query parameters.
+public class RequestParserBenchmark {
+    private static final Splitter SPACE_SPLITTER = Splitter.on(" ");
+    private static final Splitter HEADER_SPLITTER = Splitter.on(": ");
+
+    private static final byte[] REQUEST = ("GET /api/v1/users/12345/orders HTTP/1.1\r\n"
+            + "Host: api.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n"
+            + "Accept: application/json, text/plain, */*\r\n"
+            + "Accept-Language: en-GB,en;q=0.9\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n"
+            + "X-Request-Id: 4b6f0c1e-8f1d-4c4e-9d3a-2f5e6b7c8d9e\r\n"
+            + "\r\n").getBytes(Charsets.UTF_8);
+
+    private static final byte[] NO_HEADERS = "GET /api/v1/users/12345/orders HTTP/1.1\r\n\r\n".getBytes(Charsets.UTF_8);
+    private static final byte[] MANY_HEADERS = withHeaders(32);
+    private static final byte[] QUERY_1 = withQuery(1);
+    private static final byte[] QUERY_8 = withQuery(8);
+    private static final byte[] QUERY_32 = withQuery(32);
+    private static final byte[] QUERY_32_PLAIN = withQuery(32, "some-value-");
+
+    private final RequestParser parser = new RequestParser();
+    private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+    private static byte[] withHeaders(int count) {
+        StringBuilder request = new StringBuilder("GET /api/v1/users/12345/orders HTTP/1.1\r\n");
+        for (int i = 0; i < count; i++) {
+            request.append("X-Header-").append(i).append(": value-").append(Strings.repeat("v", i)).append("\r\n");
+        }
+        return request.append("\r\n").toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static byte[] withQuery(int params) {
+        return withQuery(params, "some%20value%2F");
+    }
+
+    private static byte[] withQuery(int params, String value) {
+        StringBuilder request = new StringBuilder("GET /search?");
+        for (int i = 0; i < params; i++) {
+            request.append(i == 0 ? "" : "&").append("key").append(i).append('=').append(value).append(i);
+        }
+        return request.append(" HTTP/1.1\r\nHost: localhost\r\n\r\n").toString().getBytes(Charsets.UTF_8);
+    }
+
+    // Parses request and decodes what a handler would look at, including its query string.
+    Object parse(byte[] request) throws Exception {
+        buffer.clear();
+        buffer.put(request);
+        parser.reset();
+        parser.parse(buffer);
+        Request req = parser.toRequest(buffer);
+        req.getMethod();
+        req.getHeader("Host");
+        return req.getQueryParams();
+    }
+
+    // A handler that reads one query parameter, or none, which needn't decode the rest.
+    Object parseQueryParam(byte[] request, String name) throws Exception {
+        buffer.clear();
+        buffer.put(request);
+        parser.reset();
+        parser.parse(buffer);
+        Request req = parser.toRequest(buffer);
+        req.getMethod();
+        req.getHeader("Host");
+        return name == null ? req.getRequestUri() : req.getQueryParam(name);
+    }
+
+    Object legacyReadLineParser() throws Exception {
+        return legacyParse(new ByteArrayInputStream(REQUEST));
+    }
+
+    Object incrementalParser() throws Exception {
+        buffer.clear();
+        buffer.put(REQUEST);
+        parser.reset();
+        parser.parse(buffer);
+        Request req = parser.toRequest(buffer);
+        // Roughly what a handler that routes on method and path touches.
+        req.getMethod();
+        return req.getRequestUri();
+    }
+
+    Object incrementalParserScanOnly() throws Exception {
+        buffer.clear();
+        buffer.put(REQUEST);
+        parser.reset();
+        return parser.parse(buffer);
+    }
+
+    // The request line and header handling of the original Request.parse.
+    private static Object legacyParse(InputStream is) throws IOException {
+        String requestLine = new String(readLine(is), Charsets.UTF_8);
+        List<String> parts = SPACE_SPLITTER.splitToList(requestLine);
+
+        ArrayListMultimap<String, String> headers = ArrayListMultimap.create();
+        while (true) {
+            String headerLine = new String(readLine(is), Charsets.UTF_8);
+            if (Strings.isNullOrEmpty(headerLine)) {
+                break;
+            }
+            List<String> headerParts = HEADER_SPLITTER.splitToList(headerLine);
+            headers.put(headerParts.get(0), headerParts.get(1));
+        }
+        headers.put("method", parts.get(0));
+        return headers;
+    }
+
+    private static byte[] readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        while (true) {
+            int nextByte = is.read();
+            if (nextByte == -1) {
+                break;
+            } else if (nextByte == '\r') {
+                is.read();
+                break;
+            }
+            buffer.write(nextByte);
+        }
+        return buffer.toByteArray();
+    }
+
+    public static void main(String... args) throws Exception {
+        RequestParserBenchmark benchmark = new RequestParserBenchmark();
+        new MicroBenchmark("RequestParserBenchmark")
+                .run("legacyReadLineParser", benchmark::legacyReadLineParser)
+                .run("incrementalParser", benchmark::incrementalParser)
+                .run("incrementalParserScanOnly", benchmark::incrementalParserScanOnly)
+                .run("headers0", () -> benchmark.parse(NO_HEADERS))
+                .run("headers8", () -> benchmark.parse(REQUEST))
+                .run("headers32", () -> benchmark.parse(MANY_HEADERS))
+                .run("queryParams1", () -> benchmark.parse(QUERY_1))
+                .run("queryParams8", () -> benchmark.parse(QUERY_8))
+                .run("queryParams32", () -> benchmark.parse(QUERY_32))
+                .run("queryParams32Unread", () -> benchmark.parseQueryParam(QUERY_32, null))
+                .run("queryParams32ReadOne", () -> benchmark.parseQueryParam(QUERY_32, "key16"))
+                .run("queryParams32Plain", () -> benchmark.parse(QUERY_32_PLAIN))
+                .report();
+    }
+}
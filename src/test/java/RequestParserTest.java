@@ -0,0 +1,111 @@
+import com.google.common.base.Charsets;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RequestParserTest {
+    @Test
+    public void resumesAcrossReads() throws Exception {
+        byte[] request = "POST /foo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello".getBytes(Charsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(request.length);
+        RequestParser parser = new RequestParser();
+
+        for (int i = 0; i < request.length - 1; i++) {
+            buffer.put(request[i]);
+            assertThat(parser.parse(buffer)).isFalse();
+        }
+        buffer.put(request[request.length - 1]);
+        assertThat(parser.parse(buffer)).isTrue();
+
+        Request req = parser.toRequest(buffer);
+        assertThat(req.getMethod()).isEqualTo("POST");
+        assertThat(req.getRequestUri()).isEqualTo("/foo");
+        assertThat(req.getHeader("host")).isEqualTo("localhost");
+        assertThat(req.getBody()).isEqualTo("hello");
+    }
+
+    @Test
+    public void leavesPipelinedRequestInBuffer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n".getBytes(Charsets.UTF_8));
+        buffer.position(buffer.limit());
+        RequestParser parser = new RequestParser();
+
+        assertThat(parser.parse(buffer)).isTrue();
+        assertThat(parser.toRequest(buffer).getRequestUri()).isEqualTo("/a");
+
+        buffer.flip();
+        buffer.position(parser.requestLength());
+        buffer.compact();
+        parser.reset();
+
+        assertThat(parser.parse(buffer)).isTrue();
+        assertThat(parser.toRequest(buffer).getRequestUri()).isEqualTo("/b");
+    }
+
+    @Test
+    public void headerValuesAreTrimmedAndNamesCaseInsensitive() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("GET / HTTP/1.1\r\ncontent-TYPE:\t text/plain  \r\n\r\n".getBytes(Charsets.UTF_8));
+        buffer.position(buffer.limit());
+        RequestParser parser = new RequestParser();
+
+        assertThat(parser.parse(buffer)).isTrue();
+        Request req = parser.toRequest(buffer);
+        assertThat(req.getHeader("Content-Type")).isEqualTo("text/plain");
+        assertThat(req.getHeaders().size()).isEqualTo(1);
+        // Well-known names come back as their constants.
+        assertThat(req.getHeaders().name(0)).isSameAs(HeaderNames.CONTENT_TYPE);
+        assertThat(req.getHeaders().get("CONTENT-type")).isEqualTo("text/plain");
+    }
+
+    @Test
+    public void rejectsHeaderWithoutColon() {
+        ByteBuffer buffer = ByteBuffer.wrap("GET / HTTP/1.1\r\nnonsense\r\n\r\n".getBytes(Charsets.UTF_8));
+        buffer.position(buffer.limit());
+
+        assertThrows(RequestParseException.class, () -> new RequestParser().parse(buffer));
+    }
+
+    @Test
+    public void rejectsOversizedHead() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put("GET / HTTP/1.1\r\nX-Padding: ".getBytes(Charsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 'a');
+        }
+
+        assertThrows(RequestParseException.class, () -> new RequestParser(128).parse(buffer));
+    }
+
+    @Test
+    public void rejectsOversizedHeadOfCompleteLines() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.put("GET / HTTP/1.1\r\n".getBytes(Charsets.UTF_8));
+        for (int i = 0; buffer.remaining() > 16; i++) {
+            buffer.put(String.format("X-%03d: a\r\n", i).getBytes(Charsets.UTF_8));
+        }
+        buffer.put("\r\n".getBytes(Charsets.UTF_8));
+
+        assertThrows(RequestParseException.class, () -> new RequestParser(128).parse(buffer));
+    }
+
+    @Test
+    public void rejectsTooManyHeaders() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\n\r\n".getBytes(Charsets.UTF_8));
+        buffer.position(buffer.limit());
+
+        assertThat(new RequestParser(1024, 2).parse(buffer)).isTrue();
+        buffer.position(buffer.limit());
+        assertThrows(RequestParseException.class, () -> new RequestParser(1024, 1).parse(buffer));
+    }
+
+    @Test
+    public void rejectsInvalidContentLength() {
+        ByteBuffer buffer = ByteBuffer.wrap("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n".getBytes(Charsets.UTF_8));
+        buffer.position(buffer.limit());
+
+        assertThrows(RequestParseException.class, () -> new RequestParser().parse(buffer));
+    }
+}
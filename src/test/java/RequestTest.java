@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.MalformedInputException;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -43,6 +44,19 @@ class RequestTest {
         assertThat(result).isEqualTo(expected);
     }
 
+    @Test
+    public void describesItself() {
+        Request req = Request.builder()
+                .withMethod("POST")
+                .withRequestUri("/echo")
+                .addQueryParam("x", "1")
+                .withBody("Hello, world!")
+                .build();
+
+        assertThat(req.toString()).isEqualTo("Request{method=POST, requestUri=/echo, queryParams={x=[1]}, "
+                + "httpVersion=HTTP/1.1, headers={}, body=Hello, world!}");
+    }
+
     @Test
     public void totalGibberish() {
         String requestStr = "tvyun854tyu84932ynvbt839y48t";
@@ -60,15 +74,61 @@ class RequestTest {
         assertThat(request.getQueryParams()).containsExactly("foo", "hello world");
     }
 
+    @Test
+    public void parsesQueryParamsWithoutValues() throws Exception {
+        String requestStr = "GET /foo?flag&a+b=c+d&&x=%E2%9C%93&x=&empty= HTTP/1.1\r\n\r\n";
+        InputStream input = new ByteArrayInputStream(requestStr.getBytes());
+
+        Request request = Request.parse(input);
+        assertThat(request.getRequestUri()).isEqualTo("/foo");
+        assertThat(request.getQueryParams())
+                .containsExactly("flag", "", "a b", "c d", "x", "\u2713", "x", "", "empty", "");
+    }
+
+    @Test
+    public void getsOneQueryParam() throws Exception {
+        String requestStr = "GET /foo?a=1&fl%61g&b=2&b=3 HTTP/1.1\r\n\r\n";
+        InputStream input = new ByteArrayInputStream(requestStr.getBytes());
+
+        Request request = Request.parse(input);
+        assertThat(request.getQueryParam("b")).isEqualTo("2");
+        assertThat(request.getQueryParam("flag")).isEqualTo("");
+        assertThat(request.getQueryParam("c")).isNull();
+        assertThat(Request.builder().addQueryParam("c", "4").build().getQueryParam("c")).isEqualTo("4");
+    }
+
+    @Test
+    public void malformedQueryEscape() {
+        for (String query : new String[] {"a=%", "a=%2", "a=%zz", "%g1=b"}) {
+            InputStream input = new ByteArrayInputStream(("GET /foo?" + query + " HTTP/1.1\r\n\r\n").getBytes());
+            assertThrows(RequestParseException.class, () -> Request.parse(input));
+        }
+    }
+
     @Test
     public void requestBodyWrongEncoding() throws Exception {
-        byte[] requestTop = "POST / HTTP/1.1\r\nContent-Length: 26\r\nContent-Encoding: UTF-8\r\n\r\n".getBytes(Charsets.UTF_8);
+        byte[] requestTop = "POST / HTTP/1.1\r\nContent-Length: 26\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n".getBytes(Charsets.UTF_8);
         byte[] requestBottom = "Hello, world!".getBytes(Charsets.UTF_16);
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         os.write(requestTop);
         os.write(requestBottom);
         InputStream is = new ByteArrayInputStream(os.toByteArray());
 
-        assertThrows(MalformedInputException.class, () -> Request.parse(is));
+        Request request = Request.parse(is);
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, request::getBody);
+        assertThat(e).hasCauseThat().isInstanceOf(MalformedInputException.class);
+        assertThat(request.getRawBody().remaining()).isEqualTo(26);
+    }
+
+    @Test
+    public void requestBodyCharsetFromContentType() throws Exception {
+        byte[] requestTop = "POST / HTTP/1.1\r\nContent-Length: 28\r\nContent-Type: text/plain; charset=\"UTF-16\"\r\nContent-Encoding: gzip\r\n\r\n".getBytes(Charsets.UTF_8);
+        byte[] requestBottom = "Hello, world!".getBytes(Charsets.UTF_16);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(requestTop);
+        os.write(requestBottom);
+
+        Request request = Request.parse(new ByteArrayInputStream(os.toByteArray()));
+        assertThat(request.getBody()).isEqualTo("Hello, world!");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,41 @@
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Serializes responses with different numbers of headers and body sizes, both to a stream (the
+// blocking engines) and to buffers for a gathering write (NIO).
+public class ResponseBenchmark {
+    private static final OutputStream SINK = ByteStreams.nullOutputStream();
+
+    private static Response response(int headers, int bodySize) {
+        Response.Builder builder = Response.builder()
+                .addHeader("Content-Type", "application/json");
+        for (int i = 1; i < headers; i++) {
+            builder.addHeader("X-Header-" + i, "value-" + Strings.repeat("v", i));
+        }
+        return builder.withBody(new byte[bodySize]).build();
+    }
+
+    public static void main(String... args) throws Exception {
+        MicroBenchmark benchmark = new MicroBenchmark("ResponseBenchmark");
+        for (int headers : new int[] {1, 8, 32}) {
+            for (int bodySize : new int[] {0, 1024, 64 * 1024}) {
+                Response res = response(headers, bodySize);
+                String name = "headers" + headers + "Body" + bodySize;
+                benchmark.run(name + "Stream", () -> {
+                    res.writeTo(SINK, "keep-alive");
+                    return res;
+                });
+                benchmark.run(name + "Buffers", () -> {
+                    // As NioConnection does once they've been written.
+                    ByteBuffer[] buffers = res.toByteBuffers("keep-alive");
+                    BufferPool.HEAP.release(buffers[0]);
+                    return buffers;
+                });
+            }
+        }
+        benchmark.report();
+    }
+}
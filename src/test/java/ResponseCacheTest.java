@@ -0,0 +1,228 @@
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class ResponseCacheTest {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private RequestHandler counting(String body) {
+        return req -> {
+            calls.incrementAndGet();
+            return Response.builder().withBody(body).build();
+        };
+    }
+
+    @Test
+    public void repeatedGetsAreServedFromCache() throws Exception {
+        ResponseCache cache = ResponseCache.builder().withRequestHandler(counting("hello")).build();
+
+        assertThat(body(cache.handle(get("/a?x=1&y=2")))).isEqualTo("hello");
+        assertThat(body(cache.handle(get("/a?y=2&x=1")))).isEqualTo("hello");
+        assertThat(calls.get()).isEqualTo(1);
+
+        cache.handle(get("/a?x=2&y=2"));
+        cache.handle(get("/b"));
+        assertThat(calls.get()).isEqualTo(3);
+
+        cache.handle(request("POST", "/a?x=1&y=2"));
+        assertThat(calls.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void decodedSeparatorsAndValueOrderSeparateEntries() throws Exception {
+        ResponseCache cache = ResponseCache.builder()
+                .withRequestHandler(req -> {
+                    calls.incrementAndGet();
+                    return Response.builder().withBody(req.getQueryParams().toString()).build();
+                })
+                .build();
+
+        // ?a=x%26b%3Dy decodes to a single parameter whose value looks like two.
+        Request escaped = Request.builder().withMethod("GET").withRequestUri("/").addQueryParam("a", "x&b=y").build();
+        assertThat(body(cache.handle(escaped))).isEqualTo("{a=[x&b=y]}");
+        assertThat(body(cache.handle(get("/?a=x&b=y")))).isEqualTo("{a=[x], b=[y]}");
+        assertThat(calls.get()).isEqualTo(2);
+
+        // getQueryParam gives the first value, so the order of repeated values matters.
+        assertThat(body(cache.handle(get("/?x=2&x=1")))).isEqualTo("{x=[2, 1]}");
+        assertThat(body(cache.handle(get("/?x=1&x=2")))).isEqualTo("{x=[1, 2]}");
+        assertThat(calls.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void keyHeadersSeparateEntries() throws Exception {
+        ResponseCache cache = ResponseCache.builder()
+                .withRequestHandler(req -> {
+                    calls.incrementAndGet();
+                    return Response.builder().withBody(req.getHeader("Accept-Language")).build();
+                })
+                .withKeyHeaders("Accept-Language")
+                .build();
+
+        assertThat(body(cache.handle(get("/", "Accept-Language", "en")))).isEqualTo("en");
+        assertThat(body(cache.handle(get("/", "Accept-Language", "fr")))).isEqualTo("fr");
+        assertThat(body(cache.handle(get("/", "Accept-Language", "en")))).isEqualTo("en");
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void matchingIfNoneMatchGetsNotModified() throws Exception {
+        ResponseCache cache = ResponseCache.builder().withRequestHandler(counting("hello")).build();
+
+        Response first = cache.handle(get("/"));
+        String etag = first.getHeaders().get(HeaderNames.ETAG);
+        assertThat(etag).startsWith("\"");
+
+        Response res = cache.handle(get("/", HeaderNames.IF_NONE_MATCH, "\"other\", W/" + etag));
+        assertThat(res.getStatus()).isEqualTo(Status.NOT_MODIFIED);
+        assertThat(res.getBody().length()).isEqualTo(0);
+        assertThat(res.getHeaders().getAll(HeaderNames.ETAG)).containsExactly(etag);
+
+        // A compressed copy's tag is validated too, and is the one the 304 confirms.
+        String gzipTag = Compression.encodedTag(etag, "gzip");
+        res = cache.handle(get("/", HeaderNames.IF_NONE_MATCH, gzipTag));
+        assertThat(res.getStatus()).isEqualTo(Status.NOT_MODIFIED);
+        assertThat(res.getHeaders().getAll(HeaderNames.ETAG)).containsExactly(gzipTag);
+        assertThat(res.getHeaders().getAll(HeaderNames.CONTENT_LENGTH)).isEmpty();
+
+        res = cache.handle(get("/", HeaderNames.IF_NONE_MATCH, "\"other\""));
+        assertThat(res.getStatus()).isEqualTo(Status.OK);
+        assertThat(body(res)).isEqualTo("hello");
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void uncacheableResponsesAreNotKept() throws Exception {
+        ResponseCache cache = ResponseCache.builder()
+                .withRequestHandler(req -> {
+                    calls.incrementAndGet();
+                    Response.Builder res = Response.builder().withBody("x");
+                    if (req.getRequestUri().equals("/cookie")) {
+                        res.addHeader(HeaderNames.SET_COOKIE, "a=b");
+                    } else if (req.getRequestUri().equals("/private")) {
+                        res.addHeader(HeaderNames.CACHE_CONTROL, "max-age=60, Private");
+                    } else {
+                        res.withStatus(Status.NOT_FOUND);
+                    }
+                    return res.build();
+                })
+                .build();
+
+        for (String path : new String[] {"/cookie", "/private", "/missing"}) {
+            cache.handle(get(path));
+            Response res = cache.handle(get(path));
+            assertThat(res.getHeaders().getAll(HeaderNames.ETAG)).isEmpty();
+        }
+        assertThat(calls.get()).isEqualTo(6);
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        ResponseCache cache = ResponseCache.builder()
+                .withRequestHandler(counting("hello"))
+                .withTimeToLive(Duration.ofMillis(50))
+                .build();
+
+        cache.handle(get("/"));
+        cache.handle(get("/"));
+        Thread.sleep(100);
+        cache.handle(get("/"));
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void oneOffRequestsDoNotDisplacePopularOnes() throws Exception {
+        String body = Strings.repeat("x", 1000);
+        ResponseCache cache = ResponseCache.builder()
+                .withRequestHandler(counting(body))
+                .withMaximumSize(10_000)
+                .build();
+
+        // Fill the cache past half way, then scan.
+        for (int i = 0; i < 5; i++) {
+            cache.handle(get("/popular/" + i));
+            cache.handle(get("/popular/" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            cache.handle(get("/scan/" + i));
+        }
+        calls.set(0);
+        for (int i = 0; i < 5; i++) {
+            cache.handle(get("/popular/" + i));
+        }
+        assertThat(calls.get()).isEqualTo(0);
+
+        // A second request for the same key gets it in.
+        cache.handle(get("/scan/0"));
+        cache.handle(get("/scan/0"));
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentMissesShareOneCall() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ResponseCache cache = ResponseCache.builder()
+                .withRequestHandler(req -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return Response.builder().withBody("slow").build();
+                })
+                .build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(executor.submit(() -> cache.handle(get("/slow"))));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<Response> res : responses) {
+                assertThat(body(res.get(5, TimeUnit.SECONDS))).isEqualTo("slow");
+            }
+            assertThat(calls.get()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Request get(String uri, String... headers) {
+        Request.Builder builder = Request.builder().withMethod("GET").withHttpVersion("HTTP/1.1");
+        int query = uri.indexOf('?');
+        builder.withRequestUri(query == -1 ? uri : uri.substring(0, query));
+        if (query != -1) {
+            for (String param : uri.substring(query + 1).split("&")) {
+                String[] pair = param.split("=");
+                builder.addQueryParam(pair[0], pair[1]);
+            }
+        }
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.addHeader(headers[i], headers[i + 1]);
+        }
+        return builder.build();
+    }
+
+    private static Request request(String method, String uri) {
+        return new Request(method, uri, "HTTP/1.1", new Headers(), ArrayListMultimap.create(), "");
+    }
+
+    private static String body(Response res) throws Exception {
+        return new String(res.getBody().array(), "UTF-8");
+    }
+}
@@ -1,6 +1,12 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -17,4 +23,79 @@ class ResponseTest {
 
         assertThat(os.toString()).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 13\r\n\r\nHello, world!");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void contentLengthCountsEncodedBytes() throws Exception {
+        Response r = Response.builder()
+                .withBody("h\u00e9llo")
+                .build();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        r.writeTo(os);
+
+        assertThat(os.toString("UTF-8")).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nh\u00e9llo");
+    }
+
+    @Test
+    public void largeBodyWrittenAfterHead() throws Exception {
+        String body = Strings.repeat("a", 100 * 1024);
+        Response r = Response.builder()
+                .withBody(body)
+                .build();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        r.writeTo(os, "close");
+
+        assertThat(os.toString()).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 102400\r\nConnection: close\r\n\r\n" + body);
+    }
+
+    @Test
+    public void directBufferBody() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+        buffer.put("hello".getBytes(Charsets.US_ASCII));
+        buffer.flip();
+        Response r = Response.builder()
+                .withBody(buffer)
+                .build();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        r.writeTo(os);
+        r.writeTo(os);
+
+        assertThat(os.toString()).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+    }
+
+    @Test
+    public void fileRegionBody() throws Exception {
+        Path file = Files.createTempFile("response", ".txt");
+        try {
+            Files.write(file, "Hello, world!".getBytes(Charsets.US_ASCII));
+            try (FileChannel channel = FileChannel.open(file)) {
+                Response r = Response.builder()
+                        .withBody(channel, 7, 5)
+                        .build();
+
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                r.writeTo(os);
+
+                assertThat(os.toString()).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nworld");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void bodyWriterWithoutLengthIsChunked() throws Exception {
+        Response r = Response.builder()
+                .withBody(os -> os.write("Hello, world!".getBytes(Charsets.US_ASCII)))
+                .build();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        r.writeTo(os);
+
+        assertThat(os.toString()).isEqualTo("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "d\r\nHello, world!\r\n0\r\n\r\n");
+    }
+}
@@ -0,0 +1,104 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class RingBufferTest {
+    private static final class Slot {
+        int value;
+    }
+
+    private final RingBuffer<Slot> ring = new RingBuffer<>(4, Slot::new);
+
+    private boolean offer(int value) {
+        long position = ring.claim();
+        if (position == -1) {
+            return false;
+        }
+        ring.get(position).value = value;
+        ring.publish(position);
+        return true;
+    }
+
+    private List<Integer> drain(int max) {
+        List<Integer> values = new ArrayList<>();
+        ring.drain(slot -> values.add(slot.value), max);
+        return values;
+    }
+
+    @Test
+    public void drainsInOrder() {
+        offer(1);
+        offer(2);
+        offer(3);
+        assertThat(drain(2)).containsExactly(1, 2).inOrder();
+        assertThat(drain(10)).containsExactly(3);
+        assertThat(drain(10)).isEmpty();
+    }
+
+    @Test
+    public void refusesEntriesWhenFullUntilDrained() {
+        for (int i = 0; i < 4; i++) {
+            assertThat(offer(i)).isTrue();
+        }
+        assertThat(offer(4)).isFalse();
+        assertThat(drain(1)).containsExactly(0);
+        assertThat(offer(5)).isTrue();
+        assertThat(drain(10)).containsExactly(1, 2, 3, 5).inOrder();
+    }
+
+    @Test
+    public void stopsAtClaimedButUnpublishedSlots() {
+        long first = ring.claim();
+        offer(2);
+        assertThat(drain(10)).isEmpty();
+        ring.get(first).value = 1;
+        ring.publish(first);
+        assertThat(drain(10)).containsExactly(1, 2).inOrder();
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingTheyWereGiven() throws Exception {
+        RingBuffer<Slot> ring = new RingBuffer<>(64, Slot::new);
+        int producers = 4;
+        int perProducer = 100_000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> accepted = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            accepted.add(executor.submit(() -> {
+                start.await();
+                int count = 0;
+                for (int i = 0; i < perProducer; i++) {
+                    long position = ring.claim();
+                    if (position != -1) {
+                        ring.get(position).value = producer;
+                        ring.publish(position);
+                        count++;
+                    }
+                }
+                return count;
+            }));
+        }
+
+        int[] drained = new int[producers];
+        start.countDown();
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MILLISECONDS)) {
+            ring.drain(slot -> drained[slot.value]++, 16);
+        }
+        ring.drain(slot -> drained[slot.value]++, Integer.MAX_VALUE);
+
+        for (int p = 0; p < producers; p++) {
+            assertThat(drained[p]).isEqualTo(accepted.get(p).get());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Routes against a few thousand routes with the trie, and with the linear scan over patterns that
+// a hand-rolled chain of ifs amounts to.
+public class RouterBenchmark {
+    private static final Splitter PATH_SPLITTER = Splitter.on('/');
+    private static final int RESOURCES = 1000;
+    private static final Response OK = Response.builder().build();
+
+    private final Router router;
+    private final List<String[]> patterns = new ArrayList<>();
+    private final Request first = request("/api/v1/resource0");
+    private final Request last = request("/api/v1/resource" + (RESOURCES - 1) + "/42/items/7");
+    private final Request miss = request("/api/v2/resource0");
+
+    private RouterBenchmark() {
+        Router.Builder builder = Router.builder();
+        // Three routes per resource.
+        for (int i = 0; i < RESOURCES; i++) {
+            for (String pattern : new String[] {
+                    "/api/v1/resource" + i,
+                    "/api/v1/resource" + i + "/{id}",
+                    "/api/v1/resource" + i + "/{id}/items/{item}"}) {
+                builder.get(pattern, req -> OK);
+                patterns.add(PATH_SPLITTER.splitToList(pattern).toArray(new String[0]));
+            }
+        }
+        router = builder.build();
+    }
+
+    private static Request request(String uri) {
+        return new Request("GET", uri, "HTTP/1.1", new Headers(), ArrayListMultimap.create(), "");
+    }
+
+    Object linearScan(Request req) {
+        String[] segments = PATH_SPLITTER.splitToList(req.getRequestUri()).toArray(new String[0]);
+        for (String[] pattern : patterns) {
+            if (matches(pattern, segments)) {
+                return pattern;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String[] pattern, String[] segments) {
+        if (pattern.length != segments.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (!pattern[i].startsWith("{") && !pattern[i].equals(segments[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String... args) throws Exception {
+        RouterBenchmark benchmark = new RouterBenchmark();
+        new MicroBenchmark("RouterBenchmark")
+                .run("trieStatic", () -> benchmark.router.handle(benchmark.first))
+                .run("trieTwoParams", () -> benchmark.router.handle(benchmark.last))
+                .run("trieMiss", () -> benchmark.router.handle(benchmark.miss))
+                .run("linearScanStatic", () -> benchmark.linearScan(benchmark.first))
+                .run("linearScanTwoParams", () -> benchmark.linearScan(benchmark.last))
+                .run("linearScanMiss", () -> benchmark.linearScan(benchmark.miss))
+                .report();
+    }
+}
@@ -0,0 +1,117 @@
+import com.google.common.collect.ArrayListMultimap;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RouterTest {
+    private static RequestHandler respondWith(String body) {
+        return req -> Response.builder().withBody(body).build();
+    }
+
+    private static RequestHandler echoParam(String name) {
+        return req -> Response.builder().withBody(req.getPathParam(name)).build();
+    }
+
+    @Test
+    public void literalsWinOverParameters() throws Exception {
+        Router router = Router.builder()
+                .get("/users/{id}", echoParam("id"))
+                .get("/users/me", respondWith("me"))
+                .get("/users/{id}/orders", respondWith("orders"))
+                .build();
+
+        assertThat(body(router, "GET", "/users/me")).isEqualTo("me");
+        assertThat(body(router, "GET", "/users/mel")).isEqualTo("mel");
+        assertThat(body(router, "GET", "/users/42")).isEqualTo("42");
+        assertThat(body(router, "GET", "/users/42/orders")).isEqualTo("orders");
+        assertThat(body(router, "GET", "/users/me/orders")).isEqualTo("orders");
+    }
+
+    @Test
+    public void capturesSeveralParameters() throws Exception {
+        Router router = Router.builder()
+                .get("/repos/{owner}/{repo}/issues/{number}",
+                        req -> Response.builder()
+                                .withBody(req.getPathParam("owner") + " " + req.getPathParam("repo") + " " + req.getPathParam("number"))
+                                .build())
+                .build();
+
+        assertThat(body(router, "GET", "/repos/samwho/http/issues/7")).isEqualTo("samwho http 7");
+        assertThat(status(router, "GET", "/repos/samwho//issues/7")).isEqualTo(Status.NOT_FOUND);
+    }
+
+    @Test
+    public void catchAllTakesRestOfPath() throws Exception {
+        Router router = Router.builder()
+                .get("/static/{path*}", echoParam("path"))
+                .get("/static/index.html", respondWith("index"))
+                .build();
+
+        assertThat(body(router, "GET", "/static/css/site.css")).isEqualTo("css/site.css");
+        assertThat(body(router, "GET", "/static/index.html")).isEqualTo("index");
+    }
+
+    @Test
+    public void parametersArePercentDecoded() throws Exception {
+        Router router = Router.builder()
+                .get("/files/{name}", echoParam("name"))
+                .build();
+
+        assertThat(body(router, "GET", "/files/a%20b+c%2")).isEqualTo("a b+c%2");
+    }
+
+    @Test
+    public void unknownPathIsNotFoundAndWrongMethodIsNotAllowed() throws Exception {
+        Router router = Router.builder()
+                .get("/items", respondWith("list"))
+                .post("/items", respondWith("create"))
+                .build();
+
+        assertThat(status(router, "GET", "/item")).isEqualTo(Status.NOT_FOUND);
+        assertThat(status(router, "GET", "/items/")).isEqualTo(Status.NOT_FOUND);
+        assertThat(body(router, "POST", "/items")).isEqualTo("create");
+
+        Response res = router.handle(request("DELETE", "/items"));
+        assertThat(res.getStatus()).isEqualTo(Status.METHOD_NOT_ALLOWED);
+        assertThat(res.getHeaders().getAll(HeaderNames.ALLOW)).containsExactly("GET, POST");
+    }
+
+    @Test
+    public void matchesAmongManyRoutes() throws Exception {
+        Router.Builder builder = Router.builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.get("/api/v1/resource" + i + "/{id}", respondWith("resource" + i));
+        }
+        Router router = builder.build();
+
+        assertThat(body(router, "GET", "/api/v1/resource0/x")).isEqualTo("resource0");
+        assertThat(body(router, "GET", "/api/v1/resource10/x")).isEqualTo("resource10");
+        assertThat(body(router, "GET", "/api/v1/resource999/x")).isEqualTo("resource999");
+        assertThat(status(router, "GET", "/api/v1/resource1000/x")).isEqualTo(Status.NOT_FOUND);
+    }
+
+    @Test
+    public void rejectsBadPatterns() {
+        assertThrows(IllegalArgumentException.class, () -> Router.builder().get("users", respondWith("")));
+        assertThrows(IllegalArgumentException.class, () -> Router.builder().get("/users/x{id}", respondWith("")));
+        assertThrows(IllegalArgumentException.class, () -> Router.builder().get("/files/{path*}/x", respondWith("")));
+        assertThrows(IllegalArgumentException.class, () -> Router.builder()
+                .get("/users/{id}", respondWith(""))
+                .get("/users/{id}", respondWith("")));
+    }
+
+    private static Request request(String method, String uri) {
+        return new Request(method, uri, "HTTP/1.1", new Headers(), ArrayListMultimap.create(), "");
+    }
+
+    private static Status status(Router router, String method, String uri) throws Exception {
+        return router.handle(request(method, uri)).getStatus();
+    }
+
+    private static String body(Router router, String method, String uri) throws Exception {
+        Response res = router.handle(request(method, uri));
+        assertThat(res.getStatus()).isEqualTo(Status.OK);
+        return new String(res.getBody().array(), "UTF-8");
+    }
+}
@@ -1,3 +1,5 @@
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
 import org.junit.After;
@@ -7,56 +9,27 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.net.Socket;
+import java.time.Duration;
 
 import static com.google.common.truth.Truth.assertThat;
-import static org.junit.jupiter.api.Assertions.fail;
 
 public class ServerTest {
-    private final CountDownLatch latch = new CountDownLatch(1);
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private Future<?> server;
+    private ServerHandle server;
     private int port;
 
     @BeforeEach
     public void setUp() throws Exception {
-        AtomicReference<Exception> e = new AtomicReference<>(null);
-        AtomicInteger p = new AtomicInteger();
-        server = executor.submit(() -> {
-            try {
-                Server.builder()
-                        .withRequestHandler(req -> Response.builder().withStatus(Status.OK).build())
-                        .addServerListener(new ServerListener() {
-                            @Override
-                            public void onServerConnect(ServerSocket serverSocket) {
-                                p.set(serverSocket.getLocalPort());
-                                latch.countDown();
-                            }
-                        })
-                        .build()
-                        .start();
-            } catch (IOException ex) {
-                e.set(ex);
-                latch.countDown();
-            }
-        });
-        latch.await();
-        port = p.get();
-        if (e.get() != null) {
-            fail("failed to start server", e.get());
-        }
+        server = Server.builder()
+                .withRequestHandler(req -> Response.builder().withStatus(Status.OK).build())
+                .build()
+                .start();
+        port = server.getPort();
     }
 
     @AfterEach
-    public void tearDown() {
-        server.cancel(true);
-        executor.shutdown();
+    public void tearDown() throws Exception {
+        server.shutdown(Duration.ofSeconds(1));
     }
 
     @Test
@@ -70,4 +43,37 @@ public class ServerTest {
         HttpResponse res = Unirest.post("http://localhost:" + port + "/").asString();
         assertThat(res.getStatus()).isEqualTo(200);
     }
+
+    @Test
+    public void pipelinedRequestsOnOneConnection() throws Exception {
+        String responses = exchange("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void http10ClosesByDefault() throws Exception {
+        String responses = exchange("GET / HTTP/1.0\r\n\r\nGET / HTTP/1.0\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void unreadStreamedBodyClosesConnection() throws Exception {
+        String responses = exchange("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n0\r\n\r\n"
+                + "GET / HTTP/1.1\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    private String exchange(String requests) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.getBytes(Charsets.US_ASCII));
+            return new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+        }
+    }
 }
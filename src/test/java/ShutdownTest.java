@@ -0,0 +1,220 @@
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ShutdownTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch handling = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> events = new ArrayList<>();
+    private ServerHandle server;
+
+    private void start(Engine engine) throws IOException {
+        Server.Builder builder = Server.builder();
+        if (engine == Engine.NIO) {
+            // The slow handler mustn't block the loop that's being shut down.
+            builder.withHandlerExecutor(executor);
+        }
+        server = builder
+                .withEngine(engine)
+                .withEventLoops(1)
+                .withNumThreads(4)
+                .withQueueSize(4)
+                .withRequestHandler(req -> {
+                    if (req.getRequestUri().equals("/slow")) {
+                        handling.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return Response.builder().withBody("done " + req.getRequestUri()).build();
+                })
+                .addServerListener(new ServerListener() {
+                    @Override
+                    public void onServerConnect(ServerSocket socket) {
+                        events.add("connect");
+                    }
+
+                    @Override
+                    public void onServerDraining() {
+                        events.add("draining");
+                    }
+
+                    @Override
+                    public void onServerShutdown(ShutdownReport report) {
+                        events.add("shutdown");
+                    }
+                })
+                .build()
+                .start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        release.countDown();
+        server.shutdown(Duration.ofSeconds(1));
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void blockingEngineDrains() throws Exception {
+        start(Engine.BLOCKING);
+        drains();
+    }
+
+    @Test
+    public void nioEngineDrains() throws Exception {
+        start(Engine.NIO);
+        drains();
+    }
+
+    @Test
+    public void virtualThreadEngineDrains() throws Exception {
+        start(Engine.VIRTUAL_THREADS);
+        drains();
+    }
+
+    @Test
+    public void blockingEngineAbandonsWhatDoesNotFinish() throws Exception {
+        start(Engine.BLOCKING);
+        abandons();
+    }
+
+    @Test
+    public void nioEngineAbandonsWhatDoesNotFinish() throws Exception {
+        start(Engine.NIO);
+        abandons();
+    }
+
+    @Test
+    public void blockingEngineFinishesRequestsStillArriving() throws Exception {
+        start(Engine.BLOCKING);
+        finishesRequestsStillArriving();
+    }
+
+    @Test
+    public void nioEngineFinishesRequestsStillArriving() throws Exception {
+        start(Engine.NIO);
+        finishesRequestsStillArriving();
+    }
+
+    @Test
+    public void virtualThreadEngineFinishesRequestsStillArriving() throws Exception {
+        start(Engine.VIRTUAL_THREADS);
+        finishesRequestsStillArriving();
+    }
+
+    @Test
+    public void startsOnlyOnce() throws Exception {
+        Server built = Server.builder()
+                .withRequestHandler(req -> Response.builder().build())
+                .build();
+        server = built.start();
+        assertThrows(IllegalStateException.class, built::start);
+    }
+
+    // An idle keep-alive connection is closed straight away, while a request in flight is answered
+    // before its connection closes.
+    private void drains() throws Exception {
+        int port = server.getPort();
+        try (Socket idle = new Socket("localhost", port); Socket busy = new Socket("localhost", port)) {
+            idle.setSoTimeout(5000);
+            busy.setSoTimeout(5000);
+            idle.getOutputStream().write("GET /idle HTTP/1.1\r\n\r\n".getBytes(Charsets.US_ASCII));
+            assertThat(readResponse(idle.getInputStream())).endsWith("done /idle");
+            busy.getOutputStream().write("GET /slow HTTP/1.1\r\n\r\n".getBytes(Charsets.US_ASCII));
+            assertThat(handling.await(5, TimeUnit.SECONDS)).isTrue();
+
+            Future<ShutdownReport> report = executor.submit(() -> server.shutdown(Duration.ofSeconds(5)));
+            assertThat(idle.getInputStream().read()).isEqualTo(-1);
+            assertThrows(ConnectException.class, () -> new Socket("localhost", port).close());
+            assertThat(report.isDone()).isFalse();
+
+            release.countDown();
+            String response = new String(ByteStreams.toByteArray(busy.getInputStream()), Charsets.US_ASCII);
+            assertThat(response).contains("Connection: close\r\n");
+            assertThat(response).endsWith("done /slow");
+            assertThat(report.get(5, TimeUnit.SECONDS).isClean()).isTrue();
+        }
+        assertThat(events).containsExactly("connect", "draining", "shutdown").inOrder();
+    }
+
+    // A request whose headers are still arriving when the drain starts is answered, not cut off.
+    private void finishesRequestsStillArriving() throws Exception {
+        try (Socket partial = new Socket("localhost", server.getPort())) {
+            partial.setSoTimeout(5000);
+            partial.getOutputStream().write("GET /partial HTTP/1.1\r\nHost: localhost\r\n".getBytes(Charsets.US_ASCII));
+            // Give the server time to read the first bytes.
+            TimeUnit.MILLISECONDS.sleep(100);
+
+            Future<ShutdownReport> report = executor.submit(() -> server.shutdown(Duration.ofSeconds(5)));
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertThat(report.isDone()).isFalse();
+
+            partial.getOutputStream().write("\r\n".getBytes(Charsets.US_ASCII));
+            String response = new String(ByteStreams.toByteArray(partial.getInputStream()), Charsets.US_ASCII);
+            assertThat(response).contains("Connection: close\r\n");
+            assertThat(response).endsWith("done /partial");
+            assertThat(report.get(5, TimeUnit.SECONDS).isClean()).isTrue();
+        }
+    }
+
+    private void abandons() throws Exception {
+        try (Socket busy = new Socket("localhost", server.getPort())) {
+            busy.setSoTimeout(5000);
+            busy.getOutputStream().write("GET /slow HTTP/1.1\r\n\r\n".getBytes(Charsets.US_ASCII));
+            assertThat(handling.await(5, TimeUnit.SECONDS)).isTrue();
+
+            ShutdownReport report = server.shutdown(Duration.ofMillis(100));
+            assertThat(report.isClean()).isFalse();
+            assertThat(report.getConnectionsAbandoned()).isEqualTo(1);
+            assertThat(report.getRequestsAbandoned()).isEqualTo(1);
+            try {
+                assertThat(busy.getInputStream().read()).isEqualTo(-1);
+            } catch (SocketException e) {
+                // Or reset, as the connection was closed with the request unread.
+            }
+        }
+    }
+
+    // Reads one response to a request on a keep-alive connection, which has a Content-Length.
+    private static String readResponse(InputStream is) throws IOException {
+        StringBuilder response = new StringBuilder();
+        int contentLength = -1;
+        while (contentLength == -1 || response.length() < response.indexOf("\r\n\r\n") + 4 + contentLength) {
+            int b = is.read();
+            if (b == -1) {
+                break;
+            }
+            response.append((char) b);
+            int end = response.indexOf("\r\n\r\n");
+            if (contentLength == -1 && end != -1) {
+                String head = response.substring(0, end + 2);
+                int at = head.indexOf("Content-Length: ");
+                contentLength = Integer.parseInt(head.substring(at + 16, head.indexOf("\r\n", at)).trim());
+            }
+        }
+        return response.toString();
+    }
+}
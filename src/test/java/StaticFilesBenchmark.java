@@ -0,0 +1,87 @@
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+// Serves files of mixed sizes out of a temporary directory into /dev/null: small and medium ones
+// from StaticFiles' cache, large ones with transferTo, alongside the read-the-file-every-time
+// handler StaticFiles replaces, and the conditional and range requests that skip most of the work.
+public class StaticFilesBenchmark {
+    private static final String[] FILES = {"small.css", "medium.js", "large.bin", "huge.bin"};
+    private static final int[] SIZES = {1024, 32 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+
+    public static void main(String... args) throws Exception {
+        Path root = Files.createTempDirectory("static-files-benchmark");
+        Random random = new Random(0);
+        for (int i = 0; i < FILES.length; i++) {
+            byte[] contents = new byte[SIZES[i]];
+            random.nextBytes(contents);
+            Files.write(root.resolve(FILES[i]), contents);
+        }
+
+        MicroBenchmark benchmark = new MicroBenchmark("StaticFilesBenchmark");
+        try (StaticFiles files = StaticFiles.builder().withRoot(root).build();
+             FileChannel sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE)) {
+            RequestHandler naive = req -> {
+                try {
+                    return Response.builder()
+                            .withBody(Files.readAllBytes(root.resolve(req.getRequestUri().substring(1))))
+                            .build();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+            for (String file : FILES) {
+                Request req = get("/" + file);
+                benchmark.run(file + "Cached", () -> send(files.handle(req), sink));
+                benchmark.run(file + "Naive", () -> send(naive.handle(req), sink));
+            }
+
+            String etag = files.handle(get("/medium.js")).getHeaders().get(HeaderNames.ETAG);
+            Request notModified = get("/medium.js", HeaderNames.IF_NONE_MATCH, etag);
+            benchmark.run("notModified", () -> send(files.handle(notModified), sink));
+            Request range = get("/huge.bin", HeaderNames.RANGE, "bytes=1048576-1114111");
+            benchmark.run("range64k", () -> send(files.handle(range), sink));
+        } finally {
+            MoreFiles.deleteRecursively(root, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+        benchmark.report();
+    }
+
+    // Writes the body out as NioConnection would, and lets go of it.
+    private static long send(Response res, FileChannel sink) throws Exception {
+        ResponseBody body = res.getBody();
+        long written = 0;
+        try {
+            ByteBuffer buffer = body.buffer();
+            if (buffer != null) {
+                while (buffer.hasRemaining()) {
+                    written += sink.write(buffer);
+                }
+            } else {
+                while (written < body.length()) {
+                    written += body.transferTo(written, sink);
+                }
+            }
+        } finally {
+            body.release();
+        }
+        return written;
+    }
+
+    private static Request get(String uri, String... headers) {
+        Request.Builder builder = Request.builder().withMethod("GET").withHttpVersion("HTTP/1.1").withRequestUri(uri);
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.addHeader(headers[i], headers[i + 1]);
+        }
+        return builder.build();
+    }
+}
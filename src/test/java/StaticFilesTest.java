@@ -0,0 +1,203 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class StaticFilesTest {
+    private Path root;
+    private StaticFiles files;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("static-files-test");
+        write("index.html", "<h1>home</h1>");
+        write("css/site.css", "body {}");
+        write("data.bin", "0123456789");
+        write("large.txt", Strings.repeat("x", 100_000));
+        files = StaticFiles.builder().withRoot(root).withMaxCachedFileSize(64 * 1024).build();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        files.close();
+        MoreFiles.deleteRecursively(root, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test
+    public void servesFilesWithTheirHeaders() throws Exception {
+        Response res = files.handle(get("/css/site.css"));
+        assertThat(res.getStatus()).isEqualTo(Status.OK);
+        assertThat(body(res)).isEqualTo("body {}");
+        assertThat(res.getHeaders().get("Content-Type")).isEqualTo("text/css; charset=utf-8");
+        assertThat(res.getHeaders().get("Content-Length")).isEqualTo("7");
+        assertThat(res.getHeaders().get("Accept-Ranges")).isEqualTo("bytes");
+        assertThat(res.getHeaders().get("ETag")).startsWith("\"");
+        assertThat(res.getHeaders().get("Last-Modified")).endsWith(" GMT");
+
+        assertThat(files.handle(get("/data.bin")).getHeaders().get("Content-Type")).isEqualTo("application/octet-stream");
+    }
+
+    @Test
+    public void servesIndexForDirectories() throws Exception {
+        assertThat(body(files.handle(get("/")))).isEqualTo("<h1>home</h1>");
+        assertThat(files.handle(get("/css/")).getStatus()).isEqualTo(Status.NOT_FOUND);
+    }
+
+    @Test
+    public void streamsLargeFiles() throws Exception {
+        Response res = files.handle(get("/large.txt"));
+        assertThat(res.getBody().inMemory()).isFalse();
+        assertThat(res.getHeaders().get("Content-Length")).isEqualTo("100000");
+        assertThat(body(res)).isEqualTo(Strings.repeat("x", 100_000));
+    }
+
+    @Test
+    public void servesPathParam() throws Exception {
+        Router router = Router.builder().get("/assets/{path*}", files).build();
+        assertThat(body(router.handle(get("/assets/css/site.css")))).isEqualTo("body {}");
+    }
+
+    @Test
+    public void decodesEscapedNames() throws Exception {
+        write("my file.txt", "spaced");
+        assertThat(body(files.handle(get("/my%20file.txt")))).isEqualTo("spaced");
+        Router router = Router.builder().get("/assets/{path*}", files).build();
+        assertThat(body(router.handle(get("/assets/my%20file.txt")))).isEqualTo("spaced");
+    }
+
+    @Test
+    public void missingFilesAndEscapesAreNotFound() throws Exception {
+        Files.write(root.resolveSibling(root.getFileName() + "-secret"), "secret".getBytes(Charsets.UTF_8));
+        try {
+            assertThat(files.handle(get("/missing.txt")).getStatus()).isEqualTo(Status.NOT_FOUND);
+            assertThat(files.handle(get("/../" + root.getFileName() + "-secret")).getStatus()).isEqualTo(Status.NOT_FOUND);
+            assertThat(files.handle(get("/css/../../" + root.getFileName() + "-secret")).getStatus())
+                    .isEqualTo(Status.NOT_FOUND);
+            assertThat(files.handle(get("/%2e%2e/" + root.getFileName() + "-secret")).getStatus())
+                    .isEqualTo(Status.NOT_FOUND);
+        } finally {
+            Files.delete(root.resolveSibling(root.getFileName() + "-secret"));
+        }
+    }
+
+    @Test
+    public void conditionalRequestsGetNotModified() throws Exception {
+        Response res = files.handle(get("/data.bin"));
+        String etag = res.getHeaders().get("ETag");
+        String lastModified = res.getHeaders().get("Last-Modified");
+
+        Response notModified = files.handle(get("/data.bin", "If-None-Match", "W/" + etag));
+        assertThat(notModified.getStatus()).isEqualTo(Status.NOT_MODIFIED);
+        // The length of the file the client has cached, not of the empty 304.
+        assertThat(notModified.getHeaders().getAll("Content-Length")).containsExactly("10");
+        Response gzipNotModified = files.handle(get("/data.bin", "If-None-Match", Compression.encodedTag(etag, "gzip")));
+        assertThat(gzipNotModified.getStatus()).isEqualTo(Status.NOT_MODIFIED);
+        assertThat(gzipNotModified.getHeaders().getAll("ETag")).containsExactly(Compression.encodedTag(etag, "gzip"));
+        assertThat(gzipNotModified.getHeaders().getAll("Content-Length")).isEmpty();
+        assertThat(files.handle(get("/data.bin", "If-None-Match", "\"other\"")).getStatus()).isEqualTo(Status.OK);
+        assertThat(files.handle(get("/data.bin", "If-Modified-Since", lastModified)).getStatus())
+                .isEqualTo(Status.NOT_MODIFIED);
+        assertThat(files.handle(get("/data.bin", "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT")).getStatus())
+                .isEqualTo(Status.OK);
+        // If-None-Match wins.
+        assertThat(files.handle(get("/data.bin", "If-None-Match", "\"other\"", "If-Modified-Since", lastModified))
+                .getStatus()).isEqualTo(Status.OK);
+    }
+
+    @Test
+    public void servesRanges() throws Exception {
+        Response res = files.handle(get("/data.bin", "Range", "bytes=2-4"));
+        assertThat(res.getStatus()).isEqualTo(Status.PARTIAL_CONTENT);
+        assertThat(res.getHeaders().get("Content-Range")).isEqualTo("bytes 2-4/10");
+        assertThat(body(res)).isEqualTo("234");
+
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=7-")))).isEqualTo("789");
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=-2")))).isEqualTo("89");
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=8-100")))).isEqualTo("89");
+        assertThat(body(files.handle(get("/large.txt", "Range", "bytes=99998-")))).isEqualTo("xx");
+
+        res = files.handle(get("/data.bin", "Range", "bytes=10-"));
+        assertThat(res.getStatus()).isEqualTo(Status.RANGE_NOT_SATISFIABLE);
+        assertThat(res.getHeaders().get("Content-Range")).isEqualTo("bytes */10");
+
+        // Several ranges, nonsense, or a stale If-Range get the whole file.
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=0-1,4-5")))).isEqualTo("0123456789");
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=x-y")))).isEqualTo("0123456789");
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=2-4", "If-Range", "\"stale\""))))
+                .isEqualTo("0123456789");
+        String etag = files.handle(get("/data.bin")).getHeaders().get("ETag");
+        assertThat(body(files.handle(get("/data.bin", "Range", "bytes=2-4", "If-Range", etag)))).isEqualTo("234");
+    }
+
+    @Test
+    public void headHasNoBody() throws Exception {
+        Response res = files.handle(request("HEAD", "/large.txt"));
+        assertThat(res.getStatus()).isEqualTo(Status.OK);
+        assertThat(res.getHeaders().get("Content-Length")).isEqualTo("100000");
+        assertThat(res.getBody().length()).isEqualTo(0);
+    }
+
+    @Test
+    public void otherMethodsAreNotAllowed() throws Exception {
+        Response res = files.handle(request("POST", "/data.bin"));
+        assertThat(res.getStatus()).isEqualTo(Status.METHOD_NOT_ALLOWED);
+        assertThat(res.getHeaders().get("Allow")).isEqualTo("GET, HEAD");
+    }
+
+    @Test
+    public void changedFilesAreServedFresh() throws Exception {
+        assertThat(body(files.handle(get("/css/site.css")))).isEqualTo("body {}");
+        write("css/site.css", "body { color: red }");
+        write("css/new.css", "p {}");
+
+        // The watcher may take a moment, and polls every few seconds on some platforms.
+        String body = null;
+        for (int i = 0; i < 200; i++) {
+            body = body(files.handle(get("/css/site.css")));
+            if (!body.equals("body {}")) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertThat(body).isEqualTo("body { color: red }");
+        assertThat(body(files.handle(get("/css/new.css")))).isEqualTo("p {}");
+    }
+
+    private void write(String path, String contents) throws Exception {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(Charsets.UTF_8));
+    }
+
+    private static Request get(String uri, String... headers) {
+        return request("GET", uri, headers);
+    }
+
+    private static Request request(String method, String uri, String... headers) {
+        Request.Builder builder = Request.builder().withMethod(method).withHttpVersion("HTTP/1.1").withRequestUri(uri);
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.addHeader(headers[i], headers[i + 1]);
+        }
+        return builder.build();
+    }
+
+    private static String body(Response res) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            res.getBody().writeTo(out);
+        } finally {
+            res.getBody().release();
+        }
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class TimerWheelTest {
+    private static final long TICK = 100;
+
+    private final List<String> fired = new ArrayList<>();
+    private final TimerWheel wheel = new TimerWheel(TICK, 8, 0);
+
+    private TimerWheel.Timeout timeout(String name) {
+        return new TimerWheel.Timeout(() -> fired.add(name));
+    }
+
+    @Test
+    public void runsTimeoutsOnceTheirTickIsOver() {
+        wheel.schedule(timeout("a"), 250);
+        wheel.schedule(timeout("b"), 150);
+
+        assertThat(wheel.advance(199)).isEqualTo(0);
+        assertThat(wheel.advance(200)).isEqualTo(1);
+        assertThat(fired).containsExactly("b");
+        wheel.advance(300);
+        assertThat(fired).containsExactly("b", "a").inOrder();
+        assertThat(wheel.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void cancels() {
+        TimerWheel.Timeout a = timeout("a");
+        wheel.schedule(a, 150);
+        wheel.schedule(timeout("b"), 150);
+        wheel.cancel(a);
+
+        wheel.advance(1000);
+        assertThat(fired).containsExactly("b");
+        assertThat(a.isScheduled()).isFalse();
+    }
+
+    @Test
+    public void movesTimeoutsLaterAndEarlier() {
+        TimerWheel.Timeout a = timeout("a");
+        wheel.schedule(a, 150);
+        wheel.schedule(a, 450);
+        wheel.advance(400);
+        assertThat(fired).isEmpty();
+        assertThat(a.isScheduled()).isTrue();
+
+        wheel.schedule(a, 420);
+        wheel.advance(500);
+        assertThat(fired).containsExactly("a");
+
+        TimerWheel.Timeout b = timeout("b");
+        wheel.schedule(b, 2000);
+        wheel.schedule(b, 550);
+        wheel.advance(600);
+        assertThat(fired).containsExactly("a", "b").inOrder();
+    }
+
+    @Test
+    public void runsTimeoutsMoreThanALapAway() {
+        // Eight buckets of 100 make a lap of 800.
+        wheel.schedule(timeout("a"), 2550);
+        for (long now = 0; now < 2550; now += 50) {
+            wheel.advance(now);
+        }
+        assertThat(fired).isEmpty();
+        wheel.advance(2600);
+        assertThat(fired).containsExactly("a");
+    }
+
+    @Test
+    public void catchesUpAfterAGap() {
+        wheel.schedule(timeout("a"), 150);
+        wheel.schedule(timeout("b"), 10_000_000);
+
+        assertThat(wheel.advance(5_000_000)).isEqualTo(1);
+        assertThat(wheel.advance(10_000_100)).isEqualTo(1);
+        assertThat(fired).containsExactly("a", "b").inOrder();
+    }
+
+    @Test
+    public void timeoutsCanRescheduleThemselves() {
+        List<Long> runs = new ArrayList<>();
+        TimerWheel.Timeout[] self = new TimerWheel.Timeout[1];
+        self[0] = new TimerWheel.Timeout(() -> {
+            runs.add((long) runs.size());
+            if (runs.size() < 3) {
+                wheel.schedule(self[0], 300 * (runs.size() + 1));
+            }
+        });
+        wheel.schedule(self[0], 300);
+        for (long now = 0; now <= 2000; now += 100) {
+            wheel.advance(now);
+        }
+        assertThat(runs).hasSize(3);
+    }
+}
@@ -0,0 +1,190 @@
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class TlsServerTest {
+    private static final char[] PASSWORD = "password".toCharArray();
+    private static final String CIPHER_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+
+    private static Path keyStoreFile;
+    private static KeyStore keyStore;
+
+    private final ExecutorService handlerExecutor = Executors.newFixedThreadPool(2);
+    private ServerHandle server;
+    private int port;
+    private Path file;
+    private SSLContext client;
+
+    // A self-signed certificate for localhost, made fresh for each run.
+    @BeforeAll
+    public static void generateKeyStore() throws Exception {
+        keyStoreFile = Files.createTempDirectory("tls-server-test").resolve("server.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost", "-storetype", "PKCS12",
+                "-keystore", keyStoreFile.toString(), "-storepass", new String(PASSWORD),
+                "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true)
+                .redirectOutput(new File("/dev/null"))
+                .start();
+        assertThat(process.waitFor(60, TimeUnit.SECONDS)).isTrue();
+        assertThat(process.exitValue()).isEqualTo(0);
+
+        keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStoreFile)) {
+            keyStore.load(in, PASSWORD);
+        }
+    }
+
+    @AfterAll
+    public static void deleteKeyStore() throws Exception {
+        Files.delete(keyStoreFile);
+        Files.delete(keyStoreFile.getParent());
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        file = Files.createTempFile("tls-server-test", ".bin");
+        Files.write(file, Strings.repeat("0123456789abcdef", 64 * 1024).getBytes(Charsets.US_ASCII));
+
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        client = SSLContext.getInstance("TLS");
+        client.init(null, trustManagers.getTrustManagers(), null);
+
+        Tls tls = Tls.builder()
+                .withKeyStore(keyStore, PASSWORD)
+                .withCipherSuites("TLS_AES_128_GCM_SHA256", CIPHER_SUITE)
+                .build();
+
+        server = Server.builder()
+                .withEngine(Engine.NIO)
+                .withEventLoops(1)
+                .withHandlerExecutor(handlerExecutor)
+                .withTls(tls)
+                .withRequestHandler(req -> {
+                    if (req.getRequestUri().equals("/echo")) {
+                        return Response.builder().withBody(req.getBody()).build();
+                    }
+                    if (req.getRequestUri().equals("/stream")) {
+                        InputStream body = req.getBodyStream();
+                        return Response.builder().withBody(os -> ByteStreams.copy(body, os)).build();
+                    }
+                    if (req.getRequestUri().equals("/file")) {
+                        try {
+                            return Response.builder().withBody(file).build();
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                    return Response.builder().withStatus(Status.OK).build();
+                })
+                .build()
+                .start();
+        port = server.getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.shutdown(Duration.ofSeconds(1));
+        handlerExecutor.shutdown();
+        Files.delete(file);
+    }
+
+    @Test
+    public void pipelinedRequestsOnOneConnection() throws Exception {
+        String responses = exchange("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "POST /stream HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n"
+                + "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+        assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "c\r\nhello, world\r\n0\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void largeBodiesSpanManyRecords() throws Exception {
+        String body = new String(Files.readAllBytes(file), Charsets.US_ASCII);
+        String response = exchange("POST /echo HTTP/1.1\r\nContent-Length: " + body.length()
+                + "\r\nConnection: close\r\n\r\n" + body);
+        assertThat(response).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+                + "\r\nConnection: close\r\n\r\n" + body);
+
+        response = exchange("GET /file HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertThat(response).isEqualTo("HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+                + "\r\nConnection: close\r\n\r\n" + body);
+    }
+
+    @Test
+    public void sessionsAreResumed() throws Exception {
+        SSLSession first;
+        SSLSession second;
+        try (SSLSocket socket = connect("TLSv1.2")) {
+            first = socket.getSession();
+        }
+        try (SSLSocket socket = connect("TLSv1.2")) {
+            second = socket.getSession();
+        }
+
+        assertThat(first.getCipherSuite()).isEqualTo(CIPHER_SUITE);
+        assertThat(second.getId()).isEqualTo(first.getId());
+    }
+
+    @Test
+    public void negotiatesApplicationProtocol() throws Exception {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", port)) {
+            SSLParameters params = socket.getSSLParameters();
+            params.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+            socket.setSSLParameters(params);
+            socket.startHandshake();
+
+            assertThat(socket.getApplicationProtocol()).isEqualTo("http/1.1");
+        }
+    }
+
+    private SSLSocket connect(String protocol) throws IOException {
+        SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", port);
+        socket.setSoTimeout(5000);
+        socket.setEnabledProtocols(new String[] {protocol});
+        socket.startHandshake();
+        return socket;
+    }
+
+    private String exchange(String requests) throws IOException {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(requests.getBytes(Charsets.US_ASCII));
+            out.flush();
+            return new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class VirtualThreadServerTest {
+    private static final String KEEP_ALIVE_RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+
+    private ServerHandle server;
+    private int port;
+
+    private void startServer(int maxConnections, OverloadPolicy overloadPolicy) throws Exception {
+        server = Server.builder()
+                .withEngine(Engine.VIRTUAL_THREADS)
+                .withSocketQueueLength(256)
+                .withMaxConnections(maxConnections)
+                .withOverloadPolicy(overloadPolicy)
+                .withRequestHandler(req -> Response.builder().withStatus(Status.OK).build())
+                .build()
+                .start();
+        port = server.getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.shutdown(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void getRequest() throws Exception {
+        startServer(10, OverloadPolicy.WAIT);
+
+        HttpResponse res = Unirest.get("http://localhost:" + port + "/").asString();
+        assertThat(res.getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    public void manyConcurrentConnections() throws Exception {
+        startServer(1000, OverloadPolicy.REJECT);
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                sockets.add(request(new Socket("localhost", port)));
+            }
+            for (Socket socket : sockets) {
+                assertThat(readResponse(socket)).isEqualTo(KEEP_ALIVE_RESPONSE);
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void rejectsConnectionsOverLimit() throws Exception {
+        startServer(1, OverloadPolicy.REJECT);
+
+        try (Socket first = request(new Socket("localhost", port))) {
+            assertThat(readResponse(first)).isEqualTo(KEEP_ALIVE_RESPONSE);
+
+            try (Socket second = new Socket("localhost", port)) {
+                second.setSoTimeout(5000);
+                String response = new String(ByteStreams.toByteArray(second.getInputStream()), Charsets.US_ASCII);
+                assertThat(response).isEqualTo("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+            }
+        }
+    }
+
+    @Test
+    public void waitsForCapacity() throws Exception {
+        startServer(1, OverloadPolicy.WAIT);
+
+        Socket first = request(new Socket("localhost", port));
+        assertThat(readResponse(first)).isEqualTo(KEEP_ALIVE_RESPONSE);
+
+        try (Socket second = request(new Socket("localhost", port))) {
+            first.close();
+            assertThat(readResponse(second)).isEqualTo(KEEP_ALIVE_RESPONSE);
+        }
+    }
+
+    private static Socket request(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.US_ASCII));
+        return socket;
+    }
+
+    private static String readResponse(Socket socket) throws IOException {
+        byte[] response = new byte[KEEP_ALIVE_RESPONSE.length()];
+        InputStream is = socket.getInputStream();
+        ByteStreams.readFully(is, response);
+        return new String(response, Charsets.US_ASCII);
+    }
+}